@@ -11,18 +11,21 @@ import us.kbase.common.service.RpcContext;
 
 //BEGIN_HEADER
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.apache.http.HttpHost;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableMap;
 
 import ch.qos.logback.classic.Level;
@@ -40,6 +43,8 @@ import kbasesearchengine.main.SearchInterface;
 import kbasesearchengine.main.SearchMethods;
 import kbasesearchengine.main.SearchVersion;
 import kbasesearchengine.main.NarrativeInfoDecorator;
+import kbasesearchengine.search.CachingIndexingStorage;
+import kbasesearchengine.search.ElasticClientPool;
 import kbasesearchengine.search.ElasticIndexingStorage;
 import kbasesearchengine.system.FileLister;
 import kbasesearchengine.system.ObjectTypeParsingRulesFileParser;
@@ -70,6 +75,19 @@ public class KBaseSearchEngineServer extends JsonServerServlet {
     private static final GitInfo GIT = new GitInfo();
     
     private final SearchInterface search;
+    private final CachingIndexingStorage searchCache;
+    private final ElasticIndexingStorage esStorage;
+    
+    private static Map<String, Object> poolStatus(final ElasticClientPool pool) {
+        final Map<String, Object> status = new LinkedHashMap<>();
+        status.put("max_connections", pool.getMaxConnections());
+        status.put("requests", pool.getRequestCount());
+        status.put("failed_requests", pool.getFailedRequestCount());
+        status.put("total_request_time_ms", pool.getTotalRequestTimeMS());
+        status.put("active_requests", pool.getActiveRequestCount());
+        status.put("peak_active_requests", pool.getPeakActiveRequestCount());
+        return status;
+    }
     
     private void quietLoggers() {
         ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME))
@@ -95,7 +113,7 @@ public class KBaseSearchEngineServer extends JsonServerServlet {
         int elasticPort = Integer.parseInt(config.get("elastic-port"));
         String esUser = config.get("elastic-user");
         String esPassword = config.get("elastic-password");
-        HttpHost esHostPort = new HttpHost(elasticHost, elasticPort);
+        List<HttpHost> esHosts = ElasticClientPool.parseHosts(elasticHost, elasticPort);
         final Path typesDir = Paths.get(config.get("types-dir"));
         final Path mappingsDir = Paths.get(config.get("type-mappings-dir"));
         File tempDir = new File(config.get("scratch"));
@@ -141,24 +159,57 @@ public class KBaseSearchEngineServer extends JsonServerServlet {
         final WorkspaceClient wsClient = new WorkspaceClient(wsUrl, kbaseIndexerToken);
         wsClient.setIsInsecureHttpConnectionAllowed(true); //TODO SEC only do if http
         
-        // 50k simultaneous users * 1000 group ids each seems like plenty = 50M ints in memory
-        final AccessGroupProvider accessGroupProvider = new AccessGroupCache(
-                new WorkspaceAccessGroupProvider(wsClient), 30, 50000 * 1000);
-        
-        final ElasticIndexingStorage esStorage = new ElasticIndexingStorage(esHostPort,
+        esStorage = new ElasticIndexingStorage(esHosts,
                 FileUtil.getOrCreateSubDir(tempDir, "esbulk"));
         if (esUser != null) {
             esStorage.setEsUser(esUser);
             esStorage.setEsPassword(esPassword);
         }
         esStorage.setIndexNamePrefix(esIndexPrefix);
+        esStorage.setLogger(logger);
+        esStorage.setPoolMetricsLogIntervalMS(
+                ElasticIndexingStorage.DEFAULT_POOL_METRICS_LOG_INTERVAL_MS);
+        final String lookupMin = config.get("elastic-access-groups-lookup-minimum");
+        if (lookupMin != null && !lookupMin.trim().isEmpty()) {
+            esStorage.setAccessGroupsLookupMinimum(Integer.parseInt(lookupMin.trim()));
+        }
+        
+        // 50k simultaneous users * 1000 group ids each seems like plenty = 50M ints in memory
+        // users' access groups are stored in ES when loaded so searches can look them up.
+        // Searches send the groups with the query if storing them fails.
+        final AccessGroupProvider accessGroupProvider = new AccessGroupCache(
+                new WorkspaceAccessGroupProvider(wsClient), 30, 50000 * 1000,
+                (user, accessGroupIds) -> {
+                    try {
+                        esStorage.storeAccessGroups(user, accessGroupIds);
+                    } catch (IOException e) {
+                        logger.logError("Error storing access groups for user " + user +
+                                ": " + e.getMessage());
+                        logger.logError(e);
+                    }
+                });
+        
+        // many users issue the same searches, e.g. from the landing page. Results are cached for
+        // about as long as ES takes to make writes visible anyway.
+        final String cacheLifetime = config.get("search-cache-lifetime-sec");
+        final String cacheSize = config.get("search-cache-size-bytes");
+        searchCache = new CachingIndexingStorage(esStorage,
+                cacheLifetime == null || cacheLifetime.trim().isEmpty() ?
+                        CachingIndexingStorage.DEFAULT_CACHE_LIFETIME_SEC :
+                        Integer.parseInt(cacheLifetime.trim()),
+                cacheSize == null || cacheSize.trim().isEmpty() ?
+                        CachingIndexingStorage.DEFAULT_CACHE_SIZE_BYTES :
+                        Long.parseLong(cacheSize.trim()));
         
         // this is a dirty hack so we don't have to provide 2 auth urls in the config
         // update if we ever update the SDK to use the non-legacy endpoints
         final String auth2URL = authURL.split("api")[0];
         
+        final SearchMethods searchMethods = new SearchMethods(
+                accessGroupProvider, searchCache, ss, admins);
+        searchMethods.setSnapshotKeepAliveSec(esStorage.getSnapshotKeepAliveSec());
         search = new NarrativeInfoDecorator(
-                new SearchMethods(accessGroupProvider, esStorage, ss, admins),
+                searchMethods,
                 new WorkspaceEventHandler(new CloneableWorkspaceClientImpl(wsClient)),
                 new TemporaryAuth2Client(new URL(auth2URL)),
                 kbaseIndexerToken.getToken());
@@ -242,6 +293,18 @@ public class KBaseSearchEngineServer extends JsonServerServlet {
         returnVal.put("version", SearchVersion.VERSION);
         returnVal.put("git_url", GIT.getGitUrl());
         returnVal.put("git_commit_hash", GIT.getGitCommit());
+        final CacheStats cacheStats = searchCache.getStats();
+        final Map<String, Object> cache = new LinkedHashMap<>();
+        cache.put("cached_searches", searchCache.getCachedSearchCount());
+        cache.put("hits", cacheStats.hitCount());
+        cache.put("misses", cacheStats.missCount());
+        cache.put("hit_rate", cacheStats.hitRate());
+        cache.put("evictions", cacheStats.evictionCount());
+        returnVal.put("search_cache", cache);
+        final Map<String, Object> pools = new LinkedHashMap<>();
+        pools.put("read", poolStatus(esStorage.getReadPool()));
+        pools.put("write", poolStatus(esStorage.getWritePool()));
+        returnVal.put("elastic_pools", pools);
         // get eclipse to shut up about the unused constants
         @SuppressWarnings("unused")
         final String v = version;
@@ -15,6 +15,18 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
  * <p>Original spec-file type: Pagination</p>
  * <pre>
  * Pagination rules. Default values are: start = 0, count = 50.
+ * cursor - the next_cursor returned by a previous search (optional). If provided, the
+ *     objects following the objects returned by the previous search are returned and
+ *     start must be 0. The search must use the same filters and sorting rules as the
+ *     previous search. Unlike start, cursors can page through any number of objects
+ *     without slowing down.
+ * snapshot - true to search a consistent snapshot of the data (optional, default false).
+ *     The next_cursor returned by a snapshot search returns the next page of the same
+ *     snapshot, unaffected by changes to the data since the snapshot was started. start
+ *     must be 0 and count is fixed by the first page. The snapshot expires if it is not
+ *     used for 5 minutes, or when the last page has been returned. A user may only have a
+ *     few snapshots open at once; starting more closes the user's oldest snapshot. Ignored
+ *     when a cursor is provided.
  * </pre>
  * 
  */
@@ -22,7 +34,9 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 @Generated("com.googlecode.jsonschema2pojo")
 @JsonPropertyOrder({
     "start",
-    "count"
+    "count",
+    "cursor",
+    "snapshot"
 })
 public class Pagination {
 
@@ -30,6 +44,10 @@ public class Pagination {
     private Long start;
     @JsonProperty("count")
     private Long count;
+    @JsonProperty("cursor")
+    private String cursor;
+    @JsonProperty("snapshot")
+    private Long snapshot;
     private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
     @JsonProperty("start")
@@ -62,6 +80,36 @@ public class Pagination {
         return this;
     }
 
+    @JsonProperty("cursor")
+    public String getCursor() {
+        return cursor;
+    }
+
+    @JsonProperty("cursor")
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public Pagination withCursor(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    @JsonProperty("snapshot")
+    public Long getSnapshot() {
+        return snapshot;
+    }
+
+    @JsonProperty("snapshot")
+    public void setSnapshot(Long snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public Pagination withSnapshot(Long snapshot) {
+        this.snapshot = snapshot;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<String, Object> getAdditionalProperties() {
         return this.additionalProperties;
@@ -74,7 +122,7 @@ public class Pagination {
 
     @Override
     public String toString() {
-        return ((((((("Pagination"+" [start=")+ start)+", count=")+ count)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((("Pagination"+" [start=")+ start)+", count=")+ count)+", cursor=")+ cursor)+", snapshot=")+ snapshot)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
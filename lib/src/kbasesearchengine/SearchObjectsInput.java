@@ -85,6 +85,18 @@ public class SearchObjectsInput {
      * <p>Original spec-file type: Pagination</p>
      * <pre>
      * Pagination rules. Default values are: start = 0, count = 50.
+     * cursor - the next_cursor returned by a previous search (optional). If provided, the
+     *     objects following the objects returned by the previous search are returned and
+     *     start must be 0. The search must use the same filters and sorting rules as the
+     *     previous search. Unlike start, cursors can page through any number of objects
+     *     without slowing down.
+     * snapshot - true to search a consistent snapshot of the data (optional, default false).
+     *     The next_cursor returned by a snapshot search returns the next page of the same
+     *     snapshot, unaffected by changes to the data since the snapshot was started. start
+     *     must be 0 and count is fixed by the first page. The snapshot expires if it is not
+     *     used for 5 minutes, or when the last page has been returned. A user may only have a
+     *     few snapshots open at once; starting more closes the user's oldest snapshot. Ignored
+     *     when a cursor is provided.
      * </pre>
      * 
      */
@@ -244,6 +256,18 @@ public class SearchObjectsInput {
      * <p>Original spec-file type: Pagination</p>
      * <pre>
      * Pagination rules. Default values are: start = 0, count = 50.
+     * cursor - the next_cursor returned by a previous search (optional). If provided, the
+     *     objects following the objects returned by the previous search are returned and
+     *     start must be 0. The search must use the same filters and sorting rules as the
+     *     previous search. Unlike start, cursors can page through any number of objects
+     *     without slowing down.
+     * snapshot - true to search a consistent snapshot of the data (optional, default false).
+     *     The next_cursor returned by a snapshot search returns the next page of the same
+     *     snapshot, unaffected by changes to the data since the snapshot was started. start
+     *     must be 0 and count is fixed by the first page. The snapshot expires if it is not
+     *     used for 5 minutes, or when the last page has been returned. A user may only have a
+     *     few snapshots open at once; starting more closes the user's oldest snapshot. Ignored
+     *     when a cursor is provided.
      * </pre>
      * 
      */
@@ -256,6 +280,18 @@ public class SearchObjectsInput {
      * <p>Original spec-file type: Pagination</p>
      * <pre>
      * Pagination rules. Default values are: start = 0, count = 50.
+     * cursor - the next_cursor returned by a previous search (optional). If provided, the
+     *     objects following the objects returned by the previous search are returned and
+     *     start must be 0. The search must use the same filters and sorting rules as the
+     *     previous search. Unlike start, cursors can page through any number of objects
+     *     without slowing down.
+     * snapshot - true to search a consistent snapshot of the data (optional, default false).
+     *     The next_cursor returned by a snapshot search returns the next page of the same
+     *     snapshot, unaffected by changes to the data since the snapshot was started. start
+     *     must be 0 and count is fixed by the first page. The snapshot expires if it is not
+     *     used for 5 minutes, or when the last page has been returned. A user may only have a
+     *     few snapshots open at once; starting more closes the user's oldest snapshot. Ignored
+     *     when a cursor is provided.
      * </pre>
      * 
      */
@@ -24,6 +24,8 @@ import us.kbase.common.service.Tuple5;
  * mapping<access_group_id, narrative_info> access_group_narrative_info - information about
  *    the workspaces in which the objects in the results reside. This data only applies to
  *    workspace objects.
+ * next_cursor - the cursor for the next page of objects, or null if there are no more
+ *    objects. See Pagination.
  * </pre>
  * 
  */
@@ -35,7 +37,8 @@ import us.kbase.common.service.Tuple5;
     "objects",
     "total",
     "search_time",
-    "access_group_narrative_info"
+    "access_group_narrative_info",
+    "next_cursor"
 })
 public class SearchObjectsOutput {
 
@@ -43,6 +46,18 @@ public class SearchObjectsOutput {
      * <p>Original spec-file type: Pagination</p>
      * <pre>
      * Pagination rules. Default values are: start = 0, count = 50.
+     * cursor - the next_cursor returned by a previous search (optional). If provided, the
+     *     objects following the objects returned by the previous search are returned and
+     *     start must be 0. The search must use the same filters and sorting rules as the
+     *     previous search. Unlike start, cursors can page through any number of objects
+     *     without slowing down.
+     * snapshot - true to search a consistent snapshot of the data (optional, default false).
+     *     The next_cursor returned by a snapshot search returns the next page of the same
+     *     snapshot, unaffected by changes to the data since the snapshot was started. start
+     *     must be 0 and count is fixed by the first page. The snapshot expires if it is not
+     *     used for 5 minutes, or when the last page has been returned. A user may only have a
+     *     few snapshots open at once; starting more closes the user's oldest snapshot. Ignored
+     *     when a cursor is provided.
      * </pre>
      * 
      */
@@ -58,12 +73,26 @@ public class SearchObjectsOutput {
     private java.lang.Long searchTime;
     @JsonProperty("access_group_narrative_info")
     private Map<Long, Tuple5 <String, Long, Long, String, String>> accessGroupNarrativeInfo;
+    @JsonProperty("next_cursor")
+    private java.lang.String nextCursor;
     private Map<java.lang.String, Object> additionalProperties = new HashMap<java.lang.String, Object>();
 
     /**
      * <p>Original spec-file type: Pagination</p>
      * <pre>
      * Pagination rules. Default values are: start = 0, count = 50.
+     * cursor - the next_cursor returned by a previous search (optional). If provided, the
+     *     objects following the objects returned by the previous search are returned and
+     *     start must be 0. The search must use the same filters and sorting rules as the
+     *     previous search. Unlike start, cursors can page through any number of objects
+     *     without slowing down.
+     * snapshot - true to search a consistent snapshot of the data (optional, default false).
+     *     The next_cursor returned by a snapshot search returns the next page of the same
+     *     snapshot, unaffected by changes to the data since the snapshot was started. start
+     *     must be 0 and count is fixed by the first page. The snapshot expires if it is not
+     *     used for 5 minutes, or when the last page has been returned. A user may only have a
+     *     few snapshots open at once; starting more closes the user's oldest snapshot. Ignored
+     *     when a cursor is provided.
      * </pre>
      * 
      */
@@ -76,6 +105,18 @@ public class SearchObjectsOutput {
      * <p>Original spec-file type: Pagination</p>
      * <pre>
      * Pagination rules. Default values are: start = 0, count = 50.
+     * cursor - the next_cursor returned by a previous search (optional). If provided, the
+     *     objects following the objects returned by the previous search are returned and
+     *     start must be 0. The search must use the same filters and sorting rules as the
+     *     previous search. Unlike start, cursors can page through any number of objects
+     *     without slowing down.
+     * snapshot - true to search a consistent snapshot of the data (optional, default false).
+     *     The next_cursor returned by a snapshot search returns the next page of the same
+     *     snapshot, unaffected by changes to the data since the snapshot was started. start
+     *     must be 0 and count is fixed by the first page. The snapshot expires if it is not
+     *     used for 5 minutes, or when the last page has been returned. A user may only have a
+     *     few snapshots open at once; starting more closes the user's oldest snapshot. Ignored
+     *     when a cursor is provided.
      * </pre>
      * 
      */
@@ -164,6 +205,21 @@ public class SearchObjectsOutput {
         return this;
     }
 
+    @JsonProperty("next_cursor")
+    public java.lang.String getNextCursor() {
+        return nextCursor;
+    }
+
+    @JsonProperty("next_cursor")
+    public void setNextCursor(java.lang.String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    public SearchObjectsOutput withNextCursor(java.lang.String nextCursor) {
+        this.nextCursor = nextCursor;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<java.lang.String, Object> getAdditionalProperties() {
         return this.additionalProperties;
@@ -176,7 +232,7 @@ public class SearchObjectsOutput {
 
     @Override
     public java.lang.String toString() {
-        return ((((((((((((((("SearchObjectsOutput"+" [pagination=")+ pagination)+", sortingRules=")+ sortingRules)+", objects=")+ objects)+", total=")+ total)+", searchTime=")+ searchTime)+", accessGroupNarrativeInfo=")+ accessGroupNarrativeInfo)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((((((((("SearchObjectsOutput"+" [pagination=")+ pagination)+", sortingRules=")+ sortingRules)+", objects=")+ objects)+", total=")+ total)+", searchTime=")+ searchTime)+", accessGroupNarrativeInfo=")+ accessGroupNarrativeInfo)+", nextCursor=")+ nextCursor)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
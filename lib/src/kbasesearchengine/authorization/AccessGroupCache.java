@@ -34,6 +34,25 @@ public class AccessGroupCache implements AccessGroupProvider {
         this(provider, cacheLifeTimeInSec, cacheSizeInAccessGroups, Ticker.systemTicker());
     }
     
+    /** Create a cache that notifies a listener whenever a user's access groups are loaded from
+     * the wrapped provider. The listener may, for example, store the access groups where
+     * searches can refer to them.
+     * @param provider the {@link AccessGroupProvider} whose results will be cached.
+     * @param cacheLifeTimeInSec the number of seconds a set of access groups for a user should
+     * remain in the cache.
+     * @param cacheSizeInAccessGroups the maximum number of access groups, across all users, to
+     * store in the cache.
+     * @param listener the listener to notify when a user's access groups are loaded.
+     */
+    public AccessGroupCache(
+            final AccessGroupProvider provider,
+            final int cacheLifeTimeInSec,
+            final int cacheSizeInAccessGroups,
+            final AccessGroupListener listener) {
+        this(provider, cacheLifeTimeInSec, cacheSizeInAccessGroups, Ticker.systemTicker(),
+                listener);
+    }
+    
     /** Create a cache for testing purposes.
      * @param provider the {@link AccessGroupProvider} whose results will be cached.
      * @param cacheLifeTimeInSec the number of seconds an set of access groups for a user should
@@ -49,9 +68,33 @@ public class AccessGroupCache implements AccessGroupProvider {
             final int cacheLifeTimeInSec,
             final int cacheSizeInAccessGroups,
             final Ticker ticker) {
+        this(provider, cacheLifeTimeInSec, cacheSizeInAccessGroups, ticker,
+                (user, accessGroupIds) -> {});
+    }
+    
+    /** Create a cache with a listener for testing purposes.
+     * @param provider the {@link AccessGroupProvider} whose results will be cached.
+     * @param cacheLifeTimeInSec the number of seconds an set of access groups for a user should
+     * remain in the cache.
+     * @param cacheSizeInAccessGroups the maximum number of access groups, across all users, to
+     * store in the cache.
+     * @param ticker a ticker implementation that allows controlling cache expiration with the
+     * provided ticker rather than waiting for the system clock. This is exposed for testing
+     * purposes.
+     * @param listener the listener to notify when a user's access groups are loaded.
+     */
+    public AccessGroupCache(
+            final AccessGroupProvider provider,
+            final int cacheLifeTimeInSec,
+            final int cacheSizeInAccessGroups,
+            final Ticker ticker,
+            final AccessGroupListener listener) {
         if (provider == null) {
             throw new NullPointerException("provider");
         }
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
 
         if (cacheLifeTimeInSec < 1) {
             throw new IllegalArgumentException("cache lifetime must be at least one second");
@@ -75,7 +118,9 @@ public class AccessGroupCache implements AccessGroupProvider {
 
                     @Override
                     public List<Integer> load(String user) throws Exception {
-                        return provider.findAccessGroupIds(user);
+                        final List<Integer> accessGroupIds = provider.findAccessGroupIds(user);
+                        listener.accessGroupsLoaded(user, accessGroupIds);
+                        return accessGroupIds;
                     }
 
                 });
@@ -0,0 +1,20 @@
+package kbasesearchengine.authorization;
+
+import java.io.IOException;
+import java.util.List;
+
+/** A listener notified when an {@link AccessGroupCache} loads the access groups for a user.
+ *
+ */
+public interface AccessGroupListener {
+    
+    /** Called when the access groups for a user are loaded, before they are cached and
+     * returned.
+     * @param user the user.
+     * @param accessGroupIds the user's access groups.
+     * @throws IOException if an IO error occurs. The access groups are not cached and the
+     * exception is thrown to the caller of the cache.
+     */
+    void accessGroupsLoaded(String user, List<Integer> accessGroupIds) throws IOException;
+
+}
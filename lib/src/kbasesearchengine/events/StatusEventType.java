@@ -7,13 +7,13 @@ public enum StatusEventType {
 //	SHARED,
 //	UNSHARED,
 	PUBLISH_ALL_VERSIONS,
-	PUBLISH_ACCESS_GROUP, //TODO NOW need to add access group to access docs public list where access group in groups list
+	PUBLISH_ACCESS_GROUP,
 	UNPUBLISH_ALL_VERSIONS,
-	UNPUBLISH_ACCESS_GROUP, //TODO NOW need to remove access group from all access docs public list
+	UNPUBLISH_ACCESS_GROUP,
 	NEW_ALL_VERSIONS,
 	RENAME_ALL_VERSIONS,
 	DELETE_ALL_VERSIONS,
 	UNDELETE_ALL_VERSIONS,
-	DELETE_ACCESS_GROUP, //TODO NOW need to remove access group from all access docs
+	DELETE_ACCESS_GROUP,
 	COPY_ACCESS_GROUP; // TODO DP need to handle data palette
 }
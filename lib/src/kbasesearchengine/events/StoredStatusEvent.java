@@ -24,6 +24,7 @@ public class StoredStatusEvent implements StatusEventWithId {
     private final Set<String> workerCodes;
     private final Optional<String> storedBy;
     private final Optional<Instant> storeTime;
+    private final int attempts;
     
     private StoredStatusEvent(
             final StatusEvent event,
@@ -33,7 +34,8 @@ public class StoredStatusEvent implements StatusEventWithId {
             final Optional<String> updater,
             final Set<String> workerCodes,
             final Optional<String> storedBy,
-            final Optional<Instant> storeTime) {
+            final Optional<Instant> storeTime,
+            final int attempts) {
         this.event = event;
         this.id = id;
         this.state = state;
@@ -42,6 +44,7 @@ public class StoredStatusEvent implements StatusEventWithId {
         this.workerCodes = Collections.unmodifiableSet(workerCodes);
         this.storedBy = storedBy;
         this.storeTime = storeTime;
+        this.attempts = attempts;
     }
 
     @Override
@@ -102,6 +105,15 @@ public class StoredStatusEvent implements StatusEventWithId {
         return storeTime;
     }
     
+    /** Get the number of times processing of this event was abandoned by a worker that stopped
+     * running, after which the event was returned to the
+     * {@link StatusEventProcessingState#READY} state.
+     * @return the number of abandoned processing attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+    
     @Override
     public String toString() {
         StringBuilder builder2 = new StringBuilder();
@@ -121,6 +133,8 @@ public class StoredStatusEvent implements StatusEventWithId {
         builder2.append(storedBy);
         builder2.append(", storeTime=");
         builder2.append(storeTime);
+        builder2.append(", attempts=");
+        builder2.append(attempts);
         builder2.append("]");
         return builder2.toString();
     }
@@ -129,6 +143,7 @@ public class StoredStatusEvent implements StatusEventWithId {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
+        result = prime * result + attempts;
         result = prime * result + ((event == null) ? 0 : event.hashCode());
         result = prime * result + ((id == null) ? 0 : id.hashCode());
         result = prime * result + ((state == null) ? 0 : state.hashCode());
@@ -156,6 +171,9 @@ public class StoredStatusEvent implements StatusEventWithId {
             return false;
         }
         StoredStatusEvent other = (StoredStatusEvent) obj;
+        if (attempts != other.attempts) {
+            return false;
+        }
         if (event == null) {
             if (other.event != null) {
                 return false;
@@ -238,6 +256,7 @@ public class StoredStatusEvent implements StatusEventWithId {
         private Set<String> workerCodes = new HashSet<>();
         private Optional<String> storedBy = Optional.absent();
         private Optional<Instant> storeTime = Optional.absent();
+        private int attempts = 0;
         
         private Builder(
                 final StatusEvent event,
@@ -300,12 +319,24 @@ public class StoredStatusEvent implements StatusEventWithId {
             return this;
         }
         
+        /** Add the number of abandoned processing attempts for the event. The default is 0.
+         * @param attempts the number of attempts.
+         * @return this builder.
+         */
+        public Builder withAttempts(final int attempts) {
+            if (attempts < 0) {
+                throw new IllegalArgumentException("attempts must be at least 0");
+            }
+            this.attempts = attempts;
+            return this;
+        }
+        
         /** Build the {@link StoredStatusEvent}.
          * @return the event.
          */
         public StoredStatusEvent build() {
             return new StoredStatusEvent(event, id, state, updateTime, updater, workerCodes,
-                    storedBy, storeTime);
+                    storedBy, storeTime, attempts);
         }
     }
 }
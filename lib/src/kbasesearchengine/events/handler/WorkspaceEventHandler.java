@@ -332,10 +332,7 @@ public class WorkspaceEventHandler implements EventHandler {
     
     private static final Set<StatusEventType> EXPANDABLES = new HashSet<>(Arrays.asList(
             StatusEventType.NEW_ALL_VERSIONS,
-            StatusEventType.COPY_ACCESS_GROUP,
-            StatusEventType.DELETE_ACCESS_GROUP,
-            StatusEventType.PUBLISH_ACCESS_GROUP,
-            StatusEventType.UNPUBLISH_ACCESS_GROUP));
+            StatusEventType.COPY_ACCESS_GROUP));
     
     @Override
     public Iterable<ChildStatusEvent> expand(final StoredStatusEvent eventWID)
@@ -346,12 +343,6 @@ public class WorkspaceEventHandler implements EventHandler {
             return handleNewAllVersions(eventWID);
         } else if (StatusEventType.COPY_ACCESS_GROUP.equals(event.getEventType())) {
             return handleNewAccessGroup(eventWID);
-        } else if (StatusEventType.DELETE_ACCESS_GROUP.equals(event.getEventType())) {
-            return handleDeletedAccessGroup(eventWID);
-        } else if (StatusEventType.PUBLISH_ACCESS_GROUP.equals(event.getEventType())) {
-            return handlePublishAccessGroup(eventWID, StatusEventType.PUBLISH_ALL_VERSIONS);
-        } else if (StatusEventType.UNPUBLISH_ACCESS_GROUP.equals(event.getEventType())) {
-            return handlePublishAccessGroup(eventWID, StatusEventType.UNPUBLISH_ALL_VERSIONS);
         } else {
             throw new IllegalArgumentException("Unexpandable event type: " + event.getEventType());
         }
@@ -368,87 +359,6 @@ public class WorkspaceEventHandler implements EventHandler {
         }
     }
 
-    private Iterable<ChildStatusEvent> handlePublishAccessGroup(
-            final StoredStatusEvent event,
-            final StatusEventType newType)
-            throws RetriableIndexingException, IndexingException {
-
-        final Map<String, Object> command = new HashMap<>();
-        command.put("command", "getWorkspaceInfo");
-        command.put("params", new WorkspaceIdentity()
-                .withId((long) event.getEvent().getAccessGroupId().get()));
-        
-        final long objcount;
-        try {
-            objcount = ws.getClient().administer(new UObject(command))
-                    .asClassInstance(WS_INFO_TYPEREF).getE5();
-        } catch (IOException e) {
-            throw handleException(e);
-        } catch (JsonClientException e) {
-            throw handleException(e);
-        }
-        return new Iterable<ChildStatusEvent>() {
-            
-            @Override
-            public Iterator<ChildStatusEvent> iterator() {
-                return new StupidWorkspaceObjectIterator(event, objcount, newType);
-            }
-        };
-    }
-
-    private Iterable<ChildStatusEvent> handleDeletedAccessGroup(final StoredStatusEvent event) {
-        
-        return new Iterable<ChildStatusEvent>() {
-
-            @Override
-            public Iterator<ChildStatusEvent> iterator() {
-                return new StupidWorkspaceObjectIterator(
-                        event, Long.parseLong(event.getEvent().getAccessGroupObjectId().get()),
-                        StatusEventType.DELETE_ALL_VERSIONS);
-            }
-            
-        };
-    }
-    
-    /* This is not efficient, but allows parallelizing events by decomposing the event
-     * to per object events. That means the parallelization can run on a per object basis.
-     */
-    private static class StupidWorkspaceObjectIterator implements Iterator<ChildStatusEvent> {
-
-        private final StoredStatusEvent event;
-        private final StatusEventType newType;
-        private final long maxObjectID;
-        private long counter = 0;
-        
-        public StupidWorkspaceObjectIterator(
-                final StoredStatusEvent event,
-                final long maxObjectID,
-                final StatusEventType newType) {
-            this.event = event;
-            this.maxObjectID = maxObjectID;
-            this.newType = newType;
-        }
-
-        @Override
-        public boolean hasNext() {
-            return counter < maxObjectID;
-        }
-
-        @Override
-        public ChildStatusEvent next() {
-            if (counter >= maxObjectID) {
-                throw new NoSuchElementException();
-            }
-            return new ChildStatusEvent(
-                    StatusEvent.getBuilder(STORAGE_CODE, event.getEvent().getTimestamp(), newType)
-                            .withNullableAccessGroupID(event.getEvent().getAccessGroupId().get())
-                            .withNullableObjectID(++counter + "")
-                            .build(),
-                    event.getId());
-        }
-        
-    }
-
     private Iterable<ChildStatusEvent> handleNewAccessGroup(final StoredStatusEvent event) {
         return new Iterable<ChildStatusEvent>() {
 
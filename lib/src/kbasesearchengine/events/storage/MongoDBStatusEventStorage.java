@@ -1,7 +1,9 @@
 package kbasesearchengine.events.storage;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -11,6 +13,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -23,6 +26,7 @@ import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.result.UpdateResult;
 
 import kbasesearchengine.events.StatusEvent;
@@ -76,8 +80,18 @@ public class MongoDBStatusEventStorage implements StatusEventStorage {
     // the ID, if any, of the entity that stored the event. Arbitrary string.
     private static final String FLD_STORED_BY = "stby";
     private static final String FLD_STORED_TIME = "sttime";
+    // the time the lease on a claimed event expires. Absent for events not claimed with a lease.
+    private static final String FLD_LEASE_EXPIRY = "lease";
+    // a unique ID for the claim operation that last claimed the event.
+    private static final String FLD_CLAIM = "claim";
+    // the number of times processing of the event was abandoned by a worker that stopped.
+    private static final String FLD_ATTEMPTS = "attempts";
+    
+    // the heartbeat time for a worker. The worker ID is the document ID.
+    private static final String FLD_HEARTBEAT = "hb";
     
     private static final String COL_EVENT = "searchEvents";
+    private static final String COL_HEARTBEAT = "searchWorkerHeartbeats";
     
     private Map<String, List<IndexSpecification>> getIndexSpecs() {
         // should probably rework this and the index spec class
@@ -88,6 +102,8 @@ public class MongoDBStatusEventStorage implements StatusEventStorage {
         final LinkedList<IndexSpecification> event = new LinkedList<>();
         //find events by status and time stamp
         event.add(idxSpec(FLD_STATUS, 1, FLD_TIMESTAMP, 1, null));
+        //find events with expired leases
+        event.add(idxSpec(FLD_STATUS, 1, FLD_LEASE_EXPIRY, 1, null));
         indexes.put(COL_EVENT, event);
         return indexes;
     }
@@ -283,7 +299,8 @@ public class MongoDBStatusEventStorage implements StatusEventStorage {
                 .withNullableUpdate(updateTime == null ? null : updateTime.toInstant(),
                         event.getString(FLD_UPDATER))
                 .withNullableStoredBy(event.getString(FLD_STORED_BY))
-                .withNullableStoreTime(storeTime == null ? null : storeTime.toInstant());
+                .withNullableStoreTime(storeTime == null ? null : storeTime.toInstant())
+                .withAttempts(event.getInteger(FLD_ATTEMPTS, 0));
         for (final String code: workerCodes) {
             b2.withWorkerCode(code);
         }
@@ -321,12 +338,25 @@ public class MongoDBStatusEventStorage implements StatusEventStorage {
             final StatusEventProcessingState oldState,
             final StatusEventProcessingState newState)
             throws FatalRetriableIndexingException {
+        return setProcessingState(id, oldState, newState, null);
+    }
+    
+    @Override
+    public boolean setProcessingState(
+            final StatusEventID id,
+            final StatusEventProcessingState oldState,
+            final StatusEventProcessingState newState,
+            final String updater)
+            throws FatalRetriableIndexingException {
         Utils.nonNull(id, "id");
         Utils.nonNull(newState, "newState");
         final Document query = new Document("_id", new ObjectId(id.getId()));
         if (oldState != null) {
             query.append(FLD_STATUS, oldState.toString());
         }
+        if (updater != null) {
+            query.append(FLD_UPDATER, updater);
+        }
         try {
             final UpdateResult res = db.getCollection(COL_EVENT).updateOne(query, 
                     new Document("$set", new Document(FLD_STATUS, newState.toString())
@@ -348,6 +378,29 @@ public class MongoDBStatusEventStorage implements StatusEventStorage {
         Utils.nonNull(oldState, "oldState");
         Utils.nonNull(newState, "newState");
         Utils.notNullOrEmpty(updater, "updater cannot be null or whitespace");
+        final Document innerUpdate = new Document(FLD_STATUS, newState.toString())
+                .append(FLD_UPDATE_TIME, Date.from(clock.instant()))
+                .append(FLD_UPDATER, updater);
+        final Document ret;
+        try {
+            ret = db.getCollection(COL_EVENT).findOneAndUpdate(
+                     new Document(FLD_STATUS, oldState.toString())
+                             .append("$or", getWorkerCodesQuery(workerCodes)),
+                     new Document("$set", innerUpdate),
+                     new FindOneAndUpdateOptions()
+                             .sort(new Document(FLD_TIMESTAMP, 1))
+                             .returnDocument(ReturnDocument.AFTER));
+        } catch (MongoException e) {
+            throw new FatalRetriableIndexingException(
+                    "Failed setting event state: " + e.getMessage(), e);
+        }
+        if (ret == null) {
+            return Optional.absent();
+        }
+        return Optional.of(toEvent(ret));
+    }
+    
+    private List<Document> getWorkerCodesQuery(final Set<String> workerCodes) {
         final List<Document> codeQuery = new LinkedList<>();
         final Set<String> codeSet = new HashSet<>();
         if (workerCodes == null || workerCodes.isEmpty() ||
@@ -362,26 +415,215 @@ public class MongoDBStatusEventStorage implements StatusEventStorage {
             codeSet.addAll(workerCodes);
         }
         codeQuery.add(new Document(FLD_WORKER_CODES, new Document("$in", codeSet)));
-        
-        final Document innerUpdate = new Document(FLD_STATUS, newState.toString())
-                .append(FLD_UPDATE_TIME, Date.from(clock.instant()))
-                .append(FLD_UPDATER, updater);
-        final Document ret;
+        return codeQuery;
+    }
+    
+    @Override
+    public List<StoredStatusEvent> claimEvents(
+            final Set<String> workerCodes,
+            int limit,
+            final Duration leaseTime,
+            final String updater)
+            throws FatalRetriableIndexingException {
+        checkLease(leaseTime);
+        Utils.notNullOrEmpty(updater, "updater cannot be null or whitespace");
+        if (limit < 1 || limit > MAX_RETURNED_EVENTS) {
+            limit = MAX_RETURNED_EVENTS;
+        }
+        final List<Document> codeQuery = getWorkerCodesQuery(workerCodes);
+        final Instant now = clock.instant();
+        // events that are ready or whose lease has expired
+        final Document claimable = new Document("$or", Arrays.asList(
+                new Document(FLD_STATUS, StatusEventProcessingState.READY.toString()),
+                new Document(FLD_STATUS, StatusEventProcessingState.PROC.toString())
+                        .append(FLD_LEASE_EXPIRY, new Document("$lt", Date.from(now)))));
+        final Document query = new Document("$and", Arrays.asList(
+                claimable, new Document("$or", codeQuery)));
+        /* mongo can't atomically update multiple documents, so find candidate events, claim
+         * those that are still claimable with a unique claim ID, and then fetch the events that
+         * have the claim ID. Events claimed by someone else in the meantime are skipped.
+         */
+        final ObjectId claim = new ObjectId();
+        final List<StoredStatusEvent> ret = new LinkedList<>();
         try {
-            ret = db.getCollection(COL_EVENT).findOneAndUpdate(
-                     new Document(FLD_STATUS, oldState.toString()).append("$or", codeQuery),
-                     new Document("$set", innerUpdate),
-                     new FindOneAndUpdateOptions()
-                             .sort(new Document(FLD_TIMESTAMP, 1))
-                             .returnDocument(ReturnDocument.AFTER));
+            final MongoCollection<Document> col = db.getCollection(COL_EVENT);
+            final List<ObjectId> ids = new ArrayList<>();
+            for (final Document d: col.find(query)
+                    .sort(new Document(FLD_TIMESTAMP, 1))
+                    .limit(limit)
+                    .projection(new Document("_id", 1))) {
+                ids.add(d.getObjectId("_id"));
+            }
+            if (ids.isEmpty()) {
+                return ret;
+            }
+            col.updateMany(new Document("_id", new Document("$in", ids)).append("$and",
+                            Arrays.asList(claimable)),
+                    new Document("$set", new Document(
+                            FLD_STATUS, StatusEventProcessingState.PROC.toString())
+                            .append(FLD_UPDATE_TIME, Date.from(now))
+                            .append(FLD_UPDATER, updater)
+                            .append(FLD_LEASE_EXPIRY, Date.from(now.plus(leaseTime)))
+                            .append(FLD_CLAIM, claim)));
+            for (final Document event: col.find(new Document("_id", new Document("$in", ids))
+                            .append(FLD_CLAIM, claim))
+                    .sort(new Document(FLD_TIMESTAMP, 1))) {
+                ret.add(toEvent(event));
+            }
         } catch (MongoException e) {
             throw new FatalRetriableIndexingException(
-                    "Failed setting event state: " + e.getMessage(), e);
+                    "Failed claiming events: " + e.getMessage(), e);
         }
-        if (ret == null) {
-            return Optional.absent();
+        return ret;
+    }
+    
+    private void checkLease(final Duration leaseTime) {
+        Utils.nonNull(leaseTime, "leaseTime");
+        if (leaseTime.isNegative() || leaseTime.isZero()) {
+            throw new IllegalArgumentException("leaseTime must be positive");
+        }
+    }
+    
+    private Document getLeaseQuery(final Set<StatusEventID> ids, final String updater) {
+        Utils.nonNull(ids, "ids");
+        Utils.noNulls(ids, "null item in ids");
+        Utils.notNullOrEmpty(updater, "updater cannot be null or whitespace");
+        return new Document("_id", new Document("$in", ids.stream()
+                        .map(id -> new ObjectId(id.getId())).collect(Collectors.toList())))
+                .append(FLD_STATUS, StatusEventProcessingState.PROC.toString())
+                .append(FLD_UPDATER, updater)
+                .append(FLD_LEASE_EXPIRY, new Document("$exists", true));
+    }
+    
+    @Override
+    public int renewLeases(
+            final Set<StatusEventID> ids,
+            final String updater,
+            final Duration leaseTime)
+            throws FatalRetriableIndexingException {
+        final Document query = getLeaseQuery(ids, updater);
+        checkLease(leaseTime);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        try {
+            return (int) db.getCollection(COL_EVENT).updateMany(query, new Document("$set",
+                    new Document(FLD_LEASE_EXPIRY, Date.from(clock.instant().plus(leaseTime)))))
+                    .getMatchedCount();
+        } catch (MongoException e) {
+            throw new FatalRetriableIndexingException(
+                    "Failed renewing event leases: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public int releaseLeases(final Set<StatusEventID> ids, final String updater)
+            throws FatalRetriableIndexingException {
+        final Document query = getLeaseQuery(ids, updater);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        try {
+            return (int) db.getCollection(COL_EVENT).updateMany(query, new Document("$set",
+                    new Document(FLD_STATUS, StatusEventProcessingState.READY.toString())
+                            .append(FLD_UPDATE_TIME, Date.from(clock.instant())))
+                    .append("$unset", new Document(FLD_LEASE_EXPIRY, "").append(FLD_CLAIM, "")))
+                    .getMatchedCount();
+        } catch (MongoException e) {
+            throw new FatalRetriableIndexingException(
+                    "Failed releasing events: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public void recordHeartbeat(final String workerID) throws FatalRetriableIndexingException {
+        Utils.notNullOrEmpty(workerID, "workerID cannot be null or whitespace");
+        try {
+            db.getCollection(COL_HEARTBEAT).updateOne(new Document("_id", workerID),
+                    new Document("$set", new Document(FLD_HEARTBEAT, Date.from(clock.instant()))),
+                    new UpdateOptions().upsert(true));
+        } catch (MongoException e) {
+            throw new FatalRetriableIndexingException(
+                    "Failed recording worker heartbeat: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public Map<String, Instant> getHeartbeats(final Set<String> workerIDs)
+            throws FatalRetriableIndexingException {
+        Utils.nonNull(workerIDs, "workerIDs");
+        Utils.noNulls(workerIDs, "null item in workerIDs");
+        final Map<String, Instant> ret = new HashMap<>();
+        if (workerIDs.isEmpty()) {
+            return ret;
+        }
+        try {
+            for (final Document hb: db.getCollection(COL_HEARTBEAT).find(
+                    new Document("_id", new Document("$in", workerIDs)))) {
+                ret.put(hb.getString("_id"), hb.getDate(FLD_HEARTBEAT).toInstant());
+            }
+        } catch (MongoException e) {
+            throw new FatalRetriableIndexingException(
+                    "Failed getting worker heartbeats: " + e.getMessage(), e);
+        }
+        return ret;
+    }
+    
+    @Override
+    public boolean deleteHeartbeat(final String workerID)
+            throws FatalRetriableIndexingException {
+        Utils.notNullOrEmpty(workerID, "workerID cannot be null or whitespace");
+        try {
+            return db.getCollection(COL_HEARTBEAT).deleteOne(new Document("_id", workerID))
+                    .getDeletedCount() == 1;
+        } catch (MongoException e) {
+            throw new FatalRetriableIndexingException(
+                    "Failed deleting worker heartbeat: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public int deleteHeartbeatsOlderThan(final Duration age, final Set<String> keepWorkerIDs)
+            throws FatalRetriableIndexingException {
+        Utils.nonNull(age, "age");
+        if (age.isNegative()) {
+            throw new IllegalArgumentException("age cannot be negative");
+        }
+        Utils.nonNull(keepWorkerIDs, "keepWorkerIDs");
+        Utils.noNulls(keepWorkerIDs, "null item in keepWorkerIDs");
+        final Document query = new Document(FLD_HEARTBEAT,
+                new Document("$lt", Date.from(clock.instant().minus(age))));
+        if (!keepWorkerIDs.isEmpty()) {
+            query.append("_id", new Document("$nin", keepWorkerIDs));
+        }
+        try {
+            return (int) db.getCollection(COL_HEARTBEAT).deleteMany(query).getDeletedCount();
+        } catch (MongoException e) {
+            throw new FatalRetriableIndexingException(
+                    "Failed deleting worker heartbeats: " + e.getMessage(), e);
+        }
+    }
+    
+    @Override
+    public boolean requeueEvent(final StatusEventID id, final String updater)
+            throws FatalRetriableIndexingException {
+        Utils.nonNull(id, "id");
+        Utils.notNullOrEmpty(updater, "updater cannot be null or whitespace");
+        try {
+            final UpdateResult res = db.getCollection(COL_EVENT).updateOne(
+                    new Document("_id", new ObjectId(id.getId()))
+                            .append(FLD_STATUS, StatusEventProcessingState.PROC.toString())
+                            .append(FLD_UPDATER, updater),
+                    new Document("$set", new Document(
+                            FLD_STATUS, StatusEventProcessingState.READY.toString())
+                            .append(FLD_UPDATE_TIME, Date.from(clock.instant())))
+                    .append("$inc", new Document(FLD_ATTEMPTS, 1))
+                    .append("$unset", new Document(FLD_LEASE_EXPIRY, "").append(FLD_CLAIM, "")));
+            return res.getMatchedCount() == 1;
+        } catch (MongoException e) {
+            throw new FatalRetriableIndexingException(
+                    "Failed requeuing event: " + e.getMessage(), e);
         }
-        return Optional.of(toEvent(ret));
     }
 
 }
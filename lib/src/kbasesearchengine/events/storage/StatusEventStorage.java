@@ -1,6 +1,9 @@
 package kbasesearchengine.events.storage;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.common.base.Optional;
@@ -93,4 +96,133 @@ public interface StatusEventStorage {
             StatusEventProcessingState newState)
             throws FatalRetriableIndexingException;
 
-}
\ No newline at end of file
+    /** Mark an event with a processing state if the event was last updated by a particular
+     * updater. Workers use this method to complete the events they claimed, so that a worker
+     * whose event was requeued, for example because its heartbeat lapsed, cannot overwrite the
+     * state set by the event's new claimant.
+     * @param id the id of the event to modify.
+     * @param oldState the expected state of the event. If non-null, an event is only modified
+     * if both the id and the oldState match.
+     * @param newState the processing state to set on the event.
+     * @param updater the expected updater of the event. If non-null, an event is only modified
+     * if it was last updated by the updater.
+     * @return true if the event was updated, false if no event matched.
+     * @throws FatalRetriableIndexingException if an error occurs while setting the state.
+     */
+    boolean setProcessingState(
+            StatusEventID id,
+            StatusEventProcessingState oldState,
+            StatusEventProcessingState newState,
+            String updater)
+            throws FatalRetriableIndexingException;
+
+    /** Claim up to limit events for processing in one operation. Events in the
+     * {@link StatusEventProcessingState#READY} state, or events in the
+     * {@link StatusEventProcessingState#PROC} state whose lease has expired, are set to the
+     * {@link StatusEventProcessingState#PROC} state with a lease that expires after the lease
+     * time. The claimant is expected to either complete the events by setting their state with
+     * {@link #setProcessingState(StatusEventID, StatusEventProcessingState,
+     * StatusEventProcessingState)}, renew the leases with
+     * {@link #renewLeases(Set, String, Duration)}, or release the events with
+     * {@link #releaseLeases(Set, String)} before the leases expire. Once a lease has expired the
+     * event may be claimed again.
+     * 
+     * Events claimed by {@link #setAndGetProcessingState(StatusEventProcessingState, Set,
+     * StatusEventProcessingState, String)} have no lease and are never reclaimed.
+     * 
+     * Events are claimed in the order of their timestamps. An event that is claimed by another
+     * claimant while this method is running is skipped, so fewer than limit events may be
+     * returned even if more are available.
+     * @param workerCodes the permissible worker codes for the events. A null or empty list
+     * implies the default code.
+     * @param limit the maximum number of events to claim. If < 1 or > 10000 is set to 10000.
+     * @param leaseTime the length of the lease.
+     * @param updater an id or name for the claimant. Leases may only be renewed or released by
+     * the same claimant.
+     * @return the claimed events, in the order of their timestamps.
+     * @throws FatalRetriableIndexingException if an error occurs while claiming the events.
+     */
+    List<StoredStatusEvent> claimEvents(
+            Set<String> workerCodes,
+            int limit,
+            Duration leaseTime,
+            String updater)
+            throws FatalRetriableIndexingException;
+    
+    /** Extend the leases on events claimed by
+     * {@link #claimEvents(Set, int, Duration, String)}. Events that are no longer in the
+     * {@link StatusEventProcessingState#PROC} state or have been claimed by a different claimant
+     * are ignored.
+     * @param ids the ids of the events.
+     * @param updater the id or name of the claimant.
+     * @param leaseTime the length of the leases, starting from the current time.
+     * @return the number of leases renewed.
+     * @throws FatalRetriableIndexingException if an error occurs while renewing the leases.
+     */
+    int renewLeases(Set<StatusEventID> ids, String updater, Duration leaseTime)
+            throws FatalRetriableIndexingException;
+    
+    /** Release events claimed by {@link #claimEvents(Set, int, Duration, String)} without
+     * processing them, returning them to the {@link StatusEventProcessingState#READY} state.
+     * Events that are no longer in the {@link StatusEventProcessingState#PROC} state or have been
+     * claimed by a different claimant are ignored.
+     * @param ids the ids of the events.
+     * @param updater the id or name of the claimant.
+     * @return the number of events released.
+     * @throws FatalRetriableIndexingException if an error occurs while releasing the events.
+     */
+    int releaseLeases(Set<StatusEventID> ids, String updater)
+            throws FatalRetriableIndexingException;
+
+    /** Record that a worker is running. Workers are expected to record a heartbeat
+     * periodically so that events being processed by a worker that has stopped can be
+     * detected.
+     * @param workerID the id of the worker. This is the same id the worker supplies as the
+     * updater when claiming events.
+     * @throws FatalRetriableIndexingException if an error occurs while recording the heartbeat.
+     */
+    void recordHeartbeat(String workerID) throws FatalRetriableIndexingException;
+    
+    /** Get the time of the most recent heartbeat for each of a set of workers.
+     * @param workerIDs the ids of the workers.
+     * @return a mapping of worker id to heartbeat time. Workers that have never recorded a
+     * heartbeat are not included.
+     * @throws FatalRetriableIndexingException if an error occurs while getting the heartbeats.
+     */
+    Map<String, Instant> getHeartbeats(Set<String> workerIDs)
+            throws FatalRetriableIndexingException;
+    
+    /** Remove the heartbeat for a worker, for example when the worker stops cleanly and no
+     * longer has events in process.
+     * @param workerID the id of the worker.
+     * @return true if a heartbeat was removed.
+     * @throws FatalRetriableIndexingException if an error occurs while removing the heartbeat.
+     */
+    boolean deleteHeartbeat(String workerID) throws FatalRetriableIndexingException;
+    
+    /** Remove the heartbeats that are older than a given age. Events being processed by a
+     * worker with no heartbeat are never requeued, so the age should be much longer than the
+     * time it takes to detect an abandoned event.
+     * @param age the minimum age of the heartbeats to remove.
+     * @param keepWorkerIDs the ids of workers whose heartbeats should not be removed regardless
+     * of their age, for example the workers that are known to have events in process.
+     * @return the number of heartbeats removed.
+     * @throws FatalRetriableIndexingException if an error occurs while removing the heartbeats.
+     */
+    int deleteHeartbeatsOlderThan(Duration age, Set<String> keepWorkerIDs)
+            throws FatalRetriableIndexingException;
+    
+    /** Return an event being processed by a worker that has stopped to the
+     * {@link StatusEventProcessingState#READY} state so that it may be processed by another
+     * worker, and increment the number of processing attempts for the event. The event is only
+     * modified if it is in the {@link StatusEventProcessingState#PROC} state and was last
+     * updated by the given worker. Any lease on the event is removed.
+     * @param id the id of the event.
+     * @param updater the id of the worker that was processing the event.
+     * @return true if the event was modified, false otherwise.
+     * @throws FatalRetriableIndexingException if an error occurs while modifying the event.
+     */
+    boolean requeueEvent(StatusEventID id, String updater)
+            throws FatalRetriableIndexingException;
+
+}
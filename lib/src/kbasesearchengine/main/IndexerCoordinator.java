@@ -5,11 +5,15 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Ticker;
@@ -32,6 +36,13 @@ import kbasesearchengine.tools.Utils;
  * {@link EventQueue}. The responsibility of the coordinator is to periodically update the event
  * state in the {@link StatusEventStorage} such that the workers process the correct events.
  * 
+ * The coordinator also watches the heartbeats recorded by the workers. If the worker processing
+ * an event stops recording heartbeats the event is returned to the
+ * {@link StatusEventProcessingState#READY} state so another worker can process it. An event that
+ * has been abandoned too many times is marked as failed. Heartbeats that are much older than the
+ * heartbeat timeout, which are left behind by workers that did not stop cleanly, are removed
+ * periodically.
+ * 
  * Only one indexer coordinator should run at one time.
  * 
  * This class is not thread safe.
@@ -44,6 +55,12 @@ public class IndexerCoordinator implements Stoppable {
     private static final int RETRY_SLEEP_MS = 1000;
     private static final List<Integer> RETRY_FATAL_BACKOFF_MS_DEFAULT = Arrays.asList(
             1000, 2000, 4000, 8000, 16000);
+    // workers record a heartbeat every 10 seconds
+    private static final Duration HEARTBEAT_TIMEOUT = Duration.ofMinutes(1);
+    private static final int MAX_PROCESSING_ATTEMPTS = 3;
+    // heartbeats older than this are removed, unless the worker has events in process
+    private static final Duration HEARTBEAT_RETENTION = Duration.ofDays(1);
+    private static final long HEARTBEAT_PRUNE_INTERVAL_NS = TimeUnit.HOURS.toNanos(1);
     
     private final Cache<StatusEventID, Instant> cache;
     
@@ -53,6 +70,8 @@ public class IndexerCoordinator implements Stoppable {
     private final EventQueue queue;
     private final Clock clock;
     private final SignalMonitor signalMonitor;
+    // the nano time of the last heartbeat pruning, or null if heartbeats haven't been pruned
+    private Long lastHeartbeatPrune = null;
     
     private final int maxQueueSize;
     private int continuousCycles = 0;
@@ -277,6 +296,7 @@ public class IndexerCoordinator implements Stoppable {
     }
     
     private void checkOnEventsInProcess() throws InterruptedException, IndexingException {
+        final List<StoredStatusEvent> inProcess = new LinkedList<>();
         for (final StoredStatusEvent sse: queue.getProcessing()) {
             final Optional<StoredStatusEvent> fromStorage =
                     retrier.retryFunc(s -> s.get(sse.getId()), storage, sse);
@@ -291,7 +311,7 @@ public class IndexerCoordinator implements Stoppable {
                             e.getId().getId(), e.getEvent().getEventType(),
                             e.getEvent().toGUID(), state, e.getUpdater().orNull()));
                 } else {
-                    logDelayedEvent(e);
+                    inProcess.add(e);
                 }
             } else {
                 logger.logError(String.format("Event %s is in the in-memory queue but not " +
@@ -299,6 +319,94 @@ public class IndexerCoordinator implements Stoppable {
                 queue.setProcessingComplete(sse);
             }
         }
+        final Map<String, Instant> heartbeats = getHeartbeats(inProcess);
+        // only get the time if needed, since there are usually no heartbeats to check
+        final Instant now = heartbeats.isEmpty() ? null : clock.instant();
+        for (final StoredStatusEvent e: inProcess) {
+            if (isAbandoned(e, heartbeats, now)) {
+                requeueAbandonedEvent(e, heartbeats.get(e.getUpdater().get()));
+            } else {
+                logDelayedEvent(e);
+            }
+        }
+        pruneHeartbeats(inProcess);
+    }
+    
+    // removes old heartbeats once per prune interval
+    private void pruneHeartbeats(final List<StoredStatusEvent> inProcess)
+            throws InterruptedException, IndexingException {
+        final long time = System.nanoTime();
+        if (lastHeartbeatPrune != null &&
+                time - lastHeartbeatPrune < HEARTBEAT_PRUNE_INTERVAL_NS) {
+            return;
+        }
+        lastHeartbeatPrune = time;
+        final Set<String> workers = inProcess.stream()
+                .filter(e -> e.getUpdater().isPresent())
+                .map(e -> e.getUpdater().get())
+                .collect(Collectors.toSet());
+        final int pruned = retrier.retryFunc(
+                s -> s.deleteHeartbeatsOlderThan(HEARTBEAT_RETENTION, workers), storage, null);
+        if (pruned > 0) {
+            logger.logInfo(String.format("Removed %s worker heartbeats older than %s",
+                    pruned, HEARTBEAT_RETENTION));
+        }
+    }
+    
+    private Map<String, Instant> getHeartbeats(final List<StoredStatusEvent> events)
+            throws InterruptedException, IndexingException {
+        final Set<String> workers = events.stream()
+                .filter(e -> e.getState().equals(StatusEventProcessingState.PROC))
+                .filter(e -> e.getUpdater().isPresent())
+                .map(e -> e.getUpdater().get())
+                .collect(Collectors.toSet());
+        if (workers.isEmpty()) {
+            return new HashMap<>();
+        }
+        return retrier.retryFunc(s -> s.getHeartbeats(workers), storage, null);
+    }
+    
+    private boolean isAbandoned(
+            final StoredStatusEvent e,
+            final Map<String, Instant> heartbeats,
+            final Instant now) {
+        if (!e.getState().equals(StatusEventProcessingState.PROC) ||
+                !e.getUpdater().isPresent()) {
+            return false;
+        }
+        final Instant heartbeat = heartbeats.get(e.getUpdater().get());
+        // workers that have never recorded a heartbeat predate heartbeats and are left alone
+        return heartbeat != null && now.isAfter(heartbeat.plus(HEARTBEAT_TIMEOUT));
+    }
+    
+    private void requeueAbandonedEvent(final StoredStatusEvent e, final Instant heartbeat)
+            throws InterruptedException, IndexingException {
+        final String worker = e.getUpdater().get();
+        final int attempts = e.getAttempts() + 1;
+        if (attempts >= MAX_PROCESSING_ATTEMPTS) {
+            final boolean failed = retrier.retryFunc(s -> s.setProcessingState(e.getId(),
+                    StatusEventProcessingState.PROC, StatusEventProcessingState.FAIL),
+                    storage, e);
+            if (failed) {
+                queue.setProcessingComplete(e);
+                logger.logError(String.format(
+                        "Event %s %s %s was abandoned by worker %s, last heartbeat %s. " +
+                        "Processing was abandoned %s times, setting state to %s",
+                        e.getId().getId(), e.getEvent().getEventType(), e.getEvent().toGUID(),
+                        worker, heartbeat, attempts, StatusEventProcessingState.FAIL));
+            }
+        } else {
+            final boolean requeued = retrier.retryFunc(
+                    s -> s.requeueEvent(e.getId(), worker), storage, e);
+            if (requeued) {
+                logger.logInfo(String.format(
+                        "Event %s %s %s was abandoned by worker %s, last heartbeat %s. " +
+                        "Moved from %s to %s, attempt %s",
+                        e.getId().getId(), e.getEvent().getEventType(), e.getEvent().toGUID(),
+                        worker, heartbeat, StatusEventProcessingState.PROC,
+                        StatusEventProcessingState.READY, attempts));
+            }
+        }
     }
 
     private void logDelayedEvent(final StoredStatusEvent e) {
@@ -2,10 +2,12 @@ package kbasesearchengine.main;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -16,19 +18,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import com.fasterxml.jackson.core.JsonParser;
 import com.google.common.base.Optional;
 
 import kbasesearchengine.common.FileUtil;
 import kbasesearchengine.common.GUID;
 import kbasesearchengine.events.ChildStatusEvent;
 import kbasesearchengine.events.StatusEvent;
+import kbasesearchengine.events.StatusEventID;
 import kbasesearchengine.events.StatusEventProcessingState;
 import kbasesearchengine.events.StatusEventWithId;
 import kbasesearchengine.events.StoredStatusEvent;
@@ -44,11 +48,15 @@ import kbasesearchengine.events.handler.EventHandler;
 import kbasesearchengine.events.handler.ResolvedReference;
 import kbasesearchengine.events.handler.SourceData;
 import kbasesearchengine.events.storage.StatusEventStorage;
+import kbasesearchengine.main.IndexingPipeline.PendingTask;
+import kbasesearchengine.main.IndexingPipeline.Stage;
 import kbasesearchengine.parse.KeywordParser;
 import kbasesearchengine.parse.ObjectParseException;
 import kbasesearchengine.parse.ObjectParser;
+import kbasesearchengine.parse.ObjectParser.ExtractedObject;
 import kbasesearchengine.parse.ParsedObject;
 import kbasesearchengine.parse.KeywordParser.ObjectLookupProvider;
+import kbasesearchengine.search.IndexRequestsFailedException;
 import kbasesearchengine.search.IndexingStorage;
 import kbasesearchengine.search.ObjectData;
 import kbasesearchengine.system.NoSuchTypeException;
@@ -69,18 +77,55 @@ public class IndexerWorker implements Stoppable {
     private static final int RETRY_SLEEP_MS = 1000;
     private static final List<Integer> RETRY_FATAL_BACKOFF_MS = Arrays.asList(
             1000, 2000, 4000, 8000, 16000);
+    // leases are renewed well before they expire so that a slow storage system doesn't cause
+    // events to be reclaimed while they're being processed
+    private static final Duration EVENT_LEASE = Duration.ofMinutes(5);
+    private static final long LEASE_RENEWAL_INTERVAL_MS = 60 * 1000;
+    // must be well under the coordinator's heartbeat timeout
+    private static final long HEARTBEAT_INTERVAL_MS = 10 * 1000;
+    /* the data for several parsing rules is extracted in one pass over an object, and each
+     * rule's data is held until the rule is parsed. A rule's data is at most about the size of
+     * the object, so rules are only combined in a pass while the object size times the number
+     * of rules in the pass fits within this limit.
+     */
+    private static final long MAX_EXTRACTION_PASS_BYTES = 32 * 1024 * 1024;
     
     private final String id;
+    /* identifies this worker process in the event storage. Worker IDs are often fixed in the
+     * configuration, so a worker restarted with the same ID would resume heartbeating for the
+     * events claimed by the previous process, which would then never be seen as abandoned.
+     */
+    private final String instanceID;
     private final File rootTempDir;
     private final StatusEventStorage storage;
     private final TypeStorage typeStorage;
     private final IndexingStorage indexingStorage;
     private final Set<String> workerCodes;
+    private final int maxConcurrentEvents;
+    private final int claimBatchSize;
+    private final IndexingPipeline pipeline;
     private final LineLogger logger;
     private final Map<String, EventHandler> eventHandlers = new HashMap<>();
     private ScheduledExecutorService executor = null;
+    private ScheduledExecutorService heartbeatExecutor = null;
     private final SignalMonitor signalMonitor = new SignalMonitor();
-    private boolean stopRunner = false;
+    private volatile boolean stopRunner = false;
+    // the number of events currently being processed
+    private final AtomicInteger activeEvents = new AtomicInteger();
+    // events claimed in a batch that no runner has started processing yet
+    private final Deque<StoredStatusEvent> claimedEvents = new LinkedList<>();
+    // events claimed with a lease whose final state has not yet been set
+    private final Set<StatusEventID> leasedEvents = ConcurrentHashMap.newKeySet();
+    /* events that have been processed but whose index data may still be buffered in the
+     * indexing storage. The events are marked as processed once the buffer is written.
+     */
+    private final Map<StoredStatusEvent, StatusEventProcessingState> unflushedEvents =
+            new LinkedHashMap<>();
+    /* the source objects indexed while processing each unflushed event, so that the event can be
+     * failed if the indexing storage rejects an object's data when the buffer is written.
+     * Guarded by unflushedEvents.
+     */
+    private final Map<StoredStatusEvent, Set<GUID>> unflushedObjects = new HashMap<>();
     
     private final Retrier retrier = new Retrier(RETRY_COUNT, RETRY_SLEEP_MS,
             RETRY_FATAL_BACKOFF_MS,
@@ -96,12 +141,50 @@ public class IndexerWorker implements Stoppable {
             final LineLogger logger,
             final Set<String> workerCodes)
             throws IOException {
+        this(id, eventHandlers, storage, indexingStorage, typeStorage, tempDir, logger,
+                workerCodes, 1, 1, new IndexingPipeline());
+    }
+    
+    /** Create a worker that processes up to maxConcurrentEvents events at once. Each event is
+     * claimed from the event storage separately, and the coordinator only readies events that
+     * may be processed concurrently, so events for the same object are processed in order.
+     * If claimBatchSize is greater than 1, events are claimed in batches of up to that size
+     * with a lease that the worker renews until the events are processed. If the worker dies,
+     * the leases expire and the events can be claimed by other workers.
+     * The stages of indexing each object are run in the pipeline, which is started and stopped
+     * with the worker.
+     */
+    public IndexerWorker(
+            final String id,
+            final List<EventHandler> eventHandlers,
+            final StatusEventStorage storage,
+            final IndexingStorage indexingStorage,
+            final TypeStorage typeStorage,
+            final File tempDir,
+            final LineLogger logger,
+            final Set<String> workerCodes,
+            final int maxConcurrentEvents,
+            final int claimBatchSize,
+            final IndexingPipeline pipeline)
+            throws IOException {
         Utils.notNullOrEmpty("id", "id cannot be null or the empty string");
         Utils.nonNull(logger, "logger");
         Utils.nonNull(indexingStorage, "indexingStorage");
+        Utils.nonNull(pipeline, "pipeline");
+        if (maxConcurrentEvents < 1) {
+            throw new IllegalArgumentException("maxConcurrentEvents must be at least 1");
+        }
+        if (claimBatchSize < 1) {
+            throw new IllegalArgumentException("claimBatchSize must be at least 1");
+        }
         this.workerCodes = workerCodes;
+        this.maxConcurrentEvents = maxConcurrentEvents;
+        this.claimBatchSize = claimBatchSize;
+        this.pipeline = pipeline;
         logger.logInfo("Worker codes: " + workerCodes);
         this.id = id;
+        this.instanceID = id + "_" + UUID.randomUUID().toString();
+        logger.logInfo("Worker instance ID: " + instanceID);
         this.logger = logger;
         this.rootTempDir = FileUtil.getOrCreateCleanSubDir(tempDir,
                 id + "_" + UUID.randomUUID().toString().substring(0,5));
@@ -127,7 +210,11 @@ public class IndexerWorker implements Stoppable {
         Utils.notNullOrEmpty("id", "id cannot be null or the empty string");
         Utils.nonNull(logger, "logger");
         this.workerCodes = null;
+        this.maxConcurrentEvents = 1;
+        this.claimBatchSize = 1;
+        this.pipeline = new IndexingPipeline();
         this.id = id;
+        this.instanceID = id;
         this.storage = null;
         this.rootTempDir = FileUtil.getOrCreateCleanSubDir(tempDir,
                 id + "_" + UUID.randomUUID().toString().substring(0,5));
@@ -138,6 +225,16 @@ public class IndexerWorker implements Stoppable {
         this.indexingStorage = indexingStorage;
     }
 
+    /** Get the ID that identifies this worker process in the event storage, for example as the
+     * updater of the events the worker processes and in the worker's heartbeats. The ID
+     * consists of the worker ID and a unique suffix, so that events claimed by a previous
+     * process with the same worker ID can be recognized as abandoned.
+     * @return the worker instance ID.
+     */
+    public String getInstanceID() {
+        return instanceID;
+    }
+
     @Override
     public void awaitShutdown() throws InterruptedException {
         signalMonitor.awaitSignal();
@@ -145,10 +242,25 @@ public class IndexerWorker implements Stoppable {
     
     public void startIndexer() {
         stopRunner = false;
+        pipeline.start();
         //TODO TEST add a way to inject an executor for testing purposes
-        executor = Executors.newSingleThreadScheduledExecutor();
-        // may want to make this configurable
-        executor.scheduleAtFixedRate(new IndexerRunner(), 0, 1000, TimeUnit.MILLISECONDS);
+        /* the heartbeat gets its own thread so that neither busy runners nor slow lease
+         * renewals, which retry with backoff, can delay it past the coordinator's timeout
+         */
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+        heartbeatExecutor.scheduleAtFixedRate(() -> recordHeartbeat(), 0, HEARTBEAT_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        // the lease renewer needs its own thread so busy runners can't starve it
+        executor = Executors.newScheduledThreadPool(maxConcurrentEvents + 1);
+        // each runner claims and processes events independently
+        for (int i = 0; i < maxConcurrentEvents; i++) {
+            // may want to make this configurable
+            executor.scheduleAtFixedRate(new IndexerRunner(), 0, 1000, TimeUnit.MILLISECONDS);
+        }
+        if (isLeasing()) {
+            executor.scheduleAtFixedRate(() -> renewLeases(), LEASE_RENEWAL_INTERVAL_MS,
+                    LEASE_RENEWAL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
     }
     
     private class IndexerRunner implements Runnable {
@@ -156,7 +268,8 @@ public class IndexerWorker implements Stoppable {
         @Override
         public void run() {
             boolean processedEvent = true;
-            while (!stopRunner && processedEvent) {
+            // stop if another runner hit a fatal error
+            while (!stopRunner && !executor.isShutdown() && processedEvent) {
                 processedEvent = false;
                 try {
                     // keep processing events until there are none left
@@ -164,11 +277,19 @@ public class IndexerWorker implements Stoppable {
                 } catch (InterruptedException | FatalIndexingException e) {
                     logError(ErrorType.FATAL, e);
                     executor.shutdown();
+                    heartbeatExecutor.shutdown();
                     signalMonitor.signal();
                 } catch (Throwable e) {
                     logError(ErrorType.UNEXPECTED, e);
                 }
             }
+            if (stopRunner) {
+                try {
+                    flushIndexingBuffer(true);
+                } catch (Throwable e) {
+                    logError(ErrorType.UNEXPECTED, e);
+                }
+            }
         }
     }
     
@@ -180,6 +301,12 @@ public class IndexerWorker implements Stoppable {
         stopRunner = true;
         executor.shutdown();
         executor.awaitTermination(millisToWait, TimeUnit.MILLISECONDS);
+        pipeline.stop();
+        releaseClaimedEvents();
+        heartbeatExecutor.shutdownNow();
+        // don't let an in flight heartbeat recreate the heartbeat after it's deleted
+        heartbeatExecutor.awaitTermination(HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        deleteHeartbeat();
 
         try {
             FileUtils.deleteDirectory(rootTempDir);
@@ -232,40 +359,250 @@ public class IndexerWorker implements Stoppable {
         logError(msg, e);
     }
     
+    private boolean isLeasing() {
+        return claimBatchSize > 1;
+    }
+    
+    private Optional<StoredStatusEvent> claimEvent()
+            throws InterruptedException, IndexingException {
+        if (!isLeasing()) {
+            return retrier.retryFunc(
+                    s -> s.setAndGetProcessingState(StatusEventProcessingState.READY,
+                            workerCodes, StatusEventProcessingState.PROC, instanceID),
+                    storage, null);
+        }
+        synchronized (claimedEvents) {
+            if (claimedEvents.isEmpty()) {
+                final List<StoredStatusEvent> events = retrier.retryFunc(
+                        s -> s.claimEvents(workerCodes, claimBatchSize, EVENT_LEASE, instanceID),
+                        storage, null);
+                for (final StoredStatusEvent ev: events) {
+                    leasedEvents.add(ev.getId());
+                }
+                claimedEvents.addAll(events);
+            }
+            return Optional.fromNullable(claimedEvents.pollFirst());
+        }
+    }
+    
+    private void recordHeartbeat() {
+        try {
+            storage.recordHeartbeat(instanceID);
+        } catch (Throwable e) {
+            // if heartbeats keep failing the coordinator will requeue this worker's events
+            logError("Error recording worker heartbeat", e);
+        }
+    }
+    
+    /* removes the heartbeat for this process if the worker has no events in process. Otherwise
+     * the heartbeat is left in place so that the coordinator can requeue the events once it
+     * expires, and the coordinator removes it later.
+     */
+    private void deleteHeartbeat() {
+        synchronized (unflushedEvents) {
+            if (activeEvents.get() > 0 || !leasedEvents.isEmpty() ||
+                    !unflushedEvents.isEmpty()) {
+                logger.logInfo("Worker stopped with events in process, leaving heartbeat for " +
+                        instanceID);
+                return;
+            }
+        }
+        try {
+            storage.deleteHeartbeat(instanceID);
+        } catch (Exception e) {
+            // the coordinator will remove the heartbeat once it's old enough
+            logError("Error deleting worker heartbeat", e);
+        }
+    }
+    
+    private void renewLeases() {
+        final Set<StatusEventID> ids = new HashSet<>(leasedEvents);
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            retrier.retryFunc(s -> s.renewLeases(ids, instanceID, EVENT_LEASE), storage, null);
+        } catch (InterruptedException e) {
+            // the worker is shutting down
+        } catch (Throwable e) {
+            // the leases will be renewed on the next attempt if they haven't expired
+            logError("Error renewing event leases", e);
+        }
+    }
+    
+    // returns claimed events that haven't been started to the event storage
+    private void releaseClaimedEvents() {
+        final Set<StatusEventID> ids;
+        synchronized (claimedEvents) {
+            ids = claimedEvents.stream().map(e -> e.getId()).collect(Collectors.toSet());
+            claimedEvents.clear();
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            storage.releaseLeases(ids, instanceID);
+            leasedEvents.removeAll(ids);
+        } catch (Exception e) {
+            // the events will be reclaimed when their leases expire
+            logError("Error releasing claimed events", e);
+        }
+    }
+    
     private boolean performOneTick() throws InterruptedException, IndexingException {
-        final Optional<StoredStatusEvent> optEvent = retrier.retryFunc(
-                s -> s.setAndGetProcessingState(StatusEventProcessingState.READY, workerCodes,
-                        StatusEventProcessingState.PROC, id),
-                storage, null);
+        final Optional<StoredStatusEvent> optEvent = claimEvent();
         boolean processedEvent = false;
         if (optEvent.isPresent()) {
-            final StoredStatusEvent parentEvent = optEvent.get();
-            final EventHandler handler;
+            activeEvents.incrementAndGet();
             try {
-                handler = getEventHandler(parentEvent);
-            } catch (UnprocessableEventIndexingException e) {
-                logError(ErrorType.STD, e);
-                markEventProcessed(parentEvent, StatusEventProcessingState.FAIL);
-                return true;
-            }
-            if (handler.isExpandable(parentEvent)) {
-                expandAndProcess(parentEvent);
-            } else {
-                markEventProcessed(parentEvent, processEvent(parentEvent));
+                final StoredStatusEvent parentEvent = optEvent.get();
+                final EventHandler handler;
+                try {
+                    handler = getEventHandler(parentEvent);
+                } catch (UnprocessableEventIndexingException e) {
+                    logError(ErrorType.STD, e);
+                    markEventProcessed(parentEvent, StatusEventProcessingState.FAIL,
+                            Collections.emptySet());
+                    return true;
+                }
+                if (handler.isExpandable(parentEvent)) {
+                    expandAndProcess(parentEvent);
+                } else {
+                    final Set<GUID> indexedObjects = ConcurrentHashMap.newKeySet();
+                    markEventProcessed(parentEvent, processEvent(parentEvent, indexedObjects),
+                            indexedObjects);
+                }
+            } finally {
+                activeEvents.decrementAndGet();
             }
             processedEvent = true;
         }
+        /* if there are no more events waiting and no other runner is processing an event
+         * there's no point in buffering index data
+         */
+        flushIndexingBuffer(!processedEvent && activeEvents.get() == 0);
         return processedEvent;
     }
+    
+    /* Marks events as processed if the indexing storage has written all their data. force
+     * causes the storage to write any buffered data.
+     * Only one runner flushes at a time so that no runner marks events processed while another
+     * runner is writing the buffer.
+     */
+    private void flushIndexingBuffer(final boolean force)
+            throws InterruptedException, FatalIndexingException {
+        synchronized (unflushedEvents) {
+            flushIndexingBufferLocked(force);
+        }
+    }
+    
+    private void flushIndexingBufferLocked(final boolean force)
+            throws InterruptedException, FatalIndexingException {
+        if (unflushedEvents.isEmpty()) {
+            return;
+        }
+        // parent GUID -> error for objects whose data the indexing storage rejected
+        final Map<GUID, String> failures = new HashMap<>();
+        boolean buffered;
+        try {
+            buffered = retrier.retryFunc(f -> flushIndexingStorage(f, failures), force, null);
+        } catch (IndexingException e) {
+            if (e instanceof FatalIndexingException) {
+                throw (FatalIndexingException) e;
+            }
+            // the data for the events may not have been indexed
+            logError("Error writing buffered index data", e);
+            for (final StoredStatusEvent ev: unflushedEvents.keySet()) {
+                unflushedEvents.put(ev, StatusEventProcessingState.FAIL);
+            }
+            buffered = false;
+        }
+        if (!buffered) {
+            failRejectedEvents(failures);
+            final Map<StoredStatusEvent, StatusEventProcessingState> events =
+                    new LinkedHashMap<>(unflushedEvents);
+            unflushedEvents.clear();
+            unflushedObjects.clear();
+            for (final StoredStatusEvent ev: events.keySet()) {
+                setEventProcessed(ev, events.get(ev));
+            }
+        }
+    }
+    
+    // fails the unflushed events that indexed an object the indexing storage rejected
+    private void failRejectedEvents(final Map<GUID, String> failures) {
+        if (failures.isEmpty()) {
+            return;
+        }
+        final Set<GUID> unmatched = new HashSet<>(failures.keySet());
+        for (final StoredStatusEvent ev: unflushedEvents.keySet()) {
+            final Set<GUID> rejected = new HashSet<>(unflushedObjects.get(ev));
+            rejected.retainAll(failures.keySet());
+            if (!rejected.isEmpty()) {
+                unmatched.removeAll(rejected);
+                unflushedEvents.put(ev, StatusEventProcessingState.FAIL);
+                for (final GUID guid: rejected) {
+                    logger.logError(String.format(
+                            "Error indexing object %s for event %s %s: %s", guid,
+                            ev.getEvent().getEventType(), ev.getId().getId(),
+                            failures.get(guid)));
+                }
+            }
+        }
+        for (final GUID guid: unmatched) {
+            logger.logError(String.format("Error indexing object %s: %s",
+                    guid, failures.get(guid)));
+        }
+    }
+    
+    /* transport and cluster errors are fatal, but objects whose data was rejected by the
+     * storage are added to failures and the write counts as complete.
+     */
+    private boolean flushIndexingStorage(final boolean force, final Map<GUID, String> failures)
+            throws FatalRetriableIndexingException {
+        try {
+            return indexingStorage.flushBuffer(force);
+        } catch (IndexRequestsFailedException e) {
+            failures.putAll(e.getFailures());
+            return false;
+        } catch (IOException e) {
+            throw new FatalRetriableIndexingException(e.getMessage(), e);
+        }
+    }
 
+    /* the event state is not updated until any index data buffered for the event has been
+     * written. indexedObjects are the source objects indexed while processing the event.
+     */
     private void markEventProcessed(
+            final StoredStatusEvent parentEvent,
+            final StatusEventProcessingState result,
+            final Set<GUID> indexedObjects) {
+        synchronized (unflushedEvents) {
+            unflushedEvents.put(parentEvent, result);
+            unflushedObjects.put(parentEvent, indexedObjects);
+        }
+    }
+
+    private void setEventProcessed(
             final StoredStatusEvent parentEvent,
             final StatusEventProcessingState result)
             throws InterruptedException, FatalIndexingException {
         try {
+            /* the event is only completed if this worker still owns it. If the coordinator
+             * requeued the event, e.g. because a heartbeat was late, another worker may be
+             * processing it and will set the final state.
+             */
             // should only throw fatal
-            retrier.retryCons(s -> s.setProcessingState(parentEvent.getId(),
-                    StatusEventProcessingState.PROC, result), storage, parentEvent);
+            final boolean updated = retrier.retryFunc(s -> s.setProcessingState(
+                    parentEvent.getId(), StatusEventProcessingState.PROC, result, instanceID),
+                    storage, parentEvent);
+            if (!updated) {
+                logger.logInfo(String.format("[Indexer] Event %s %s was not set to %s since " +
+                        "it is no longer in process by this worker",
+                        parentEvent.getEvent().getEventType(), parentEvent.getId().getId(),
+                        result));
+            }
+            leasedEvents.remove(parentEvent.getId());
         } catch (FatalIndexingException | InterruptedException e) {
             throw e;
         } catch (Exception e) {
@@ -295,6 +632,7 @@ public class IndexerWorker implements Stoppable {
             return;
         }
         StatusEventProcessingState parentResult = StatusEventProcessingState.INDX;
+        final Set<GUID> indexedObjects = ConcurrentHashMap.newKeySet();
         while (childIter.hasNext()) {
             ChildStatusEvent subev = null;
             try {
@@ -304,11 +642,12 @@ public class IndexerWorker implements Stoppable {
                         parentEvent, e);
                 parentResult = StatusEventProcessingState.FAIL;
             }
-            if (subev != null && StatusEventProcessingState.FAIL.equals(processEvent(subev))) {
+            if (subev != null && StatusEventProcessingState.FAIL.equals(
+                    processEvent(subev, indexedObjects))) {
                 parentResult = StatusEventProcessingState.FAIL;
             }
         }
-        markEventProcessed(parentEvent, parentResult);
+        markEventProcessed(parentEvent, parentResult, indexedObjects);
     }
     
     private Iterator<ChildStatusEvent> getSubEventIterator(final StoredStatusEvent ev)
@@ -328,13 +667,19 @@ public class IndexerWorker implements Stoppable {
             throws FatalIndexingException {
         try {
             storage.setProcessingState(parentEvent.getId(), null, StatusEventProcessingState.FAIL);
+            leasedEvents.remove(parentEvent.getId());
         } catch (Exception e) {
             //ok then we're screwed
             throw new FatalIndexingException("Can't mark events as failed: " + e.getMessage(), e);
         }
     }
 
-    private StatusEventProcessingState processEvent(final StatusEventWithId ev)
+    /* indexedObjects accumulates the source objects indexed while processing the event,
+     * including any referenced objects.
+     */
+    private StatusEventProcessingState processEvent(
+            final StatusEventWithId ev,
+            final Set<GUID> indexedObjects)
             throws InterruptedException, FatalIndexingException {
         final Optional<StorageObjectType> type = ev.getEvent().getStorageObjectType();
         if (type.isPresent() && !isStorageTypeSupported(ev)) {
@@ -346,7 +691,7 @@ public class IndexerWorker implements Stoppable {
                 toLogString(type) + ev.getEvent().toGUID() + "...");
         final long time = System.currentTimeMillis();
         try {
-            retrier.retryCons(e -> processOneEvent(e), ev.getEvent(), ev);
+            retrier.retryCons(e -> processOneEvent(e, indexedObjects), ev.getEvent(), ev);
         } catch (IndexingException e) {
             handleException("Error processing event", ev, e);
             return StatusEventProcessingState.FAIL;
@@ -419,6 +764,11 @@ public class IndexerWorker implements Stoppable {
 
     public void processOneEvent(final StatusEvent ev)
             throws IndexingException, InterruptedException, RetriableIndexingException {
+        processOneEvent(ev, new HashSet<>());
+    }
+    
+    private void processOneEvent(final StatusEvent ev, final Set<GUID> indexedObjects)
+            throws IndexingException, InterruptedException, RetriableIndexingException {
         try {
             switch (ev.getEventType()) {
             case NEW_VERSION:
@@ -436,7 +786,8 @@ public class IndexerWorker implements Stoppable {
                     }
                 } else {
                     indexObject(pguid, ev.getStorageObjectType().get(), ev.getTimestamp(),
-                            ev.isPublic().get(), null, new LinkedList<>());
+                            ev.isPublic().get(), new MOPLookupProvider(indexedObjects),
+                            new LinkedList<>());
                 }
                 break;
             // currently unused
@@ -466,6 +817,15 @@ public class IndexerWorker implements Stoppable {
             case UNPUBLISH_ALL_VERSIONS:
                 unpublishAllVersions(ev.toGUID());
                 break;
+            case DELETE_ACCESS_GROUP:
+                deleteAccessGroup(ev.getStorageCode(), ev.getAccessGroupId().get());
+                break;
+            case PUBLISH_ACCESS_GROUP:
+                publishAccessGroup(ev.getStorageCode(), ev.getAccessGroupId().get());
+                break;
+            case UNPUBLISH_ACCESS_GROUP:
+                unpublishAccessGroup(ev.getStorageCode(), ev.getAccessGroupId().get());
+                break;
             default:
                 throw new UnprocessableEventIndexingException(
                         "Unsupported event type: " + ev.getEventType());
@@ -497,7 +857,7 @@ public class IndexerWorker implements Stoppable {
      * @param storageObjectType type of object that is to be indexed.
      * @param timestamp time at which this object was updated.
      * @param isPublic object access level (true if public, else false).
-     * @param indexLookup
+     * @param lookup the lookup provider, which records the objects indexed for the event.
      * @param objectRefPath
      * @throws IndexingException
      * @throws InterruptedException
@@ -508,7 +868,7 @@ public class IndexerWorker implements Stoppable {
             final StorageObjectType storageObjectType,
             final Instant timestamp,
             final boolean isPublic,
-            ObjectLookupProvider indexLookup,
+            final MOPLookupProvider lookup,
             final List<GUID> objectRefPath) 
             throws IndexingException, InterruptedException, RetriableIndexingException {
         long t1 = System.currentTimeMillis();
@@ -519,41 +879,93 @@ public class IndexerWorker implements Stoppable {
         } catch (IOException e) {
             throw new FatalRetriableIndexingException(e.getMessage(), e);
         }
-        if (indexLookup == null) {
-            indexLookup = new MOPLookupProvider();
-        }
+        lookup.indexedObjects.add(guid);
+        /* each stage runs in the pipeline. The data for one rule is written while the next rule
+         * is parsed, but the writes for an object are applied in order and are always complete
+         * when this method returns.
+         */
+        PendingTask<Void> pendingWrite = null;
         try {
             // make a copy to avoid mutating the caller's path
             final LinkedList<GUID> newRefPath = new LinkedList<>(objectRefPath);
             newRefPath.add(guid);
             final EventHandler handler = getEventHandler(guid);
-            final SourceData obj = handler.load(newRefPath, tempFile.toPath());
+            final SourceData obj = pipeline.run(Stage.LOAD,
+                    () -> handler.load(newRefPath, tempFile.toPath()));
             long loadTime = System.currentTimeMillis() - t1;
             logger.logInfo("[Indexer]   " + guid + ", loading time: " + loadTime + " ms.");
             logger.timeStat(guid, loadTime, 0, 0);
             final List<ObjectTypeParsingRules> parsingRules = new ArrayList<>( 
                     typeStorage.listObjectTypeParsingRules(storageObjectType));
             Collections.sort(parsingRules, new ParsingRulesSubtypeFirstComparator());
-            for (final ObjectTypeParsingRules rule : parsingRules) {
-                final long t2 = System.currentTimeMillis();
-                final ParseObjectsRet parsedRet = parseObjects(guid, indexLookup,
-                        newRefPath, obj, rule);
-                long parsingTime = System.currentTimeMillis() - t2;
+            final int rulesPerPass = getRulesPerExtractionPass(
+                    tempFile.length(), parsingRules.size());
+            List<ExtractedObject> extracted = null;
+            for (int i = 0; i < parsingRules.size(); i++) {
+                if (i % rulesPerPass == 0) {
+                    // the data for the next rules is extracted in one pass over the object
+                    final List<ObjectTypeParsingRules> passRules = parsingRules.subList(
+                            i, Math.min(i + rulesPerPass, parsingRules.size()));
+                    final long t2 = System.currentTimeMillis();
+                    extracted = pipeline.run(Stage.PARSE,
+                            () -> extractObjects(guid, obj, passRules));
+                    final long extractTime = System.currentTimeMillis() - t2;
+                    logger.logInfo("[Indexer]   " + guid + ", extraction time for " +
+                            passRules.size() + " rule(s): " + extractTime + " ms.");
+                    logger.timeStat(guid, 0, extractTime, 0);
+                }
+                final ObjectTypeParsingRules rule = parsingRules.get(i);
+                final ExtractedObject ext = extracted.get(i % rulesPerPass);
+                // don't hold on to the extracted data for rules that have been parsed
+                extracted.set(i % rulesPerPass, null);
+                final long t3 = System.currentTimeMillis();
+                final ParseObjectsRet parsedRet = pipeline.run(Stage.PARSE,
+                        () -> parseObjects(lookup, newRefPath, ext, rule));
+                final long parsingTime = System.currentTimeMillis() - t3;
                 logger.logInfo("[Indexer]   " + toVerRep(rule.getGlobalObjectType()) +
                         ", parsing time: " + parsingTime + " ms.");
-                long t3 = System.currentTimeMillis();
-                indexObjectInStorage(guid, timestamp, isPublic, obj, rule,
-                        parsedRet.guidToObj, parsedRet.parentJson);
-                long indexTime = System.currentTimeMillis() - t3;
-                logger.logInfo("[Indexer]   " + toVerRep(rule.getGlobalObjectType()) +
-                        ", indexing time: " + indexTime + " ms.");
-                logger.timeStat(guid, 0, parsingTime, indexTime);
+                if (pendingWrite != null) {
+                    pendingWrite.get();
+                }
+                pendingWrite = pipeline.submit(Stage.INDEX, () -> {
+                    long t4 = System.currentTimeMillis();
+                    indexObjectInStorage(guid, timestamp, isPublic, obj, rule,
+                            parsedRet.guidToObj, parsedRet.parentJson);
+                    long indexTime = System.currentTimeMillis() - t4;
+                    logger.logInfo("[Indexer]   " + toVerRep(rule.getGlobalObjectType()) +
+                            ", indexing time: " + indexTime + " ms.");
+                    logger.timeStat(guid, 0, parsingTime, indexTime);
+                    return null;
+                });
+            }
+            if (pendingWrite != null) {
+                final PendingTask<Void> lastWrite = pendingWrite;
+                pendingWrite = null;
+                lastWrite.get();
             }
         } finally {
+            // don't let the event complete, or be retried, while a write is in progress
+            if (pendingWrite != null) {
+                try {
+                    pendingWrite.get();
+                } catch (IndexingException | RetriableIndexingException | RuntimeException e) {
+                    // the error that caused the object to fail takes precedence
+                }
+            }
             tempFile.delete();
         }
     }
 
+    /* returns the number of parsing rules whose data is extracted in each pass over an object.
+     * Objects of unknown size, which are usually small test objects, are extracted in one pass.
+     */
+    private static int getRulesPerExtractionPass(final long objectSize, final int ruleCount) {
+        if (objectSize < 1 || ruleCount < 1) {
+            return Math.max(1, ruleCount);
+        }
+        return (int) Math.max(1, Math.min(ruleCount, MAX_EXTRACTION_PASS_BYTES / objectSize));
+    }
+    
     private String toVerRep(final SearchObjectType globalObjectType) {
         return globalObjectType.getType() + "_" + globalObjectType.getVersion();
     }
@@ -572,7 +984,8 @@ public class IndexerWorker implements Stoppable {
         retrier.retryCons(i -> indexObjectInStorage(i), input, null);
     }
 
-    private void indexObjectInStorage(final List<?> input) throws FatalRetriableIndexingException {
+    private void indexObjectInStorage(final List<?> input)
+            throws UnprocessableEventIndexingException, FatalRetriableIndexingException {
         final ObjectTypeParsingRules rule = (ObjectTypeParsingRules) input.get(0);
         final SourceData obj = (SourceData) input.get(1);
         final Instant timestamp = (Instant) input.get(2);
@@ -585,6 +998,9 @@ public class IndexerWorker implements Stoppable {
         try {
             indexingStorage.indexObjects(
                     rule, obj, timestamp, parentJson, guid, guidToObj, isPublic);
+        } catch (IndexRequestsFailedException e) {
+            // the storage rejected the object's data, so retrying won't help
+            throw new UnprocessableEventIndexingException(e.getMessage(), e);
         } catch (IOException e) {
             throw new FatalRetriableIndexingException(e.getMessage(), e);
         }
@@ -600,35 +1016,54 @@ public class IndexerWorker implements Stoppable {
         }
     }
     
-    private ParseObjectsRet parseObjects(
+    private List<ExtractedObject> extractObjects(
             final GUID guid,
+            final SourceData obj,
+            final List<ObjectTypeParsingRules> rules)
+            throws IndexingException, InterruptedException {
+        final List<?> inputs = Arrays.asList(guid, obj, rules);
+        return retrier.retryFunc(i -> extractObjects(i), inputs, null);
+    }
+    
+    private List<ExtractedObject> extractObjects(final List<?> inputs)
+            throws IndexingException, FatalRetriableIndexingException, InterruptedException {
+        final GUID guid = (GUID) inputs.get(0);
+        final SourceData obj = (SourceData) inputs.get(1);
+        @SuppressWarnings("unchecked")
+        final List<ObjectTypeParsingRules> rules = (List<ObjectTypeParsingRules>) inputs.get(2);
+        // as in parseObjects, parse exceptions are not retriable and IO errors are fatal
+        try {
+            return ObjectParser.extractObjects(obj, guid, rules);
+        } catch (ObjectParseException e) {
+            throw new UnprocessableEventIndexingException(e.getMessage(), e);
+        } catch (IOException e) {
+            throw new FatalRetriableIndexingException(e.getMessage(), e);
+        }
+    }
+    
+    private ParseObjectsRet parseObjects(
             final ObjectLookupProvider indexLookup,
             final LinkedList<GUID> newRefPath,
-            final SourceData obj,
+            final ExtractedObject extracted,
             final ObjectTypeParsingRules rule)
             throws IndexingException, InterruptedException {
-        final List<?> inputs = Arrays.asList(guid, indexLookup, newRefPath, obj, rule);
+        final List<?> inputs = Arrays.asList(indexLookup, newRefPath, extracted, rule);
         return retrier.retryFunc(i -> parseObjects(i), inputs, null);
     }
     
     private ParseObjectsRet parseObjects(final List<?> inputs)
             throws IndexingException, FatalRetriableIndexingException, InterruptedException {
         // should really wrap these in a class, but meh for now
-        final GUID guid = (GUID) inputs.get(0);
-        final ObjectLookupProvider indexLookup = (ObjectLookupProvider) inputs.get(1);
+        final ObjectLookupProvider indexLookup = (ObjectLookupProvider) inputs.get(0);
         @SuppressWarnings("unchecked")
-        final List<GUID> newRefPath = (List<GUID>) inputs.get(2);
-        final SourceData obj = (SourceData) inputs.get(3);
-        final ObjectTypeParsingRules rule = (ObjectTypeParsingRules) inputs.get(4);
+        final List<GUID> newRefPath = (List<GUID>) inputs.get(1);
+        final ExtractedObject extracted = (ExtractedObject) inputs.get(2);
+        final ObjectTypeParsingRules rule = (ObjectTypeParsingRules) inputs.get(3);
 
         final Map<GUID, ParsedObject> guidToObj = new HashMap<>();
-        final String parentJson;
+        final String parentJson = extracted.getParentJson();
         try {
-            try (JsonParser jts = obj.getData().getPlacedStream()) {
-                parentJson = ObjectParser.extractParentFragment(rule, jts);
-            }
-            final Map<GUID, String> guidToJson = ObjectParser.parseSubObjects(
-                    obj, guid, rule);
+            final Map<GUID, String> guidToJson = extracted.getGuidToJson();
             for (final GUID subGuid : guidToJson.keySet()) {
                 final String json = guidToJson.get(subGuid);
                 guidToObj.put(subGuid, KeywordParser.extractKeywords(
@@ -683,6 +1118,23 @@ public class IndexerWorker implements Stoppable {
         //TODO DP need to handle objects in datapalette
     }
     
+    private void deleteAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        indexingStorage.deleteAccessGroup(storageCode, accessGroupId);
+    }
+    
+    private void publishAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        indexingStorage.publishAccessGroup(storageCode, accessGroupId);
+        //TODO DP need to handle objects in datapalette
+    }
+    
+    private void unpublishAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        indexingStorage.unpublishAccessGroup(storageCode, accessGroupId);
+        //TODO DP need to handle objects in datapalette
+    }
+    
     private void renameAllVersions(final GUID guid, final String newName) throws IOException {
         indexingStorage.setNameOnAllObjectVersions(guid, newName);
     }
@@ -691,11 +1143,17 @@ public class IndexerWorker implements Stoppable {
      *
      */
     private class MOPLookupProvider implements ObjectLookupProvider {
+        // the source objects indexed for the event, including referenced objects
+        private final Set<GUID> indexedObjects;
         // storage code -> full ref path -> resolved guid
         private Map<String, Map<String, GUID>> refResolvingCache = new LinkedHashMap<>();
         private Map<GUID, ObjectData> objLookupCache = new LinkedHashMap<>();
         private Map<GUID, SearchObjectType> guidToTypeCache = new LinkedHashMap<>();
         
+        private MOPLookupProvider(final Set<GUID> indexedObjects) {
+            this.indexedObjects = indexedObjects;
+        }
+        
         @Override
         public Set<GUID> resolveRefs(List<GUID> callerRefPath, Set<GUID> refs)
                 throws IndexingException, InterruptedException {
@@ -776,7 +1234,7 @@ public class IndexerWorker implements Stoppable {
                 final StorageObjectType storageObjectType,
                 final Instant timestamp,
                 final boolean isPublic,
-                final ObjectLookupProvider indexLookup,
+                final MOPLookupProvider indexLookup,
                 final List<GUID> objectRefPath) 
                 throws IndexingException, InterruptedException {
             final List<Object> input = Arrays.asList(guid, storageObjectType, timestamp, isPublic,
@@ -790,7 +1248,7 @@ public class IndexerWorker implements Stoppable {
             final StorageObjectType storageObjectType = (StorageObjectType) input.get(1);
             final Instant timestamp = (Instant) input.get(2);
             final boolean isPublic = (boolean) input.get(3);
-            final ObjectLookupProvider indexLookup = (ObjectLookupProvider) input.get(4);
+            final MOPLookupProvider indexLookup = (MOPLookupProvider) input.get(4);
             @SuppressWarnings("unchecked")
             final List<GUID> objectRefPath = (List<GUID>) input.get(5);
             
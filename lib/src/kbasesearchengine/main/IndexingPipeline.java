@@ -0,0 +1,270 @@
+package kbasesearchengine.main;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import kbasesearchengine.events.exceptions.IndexingException;
+import kbasesearchengine.events.exceptions.RetriableIndexingException;
+import kbasesearchengine.tools.Utils;
+
+/** Runs the stages of indexing an object - loading the object from the data source, parsing
+ * it, and writing it to the indexing storage - on separate pools of threads. When an indexer
+ * worker processes more than one event at once, this allows one object to be parsed while
+ * another is being loaded or written, with the number of threads dedicated to network and CPU
+ * bound work controlled independently.
+ *
+ * Each stage has a fixed number of threads and a queue that holds as many tasks as the stage has
+ * threads. Submitting a task to a stage with a full queue blocks until the queue has space.
+ *
+ * Tasks run on the calling thread if the pipeline is not started, if the stage has no threads,
+ * or if the calling thread is itself a stage thread. The latter occurs when indexing an object
+ * requires indexing the objects it references, and prevents stage threads waiting on each
+ * other.
+ *
+ * This class is thread safe.
+ */
+public class IndexingPipeline {
+
+    /** A stage of the indexing pipeline. */
+    public enum Stage {
+        /** Loading an object from the data source. */
+        LOAD,
+        /** Parsing an object. */
+        PARSE,
+        /** Writing parsed data to the indexing storage. */
+        INDEX;
+    }
+
+    /** A task to be run in a pipeline stage.
+     * @param <T> the type of the task result.
+     */
+    @FunctionalInterface
+    public interface StageTask<T> {
+
+        /** Run the task.
+         * @return the result of the task.
+         * @throws IndexingException if a non-retriable error occurs.
+         * @throws RetriableIndexingException if a retriable error occurs.
+         * @throws InterruptedException if the task is interrupted.
+         */
+        T run() throws IndexingException, RetriableIndexingException, InterruptedException;
+    }
+
+    /** A task that has been submitted to a pipeline stage.
+     * @param <T> the type of the task result.
+     */
+    public interface PendingTask<T> {
+
+        /** Wait for the task to complete and get its result. Any exception thrown by the task is
+         * rethrown.
+         * @return the result of the task.
+         * @throws IndexingException if the task threw a non-retriable error.
+         * @throws RetriableIndexingException if the task threw a retriable error.
+         * @throws InterruptedException if the task or the wait was interrupted. If the wait was
+         * interrupted, the task is cancelled.
+         */
+        T get() throws IndexingException, RetriableIndexingException, InterruptedException;
+    }
+
+    private final Map<Stage, Integer> threads = new EnumMap<>(Stage.class);
+    private final Map<Stage, ThreadPoolExecutor> executors = new EnumMap<>(Stage.class);
+    private final ThreadLocal<Boolean> isStageThread = ThreadLocal.withInitial(() -> false);
+
+    /** Create a pipeline where all stages run on the calling thread. */
+    public IndexingPipeline() {
+        this(0, 0, 0);
+    }
+
+    /** Create a pipeline.
+     * @param loadThreads the number of threads that load objects from the data source.
+     * @param parseThreads the number of threads that parse objects.
+     * @param indexThreads the number of threads that write parsed data to the indexing storage.
+     */
+    public IndexingPipeline(final int loadThreads, final int parseThreads, final int indexThreads) {
+        checkThreads(loadThreads, "loadThreads");
+        checkThreads(parseThreads, "parseThreads");
+        checkThreads(indexThreads, "indexThreads");
+        threads.put(Stage.LOAD, loadThreads);
+        threads.put(Stage.PARSE, parseThreads);
+        threads.put(Stage.INDEX, indexThreads);
+    }
+
+    private void checkThreads(final int threads, final String name) {
+        if (threads < 0) {
+            throw new IllegalArgumentException(name + " must be at least 0");
+        }
+    }
+
+    /** Get the number of threads dedicated to a stage.
+     * @param stage the stage.
+     * @return the number of threads, or 0 if the stage runs on the calling thread.
+     */
+    public int getThreads(final Stage stage) {
+        Utils.nonNull(stage, "stage");
+        return threads.get(stage);
+    }
+
+    /** Start the stage threads. Has no effect if the pipeline is already started. */
+    public synchronized void start() {
+        if (!executors.isEmpty()) {
+            return;
+        }
+        for (final Stage stage: Stage.values()) {
+            final int count = threads.get(stage);
+            if (count > 0) {
+                final ThreadPoolExecutor ex = new ThreadPoolExecutor(count, count,
+                        0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(count),
+                        new StageThreadFactory(stage),
+                        (r, executor) -> waitForQueue(r, executor));
+                executors.put(stage, ex);
+            }
+        }
+    }
+
+    /** Stop the stage threads. Tasks already submitted are allowed to complete, and further
+     * tasks run on the calling thread until the pipeline is restarted.
+     */
+    public synchronized void stop() {
+        for (final ThreadPoolExecutor ex: executors.values()) {
+            ex.shutdown();
+        }
+        executors.clear();
+    }
+
+    /* hands off the task once the stage's queue has space rather than rejecting it. Putting
+     * the task on the queue bypasses the executor's checks, so if the stage was stopped while
+     * waiting the stage threads may already have exited, and the task is taken back off the
+     * queue and rejected. If a stage thread already took the task, it runs as normal.
+     */
+    private void waitForQueue(final Runnable r, final ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("The pipeline stage is stopped");
+        }
+        try {
+            executor.getQueue().put(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for stage queue", e);
+        }
+        if (executor.isShutdown() && executor.getQueue().remove(r)) {
+            throw new RejectedExecutionException("The pipeline stage is stopped");
+        }
+    }
+
+    private class StageThreadFactory implements ThreadFactory {
+
+        private final Stage stage;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private StageThreadFactory(final Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(() -> {
+                isStageThread.set(true);
+                r.run();
+            }, "indexer-" + stage.name().toLowerCase() + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /** Run a task in a stage and wait for the result.
+     * @param stage the stage in which to run the task.
+     * @param task the task.
+     * @param <T> the type of the task result.
+     * @return the result of the task.
+     * @throws IndexingException if the task threw a non-retriable error.
+     * @throws RetriableIndexingException if the task threw a retriable error.
+     * @throws InterruptedException if the task or the wait was interrupted.
+     */
+    public <T> T run(final Stage stage, final StageTask<T> task)
+            throws IndexingException, RetriableIndexingException, InterruptedException {
+        return submit(stage, task).get();
+    }
+
+    /** Submit a task to a stage without waiting for the result. If the stage's queue is full,
+     * waits until it has space. If the pipeline is stopped while waiting, the task runs on the
+     * calling thread. If the task runs on the calling thread, it is complete when this method
+     * returns.
+     * @param stage the stage in which to run the task.
+     * @param task the task.
+     * @param <T> the type of the task result.
+     * @return the submitted task.
+     */
+    public <T> PendingTask<T> submit(final Stage stage, final StageTask<T> task) {
+        Utils.nonNull(stage, "stage");
+        Utils.nonNull(task, "task");
+        final ThreadPoolExecutor ex;
+        synchronized (this) {
+            ex = executors.get(stage);
+        }
+        if (ex == null || isStageThread.get()) {
+            return runInline(task);
+        }
+        final Future<T> f;
+        try {
+            f = ex.submit(() -> task.run());
+        } catch (RejectedExecutionException e) {
+            if (!ex.isShutdown()) {
+                throw e;
+            }
+            // the pipeline was stopped while the task was submitted
+            return runInline(task);
+        }
+        return () -> getResult(f);
+    }
+
+    private <T> PendingTask<T> runInline(final StageTask<T> task) {
+        try {
+            final T result = task.run();
+            return () -> result;
+        } catch (IndexingException | RetriableIndexingException | InterruptedException |
+                RuntimeException e) {
+            return () -> rethrow(e);
+        }
+    }
+
+    private <T> T getResult(final Future<T> f)
+            throws IndexingException, RetriableIndexingException, InterruptedException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            throw e;
+        } catch (CancellationException e) {
+            throw new InterruptedException("Pipeline task was cancelled");
+        } catch (ExecutionException e) {
+            return rethrow(e.getCause());
+        }
+    }
+
+    private <T> T rethrow(final Throwable e)
+            throws IndexingException, RetriableIndexingException, InterruptedException {
+        if (e instanceof IndexingException) {
+            throw (IndexingException) e;
+        } else if (e instanceof RetriableIndexingException) {
+            throw (RetriableIndexingException) e;
+        } else if (e instanceof InterruptedException) {
+            throw (InterruptedException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else {
+            // StageTask can't throw anything else
+            throw new RuntimeException("Unexpected exception in pipeline task", e);
+        }
+    }
+}
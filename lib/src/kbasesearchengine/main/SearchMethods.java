@@ -5,15 +5,19 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import kbasesearchengine.AccessFilter;
 import kbasesearchengine.GetObjectsInput;
@@ -32,6 +36,7 @@ import kbasesearchengine.SortingRule;
 import kbasesearchengine.TypeDescriptor;
 import kbasesearchengine.authorization.AccessGroupProvider;
 import kbasesearchengine.common.GUID;
+import kbasesearchengine.search.ElasticIndexingStorage;
 import kbasesearchengine.search.FoundHits;
 import kbasesearchengine.search.IndexingStorage;
 import kbasesearchengine.search.MatchFilter.Builder;
@@ -39,24 +44,84 @@ import kbasesearchengine.system.IndexingRules;
 import kbasesearchengine.system.ObjectTypeParsingRules;
 import kbasesearchengine.system.SearchObjectType;
 import kbasesearchengine.system.TypeStorage;
+import kbasesearchengine.tools.Utils;
 import us.kbase.common.service.UObject;
 
 public class SearchMethods implements SearchInterface {
     
+    /** The default maximum number of snapshot searches a user may have open at once. */
+    public static final int DEFAULT_MAX_SNAPSHOTS_PER_USER = 5;
+    
     private final AccessGroupProvider accessGroupProvider;
     private final TypeStorage typeStorage;
     private final IndexingStorage indexingStorage;
     private final Set<String> admins;
+    private final Ticker ticker;
+    /* user -> the cursors for the next pages of the user's open snapshot searches -> the ticker
+     * time the cursor was returned, oldest first. Only the user that started a snapshot search
+     * may continue it.
+     */
+    private final Map<String, LinkedHashMap<String, Long>> snapshots = new HashMap<>();
+    // the ticker time expired cursors were last removed from the snapshots
+    private long snapshotsExpiredAt;
+    private volatile int maxSnapshotsPerUser = DEFAULT_MAX_SNAPSHOTS_PER_USER;
+    private volatile int snapshotKeepAliveSec =
+            ElasticIndexingStorage.DEFAULT_SNAPSHOT_KEEP_ALIVE_SEC;
     
     public SearchMethods(
             final AccessGroupProvider accessGroupProvider,
             final IndexingStorage indexingStorage,
             final TypeStorage typeStorage,
             final Set<String> admins) {
+        this(accessGroupProvider, indexingStorage, typeStorage, admins, Ticker.systemTicker());
+    }
+    
+    /** Create the search methods for testing purposes.
+     * @param accessGroupProvider the provider of the access groups for users.
+     * @param indexingStorage the indexing storage to search.
+     * @param typeStorage the storage for the search types.
+     * @param admins the administrators, who may search all access groups.
+     * @param ticker a ticker that allows controlling when snapshot searches expire rather than
+     * waiting for the system clock. This is exposed for testing purposes.
+     */
+    public SearchMethods(
+            final AccessGroupProvider accessGroupProvider,
+            final IndexingStorage indexingStorage,
+            final TypeStorage typeStorage,
+            final Set<String> admins,
+            final Ticker ticker) {
+        Utils.nonNull(ticker, "ticker");
         this.admins = admins == null ? Collections.emptySet() : admins;
         this.accessGroupProvider = accessGroupProvider;
         this.typeStorage = typeStorage;
         this.indexingStorage = indexingStorage;
+        this.ticker = ticker;
+        this.snapshotsExpiredAt = ticker.read();
+    }
+    
+    /** Set the maximum number of snapshot searches a user may have open at once. When a user
+     * starts a snapshot search that exceeds the maximum, the user's least recently used snapshot
+     * search is closed. Defaults to {@link #DEFAULT_MAX_SNAPSHOTS_PER_USER}.
+     * @param maxSnapshotsPerUser the maximum number of open snapshot searches per user.
+     */
+    public void setMaxSnapshotsPerUser(final int maxSnapshotsPerUser) {
+        if (maxSnapshotsPerUser < 1) {
+            throw new IllegalArgumentException("maxSnapshotsPerUser must be at least 1");
+        }
+        this.maxSnapshotsPerUser = maxSnapshotsPerUser;
+    }
+    
+    /** Set the time a snapshot search is kept open after a page of the search is retrieved.
+     * This must match the keep alive time of the indexing storage, as a snapshot search that
+     * has not been continued within this time is forgotten. Defaults to
+     * {@link ElasticIndexingStorage#DEFAULT_SNAPSHOT_KEEP_ALIVE_SEC}.
+     * @param keepAliveSec the keep alive time in seconds.
+     */
+    public void setSnapshotKeepAliveSec(final int keepAliveSec) {
+        if (keepAliveSec < 1) {
+            throw new IllegalArgumentException("keepAliveSec must be at least 1");
+        }
+        snapshotKeepAliveSec = keepAliveSec;
     }
     
     private static boolean toBool(Long value) {
@@ -128,8 +193,11 @@ public class SearchMethods implements SearchInterface {
     private kbasesearchengine.search.AccessFilter toSearch(AccessFilter af, String user)
             throws IOException {
         List<Integer> accessGroupIds;
+        String lookupKey = null;
         if (toBool(af.getWithPrivate(), true)) {
             accessGroupIds = accessGroupProvider.findAccessGroupIds(user);
+            // the access group provider may have stored the user's groups for lookup
+            lookupKey = user;
         } else {
             accessGroupIds = Collections.emptyList();
         }
@@ -137,6 +205,7 @@ public class SearchMethods implements SearchInterface {
                 .withPublic(toBool(af.getWithPublic()))
                 .withAllHistory(toBool(af.getWithAllHistory()))
                 .withAccessGroups(new LinkedHashSet<>(accessGroupIds))
+                .withAccessGroupsLookupKey(lookupKey)
                 .withAdmin(admins.contains(user));
     }
     
@@ -171,13 +240,20 @@ public class SearchMethods implements SearchInterface {
     }
 
     private kbasesearchengine.search.Pagination toSearch(Pagination pg) {
-        return pg == null ? null : new kbasesearchengine.search.Pagination(
-                toInteger(pg.getStart()), toInteger(pg.getCount()));
+        if (pg == null) {
+            return null;
+        }
+        final kbasesearchengine.search.Pagination ret = new kbasesearchengine.search.Pagination(
+                toInteger(pg.getStart()), toInteger(pg.getCount()), pg.getCursor());
+        // whether a search with a cursor is a snapshot search depends on the cursor
+        ret.snapshot = pg.getCursor() == null && toBool(pg.getSnapshot());
+        return ret;
     }
 
     private Pagination fromSearch(kbasesearchengine.search.Pagination pg) {
         return pg == null ? null : new Pagination().withStart((long)pg.start)
-                .withCount((long)pg.count);
+                .withCount((long)pg.count).withCursor(pg.cursor)
+                .withSnapshot(pg.snapshot ? 1L : 0L);
     }
 
     private kbasesearchengine.search.PostProcessing toSearch(PostProcessing pp) {
@@ -199,7 +275,11 @@ public class SearchMethods implements SearchInterface {
         return ret;
     }
     
-    private kbasesearchengine.ObjectData fromSearch(
+    /** Convert object data from the indexing storage to the API representation.
+     * @param od the object data.
+     * @return the API object data.
+     */
+    public static kbasesearchengine.ObjectData fromSearch(
             final kbasesearchengine.search.ObjectData od) {
         final kbasesearchengine.ObjectData ret = new kbasesearchengine.ObjectData();
         ret.withGuid(od.getGUID().toString());
@@ -235,7 +315,7 @@ public class SearchMethods implements SearchInterface {
         return ret;
     }
     
-    private void addObjectProp(final ObjectData ret, final String prop, final String propkey) {
+    private static void addObjectProp(final ObjectData ret, final String prop, final String propkey) {
         if (prop != null) {
             ret.getObjectProps().put(propkey, prop);
         }
@@ -275,8 +355,23 @@ public class SearchMethods implements SearchInterface {
         kbasesearchengine.search.Pagination pagination = toSearch(params.getPagination());
         kbasesearchengine.search.PostProcessing postProcessing = 
                 toSearch(params.getPostProcessing());
-        FoundHits hits = indexingStorage.searchObjects(params.getObjectTypes(),
-                matchFilter, sorting, accessFilter, pagination, postProcessing);
+        if (pagination != null && pagination.snapshot && user == null) {
+            // snapshots are tracked per user, so anonymous users would share them
+            throw new IllegalArgumentException("Snapshot searches require authentication");
+        }
+        final String prevCursor = pagination == null ? null : pagination.cursor;
+        if (prevCursor != null) {
+            pagination.snapshot = isOpenSnapshot(user, prevCursor);
+        }
+        FoundHits hits = null;
+        try {
+            hits = indexingStorage.searchObjects(params.getObjectTypes(),
+                    matchFilter, sorting, accessFilter, pagination, postProcessing);
+        } finally {
+            if (pagination != null && pagination.snapshot) {
+                updateSnapshots(user, prevCursor, hits == null ? null : hits.nextCursor);
+            }
+        }
         SearchObjectsOutput ret = new SearchObjectsOutput();
         ret.withPagination(fromSearch(hits.pagination));
         ret.withSortingRules(hits.sortingRules.stream().map(this::fromSearch).collect(
@@ -285,14 +380,87 @@ public class SearchMethods implements SearchInterface {
             ret.withObjects(hits.guids.stream().map(guid -> new kbasesearchengine.ObjectData().
                     withGuid(guid.toString())).collect(Collectors.toList()));
         } else {
-            ret.withObjects(hits.objects.stream().map(this::fromSearch).collect(
+            ret.withObjects(hits.objects.stream().map(SearchMethods::fromSearch).collect(
                     Collectors.toList()));
         }
         ret.withTotal((long)hits.total);
+        ret.withNextCursor(hits.nextCursor);
         ret.withSearchTime(System.currentTimeMillis() - t1);
         return ret;
     }
 
+    private boolean isOpenSnapshot(final String user, final String cursor) {
+        if (user == null) {
+            return false;
+        }
+        final long now = ticker.read();
+        synchronized (snapshots) {
+            expireSnapshots(now);
+            final Map<String, Long> cursors = snapshots.get(user);
+            final Long returnedAt = cursors == null ? null : cursors.get(cursor);
+            return returnedAt != null && !isExpired(returnedAt, now);
+        }
+    }
+    
+    private boolean isExpired(final long returnedAt, final long now) {
+        return now - returnedAt > TimeUnit.SECONDS.toNanos(snapshotKeepAliveSec);
+    }
+    
+    /* removes cursors that haven't been used within the keep alive time, and whose searches
+     * the indexing storage has therefore freed. Scans the snapshots at most once per keep alive
+     * time. Must be called while holding the snapshots lock.
+     */
+    private void expireSnapshots(final long now) {
+        if (!isExpired(snapshotsExpiredAt, now)) {
+            return;
+        }
+        snapshotsExpiredAt = now;
+        final Iterator<LinkedHashMap<String, Long>> users = snapshots.values().iterator();
+        while (users.hasNext()) {
+            final LinkedHashMap<String, Long> cursors = users.next();
+            cursors.values().removeIf(returnedAt -> isExpired(returnedAt, now));
+            if (cursors.isEmpty()) {
+                users.remove();
+            }
+        }
+    }
+    
+    /* replaces the cursor for a page of a snapshot search with the cursor for the next page,
+     * and closes the user's least recently used snapshot searches if the user has too many
+     * open.
+     */
+    private void updateSnapshots(
+            final String user,
+            final String prevCursor,
+            final String nextCursor)
+            throws IOException {
+        final List<String> toRelease = new LinkedList<>();
+        final long now = ticker.read();
+        synchronized (snapshots) {
+            expireSnapshots(now);
+            final LinkedHashMap<String, Long> cursors = snapshots.computeIfAbsent(
+                    user, k -> new LinkedHashMap<>());
+            if (prevCursor != null) {
+                cursors.remove(prevCursor);
+            }
+            if (nextCursor != null) {
+                // the most recently used search is last, and so is closed last
+                cursors.put(nextCursor, now);
+            }
+            final Iterator<String> iter = cursors.keySet().iterator();
+            while (cursors.size() - toRelease.size() > maxSnapshotsPerUser) {
+                toRelease.add(iter.next());
+            }
+            cursors.keySet().removeAll(toRelease);
+            if (cursors.isEmpty()) {
+                snapshots.remove(user);
+            }
+        }
+        for (final String cursor: toRelease) {
+            indexingStorage.releaseCursor(cursor);
+        }
+    }
+
     @Override
     public GetObjectsOutput getObjects(final GetObjectsInput params, final String user)
             throws Exception {
@@ -316,7 +484,7 @@ public class SearchMethods implements SearchInterface {
         final List<kbasesearchengine.search.ObjectData> objs = indexingStorage.getObjectsByIds(
                 guids, postProcessing);
         final GetObjectsOutput ret = new GetObjectsOutput().withObjects(objs.stream()
-                .map(this::fromSearch).collect(Collectors.toList()));
+                .map(SearchMethods::fromSearch).collect(Collectors.toList()));
         ret.withSearchTime(System.currentTimeMillis() - t1);
         return ret;
     }
@@ -45,6 +45,100 @@ public class ObjectParser {
         try (JsonParser jts = obj.getData().getPlacedStream()) {
             extractSubObjects(parsingRules, new SimpleSubObjectConsumer(pathToJson), jts);
         }
+        return toGUIDs(guid, parsingRules, pathToJson);
+    }
+    
+    /** The data extracted from a source data object for one set of parsing rules. */
+    public static class ExtractedObject {
+        
+        private final String parentJson;
+        private final Map<GUID, String> guidToJson;
+        
+        private ExtractedObject(final String parentJson, final Map<GUID, String> guidToJson) {
+            this.parentJson = parentJson;
+            this.guidToJson = guidToJson;
+        }
+        
+        /** Get the extracted portions of the parent object.
+         * @return the parent JSON, or null if the parsing rules do not extract data from the
+         * parent object. See {@link ObjectParser#extractParentFragment(ObjectTypeParsingRules,
+         * JsonParser)}.
+         */
+        public String getParentJson() {
+            return parentJson;
+        }
+        
+        /** Get the extracted data.
+         * @return A map from GUID to extracted data. See
+         * {@link ObjectParser#parseSubObjects(SourceData, GUID, ObjectTypeParsingRules)}.
+         */
+        public Map<GUID, String> getGuidToJson() {
+            return guidToJson;
+        }
+    }
+    
+    /** Uses several sets of parsing rules to extract data from the given source data object.
+     * The results are the same as calling
+     * {@link #extractParentFragment(ObjectTypeParsingRules, JsonParser)} and
+     * {@link #parseSubObjects(SourceData, GUID, ObjectTypeParsingRules)} for each set of rules,
+     * but the source data is only read and tokenized once.
+     *
+     * @param obj source data from which to extract
+     * @param guid GUID of the source given source data
+     * @param parsingRules the sets of parsing rules
+     * @return the extracted data for each set of parsing rules, in the same order as the rules.
+     * @throws IOException
+     * @throws ObjectParseException
+     * @throws IndexingException
+     * @throws InterruptedException
+     */
+    public static List<ExtractedObject> extractObjects(
+            final SourceData obj,
+            final GUID guid,
+            final List<ObjectTypeParsingRules> parsingRules)
+            throws IOException,
+                   ObjectParseException,
+                   IndexingException,
+                   InterruptedException {
+        final Map<SubObjectConsumer, SubObjectExtractionNode> trees = new LinkedHashMap<>();
+        final List<Map<ObjectJsonPath, String>> subObjects = new ArrayList<>();
+        final List<Map<ObjectJsonPath, String>> parents = new ArrayList<>();
+        for (final ObjectTypeParsingRules rules: parsingRules) {
+            final Map<ObjectJsonPath, String> pathToJson = new LinkedHashMap<>();
+            trees.put(new SimpleSubObjectConsumer(pathToJson), getSubObjectTree(rules));
+            subObjects.add(pathToJson);
+            final SubObjectExtractionNode parentTree = getParentFragmentTree(rules);
+            if (parentTree == null) {
+                parents.add(null);
+            } else {
+                final Map<ObjectJsonPath, String> parentPathToJson = new LinkedHashMap<>();
+                trees.put(new SimpleSubObjectConsumer(parentPathToJson), parentTree);
+                parents.add(parentPathToJson);
+            }
+        }
+        if (!trees.isEmpty()) {
+            try (JsonParser jts = obj.getData().getPlacedStream()) {
+                SubObjectExtractor.extract(trees, jts);
+            }
+        }
+        final List<ExtractedObject> ret = new ArrayList<>();
+        for (int i = 0; i < parsingRules.size(); i++) {
+            final Map<ObjectJsonPath, String> parent = parents.get(i);
+            ret.add(new ExtractedObject(
+                    parent == null ? null : parent.get(parent.keySet().iterator().next()),
+                    toGUIDs(guid, parsingRules.get(i), subObjects.get(i))));
+        }
+        return ret;
+    }
+    
+    private static Map<GUID, String> toGUIDs(
+            final GUID guid,
+            final ObjectTypeParsingRules parsingRules,
+            final Map<ObjectJsonPath, String> pathToJson)
+            throws IOException,
+                   ObjectParseException,
+                   IndexingException,
+                   InterruptedException {
         Map<GUID, String> guidToJson = new LinkedHashMap<>();
         for (ObjectJsonPath path : pathToJson.keySet()) {
             String subJson = pathToJson.get(path);
@@ -111,6 +205,20 @@ public class ObjectParser {
             JsonParser jts)
             throws ObjectParseException,
                    IOException {
+        final SubObjectExtractionNode tree = getParentFragmentTree(parsingRules);
+        if (tree == null) {
+            return null;
+        }
+        Map<ObjectJsonPath, String> pathToJson = new LinkedHashMap<>();
+        SubObjectConsumer parentConsumer = new SimpleSubObjectConsumer(pathToJson);
+        SubObjectExtractor.extract(tree, jts, parentConsumer);
+        return pathToJson.get(pathToJson.keySet().iterator().next());
+    }
+    
+    // returns null if the parsing rules do not extract parent elements
+    private static SubObjectExtractionNode getParentFragmentTree(
+            final ObjectTypeParsingRules parsingRules)
+            throws ObjectParseException {
         if (!parsingRules.getSubObjectPath().isPresent()) {
             return null;
         }
@@ -125,11 +233,7 @@ public class ObjectParser {
         if (indexingPaths.size() == 0) {
             return null;
         }
-        Map<ObjectJsonPath, String> pathToJson = new LinkedHashMap<>();
-        SubObjectConsumer parentConsumer = new SimpleSubObjectConsumer(pathToJson);
-        ObjectJsonPath pathToSubObjects = new ObjectJsonPath("/");
-        SubObjectExtractor.extract(pathToSubObjects, indexingPaths, jts, parentConsumer);
-        return pathToJson.get(pathToJson.keySet().iterator().next());
+        return SubObjectExtractor.buildTree(new ObjectJsonPath("/"), indexingPaths);
     }
 
     /** Uses the given JsonParser to extract sub-object data based on the specified
@@ -148,6 +252,12 @@ public class ObjectParser {
             JsonParser jts)
             throws ObjectParseException,
                    IOException {
+        SubObjectExtractor.extract(getSubObjectTree(parsingRules), jts, subObjConsumer);
+    }
+    
+    private static SubObjectExtractionNode getSubObjectTree(
+            final ObjectTypeParsingRules parsingRules)
+            throws ObjectParseException {
         List<ObjectJsonPath> indexingPaths = new ArrayList<>();
         for (IndexingRules rules : parsingRules.getIndexingRules()) {
             if (rules.isFromParent()) {
@@ -159,6 +269,6 @@ public class ObjectParser {
         }
         ObjectJsonPath pathToSubObjects = parsingRules.getSubObjectPath()
                 .or(new ObjectJsonPath("/"));
-        SubObjectExtractor.extract(pathToSubObjects, indexingPaths, jts, subObjConsumer);
+        return SubObjectExtractor.buildTree(pathToSubObjects, indexingPaths);
     }
 }
@@ -2,8 +2,11 @@ package kbasesearchengine.parse;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import com.fasterxml.jackson.core.JsonParser;
@@ -37,13 +40,23 @@ public class SubObjectExtractor {
             final JsonParser jts,
             final SubObjectConsumer consumer)
             throws IOException, ObjectParseException {
+        extract(buildTree(pathToSub, objpaths), jts, consumer);
+    }
+    
+    /**
+     * Build the subset schema tree that selects the fields listed in objpaths from each of the
+     * sub-objects at pathToSub.
+     */
+    public static SubObjectExtractionNode buildTree(
+            final ObjectJsonPath pathToSub,
+            final List<ObjectJsonPath> objpaths) {
         //if the selection is empty, we return without adding anything
         SubObjectExtractionNode root = new SubObjectExtractionNode();
         SubObjectExtractionNode sub = root.addPath(pathToSub, true, false);
         for (ObjectJsonPath path: objpaths) {
             sub.addPath(JsonTokenUtil.trimPath(path), false, true);
         }
-        extract(root, jts, consumer);
+        return root;
     }
     
     public static void extract(
@@ -51,220 +64,257 @@ public class SubObjectExtractor {
             final JsonParser jts,
             final SubObjectConsumer consumer)
             throws IOException, ObjectParseException {
+        extract(Collections.singletonMap(consumer, tree), jts);
+    }
+    
+    /**
+     * Extract data for several consumers in a single pass over the token stream. Each consumer
+     * receives the same data it would receive if its tree were extracted on its own, but the
+     * stream is only tokenized once no matter how many trees are extracted. This matters for
+     * large objects that are indexed by several sets of parsing rules.
+     * @param trees a mapping from each consumer to the tree describing the data it receives.
+     * @throws ObjectParseException
+     */
+    public static void extract(
+            final Map<SubObjectConsumer, SubObjectExtractionNode> trees,
+            final JsonParser jts)
+            throws IOException, ObjectParseException {
+        final List<Branch> branches = new ArrayList<>();
+        for (final Entry<SubObjectConsumer, SubObjectExtractionNode> e: trees.entrySet()) {
+            branches.add(new Branch(e.getValue(), e.getKey(), true));
+        }
         JsonToken t = jts.nextToken();
-        extractFieldsWithOpenToken(jts, t, tree, consumer, new ArrayList<String>(),
-                false, false, true);
-        consumer.flush();
+        extractFieldsWithOpenToken(jts, t, branches, new ArrayList<String>());
+        for (final SubObjectConsumer consumer: trees.keySet()) {
+            consumer.flush();
+        }
     }
     
     /*
-     * This is main recursive method for tracking current token place in subset schema tree
+     * The position of one consumer in its subset schema tree. A branch with no selection
+     * copies every token it is given to the consumer.
+     */
+    private static class Branch {
+        
+        private final SubObjectExtractionNode selection;
+        private final SubObjectConsumer consumer;
+        private final boolean fromSkippedLevel;
+        
+        private Branch(
+                final SubObjectExtractionNode selection,
+                final SubObjectConsumer consumer,
+                final boolean fromSkippedLevel) {
+            this.selection = selection;
+            this.consumer = consumer;
+            this.fromSkippedLevel = fromSkippedLevel;
+        }
+        
+        private boolean isCopy() {
+            return selection == null;
+        }
+        
+        private boolean isWritten() {
+            return isCopy() || !selection.isSkipLevel();
+        }
+    }
+    
+    /*
+     * A branch that selects some of the fields or elements of the current mapping or array.
+     */
+    private static class Selector {
+        
+        private final Branch branch;
+        private final Set<String> selectedFields;
+        private final SubObjectExtractionNode allChild;
+        
+        private Selector(final Branch branch, final boolean isObject, final List<String> path)
+                throws ObjectParseException {
+            this.branch = branch;
+            final Map<String, SubObjectExtractionNode> children = branch.selection.getChildren();
+            // we will remove visited keys from selectedFields
+            selectedFields = new LinkedHashSet<String>(children.keySet());
+            final String all = isObject ? "*" : "[*]";
+            if (!isObject && !selectedFields.contains(all)) {
+                // now we support only '[*]' which means all elements and set of numbers in case
+                // of certain item positions are selected in array
+                for (String item : selectedFields) {
+                    try {
+                        Integer.parseInt(item);
+                    } catch (NumberFormatException ex) {
+                        throw new ObjectParseException("Invalid selection: data at '" +
+                                ObjectJsonPath.getPathText(path) + "' is an array, so " +
+                                "element selection must be an integer. You requested element" +
+                                " '" + item + "', at: " + ObjectJsonPath.getPathText(path));
+                    }
+                }
+            }
+            if (selectedFields.contains(all)) {
+                selectedFields.remove(all);
+                allChild = children.get(all);
+                // if all fields are selected there shouldn't be anything else in selection
+                if (selectedFields.size() > 0) {
+                    throw new ObjectParseException("Invalid selection: the selection path " +
+                            "contains both '" + all + "' to select all " +
+                            (isObject ? "fields" : "elements") + " and selection of specific " +
+                            (isObject ? "fields" : "elements") + " (" + selectedFields +
+                            "), at: " + ObjectJsonPath.getPathText(path));
+                }
+            } else {
+                allChild = null;
+            }
+        }
+        
+        // returns null if the field or element is not selected
+        private SubObjectExtractionNode select(final String key) {
+            if (allChild != null) {
+                return allChild;
+            }
+            if (selectedFields.remove(key)) {
+                return branch.selection.getChildren().get(key);
+            }
+            return null;
+        }
+    }
+    
+    /*
+     * This is main recursive method for tracking current token place in the subset schema trees
      * and making decisions whether or not we need to process this token or block of tokens or
      * just skip it.
      */
     private static void extractFieldsWithOpenToken(
             final JsonParser jts,
             final JsonToken current,
-            final SubObjectExtractionNode selection,
-            final SubObjectConsumer consumer,
-            final List<String> path,
-            final boolean strictMaps,
-            final boolean strictArrays,
-            final boolean fromSkippedLevel)
+            final List<Branch> branches,
+            final List<String> path)
             throws IOException, ObjectParseException {
-        if (fromSkippedLevel && !selection.isSkipLevel()) {
-            // It means we're starting sub-object (or whole object is needed)
-            consumer.nextObject(ObjectJsonPath.getPathText(path));
+        for (final Branch b: branches) {
+            if (!b.isCopy() && b.fromSkippedLevel && !b.selection.isSkipLevel()) {
+                // It means we're starting sub-object (or whole object is needed)
+                b.consumer.nextObject(ObjectJsonPath.getPathText(path));
+            }
         }
-        JsonToken t = current;
-        boolean skipLvl = selection.isSkipLevel();
-        if (t == JsonToken.START_OBJECT) {    // we observe open of mapping/object in real json data
-            if (selection.hasChildren()) {    // we have some restrictions for this object in selection
-                // we will remove visited keys from selectedFields and check emptiness at object end
-                Set<String> selectedFields = new LinkedHashSet<String>(
-                        selection.getChildren().keySet());
-                if (selectedFields.size() == 1 && selectedFields.contains("{size}")) {
-                    int size = 0;
-                    while (true) {
-                        t = jts.nextToken();
-                        if (t == JsonToken.END_OBJECT) {
-                            break;
-                        }
-                        if (t != JsonToken.FIELD_NAME)
-                            throw new ObjectParseException("Error parsing json format " + 
-                                    t.asString() + ", at: " + ObjectJsonPath.getPathText(path));
-                        t = jts.nextToken();
-                        JsonTokenUtil.skipChildren(jts, t);
-                        size++;
-                    }
-                    consumer.getOutput().writeNumber(size);
-                } else {
-                    boolean all = false;
-                    SubObjectExtractionNode allChild = null;
-                    if (selectedFields.contains("*")) {
-                        all = true;
-                        selectedFields.remove("*");
-                        allChild = selection.getChildren().get("*");
-                        if (selectedFields.size() > 0)
-                            throw new ObjectParseException("Invalid selection: the selection path " +
-                                    "contains both '*' to select all fields and selection of " +
-                                    "specific fields (" + selectedFields + "), at: " + 
-                                    ObjectJsonPath.getPathText(path));
-                    }
-                    // process first token standing for start of object
-                    if (!skipLvl) {
-                        JsonTokenUtil.writeCurrentToken(jts, t, consumer.getOutput());
-                    }
-                    while (true) {
-                        t = jts.nextToken();
-                        if (t == JsonToken.END_OBJECT) {
-                            if (!skipLvl) {
-                                JsonTokenUtil.writeCurrentToken(jts, t, consumer.getOutput());
-                            }
-                            break;
-                        }
-                        if (t != JsonToken.FIELD_NAME)
-                            throw new ObjectParseException("Error parsing json format " + 
-                                    t.asString() + ", at: " + ObjectJsonPath.getPathText(path));
-                        String fieldName = jts.getText();
-                        if (all || selectedFields.contains(fieldName)) {
-                            // if we need all fields or the field is present in list of necessary fields 
-                            // we process it and value following after that
-                            if (!all)
-                                selectedFields.remove(fieldName);
-                            if (!skipLvl) {
-                                JsonTokenUtil.writeCurrentToken(jts, t, consumer.getOutput());
-                            }
-                            // read first token of value block in order to prepare state for recursive 
-                            // extractFieldsWithOpenToken call
-                            t = jts.nextToken();
-                            // add field to the tail of path branch
-                            path.add(fieldName);
-                            // process value corresponding to this field recursively
-                            extractFieldsWithOpenToken(jts, t, all ? allChild : 
-                                selection.getChildren().get(fieldName), consumer, path, 
-                                strictMaps, strictArrays, selection.isSkipLevel());
-                            // remove field from tail of path branch
-                            path.remove(path.size() - 1);
-                        } else {
-                            // otherwise we skip value following after field
-                            t = jts.nextToken();
-                            JsonTokenUtil.skipChildren(jts, t);
-                        }
-                    }
-                    // let's check have we visited all selected fields in this map
-                    // we will not visit them in real data and hence will not delete them from selection
-                    if (strictMaps && !selectedFields.isEmpty()) {
-                        String notFound = selectedFields.iterator().next();
-                        throw new ObjectParseException("Invalid selection: data does not contain " +
-                                "a field or key named '" + notFound + "', at: " + 
-                                getPathText(path, notFound));
-                    }
+        if (current == JsonToken.START_OBJECT || current == JsonToken.START_ARRAY) {
+            extractContainer(jts, current, branches, path);
+        } else {    // we observe scalar value (text, integer, double, boolean, null) in real json data
+            for (final Branch b: branches) {
+                if (!b.isCopy() && b.selection.hasChildren()) {
+                    throw new ObjectParseException("Invalid selection: the path given specifies " +
+                            "fields or elements that do not exist because data at this location " +
+                            "is a scalar value (i.e. string, integer, float), at: " +
+                            ObjectJsonPath.getPathText(path));
                 }
-            } else {  // need all fields and values
-                if (selection.isNeedAll()) {
-                    JsonTokenUtil.writeTokensFromCurrent(jts, t, consumer.getOutput());
-                } else {
-                    JsonTokenUtil.skipChildren(jts, t);
+            }
+            for (final Branch b: branches) {
+                JsonTokenUtil.writeCurrentToken(jts, current, b.consumer.getOutput());
+            }
+        }
+    }
+    
+    /*
+     * Processes a mapping/object or array/list in the real json data. Every branch that needs
+     * anything from the container is handled while the container's tokens are read once.
+     */
+    private static void extractContainer(
+            final JsonParser jts,
+            final JsonToken current,
+            final List<Branch> branches,
+            final List<String> path)
+            throws IOException, ObjectParseException {
+        final boolean isObject = current == JsonToken.START_OBJECT;
+        // branches that need all fields and values
+        final List<Branch> copies = new ArrayList<>();
+        // branches that only need the number of fields or elements
+        final List<Branch> counts = new ArrayList<>();
+        // branches that have some restrictions for this container in selection
+        final List<Selector> selectors = new ArrayList<>();
+        for (final Branch b: branches) {
+            if (b.isCopy()) {
+                copies.add(b);
+            } else if (!b.selection.hasChildren()) {
+                if (b.selection.isNeedAll()) {
+                    copies.add(new Branch(null, b.consumer, false));
                 }
+            } else if (b.selection.getChildren().size() == 1 &&
+                    b.selection.getChildren().containsKey("{size}")) {
+                counts.add(b);
+            } else {
+                selectors.add(new Selector(b, isObject, path));
             }
-        } else if (t == JsonToken.START_ARRAY) {    // we observe open of array/list in real json data
-            if (selection.hasChildren()) {  // we have some restrictions for array item positions in selection
-                Set<String> selectedFields = new LinkedHashSet<String>(
-                        selection.getChildren().keySet());
-                if (selectedFields.size() == 1 && selectedFields.contains("{size}")) {
-                    int size = 0;
-                    while (true) {
-                        t = jts.nextToken();
-                        if (t == JsonToken.END_ARRAY) {
-                            break;
-                        }
-                        JsonTokenUtil.skipChildren(jts, t);
-                        size++;
-                    }
-                    consumer.getOutput().writeNumber(size);
-                } else {
-                    SubObjectExtractionNode allChild = null;
-                    // now we support only '[*]' which means all elements and set of numbers in case of 
-                    // certain item positions are selected in array
-                    if (!selectedFields.contains("[*]")) {
-                        for (String item : selectedFields) {
-                            try {
-                                Integer.parseInt(item);
-                            } catch (NumberFormatException ex) {
-                                throw new ObjectParseException("Invalid selection: data at '" +
-                                        ObjectJsonPath.getPathText(path) + "' is an array, so " +
-                                        "element selection must be an integer. You requested element" +
-                                        " '" + item + "', at: " + ObjectJsonPath.getPathText(path));
-                            }
-                        }
-                    }
-                    if (selectedFields.contains("[*]")) {
-                        selectedFields.remove("[*]");
-                        allChild = selection.getChildren().get("[*]");
-                        // if there is [*] keyword selected there shouldn't be anything else in selection
-                        if (selectedFields.size() > 0)
-                            throw new ObjectParseException("Invalid selection: the selection path " +
-                                    "contains both '[*]' to select all elements and selection of " +
-                                    "specific elements (" + selectedFields + "), at: " +
-                                    ObjectJsonPath.getPathText(path));
-                    }
-                    if (!skipLvl) {
-                        JsonTokenUtil.writeCurrentToken(jts, t, consumer.getOutput());  // write start of array into output
-                    }
-                    for (int pos = 0; ; pos++) {
-                        t = jts.nextToken();
-                        if (t == JsonToken.END_ARRAY) {
-                            if (!skipLvl) {
-                                JsonTokenUtil.writeCurrentToken(jts, t, consumer.getOutput());
-                            }
-                            break;
-                        }
-                        SubObjectExtractionNode child = null;
-                        if (allChild != null) {
-                            child = allChild;
-                        } else {
-                            String key = "" + pos;
-                            if (selection.getChildren().containsKey(key)) {
-                                child = selection.getChildren().get(key);
-                                selectedFields.remove(key);
-                            }
-                        }
-                        if (child == null) {
-                            // this element of array is not selected, skip it
-                            JsonTokenUtil.skipChildren(jts, t);
-                        } else {
-                            // add element position to the tail of path branch
-                            path.add("" + pos);
-                            // process value of this element recursively
-                            extractFieldsWithOpenToken(jts, t, child, consumer, path, strictMaps,
-                                    strictArrays, selection.isSkipLevel());
-                            // remove field from tail of path branch
-                            path.remove(path.size() - 1);
-                        }
-                    }
-                    // let's check have we visited all selected items in this array
-                    if (strictArrays && !selectedFields.isEmpty()) {
-                        String notFound = selectedFields.iterator().next();
-                        throw new ObjectParseException("Invalid selection: no array element exists " +
-                                "at position '" + notFound + "', at: " + getPathText(path, notFound));
-                    }
+        }
+        if (copies.isEmpty() && counts.isEmpty() && selectors.isEmpty()) {
+            JsonTokenUtil.skipChildren(jts, current);
+            return;
+        }
+        // process first token standing for start of object or array
+        writeToken(jts, current, copies, selectors);
+        final JsonToken end = isObject ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+        int size = 0;
+        while (true) {
+            JsonToken t = jts.nextToken();
+            if (t == end) {
+                writeToken(jts, t, copies, selectors);
+                break;
+            }
+            final String key;
+            if (isObject) {
+                if (t != JsonToken.FIELD_NAME) {
+                    throw new ObjectParseException("Error parsing json format " + 
+                            t.asString() + ", at: " + ObjectJsonPath.getPathText(path));
                 }
+                key = jts.getText();
             } else {
-                if (selection.isNeedAll()) {
-                    // need all elements
-                    JsonTokenUtil.writeTokensFromCurrent(jts, t, consumer.getOutput());
-                } else {
-                    JsonTokenUtil.skipChildren(jts, t);
+                key = "" + size;
+            }
+            size++;
+            final List<Branch> children = new ArrayList<>(copies);
+            for (final Selector s: selectors) {
+                final SubObjectExtractionNode child = s.select(key);
+                if (child != null) {
+                    if (isObject && s.branch.isWritten()) {
+                        JsonTokenUtil.writeCurrentToken(jts, t, s.branch.consumer.getOutput());
+                    }
+                    children.add(new Branch(
+                            child, s.branch.consumer, s.branch.selection.isSkipLevel()));
                 }
             }
-        } else {    // we observe scalar value (text, integer, double, boolean, null) in real json data
-            if (selection.hasChildren())
-                throw new ObjectParseException("Invalid selection: the path given specifies " +
-                        "fields or elements that do not exist because data at this location is " +
-                        "a scalar value (i.e. string, integer, float), at: " +
-                        ObjectJsonPath.getPathText(path));
-            JsonTokenUtil.writeCurrentToken(jts, t, consumer.getOutput());
+            if (isObject) {
+                for (final Branch b: copies) {
+                    JsonTokenUtil.writeCurrentToken(jts, t, b.consumer.getOutput());
+                }
+                // read first token of value block in order to prepare state for recursive 
+                // extractFieldsWithOpenToken call
+                t = jts.nextToken();
+            }
+            if (children.isEmpty()) {
+                // nothing needs this field or element, skip it
+                JsonTokenUtil.skipChildren(jts, t);
+            } else {
+                // add field or element position to the tail of path branch
+                path.add(key);
+                // process value recursively
+                extractFieldsWithOpenToken(jts, t, children, path);
+                // remove field from tail of path branch
+                path.remove(path.size() - 1);
+            }
+        }
+        for (final Branch b: counts) {
+            b.consumer.getOutput().writeNumber(size);
+        }
+    }
+    
+    private static void writeToken(
+            final JsonParser jts,
+            final JsonToken t,
+            final List<Branch> copies,
+            final List<Selector> selectors)
+            throws IOException, ObjectParseException {
+        for (final Branch b: copies) {
+            JsonTokenUtil.writeCurrentToken(jts, t, b.consumer.getOutput());
+        }
+        for (final Selector s: selectors) {
+            if (s.branch.isWritten()) {
+                JsonTokenUtil.writeCurrentToken(jts, t, s.branch.consumer.getOutput());
+            }
         }
     }
 
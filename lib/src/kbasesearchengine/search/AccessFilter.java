@@ -12,6 +12,7 @@ public class AccessFilter {
     public boolean withPublic = false;
     public Set<Integer> accessGroupIds = null;
     public boolean withAllHistory = false;
+    public String accessGroupsLookupKey = null;
     
     public AccessFilter() {}
     
@@ -43,7 +44,21 @@ public class AccessFilter {
         this.withAllHistory = withAllHistory;
         return this;
     }
+    
+    /** Set the key under which the access groups in this filter may have been stored by the
+     * indexing storage, usually the user name. If the storage holds the same access groups under
+     * the key, it may refer to them rather than sending every access group ID with a query.
+     * @param accessGroupsLookupKey the lookup key, or null for none.
+     * @return this filter.
+     */
+    public AccessFilter withAccessGroupsLookupKey(String accessGroupsLookupKey) {
+        this.accessGroupsLookupKey = accessGroupsLookupKey;
+        return this;
+    }
 
+    /* the lookup key only changes how the access groups are sent to the storage, not which
+     * objects the filter matches, so it is not included in hashCode() or equals()
+     */
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -0,0 +1,420 @@
+package kbasesearchengine.search;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import kbasesearchengine.common.GUID;
+import kbasesearchengine.events.handler.SourceData;
+import kbasesearchengine.parse.ParsedObject;
+import kbasesearchengine.system.ObjectTypeParsingRules;
+import kbasesearchengine.tools.Utils;
+
+/** An indexing storage wrapper that buffers index requests from many source objects, possibly
+ * across many indexes, and writes them to the wrapped storage in batches.
+ *
+ * The buffer is written when it exceeds a maximum estimated size or document count, when
+ * {@link #flushBuffer(boolean)} is called and the oldest request in the buffer exceeds the
+ * maximum latency, or when {@link #flushBuffer(boolean)} is forced. The buffer is also always
+ * written before any read or any other write operation so that operations are applied in order
+ * and reads reflect prior writes.
+ *
+ * Callers must not consider indexed data durable until {@link #flushBuffer(boolean)} returns
+ * false. If the wrapped storage rejects the data for some source objects, the remainder of the
+ * batch is written and the failures are reported by the next call to
+ * {@link #flushBuffer(boolean)} that leaves the buffer empty.
+ *
+ * This class is thread safe if the wrapped storage is thread safe.
+ */
+public class BufferedIndexingStorage implements IndexingStorage {
+
+    private final IndexingStorage storage;
+    private final long maxBytes;
+    private final int maxDocuments;
+    private final long maxLatencyMS;
+    private final Clock clock;
+
+    private final List<IndexObjectsRequest> buffer = new LinkedList<>();
+    private final Set<GUID> bufferedParentGUIDs = new HashSet<>();
+    private long bufferedBytes = 0;
+    private int bufferedDocuments = 0;
+    private Instant oldest = null;
+    // parent GUID -> error for source objects that failed to be written and are not yet reported
+    private final Map<GUID, String> failures = new LinkedHashMap<>();
+
+    /** Create the buffered storage.
+     * @param storage the storage to wrap.
+     * @param maxBytes the maximum estimated size of the buffered documents in bytes.
+     * @param maxDocuments the maximum number of buffered documents.
+     * @param maxLatencyMS the maximum time, in milliseconds, a request should remain in the
+     * buffer.
+     */
+    public BufferedIndexingStorage(
+            final IndexingStorage storage,
+            final long maxBytes,
+            final int maxDocuments,
+            final long maxLatencyMS) {
+        this(storage, maxBytes, maxDocuments, maxLatencyMS, Clock.systemUTC());
+    }
+
+    /** Create the buffered storage with a custom clock. This is exposed for testing purposes.
+     * @param storage the storage to wrap.
+     * @param maxBytes the maximum estimated size of the buffered documents in bytes.
+     * @param maxDocuments the maximum number of buffered documents.
+     * @param maxLatencyMS the maximum time, in milliseconds, a request should remain in the
+     * buffer.
+     * @param clock the clock used to determine the age of the buffer.
+     */
+    public BufferedIndexingStorage(
+            final IndexingStorage storage,
+            final long maxBytes,
+            final int maxDocuments,
+            final long maxLatencyMS,
+            final Clock clock) {
+        Utils.nonNull(storage, "storage");
+        Utils.nonNull(clock, "clock");
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be at least 1");
+        }
+        if (maxDocuments < 1) {
+            throw new IllegalArgumentException("maxDocuments must be at least 1");
+        }
+        if (maxLatencyMS < 0) {
+            throw new IllegalArgumentException("maxLatencyMS must be at least 0");
+        }
+        this.storage = storage;
+        this.maxBytes = maxBytes;
+        this.maxDocuments = maxDocuments;
+        this.maxLatencyMS = maxLatencyMS;
+        this.clock = clock;
+    }
+
+    /** Get the wrapped storage.
+     * @return the storage.
+     */
+    public IndexingStorage getStorage() {
+        return storage;
+    }
+
+    /** Get the number of requests in the buffer.
+     * @return the number of buffered requests.
+     */
+    public synchronized int getBufferedRequestCount() {
+        return buffer.size();
+    }
+
+    @Override
+    public synchronized boolean flushBuffer(final boolean force) throws IOException {
+        if (!buffer.isEmpty() && (force || isFull() || isExpired())) {
+            flush();
+        }
+        if (!buffer.isEmpty()) {
+            return true;
+        }
+        if (!failures.isEmpty()) {
+            final Map<GUID, String> failed = new LinkedHashMap<>(failures);
+            failures.clear();
+            throw new IndexRequestsFailedException(failed);
+        }
+        return false;
+    }
+
+    private boolean isFull() {
+        return bufferedBytes >= maxBytes || bufferedDocuments >= maxDocuments;
+    }
+
+    private boolean isExpired() {
+        return oldest != null &&
+                clock.instant().toEpochMilli() - oldest.toEpochMilli() >= maxLatencyMS;
+    }
+
+    private void flush() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        /* the buffer is left intact on failure so that the write can be retried, unless the
+         * storage wrote the batch and only rejected some objects. Retrying the rejected objects
+         * would fail again, so they're dropped and reported on the next flushBuffer() call.
+         */
+        try {
+            storage.indexObjects(new ArrayList<>(buffer));
+        } catch (IndexRequestsFailedException e) {
+            failures.putAll(e.getFailures());
+        }
+        buffer.clear();
+        bufferedParentGUIDs.clear();
+        bufferedBytes = 0;
+        bufferedDocuments = 0;
+        oldest = null;
+    }
+
+    @Override
+    public synchronized void indexObjects(final List<IndexObjectsRequest> requests)
+            throws IOException {
+        Utils.nonNull(requests, "requests");
+        Utils.noNulls(requests, "null item in requests");
+        for (final IndexObjectsRequest req: requests) {
+            if (buffer.isEmpty()) {
+                oldest = clock.instant();
+            }
+            buffer.add(req);
+            bufferedParentGUIDs.add(req.getParentGUID());
+            bufferedBytes += req.getSizeEstimate();
+            bufferedDocuments += req.getDocumentCount();
+        }
+        if (isFull()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void indexObjects(
+            final ObjectTypeParsingRules rule,
+            final SourceData source,
+            final Instant timestamp,
+            final String parentJsonValue,
+            final GUID pguid,
+            final Map<GUID, ParsedObject> idToObj,
+            final boolean isPublic)
+            throws IOException {
+        indexObjects(Arrays.asList(new IndexObjectsRequest(
+                rule, source, timestamp, parentJsonValue, pguid, idToObj, isPublic)));
+    }
+
+    @Override
+    public void indexObject(
+            final ObjectTypeParsingRules rule,
+            final SourceData source,
+            final Instant timestamp,
+            final String parentJsonValue,
+            final GUID guid,
+            final ParsedObject obj,
+            final boolean isPublic)
+            throws IOException {
+        final Map<GUID, ParsedObject> idToObj = new HashMap<>();
+        idToObj.put(guid, obj);
+        indexObjects(rule, source, timestamp, parentJsonValue,
+                new GUID(guid, null, null), idToObj, isPublic);
+    }
+
+    @Override
+    public synchronized void dropData() throws IOException {
+        buffer.clear();
+        failures.clear();
+        bufferedParentGUIDs.clear();
+        bufferedBytes = 0;
+        bufferedDocuments = 0;
+        oldest = null;
+        storage.dropData();
+    }
+
+    @Override
+    public synchronized Map<GUID, Boolean> checkParentGuidsExist(final Set<GUID> parentGuids)
+            throws IOException {
+        final Map<GUID, Boolean> ret = new LinkedHashMap<>();
+        final Set<GUID> toCheck = new HashSet<>();
+        for (final GUID guid: parentGuids) {
+            // buffered objects will exist once the buffer is written
+            if (bufferedParentGUIDs.contains(new GUID(guid, null, null))) {
+                ret.put(guid, true);
+            } else {
+                toCheck.add(guid);
+            }
+        }
+        if (!toCheck.isEmpty()) {
+            ret.putAll(storage.checkParentGuidsExist(toCheck));
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized void flushIndexing(final ObjectTypeParsingRules objectType)
+            throws IOException {
+        flush();
+        storage.flushIndexing(objectType);
+    }
+
+    @Override
+    public synchronized void shareObjects(
+            final Set<GUID> guids,
+            final int accessGroupId,
+            final boolean isPublicGroup)
+            throws IOException {
+        flush();
+        storage.shareObjects(guids, accessGroupId, isPublicGroup);
+    }
+
+    @Override
+    public synchronized void unshareObjects(final Set<GUID> guids, final int accessGroupId)
+            throws IOException {
+        flush();
+        storage.unshareObjects(guids, accessGroupId);
+    }
+
+    @Override
+    public synchronized void publishObjects(final Set<GUID> guids) throws IOException {
+        flush();
+        storage.publishObjects(guids);
+    }
+
+    @Override
+    public synchronized void unpublishObjects(final Set<GUID> guids) throws IOException {
+        flush();
+        storage.unpublishObjects(guids);
+    }
+
+    @Override
+    public synchronized void publishObjectsExternally(
+            final Set<GUID> guids,
+            final int accessGroupId)
+            throws IOException {
+        flush();
+        storage.publishObjectsExternally(guids, accessGroupId);
+    }
+
+    @Override
+    public synchronized void unpublishObjectsExternally(
+            final Set<GUID> guids,
+            final int accessGroupId)
+            throws IOException {
+        flush();
+        storage.unpublishObjectsExternally(guids, accessGroupId);
+    }
+
+    @Override
+    public synchronized List<ObjectData> getObjectsByIds(final Set<GUID> guids)
+            throws IOException {
+        flush();
+        return storage.getObjectsByIds(guids);
+    }
+
+    @Override
+    public synchronized List<ObjectData> getObjectsByIds(
+            final Set<GUID> guids,
+            final PostProcessing postProcessing)
+            throws IOException {
+        flush();
+        return storage.getObjectsByIds(guids, postProcessing);
+    }
+
+    @Override
+    public synchronized Map<String, Integer> searchTypes(
+            final MatchFilter matchFilter,
+            final AccessFilter accessFilter)
+            throws IOException {
+        flush();
+        return storage.searchTypes(matchFilter, accessFilter);
+    }
+
+    @Override
+    public synchronized FoundHits searchIds(
+            final List<String> objectType,
+            final MatchFilter matchFilter,
+            final List<SortingRule> sorting,
+            final AccessFilter accessFilter,
+            final Pagination pagination)
+            throws IOException {
+        flush();
+        return storage.searchIds(objectType, matchFilter, sorting, accessFilter, pagination);
+    }
+
+    @Override
+    public synchronized FoundHits searchObjects(
+            final List<String> objectType,
+            final MatchFilter matchFilter,
+            final List<SortingRule> sorting,
+            final AccessFilter accessFilter,
+            final Pagination pagination,
+            final PostProcessing postProcessing)
+            throws IOException {
+        flush();
+        return storage.searchObjects(objectType, matchFilter, sorting, accessFilter, pagination,
+                postProcessing);
+    }
+
+    @Override
+    public void releaseCursor(final String cursor) throws IOException {
+        // releasing a cursor doesn't read or write data, so the buffer needn't be written
+        storage.releaseCursor(cursor);
+    }
+
+    @Override
+    public long exportObjects(
+            final List<String> objectType,
+            final MatchFilter matchFilter,
+            final List<SortingRule> sorting,
+            final AccessFilter accessFilter,
+            final PostProcessing postProcessing,
+            final ObjectDataConsumer consumer)
+            throws IOException {
+        synchronized (this) {
+            flush();
+        }
+        // exports may be long running, so the buffer is not locked while the export runs
+        return storage.exportObjects(objectType, matchFilter, sorting, accessFilter,
+                postProcessing, consumer);
+    }
+
+    @Override
+    public synchronized int setNameOnAllObjectVersions(final GUID object, final String newName)
+            throws IOException {
+        flush();
+        return storage.setNameOnAllObjectVersions(object, newName);
+    }
+
+    @Override
+    public synchronized void deleteAllVersions(final GUID guid) throws IOException {
+        flush();
+        storage.deleteAllVersions(guid);
+    }
+
+    @Override
+    public synchronized void undeleteAllVersions(final GUID guid) throws IOException {
+        flush();
+        storage.undeleteAllVersions(guid);
+    }
+
+    @Override
+    public synchronized void publishAllVersions(final GUID guid) throws IOException {
+        flush();
+        storage.publishAllVersions(guid);
+    }
+
+    @Override
+    public synchronized void unpublishAllVersions(final GUID guid) throws IOException {
+        flush();
+        storage.unpublishAllVersions(guid);
+    }
+
+    @Override
+    public synchronized void deleteAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        flush();
+        storage.deleteAccessGroup(storageCode, accessGroupId);
+    }
+
+    @Override
+    public synchronized void publishAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        flush();
+        storage.publishAccessGroup(storageCode, accessGroupId);
+    }
+
+    @Override
+    public synchronized void unpublishAccessGroup(
+            final String storageCode,
+            final int accessGroupId)
+            throws IOException {
+        flush();
+        storage.unpublishAccessGroup(storageCode, accessGroupId);
+    }
+}
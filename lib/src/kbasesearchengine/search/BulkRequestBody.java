@@ -0,0 +1,229 @@
+package kbasesearchengine.search;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.ImmutableMap;
+
+import kbasesearchengine.tools.Utils;
+import us.kbase.common.service.UObject;
+
+/** The body of an ElasticSearch bulk request.
+ *
+ * Action and document lines are serialized exactly once, directly into an in memory buffer.
+ * If the body grows past the memory limit the buffer is spilled to a temporary file and the
+ * remainder of the body is written to that file instead. Small bodies therefore never touch the
+ * disk.
+ *
+ * The body may be reused for subsequent requests by calling {@link #reset()}, which keeps the
+ * memory buffer allocated unless it grew past {@link #MAX_RETAINED_CAPACITY} bytes. Larger
+ * buffers are released on reset so that a single large request does not pin its peak memory
+ * for the lifetime of the body.
+ *
+ * This class is not thread safe.
+ */
+public class BulkRequestBody implements Closeable {
+
+    /** The maximum capacity, in bytes, of the memory buffer that is kept between requests. */
+    public static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private final File tempDir;
+    private final int memoryLimit;
+    private MemoryBuffer memory = new MemoryBuffer();
+    private final SpillingOutputStream out = new SpillingOutputStream();
+    private JsonGenerator generator = null;
+    private File spillFile = null;
+    private OutputStream spillStream = null;
+    private long size = 0;
+    private int actionCount = 0;
+
+    /** Create a bulk request body.
+     * @param tempDir the directory in which to create a temporary file if the body exceeds the
+     * memory limit.
+     * @param memoryLimit the maximum size, in bytes, of the body before it is spilled to disk.
+     */
+    public BulkRequestBody(final File tempDir, final int memoryLimit) {
+        Utils.nonNull(tempDir, "tempDir");
+        if (memoryLimit < 0) {
+            throw new IllegalArgumentException("memoryLimit must be at least 0");
+        }
+        this.tempDir = tempDir;
+        this.memoryLimit = memoryLimit;
+    }
+
+    /** Add an action to the body.
+     * @param action the bulk action, e.g. index, update or delete.
+     * @param metadata the action metadata, e.g. _index, _type, _id, parent.
+     * @param source the document or partial document that accompanies the action, or null for
+     * actions, like delete, that have no source.
+     * @throws IOException if the body could not be written.
+     */
+    public void add(
+            final String action,
+            final Map<String, Object> metadata,
+            final Object source)
+            throws IOException {
+        Utils.notNullOrEmpty(action, "action cannot be null or empty");
+        Utils.nonNull(metadata, "metadata");
+        writeLine(ImmutableMap.of(action, metadata));
+        if (source != null) {
+            writeLine(source);
+        }
+        actionCount++;
+    }
+
+    private void writeLine(final Object value) throws IOException {
+        if (generator == null) {
+            generator = UObject.getMapper().getFactory().createGenerator(out);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            // bulk lines are separated by newlines only
+            generator.setRootValueSeparator(null);
+        }
+        generator.writeObject(value);
+        generator.writeRaw('\n');
+        generator.flush();
+    }
+
+    /** Get the maximum size, in bytes, of the body before it is spilled to disk.
+     * @return the memory limit.
+     */
+    public int getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /** Get the number of actions in the body.
+     * @return the number of actions.
+     */
+    public int getActionCount() {
+        return actionCount;
+    }
+
+    /** Get the size of the body in bytes.
+     * @return the size of the body.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /** Check whether the body contains any actions.
+     * @return true if the body is empty.
+     */
+    public boolean isEmpty() {
+        return actionCount == 0;
+    }
+
+    /** Check whether the body has been spilled to a temporary file.
+     * @return true if the body is stored on disk.
+     */
+    public boolean isSpilled() {
+        return spillFile != null;
+    }
+
+    /** Get the capacity of the in memory buffer, which may be greater than the size of the body.
+     * @return the buffer capacity in bytes.
+     */
+    public int getCapacity() {
+        return memory.getBuffer().length;
+    }
+
+    /** Get an HTTP entity that streams the body to the server. The entity is only valid until
+     * the next call to {@link #add(String, Map, Object)}, {@link #reset()}, or {@link #close()}.
+     * @return the entity.
+     * @throws IOException if the body could not be flushed.
+     */
+    public HttpEntity toEntity() throws IOException {
+        if (generator != null) {
+            generator.flush();
+        }
+        if (spillStream != null) {
+            spillStream.flush();
+            return new FileEntity(spillFile, ContentType.APPLICATION_JSON);
+        }
+        return new ByteArrayEntity(
+                memory.getBuffer(), 0, memory.size(), ContentType.APPLICATION_JSON);
+    }
+
+    /** Discard the contents of the body so that it can be reused. The memory buffer is
+     * retained if its capacity is no greater than {@link #MAX_RETAINED_CAPACITY} and any temporary
+     * file is deleted.
+     * @throws IOException if the temporary file could not be closed.
+     */
+    public void reset() throws IOException {
+        try {
+            if (generator != null) {
+                generator.close();
+            }
+            if (spillStream != null) {
+                spillStream.close();
+            }
+        } finally {
+            generator = null;
+            spillStream = null;
+            if (spillFile != null) {
+                spillFile.delete();
+                spillFile = null;
+            }
+            if (memory.getBuffer().length > MAX_RETAINED_CAPACITY) {
+                memory = new MemoryBuffer();
+            } else {
+                memory.reset();
+            }
+            size = 0;
+            actionCount = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reset();
+    }
+
+    private static class MemoryBuffer extends ByteArrayOutputStream {
+
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private class SpillingOutputStream extends OutputStream {
+
+        private OutputStream target() throws IOException {
+            return spillStream == null ? memory : spillStream;
+        }
+
+        private void ensureCapacity(final int len) throws IOException {
+            if (spillStream == null && memory.size() + len > memoryLimit) {
+                spillFile = File.createTempFile("es_bulk_", ".json", tempDir);
+                spillStream = new BufferedOutputStream(new FileOutputStream(spillFile));
+                memory.writeTo(spillStream);
+                memory.reset();
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            ensureCapacity(1);
+            target().write(b);
+            size++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            ensureCapacity(len);
+            target().write(b, off, len);
+            size += len;
+        }
+    }
+}
@@ -0,0 +1,597 @@
+package kbasesearchengine.search;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import kbasesearchengine.common.GUID;
+import kbasesearchengine.events.handler.SourceData;
+import kbasesearchengine.parse.ParsedObject;
+import kbasesearchengine.system.ObjectTypeParsingRules;
+import kbasesearchengine.tools.Utils;
+
+/** An indexing storage wrapper that caches the results of searches in memory, so that
+ * repeated identical searches, for example the searches issued by a landing page for every
+ * user, are served without contacting the wrapped storage.
+ *
+ * Searches are keyed on the object types, match filter, sorting rules, access filter
+ * (including the access group IDs, which must already be resolved for the user), pagination,
+ * and post processing options. Snapshot searches are never cached. Cached results are
+ * returned to every caller that issues the same search and so must not be modified.
+ *
+ * The size of the cache is limited by an estimate of the memory used by the cached results,
+ * which is dominated by any object data and highlights the results contain.
+ *
+ * Cached results expire after a fixed lifetime. Writes made via this wrapper remove the
+ * cached results for the object types that were written, or all cached results if the
+ * written types are unknown. Writes made by other processes, such as a separate indexer, are
+ * only reflected once the cached results expire, and so the lifetime should be similar to
+ * the refresh interval of the storage system, which already delays the visibility of writes.
+ * When combined with a {@link BufferedIndexingStorage}, the buffer should wrap this class
+ * rather than the reverse, so that cached results are removed when buffered data is written.
+ *
+ * This class is thread safe if the wrapped storage is thread safe.
+ */
+public class CachingIndexingStorage implements IndexingStorage {
+
+    /** The default number of seconds a search result remains in the cache. */
+    public static final int DEFAULT_CACHE_LIFETIME_SEC = 30;
+    
+    /** The default maximum estimated size, in bytes, of the cached search results. */
+    public static final long DEFAULT_CACHE_SIZE_BYTES = 100 * 1024 * 1024;
+    
+    // rough sizes, in bytes, of objects and references on a 64 bit JVM
+    private static final int OBJECT_OVERHEAD = 16;
+    private static final int REFERENCE_SIZE = 8;
+    private static final int STRING_OVERHEAD = 40;
+    private static final int MAP_ENTRY_OVERHEAD = 32;
+
+    private final IndexingStorage storage;
+    private final Cache<QueryKey, Object> cache;
+    // incremented on every invalidation so that results of searches that were in progress
+    // during a write are not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    /* The key for a cached search. The object types are stored separately from the rest of
+     * the query so that cached searches can be invalidated by type.
+     */
+    private static class QueryKey {
+
+        private final Set<String> objectTypes;
+        private final List<Object> query;
+
+        private QueryKey(final Collection<String> objectTypes, final Object... query) {
+            // an empty set means all types
+            this.objectTypes = objectTypes == null ?
+                    Collections.emptySet() : new HashSet<>(objectTypes);
+            this.query = Arrays.asList(query);
+        }
+
+        private boolean isAffectedBy(final String objectType) {
+            return objectType == null || objectTypes.isEmpty() ||
+                    objectTypes.contains(objectType);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + objectTypes.hashCode();
+            result = prime * result + query.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null) {
+                return false;
+            }
+            if (getClass() != obj.getClass()) {
+                return false;
+            }
+            QueryKey other = (QueryKey) obj;
+            return objectTypes.equals(other.objectTypes) && query.equals(other.query);
+        }
+    }
+
+    /** Create a cache.
+     * @param storage the storage whose search results will be cached.
+     * @param cacheLifeTimeInSec the number of seconds a search result should remain in the
+     * cache.
+     * @param cacheSizeInBytes the maximum estimated size, in bytes, of the search results
+     * stored in the cache.
+     */
+    public CachingIndexingStorage(
+            final IndexingStorage storage,
+            final int cacheLifeTimeInSec,
+            final long cacheSizeInBytes) {
+        this(storage, cacheLifeTimeInSec, cacheSizeInBytes, Ticker.systemTicker());
+    }
+
+    /** Create a cache for testing purposes.
+     * @param storage the storage whose search results will be cached.
+     * @param cacheLifeTimeInSec the number of seconds a search result should remain in the
+     * cache.
+     * @param cacheSizeInBytes the maximum estimated size, in bytes, of the search results
+     * stored in the cache.
+     * @param ticker a ticker implementation that allows controlling cache expiration with the
+     * provided ticker rather than waiting for the system clock. This is exposed for testing
+     * purposes.
+     */
+    public CachingIndexingStorage(
+            final IndexingStorage storage,
+            final int cacheLifeTimeInSec,
+            final long cacheSizeInBytes,
+            final Ticker ticker) {
+        Utils.nonNull(storage, "storage");
+        Utils.nonNull(ticker, "ticker");
+        if (cacheLifeTimeInSec < 1) {
+            throw new IllegalArgumentException("cache lifetime must be at least one second");
+        }
+        if (cacheSizeInBytes < 1) {
+            throw new IllegalArgumentException("cache size must be at least one byte");
+        }
+        this.storage = storage;
+        cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .expireAfterWrite(cacheLifeTimeInSec, TimeUnit.SECONDS)
+                .maximumWeight(cacheSizeInBytes)
+                .weigher(new Weigher<QueryKey, Object>() {
+
+                    @Override
+                    public int weigh(final QueryKey key, final Object result) {
+                        return (int) Math.min(Integer.MAX_VALUE, estimateSize(result));
+                    }
+
+                })
+                .recordStats()
+                .build();
+    }
+
+    /* Estimates the memory used by a search result. The estimate is rough, but grows with the
+     * size of the strings, such as the object data, the result contains. Types not listed are
+     * small value objects.
+     */
+    private static long estimateSize(final Object o) {
+        if (o == null) {
+            return 0;
+        }
+        if (o instanceof String) {
+            return STRING_OVERHEAD + 2L * ((String) o).length();
+        }
+        if (o instanceof Optional) {
+            return OBJECT_OVERHEAD + estimateSize(((Optional<?>) o).orNull());
+        }
+        if (o instanceof GUID) {
+            return OBJECT_OVERHEAD + estimateSize(o.toString());
+        }
+        if (o instanceof Map) {
+            long size = OBJECT_OVERHEAD;
+            for (final Entry<?, ?> e: ((Map<?, ?>) o).entrySet()) {
+                size += MAP_ENTRY_OVERHEAD + estimateSize(e.getKey()) +
+                        estimateSize(e.getValue());
+            }
+            return size;
+        }
+        if (o instanceof Collection) {
+            long size = OBJECT_OVERHEAD;
+            for (final Object item: (Collection<?>) o) {
+                size += REFERENCE_SIZE + estimateSize(item);
+            }
+            return size;
+        }
+        if (o instanceof ObjectData) {
+            final ObjectData od = (ObjectData) o;
+            return OBJECT_OVERHEAD + 17 * REFERENCE_SIZE + estimateSize(od.getGUID()) +
+                    estimateSize(od.getParentGUID()) + estimateSize(od.getObjectName()) +
+                    estimateSize(od.getType()) + estimateSize(od.getCreator()) +
+                    estimateSize(od.getCopier()) + estimateSize(od.getModule()) +
+                    estimateSize(od.getMethod()) + estimateSize(od.getCommitHash()) +
+                    estimateSize(od.getModuleVersion()) + estimateSize(od.getMd5()) +
+                    estimateSize(od.getTimestamp()) + estimateSize(od.getParentData()) +
+                    estimateSize(od.getData()) + estimateSize(od.getKeyProperties()) +
+                    estimateSize(od.getSourceTags()) + estimateSize(od.getHighlight());
+        }
+        if (o instanceof FoundHits) {
+            final FoundHits hits = (FoundHits) o;
+            return OBJECT_OVERHEAD + 6 * REFERENCE_SIZE + estimateSize(hits.pagination) +
+                    estimateSize(hits.sortingRules) + estimateSize(hits.guids) +
+                    estimateSize(hits.objects) + estimateSize(hits.nextCursor);
+        }
+        return 2 * OBJECT_OVERHEAD;
+    }
+
+    /** Get the wrapped storage.
+     * @return the storage.
+     */
+    public IndexingStorage getStorage() {
+        return storage;
+    }
+
+    /** Get the cache statistics, including the number of searches served from the cache
+     * and the cache hit rate.
+     * @return the cache statistics.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /** Get the number of search results in the cache.
+     * @return the number of cached search results.
+     */
+    public long getCachedSearchCount() {
+        return cache.size();
+    }
+
+    /** Remove the cached search results that may include objects of a type.
+     * @param objectType the object type, or null to remove all cached search results.
+     */
+    public void invalidate(final String objectType) {
+        generation.incrementAndGet();
+        if (objectType == null) {
+            cache.invalidateAll();
+        } else {
+            cache.asMap().keySet().removeIf(k -> k.isAffectedBy(objectType));
+        }
+    }
+
+    private void invalidate(final ObjectTypeParsingRules rule) {
+        invalidate(rule == null || rule.getGlobalObjectType() == null ?
+                null : rule.getGlobalObjectType().getType());
+    }
+
+    @FunctionalInterface
+    private interface Search<T> {
+        T search() throws IOException;
+    }
+
+    private <T> T cached(final QueryKey key, final Search<T> search) throws IOException {
+        @SuppressWarnings("unchecked")
+        final T cachedResult = (T) cache.getIfPresent(key);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+        final long gen = generation.get();
+        final T result = search.search();
+        // don't cache a result that may predate a write made while the search was running
+        if (result != null && gen == generation.get()) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    private static List<Object> toKey(final Pagination pagination) {
+        if (pagination == null) {
+            return null;
+        }
+        return Arrays.asList(pagination.start == null ? 0 : pagination.start, pagination.count,
+                pagination.cursor);
+    }
+
+    private static List<Object> toKey(final AccessFilter af) {
+        // the access filter is mutable, so copy the fields
+        return af == null ? null : Arrays.asList(af.isAdmin, af.withPublic, af.withAllHistory,
+                af.accessGroupIds == null ? null : new HashSet<>(af.accessGroupIds));
+    }
+
+    private static List<Object> toKey(final PostProcessing pp) {
+        return pp == null ? null : Arrays.asList(pp.objectInfo, pp.objectKeys, pp.objectData,
+                pp.objectHighlight, pp.objectDataIncludes);
+    }
+
+    private static List<SortingRule> toKey(final List<SortingRule> sorting) {
+        // null and empty sorting both mean the default order
+        return sorting == null ? Collections.emptyList() : sorting;
+    }
+
+    @Override
+    public Map<String, Integer> searchTypes(
+            final MatchFilter matchFilter,
+            final AccessFilter accessFilter)
+            throws IOException {
+        return cached(new QueryKey(null, "types", matchFilter, toKey(accessFilter)),
+                () -> storage.searchTypes(matchFilter, accessFilter));
+    }
+
+    @Override
+    public FoundHits searchIds(
+            final List<String> objectType,
+            final MatchFilter matchFilter,
+            final List<SortingRule> sorting,
+            final AccessFilter accessFilter,
+            final Pagination pagination)
+            throws IOException {
+        if (pagination != null && pagination.snapshot) {
+            return storage.searchIds(objectType, matchFilter, sorting, accessFilter, pagination);
+        }
+        return cached(new QueryKey(objectType, "ids", matchFilter, toKey(sorting),
+                toKey(accessFilter), toKey(pagination)),
+                () -> storage.searchIds(
+                        objectType, matchFilter, sorting, accessFilter, pagination));
+    }
+
+    @Override
+    public FoundHits searchObjects(
+            final List<String> objectType,
+            final MatchFilter matchFilter,
+            final List<SortingRule> sorting,
+            final AccessFilter accessFilter,
+            final Pagination pagination,
+            final PostProcessing postProcessing)
+            throws IOException {
+        if (pagination != null && pagination.snapshot) {
+            return storage.searchObjects(objectType, matchFilter, sorting, accessFilter,
+                    pagination, postProcessing);
+        }
+        return cached(new QueryKey(objectType, "objects", matchFilter, toKey(sorting),
+                toKey(accessFilter), toKey(pagination), toKey(postProcessing)),
+                () -> storage.searchObjects(objectType, matchFilter, sorting, accessFilter,
+                        pagination, postProcessing));
+    }
+
+    @Override
+    public void releaseCursor(final String cursor) throws IOException {
+        storage.releaseCursor(cursor);
+    }
+
+    @Override
+    public long exportObjects(
+            final List<String> objectType,
+            final MatchFilter matchFilter,
+            final List<SortingRule> sorting,
+            final AccessFilter accessFilter,
+            final PostProcessing postProcessing,
+            final ObjectDataConsumer consumer)
+            throws IOException {
+        return storage.exportObjects(objectType, matchFilter, sorting, accessFilter,
+                postProcessing, consumer);
+    }
+
+    @Override
+    public List<ObjectData> getObjectsByIds(final Set<GUID> guids) throws IOException {
+        return storage.getObjectsByIds(guids);
+    }
+
+    @Override
+    public List<ObjectData> getObjectsByIds(
+            final Set<GUID> guids,
+            final PostProcessing postProcessing)
+            throws IOException {
+        return storage.getObjectsByIds(guids, postProcessing);
+    }
+
+    @Override
+    public Map<GUID, Boolean> checkParentGuidsExist(final Set<GUID> parentGuids)
+            throws IOException {
+        return storage.checkParentGuidsExist(parentGuids);
+    }
+
+    @Override
+    public boolean flushBuffer(final boolean force) throws IOException {
+        return storage.flushBuffer(force);
+    }
+
+    @Override
+    public void dropData() throws IOException {
+        try {
+            storage.dropData();
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void indexObject(
+            final ObjectTypeParsingRules rule,
+            final SourceData source,
+            final Instant timestamp,
+            final String parentJsonValue,
+            final GUID guid,
+            final ParsedObject obj,
+            final boolean isPublic)
+            throws IOException {
+        try {
+            storage.indexObject(rule, source, timestamp, parentJsonValue, guid, obj, isPublic);
+        } finally {
+            invalidate(rule);
+        }
+    }
+
+    @Override
+    public void indexObjects(
+            final ObjectTypeParsingRules rule,
+            final SourceData source,
+            final Instant timestamp,
+            final String parentJsonValue,
+            final GUID pguid,
+            final Map<GUID, ParsedObject> idToObj,
+            final boolean isPublic)
+            throws IOException {
+        try {
+            storage.indexObjects(
+                    rule, source, timestamp, parentJsonValue, pguid, idToObj, isPublic);
+        } finally {
+            invalidate(rule);
+        }
+    }
+
+    @Override
+    public void indexObjects(final List<IndexObjectsRequest> requests) throws IOException {
+        try {
+            storage.indexObjects(requests);
+        } finally {
+            for (final IndexObjectsRequest req: requests) {
+                invalidate(req.getRule());
+            }
+        }
+    }
+
+    @Override
+    public void flushIndexing(final ObjectTypeParsingRules objectType) throws IOException {
+        try {
+            storage.flushIndexing(objectType);
+        } finally {
+            invalidate(objectType);
+        }
+    }
+
+    /* The remaining writes are keyed by GUID and may affect objects of any type, so all
+     * cached results are removed.
+     */
+
+    @Override
+    public void shareObjects(
+            final Set<GUID> guids,
+            final int accessGroupId,
+            final boolean isPublicGroup)
+            throws IOException {
+        try {
+            storage.shareObjects(guids, accessGroupId, isPublicGroup);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void unshareObjects(final Set<GUID> guids, final int accessGroupId)
+            throws IOException {
+        try {
+            storage.unshareObjects(guids, accessGroupId);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void publishObjects(final Set<GUID> guids) throws IOException {
+        try {
+            storage.publishObjects(guids);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void unpublishObjects(final Set<GUID> guids) throws IOException {
+        try {
+            storage.unpublishObjects(guids);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void publishObjectsExternally(final Set<GUID> guids, final int accessGroupId)
+            throws IOException {
+        try {
+            storage.publishObjectsExternally(guids, accessGroupId);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void unpublishObjectsExternally(final Set<GUID> guids, final int accessGroupId)
+            throws IOException {
+        try {
+            storage.unpublishObjectsExternally(guids, accessGroupId);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public int setNameOnAllObjectVersions(final GUID object, final String newName)
+            throws IOException {
+        try {
+            return storage.setNameOnAllObjectVersions(object, newName);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void deleteAllVersions(final GUID guid) throws IOException {
+        try {
+            storage.deleteAllVersions(guid);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void undeleteAllVersions(final GUID guid) throws IOException {
+        try {
+            storage.undeleteAllVersions(guid);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void publishAllVersions(final GUID guid) throws IOException {
+        try {
+            storage.publishAllVersions(guid);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void unpublishAllVersions(final GUID guid) throws IOException {
+        try {
+            storage.unpublishAllVersions(guid);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void deleteAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        try {
+            storage.deleteAccessGroup(storageCode, accessGroupId);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void publishAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        try {
+            storage.publishAccessGroup(storageCode, accessGroupId);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+
+    @Override
+    public void unpublishAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        try {
+            storage.unpublishAccessGroup(storageCode, accessGroupId);
+        } finally {
+            invalidate((String) null);
+        }
+    }
+}
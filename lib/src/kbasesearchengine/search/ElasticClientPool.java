@@ -0,0 +1,296 @@
+package kbasesearchengine.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.message.BasicHeader;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+
+import kbasesearchengine.tools.Utils;
+
+/** A pool of HTTP connections to the nodes of an ElasticSearch cluster.
+ *
+ * Requests are distributed across the nodes in round robin fashion. Nodes that fail to respond
+ * are skipped until they have been given time to recover, and the request is retried on the
+ * next node.
+ *
+ * The pool records the number of requests, failures, and time spent in requests so that the
+ * pool may be sized appropriately.
+ *
+ * This class is thread safe.
+ */
+public class ElasticClientPool implements Closeable {
+
+    private final String name;
+    private final int maxConnections;
+    private final int connectTimeoutMS;
+    private final int socketTimeoutMS;
+    private final RestClient client;
+    private volatile List<HttpHost> hosts;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failedRequestCount = new AtomicLong();
+    private final AtomicLong totalRequestTimeNS = new AtomicLong();
+    private final AtomicInteger activeRequestCount = new AtomicInteger();
+    private final AtomicInteger peakActiveRequestCount = new AtomicInteger();
+
+    /** Create a connection pool.
+     * @param name the name of the pool.
+     * @param hosts the ElasticSearch nodes to which requests will be sent.
+     * @param maxConnections the maximum number of connections in the pool, both in total and per
+     * node.
+     * @param connectTimeoutMS the timeout, in milliseconds, for establishing a connection.
+     * @param socketTimeoutMS the timeout, in milliseconds, for waiting for data from an
+     * established connection. This is also the maximum time a request may take, including
+     * retries on other nodes.
+     * @param user the ElasticSearch user name, or null if the cluster does not require
+     * authentication.
+     * @param password the ElasticSearch password. Ignored if user is null.
+     */
+    public ElasticClientPool(
+            final String name,
+            final List<HttpHost> hosts,
+            final int maxConnections,
+            final int connectTimeoutMS,
+            final int socketTimeoutMS,
+            final String user,
+            final String password) {
+        Utils.notNullOrEmpty(name, "name cannot be null or empty");
+        checkHosts(hosts);
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        if (connectTimeoutMS < 1) {
+            throw new IllegalArgumentException("connectTimeoutMS must be at least 1");
+        }
+        if (socketTimeoutMS < 1) {
+            throw new IllegalArgumentException("socketTimeoutMS must be at least 1");
+        }
+        this.name = name;
+        this.maxConnections = maxConnections;
+        this.connectTimeoutMS = connectTimeoutMS;
+        this.socketTimeoutMS = socketTimeoutMS;
+        this.hosts = Collections.unmodifiableList(new ArrayList<>(hosts));
+        final RestClientBuilder bld = RestClient.builder(
+                hosts.toArray(new HttpHost[hosts.size()]));
+        bld.setRequestConfigCallback(rcb -> rcb
+                .setConnectTimeout(connectTimeoutMS)
+                .setSocketTimeout(socketTimeoutMS));
+        bld.setMaxRetryTimeoutMillis(socketTimeoutMS);
+        bld.setDefaultHeaders(new Header[] {
+                new BasicHeader(HttpHeaders.CONTENT_TYPE, "application/json")});
+        final CredentialsProvider credentialsProvider;
+        if (user != null) {
+            credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(AuthScope.ANY,
+                    new UsernamePasswordCredentials(user, password));
+        } else {
+            credentialsProvider = null;
+        }
+        bld.setHttpClientConfigCallback(hacb -> {
+            hacb.setMaxConnTotal(maxConnections).setMaxConnPerRoute(maxConnections);
+            if (credentialsProvider != null) {
+                hacb.setDefaultCredentialsProvider(credentialsProvider);
+            }
+            return hacb;
+        });
+        this.client = bld.build();
+    }
+
+    private static void checkHosts(final List<HttpHost> hosts) {
+        Utils.nonNull(hosts, "hosts");
+        Utils.noNulls(hosts, "null item in hosts");
+        if (hosts.isEmpty()) {
+            throw new IllegalArgumentException("At least one host is required");
+        }
+    }
+
+    /** Parse a comma separated list of ElasticSearch hosts. Each host is of the form
+     * [scheme://]hostname[:port].
+     * @param hosts the hosts to parse.
+     * @param defaultPort the port to use for hosts that do not specify a port.
+     * @return the hosts.
+     */
+    public static List<HttpHost> parseHosts(final String hosts, final int defaultPort) {
+        Utils.notNullOrEmpty(hosts, "hosts cannot be null or empty");
+        final List<HttpHost> ret = new LinkedList<>();
+        for (final String h: hosts.split(",")) {
+            if (!h.trim().isEmpty()) {
+                final HttpHost host = HttpHost.create(h.trim());
+                ret.add(host.getPort() < 0 ?
+                        new HttpHost(host.getHostName(), defaultPort, host.getSchemeName()) :
+                        host);
+            }
+        }
+        if (ret.isEmpty()) {
+            throw new IllegalArgumentException("No hosts in host list " + hosts);
+        }
+        return ret;
+    }
+
+    /** Send a request to the next available node.
+     * @param method the HTTP method.
+     * @param endpoint the request path.
+     * @param params the query parameters.
+     * @param entity the request body, or null if there is no body.
+     * @return the response.
+     * @throws ResponseException if ElasticSearch returned an error response.
+     * @throws IOException if no node could be contacted or the request timed out.
+     */
+    public Response performRequest(
+            final String method,
+            final String endpoint,
+            final Map<String, String> params,
+            final HttpEntity entity)
+            throws IOException {
+        final int active = activeRequestCount.incrementAndGet();
+        peakActiveRequestCount.accumulateAndGet(active, Math::max);
+        final long start = System.nanoTime();
+        boolean responded = false;
+        try {
+            final Response resp = client.performRequest(method, endpoint, params, entity);
+            responded = true;
+            return resp;
+        } catch (ResponseException e) {
+            responded = true;
+            throw e;
+        } finally {
+            totalRequestTimeNS.addAndGet(System.nanoTime() - start);
+            requestCount.incrementAndGet();
+            if (!responded) {
+                failedRequestCount.incrementAndGet();
+            }
+            activeRequestCount.decrementAndGet();
+        }
+    }
+
+    /** Replace the nodes to which requests are sent.
+     * @param hosts the ElasticSearch nodes.
+     */
+    public void setHosts(final List<HttpHost> hosts) {
+        checkHosts(hosts);
+        this.hosts = Collections.unmodifiableList(new ArrayList<>(hosts));
+        client.setHosts(hosts.toArray(new HttpHost[hosts.size()]));
+    }
+
+    /** Get the nodes to which requests are sent.
+     * @return the ElasticSearch nodes.
+     */
+    public List<HttpHost> getHosts() {
+        return hosts;
+    }
+
+    /** Get the name of the pool.
+     * @return the pool name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /** Get the maximum number of connections in the pool.
+     * @return the maximum number of connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /** Get the timeout for establishing a connection.
+     * @return the connection timeout in milliseconds.
+     */
+    public int getConnectTimeoutMS() {
+        return connectTimeoutMS;
+    }
+
+    /** Get the timeout for waiting for data from an established connection.
+     * @return the socket timeout in milliseconds.
+     */
+    public int getSocketTimeoutMS() {
+        return socketTimeoutMS;
+    }
+
+    /** Get the number of requests completed by the pool, including failed requests.
+     * @return the request count.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /** Get the number of requests that received no response, for example because no node could
+     * be contacted or the request timed out. Requests that received an error response from
+     * ElasticSearch are not included.
+     * @return the failed request count.
+     */
+    public long getFailedRequestCount() {
+        return failedRequestCount.get();
+    }
+
+    /** Get the total time spent in completed requests.
+     * @return the total request time in milliseconds.
+     */
+    public long getTotalRequestTimeMS() {
+        return TimeUnit.NANOSECONDS.toMillis(totalRequestTimeNS.get());
+    }
+
+    /** Get the number of requests currently in progress.
+     * @return the active request count.
+     */
+    public int getActiveRequestCount() {
+        return activeRequestCount.get();
+    }
+
+    /** Get the largest number of requests that have been in progress at the same time. If this
+     * approaches the maximum number of connections, requests are likely waiting for a
+     * connection.
+     * @return the peak active request count.
+     */
+    public int getPeakActiveRequestCount() {
+        return peakActiveRequestCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("ElasticClientPool [name=");
+        builder.append(name);
+        builder.append(", hosts=");
+        builder.append(hosts);
+        builder.append(", maxConnections=");
+        builder.append(maxConnections);
+        builder.append(", requestCount=");
+        builder.append(getRequestCount());
+        builder.append(", failedRequestCount=");
+        builder.append(getFailedRequestCount());
+        builder.append(", totalRequestTimeMS=");
+        builder.append(getTotalRequestTimeMS());
+        builder.append(", activeRequestCount=");
+        builder.append(getActiveRequestCount());
+        builder.append(", peakActiveRequestCount=");
+        builder.append(getPeakActiveRequestCount());
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -4,13 +4,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -20,34 +24,39 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.LinkedList;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
-import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
-import org.apache.http.message.BasicHeader;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseException;
-import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 
 import kbasesearchengine.common.GUID;
 import kbasesearchengine.events.handler.SourceData;
+import kbasesearchengine.main.LineLogger;
 import kbasesearchengine.parse.ParsedObject;
+import kbasesearchengine.search.SearchHitReader.Hit;
 import kbasesearchengine.system.IndexingRules;
 import kbasesearchengine.system.ObjectTypeParsingRules;
 import kbasesearchengine.system.SearchObjectType;
@@ -132,15 +141,102 @@ public class ElasticIndexingStorage implements IndexingStorage {
             .put(OBJ_PUBLIC, R_OBJ_PUBLIC)
             .put(OBJ_SHARED, R_OBJ_SHARED)
             .build();
-
-    private HttpHost esHost;
+    
+    // the _source fields used to build the object information for an object
+    private static final Set<String> OBJ_INFO_FIELDS = ImmutableSet.of(OBJ_NAME, OBJ_CREATOR,
+            OBJ_COPIER, OBJ_PROV_MODULE, OBJ_PROV_METHOD, OBJ_PROV_MODULE_VERSION,
+            OBJ_PROV_COMMIT_HASH, OBJ_MD5, SEARCH_OBJ_TYPE, SEARCH_OBJ_TYPE_VER, OBJ_TIMESTAMP,
+            SOURCE_TAGS);
+
+    private final List<HttpHost> esHosts;
+    // the nodes found by the last node discovery, or the configured hosts
+    private volatile List<HttpHost> nodes;
     private String esUser;
     private String esPassword;
     private String indexNamePrefix;
-    private Map<ObjectTypeParsingRules, String> ruleToIndex = new LinkedHashMap<>();
-    private Map<String, String> typeToIndex = new LinkedHashMap<>();
-    private RestClient restClient = null;
-    private File tempDir;
+    private Map<ObjectTypeParsingRules, String> ruleToIndex = new ConcurrentHashMap<>();
+    private Map<String, String> typeToIndex = new ConcurrentHashMap<>();
+    private final IndexCatalog indexCatalog = new IndexCatalog();
+    private PoolSettings readPoolSettings = new PoolSettings(DEFAULT_READ_POOL_MAX_CONNECTIONS,
+            DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_SOCKET_TIMEOUT_MS);
+    private PoolSettings writePoolSettings = new PoolSettings(DEFAULT_WRITE_POOL_MAX_CONNECTIONS,
+            DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_SOCKET_TIMEOUT_MS);
+    private volatile ElasticClientPool readPool = null;
+    private volatile ElasticClientPool writePool = null;
+    private long nodeDiscoveryIntervalMS = 0;
+    private ScheduledExecutorService nodeDiscoverer = null;
+    private long poolMetricsLogIntervalMS = 0;
+    private ScheduledExecutorService poolMetricsLogger = null;
+    private final File tempDir;
+    private volatile int bulkMemoryLimit = DEFAULT_BULK_MEMORY_LIMIT;
+    /* bulk bodies are reused per thread so the memory buffers aren't reallocated for every object.
+     * Buffers that grew past BulkRequestBody.MAX_RETAINED_CAPACITY are released on reset.
+     * Always get bodies via getBulkBody() so that changes to the memory limit are applied.
+     */
+    private final ThreadLocal<BulkRequestBody> bulkBodies = new ThreadLocal<>();
+    private RefreshPolicy refreshPolicy = RefreshPolicy.IMMEDIATE;
+    private long refreshIntervalMS = DEFAULT_REFRESH_INTERVAL_MS;
+    private ScheduledExecutorService refresher = null;
+    /* index name or pattern -> prefixes of the objects modified in the index since the index
+     * was last refreshed.
+     */
+    private final Map<String, Set<String>> unrefreshed = new ConcurrentHashMap<>();
+    // index name -> layout version of the index
+    private final Map<String, Integer> indexLayouts = new ConcurrentHashMap<>();
+    // index name -> whether the data documents in the index carry the access fields
+    private final Map<String, Boolean> indexAccessFields = new ConcurrentHashMap<>();
+    private volatile boolean accessFieldsOnData = false;
+    /* whether the version ledger contains every indexed object, or null if the ledger has not
+     * been checked yet.
+     */
+    private volatile Boolean ledgerComplete = null;
+    /* whether the type counts cover every indexed object, or null if the counts have not been
+     * checked yet.
+     */
+    private volatile Boolean typeCountsComplete = null;
+    /* access group ID -> prefixes of the objects modified in ways that change the type counts
+     * of the access group since the types in the access group were last counted.
+     */
+    private final Map<Integer, Set<String>> uncountedGroups = new ConcurrentHashMap<>();
+    // the last time the type counts index was checked for abandoned marks
+    private volatile long abandonedMarksCheckedAt = 0;
+    /* lookup key -> the access groups this instance stored in the access groups index under the
+     * key. Searches only refer to stored access groups that match the groups in the access
+     * filter, so a missing or stale entry results in the groups being sent with the query.
+     * There is one document per key, so another instance may since have replaced the groups
+     * with a newer set for the same key.
+     */
+    private final Cache<String, Set<Integer>> storedAccessGroups = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_STORED_ACCESS_GROUPS)
+            .weigher((String key, Set<Integer> groups) -> groups.size())
+            .build();
+    private volatile int accessGroupsLookupMinimum = 0;
+    // whether the update scripts have been stored in the cluster
+    private volatile boolean scriptsStored = false;
+    private volatile int snapshotKeepAliveSec = DEFAULT_SNAPSHOT_KEEP_ALIVE_SEC;
+    // writes to the SLF4J logger for this class until a logger is set
+    private volatile LineLogger logger = new LineLogger() {
+        
+        private final Logger log = LoggerFactory.getLogger(ElasticIndexingStorage.class);
+        
+        @Override
+        public void logInfo(final String line) {
+            log.info(line);
+        }
+        
+        @Override
+        public void logError(final String line) {
+            log.error(line);
+        }
+        
+        @Override
+        public void logError(final Throwable error) {
+            log.error(error.getMessage(), error);
+        }
+        
+        @Override
+        public void timeStat(GUID guid, long loadMs, long parseMs, long indexMs) {}
+    };
     
     public static final int PUBLIC_ACCESS_GROUP = -1;
     public static final int ADMIN_ACCESS_GROUP = -2;
@@ -156,14 +252,162 @@ public class ElasticIndexingStorage implements IndexingStorage {
      */
     public static final int MAX_OBJECT_TYPES_SIZE = 50;
 
+    /** The default maximum size, in bytes, of a bulk request body held in memory. Larger bodies
+     * are spilled to a temporary file.
+     */
+    public static final int DEFAULT_BULK_MEMORY_LIMIT = 10 * 1024 * 1024;
+    
+    /** The default interval, in milliseconds, between refreshes of modified indexes when using
+     * the {@link RefreshPolicy#COALESCED} refresh policy.
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL_MS = 1000;
+    
+    /** The default interval, in milliseconds, between log entries for the connection pool
+     * metrics.
+     */
+    public static final long DEFAULT_POOL_METRICS_LOG_INTERVAL_MS = 5 * 60 * 1000;
+    
+    /** The default maximum number of connections used for searches and other read requests. */
+    public static final int DEFAULT_READ_POOL_MAX_CONNECTIONS = 30;
+    
+    /** The default maximum number of connections used for indexing and other write requests. */
+    public static final int DEFAULT_WRITE_POOL_MAX_CONNECTIONS = 10;
+    
+    /** The default timeout, in milliseconds, for connecting to an ElasticSearch node. */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    
+    /** The default timeout, in milliseconds, for waiting for data from an ElasticSearch node. */
+    public static final int DEFAULT_SOCKET_TIMEOUT_MS = 120000;
+    
+    /** The layout version of indexes created by this class.
+     * 
+     * In layout 1, ElasticSearch generates the document IDs, and the IDs of existing documents
+     * must be looked up before the documents can be overwritten.
+     * 
+     * In layout 2, the ID of a data document is the GUID of the document, and the ID of an access
+     * document is the GUID of the parent object.
+     * 
+     * In layout 3, the parent object data is stored once on the access document rather than on
+     * every data document for the parent object.
+     * 
+     * Indexes created with prior layouts can be upgraded with {@link #migrateIndexes()}.
+     */
+    public static final int CURRENT_INDEX_LAYOUT = 3;
+    
+    /** The default maximum age, in milliseconds, of the cached list of indexes. */
+    public static final long DEFAULT_INDEX_CATALOG_TTL_MS = 5 * 60 * 1000;
+    
+    /** The default time, in seconds, a snapshot search is kept open between pages. */
+    public static final int DEFAULT_SNAPSHOT_KEEP_ALIVE_SEC = 5 * 60;
+    
+    /* The minimum time, in milliseconds, between reloads of the cached list of indexes caused by
+     * requests for indexes that do not exist.
+     */
+    private static final long INDEX_CATALOG_MIN_RELOAD_MS = 1000;
+    
+    private static final String META_LAYOUT = "layout_version";
+    private static final String META_ACCESS_FIELDS = "access_fields";
+    /* The access document fields copied to the data documents in indexes with access fields on
+     * the data documents. The fields are maintained with the same queries and scripts as the
+     * access documents.
+     */
+    private static final List<String> ACCESS_FIELDS = Arrays.asList(
+            "pguid", "lastin", "groups", "extpub");
+    // the number of access documents copied to the data documents per request when migrating
+    private static final int ACCESS_FIELDS_BATCH_SIZE = 1000;
+    private static final String MIGRATION_INDEX_PREFIX = "migrating.";
+    
+    /* The version ledger index records the last version of each object in each index, keyed by
+     * the object prefix, so that the last version can be read in real time without searching the
+     * access documents. Type names cannot contain periods, so the name cannot clash with a type
+     * index.
+     */
+    private static final String LEDGER_INDEX = "ledger.versions";
+    private static final String LEDGER_TYPE = "ledger";
+    private static final String LEDGER_LAST = "last";
+    private static final String META_LEDGER_COMPLETE = "complete";
+    private static final int LEDGER_BUILD_BATCH_SIZE = 1000;
+    
+    /* The type counts index records, for each access group, the number of objects of each type
+     * where the last version is owned by the access group, both with and without sub objects,
+     * and the number of objects shared into the access group from other access groups. The
+     * documents are keyed by the access group ID.
+     */
+    private static final String TYPE_COUNTS_INDEX = "counts.types";
+    private static final String TYPE_COUNTS_TYPE = "counts";
+    private static final String TYPE_COUNTS_ALL = "types";
+    private static final String TYPE_COUNTS_NO_SUB = "nosub";
+    private static final String TYPE_COUNTS_SHARED_IN = "sharedin";
+    private static final String META_TYPE_COUNTS_COMPLETE = "complete";
+    /* Access groups whose counts may be out of date are marked with a document of this type,
+     * keyed by the access group ID, before they are modified. Other processes, such as the
+     * search server, don't use the counts of marked access groups, and the marks of a process
+     * that dies before counting the access groups are found and counted by other processes. The
+     * marks are versioned by the time they were made and are only removed by counts started
+     * later.
+     */
+    private static final String TYPE_COUNTS_DIRTY_TYPE = "dirty";
+    private static final String TYPE_COUNTS_MARKED_AT = "markedat";
+    // marks older than this are assumed to have been left by a process that died
+    private static final long ABANDONED_DIRTY_MARK_MS = 60 * 1000;
+    // the maximum number of types returned by searchTypes
+    private static final int MAX_TYPE_BUCKETS = 1000;
+    
+    /* The access groups index stores the access groups of users with many access groups, keyed
+     * by a lookup key, usually the user name, so that searches can refer to the groups with a
+     * terms lookup rather than sending every access group ID with each query. ElasticSearch
+     * caches the looked up terms filter, so repeated searches by the same user do not need to
+     * parse and build the filter again.
+     */
+    private static final String ACCESS_GROUPS_INDEX = "lookup.accessgroups";
+    private static final String ACCESS_GROUPS_TYPE = "groups";
+    private static final String ACCESS_GROUPS_FIELD = "groups";
+    // the maximum number of access group IDs, across all keys, remembered as stored
+    private static final int MAX_STORED_ACCESS_GROUPS = 10 * 1000 * 1000;
+    
+    /* The maximum number of terms sent in a single terms query. Operations on sets of objects
+     * are split into requests of at most this many objects.
+     */
+    private static final int MAX_TERMS_PER_QUERY = 1000;
+    // the default ElasticSearch index.max_result_window setting
+    private static final int MAX_RESULT_WINDOW = 10000;
+    
+    // the number of times a bulk update is retried if the document is modified concurrently
+    private static final int BULK_RETRY_ON_CONFLICT = 3;
+    
+    // the number of objects read per search request when exporting objects
+    private static final int EXPORT_PAGE_SIZE = 1000;
+
     public ElasticIndexingStorage(HttpHost esHost, File tempDir) throws IOException {
-        this.esHost = esHost;
+        this(Arrays.asList(esHost), tempDir);
+    }
+    
+    /** Create the storage.
+     * @param esHosts the ElasticSearch nodes to contact. Requests are distributed across the
+     * nodes.
+     * @param tempDir the directory in which to store bulk request bodies that exceed the bulk
+     * memory limit.
+     * @throws IOException if an IO error occurs.
+     */
+    public ElasticIndexingStorage(final List<HttpHost> esHosts, final File tempDir)
+            throws IOException {
+        Utils.nonNull(esHosts, "esHosts");
+        Utils.noNulls(esHosts, "null item in esHosts");
+        if (esHosts.isEmpty()) {
+            throw new IllegalArgumentException("At least one ElasticSearch host is required");
+        }
+        this.esHosts = Collections.unmodifiableList(new ArrayList<>(esHosts));
+        this.nodes = this.esHosts;
         this.indexNamePrefix = "";
         this.tempDir = tempDir;
     }
     
     public HttpHost getEsHost() {
-        return esHost;
+        return esHosts.get(0);
+    }
+    
+    public List<HttpHost> getEsHosts() {
+        return esHosts;
     }
     
     public File getTempDir() {
@@ -182,26 +426,506 @@ public class ElasticIndexingStorage implements IndexingStorage {
         this.esPassword = esPassword;
     }
 
+    /** Set the size and timeouts of the connection pool used for searches and other requests
+     * that do not modify data. Should be called prior to using the storage. If the pool has
+     * already been created it is closed and recreated, which resets its metrics.
+     * @param maxConnections the maximum number of connections, both in total and per node.
+     * Defaults to {@link #DEFAULT_READ_POOL_MAX_CONNECTIONS}.
+     * @param connectTimeoutMS the timeout, in milliseconds, for connecting to a node. Defaults
+     * to {@link #DEFAULT_CONNECT_TIMEOUT_MS}.
+     * @param socketTimeoutMS the timeout, in milliseconds, for waiting for data from a node.
+     * Defaults to {@link #DEFAULT_SOCKET_TIMEOUT_MS}.
+     * @throws IOException if the existing pool could not be closed.
+     */
+    public synchronized void setReadPool(
+            final int maxConnections,
+            final int connectTimeoutMS,
+            final int socketTimeoutMS)
+            throws IOException {
+        readPoolSettings = new PoolSettings(maxConnections, connectTimeoutMS, socketTimeoutMS);
+        if (readPool != null) {
+            readPool.close();
+            readPool = null;
+        }
+    }
+    
+    /** Set the size and timeouts of the connection pool used for bulk indexing, updates, and
+     * other requests that modify data. Should be called prior to using the storage. If the pool
+     * has already been created it is closed and recreated, which resets its metrics.
+     * @param maxConnections the maximum number of connections, both in total and per node.
+     * Defaults to {@link #DEFAULT_WRITE_POOL_MAX_CONNECTIONS}.
+     * @param connectTimeoutMS the timeout, in milliseconds, for connecting to a node. Defaults
+     * to {@link #DEFAULT_CONNECT_TIMEOUT_MS}.
+     * @param socketTimeoutMS the timeout, in milliseconds, for waiting for data from a node.
+     * Defaults to {@link #DEFAULT_SOCKET_TIMEOUT_MS}.
+     * @throws IOException if the existing pool could not be closed.
+     */
+    public synchronized void setWritePool(
+            final int maxConnections,
+            final int connectTimeoutMS,
+            final int socketTimeoutMS)
+            throws IOException {
+        writePoolSettings = new PoolSettings(maxConnections, connectTimeoutMS, socketTimeoutMS);
+        if (writePool != null) {
+            writePool.close();
+            writePool = null;
+        }
+    }
+    
+    /** Get the connection pool used for searches and other requests that do not modify data.
+     * The pool provides metrics that may be used to size the pool.
+     * @return the read pool.
+     */
+    public ElasticClientPool getReadPool() {
+        ElasticClientPool pool = readPool;
+        if (pool == null) {
+            synchronized (this) {
+                if (readPool == null) {
+                    readPool = readPoolSettings.build("read", nodes, esUser, esPassword);
+                }
+                pool = readPool;
+            }
+        }
+        return pool;
+    }
+    
+    /** Get the connection pool used for bulk indexing, updates, and other requests that modify
+     * data. The pool provides metrics that may be used to size the pool.
+     * @return the write pool.
+     */
+    public ElasticClientPool getWritePool() {
+        ElasticClientPool pool = writePool;
+        if (pool == null) {
+            synchronized (this) {
+                if (writePool == null) {
+                    writePool = writePoolSettings.build("write", nodes, esUser, esPassword);
+                }
+                pool = writePool;
+            }
+        }
+        return pool;
+    }
+    
+    private static class PoolSettings {
+        
+        private final int maxConnections;
+        private final int connectTimeoutMS;
+        private final int socketTimeoutMS;
+        
+        private PoolSettings(
+                final int maxConnections,
+                final int connectTimeoutMS,
+                final int socketTimeoutMS) {
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("maxConnections must be at least 1");
+            }
+            if (connectTimeoutMS < 1) {
+                throw new IllegalArgumentException("connectTimeoutMS must be at least 1");
+            }
+            if (socketTimeoutMS < 1) {
+                throw new IllegalArgumentException("socketTimeoutMS must be at least 1");
+            }
+            this.maxConnections = maxConnections;
+            this.connectTimeoutMS = connectTimeoutMS;
+            this.socketTimeoutMS = socketTimeoutMS;
+        }
+        
+        private ElasticClientPool build(
+                final String name,
+                final List<HttpHost> hosts,
+                final String user,
+                final String password) {
+            return new ElasticClientPool(name, hosts, maxConnections, connectTimeoutMS,
+                    socketTimeoutMS, user, password);
+        }
+    }
+    
+    public long getNodeDiscoveryIntervalMS() {
+        return nodeDiscoveryIntervalMS;
+    }
+    
+    /** Periodically discover the HTTP enabled nodes in the ElasticSearch cluster and distribute
+     * requests across all of them, rather than only the hosts provided when the storage was
+     * created. The first discovery runs immediately in the background. If discovery fails, the
+     * previously known nodes continue to be used.
+     * @param intervalMS the interval, in milliseconds, between discoveries, or 0 to disable
+     * discovery. Defaults to 0.
+     */
+    public synchronized void setNodeDiscoveryIntervalMS(final long intervalMS) {
+        if (intervalMS < 0) {
+            throw new IllegalArgumentException("intervalMS must be at least 0");
+        }
+        stopNodeDiscoverer();
+        this.nodeDiscoveryIntervalMS = intervalMS;
+        if (intervalMS > 0) {
+            nodeDiscoverer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "ElasticIndexingStorage node discovery");
+                t.setDaemon(true);
+                return t;
+            });
+            nodeDiscoverer.scheduleWithFixedDelay(() -> discoverNodesQuietly(),
+                    0, intervalMS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void stopNodeDiscoverer() {
+        if (nodeDiscoverer != null) {
+            nodeDiscoverer.shutdown();
+            nodeDiscoverer = null;
+        }
+    }
+    
+    private void discoverNodesQuietly() {
+        try {
+            discoverNodes();
+        } catch (IOException | RuntimeException e) {
+            // keep using the previously known nodes and try again next time
+            final LineLogger log = logger;
+            log.logError("Error discovering ElasticSearch nodes, continuing with " + nodes +
+                    " and retrying in " + nodeDiscoveryIntervalMS + " ms: " + e.getMessage());
+            log.logError(e);
+        }
+    }
+    
+    public long getPoolMetricsLogIntervalMS() {
+        return poolMetricsLogIntervalMS;
+    }
+    
+    /** Periodically write the metrics of the read and write connection pools to the logger set
+     * with {@link #setLogger(LineLogger)}, so that the pools may be sized based on their peak
+     * usage.
+     * @param intervalMS the interval, in milliseconds, between log entries, or 0 to disable
+     * logging. Defaults to 0.
+     */
+    public synchronized void setPoolMetricsLogIntervalMS(final long intervalMS) {
+        if (intervalMS < 0) {
+            throw new IllegalArgumentException("intervalMS must be at least 0");
+        }
+        stopPoolMetricsLogger();
+        this.poolMetricsLogIntervalMS = intervalMS;
+        if (intervalMS > 0) {
+            poolMetricsLogger = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "ElasticIndexingStorage pool metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            poolMetricsLogger.scheduleWithFixedDelay(() -> logPoolMetrics(),
+                    intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void stopPoolMetricsLogger() {
+        if (poolMetricsLogger != null) {
+            poolMetricsLogger.shutdown();
+            poolMetricsLogger = null;
+        }
+    }
+    
+    private void logPoolMetrics() {
+        final LineLogger log = logger;
+        log.logInfo(getReadPool().toString());
+        log.logInfo(getWritePool().toString());
+    }
+    
+    /** Discover the HTTP enabled nodes in the ElasticSearch cluster and distribute subsequent
+     * requests across them. The scheme of the first host provided when the storage was created
+     * is used for all the nodes.
+     * @return the discovered nodes.
+     * @throws IOException if an IO error occurs.
+     */
+    public List<HttpHost> discoverNodes() throws IOException {
+        final Response resp = getReadPool().performRequest(
+                "GET", "/_nodes/http", Collections.emptyMap(), null);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> nodeInfo =
+                (Map<String, Map<String, Object>>) data.get("nodes");
+        final String scheme = esHosts.get(0).getSchemeName();
+        final List<HttpHost> found = new LinkedList<>();
+        for (final Map<String, Object> node: nodeInfo.values()) {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> http = (Map<String, Object>) node.get("http");
+            if (http != null && http.get("publish_address") != null) {
+                final String address = (String) http.get("publish_address");
+                // the address may be of the form hostname/ip:port
+                found.add(HttpHost.create(
+                        scheme + "://" + address.substring(address.lastIndexOf('/') + 1)));
+            }
+        }
+        if (!found.isEmpty()) {
+            nodes = Collections.unmodifiableList(found);
+            getReadPool().setHosts(found);
+            getWritePool().setHosts(found);
+        }
+        return found;
+    }
+    
+    public int getBulkMemoryLimit() {
+        return bulkMemoryLimit;
+    }
+    
+    /** Set the maximum size, in bytes, of a bulk request body that is held in memory. Bodies that
+     * are larger are spilled to a temporary file in the temporary directory. The limit applies
+     * to bulk requests started after the call.
+     * @param bulkMemoryLimit the memory limit.
+     */
+    public void setBulkMemoryLimit(final int bulkMemoryLimit) {
+        if (bulkMemoryLimit < 0) {
+            throw new IllegalArgumentException("bulkMemoryLimit must be at least 0");
+        }
+        this.bulkMemoryLimit = bulkMemoryLimit;
+    }
+    
+    /* Returns this thread's bulk body, replacing it if it was created with a different memory
+     * limit. The body must be reset once the request is complete.
+     */
+    private BulkRequestBody getBulkBody() {
+        final int limit = bulkMemoryLimit;
+        BulkRequestBody body = bulkBodies.get();
+        if (body == null || body.getMemoryLimit() != limit) {
+            body = new BulkRequestBody(tempDir, limit);
+            bulkBodies.set(body);
+        }
+        return body;
+    }
+
+    public RefreshPolicy getRefreshPolicy() {
+        return refreshPolicy;
+    }
+    
+    public long getRefreshIntervalMS() {
+        return refreshIntervalMS;
+    }
+    
+    /** Set the policy determining when written data is made visible to searches. The default
+     * policy is {@link RefreshPolicy#IMMEDIATE}.
+     * @param refreshPolicy the refresh policy.
+     * @param refreshIntervalMS the interval, in milliseconds, between background refreshes of
+     * modified indexes with the {@link RefreshPolicy#COALESCED} policy, and between background
+     * updates of the type counts of modified access groups with the
+     * {@link RefreshPolicy#COALESCED} and {@link RefreshPolicy#INDEX_INTERVAL} policies.
+     */
+    public synchronized void setRefreshPolicy(
+            final RefreshPolicy refreshPolicy,
+            final long refreshIntervalMS) {
+        Utils.nonNull(refreshPolicy, "refreshPolicy");
+        if (refreshIntervalMS < 1) {
+            throw new IllegalArgumentException("refreshIntervalMS must be at least 1");
+        }
+        stopRefresher();
+        this.refreshPolicy = refreshPolicy;
+        this.refreshIntervalMS = refreshIntervalMS;
+        // the other policies count the modified access groups at the end of each write
+        if (refreshPolicy.equals(RefreshPolicy.COALESCED) ||
+                refreshPolicy.equals(RefreshPolicy.INDEX_INTERVAL)) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "ElasticIndexingStorage refresher");
+                t.setDaemon(true);
+                return t;
+            });
+            refresher.scheduleWithFixedDelay(() -> refreshAllModified(),
+                    refreshIntervalMS, refreshIntervalMS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private void stopRefresher() {
+        if (refresher != null) {
+            refresher.shutdown();
+            refresher = null;
+        }
+    }
+    
+    private void refreshAllModified() {
+        try {
+            if (refreshPolicy.equals(RefreshPolicy.COALESCED)) {
+                refreshModified(new ArrayList<>(unrefreshed.keySet()));
+            }
+            markAbandonedUncounted();
+            updateTypeCounts();
+        } catch (IOException | RuntimeException e) {
+            // the indexes and access groups are still marked as modified and will be refreshed
+            // and counted next time
+            final LineLogger log = logger;
+            log.logError("Error refreshing modified indexes or counting modified access " +
+                    "groups, retrying in " + refreshIntervalMS + " ms: " + e.getMessage());
+            log.logError(e);
+        }
+    }
+    
+    /** Set the logger used to report errors in background operations, such as the refreshes
+     * made with the {@link RefreshPolicy#COALESCED} policy, and periodic information such as the
+     * connection pool metrics. By default, messages are written to the SLF4J logger for this
+     * class.
+     * @param logger the logger.
+     */
+    public void setLogger(final LineLogger logger) {
+        Utils.nonNull(logger, "logger");
+        this.logger = logger;
+    }
+
     public String getIndexNamePrefix() {
         return indexNamePrefix;
     }
     
     public void setIndexNamePrefix(String indexNamePrefix) {
         this.indexNamePrefix = indexNamePrefix;
+        indexCatalog.invalidate();
+        ledgerComplete = null;
+        typeCountsComplete = null;
+    }
+    
+    public long getIndexCatalogTTLMS() {
+        return indexCatalog.ttlMS;
+    }
+    
+    /** Set the maximum age of the cached list of indexes with the index name prefix, after which
+     * the list is reloaded from ElasticSearch. Indexes created or deleted by this instance are
+     * always reflected in the list immediately. Defaults to
+     * {@link #DEFAULT_INDEX_CATALOG_TTL_MS}.
+     * @param ttlMS the maximum age of the list in milliseconds.
+     */
+    public void setIndexCatalogTTLMS(final long ttlMS) {
+        if (ttlMS < 0) {
+            throw new IllegalArgumentException("ttlMS must be at least 0");
+        }
+        indexCatalog.ttlMS = ttlMS;
+    }
+    
+    public int getSnapshotKeepAliveSec() {
+        return snapshotKeepAliveSec;
+    }
+    
+    /** Set the time a snapshot search is kept open after a page of the search is retrieved.
+     * If the next page is not retrieved within this time, ElasticSearch frees the search and
+     * its cursor becomes invalid. Open searches prevent ElasticSearch from freeing index
+     * segments that have been merged, so the time should be no longer than the time a user is
+     * expected to take to page through results. Defaults to
+     * {@link #DEFAULT_SNAPSHOT_KEEP_ALIVE_SEC}.
+     * @param keepAliveSec the keep alive time in seconds.
+     */
+    public void setSnapshotKeepAliveSec(final int keepAliveSec) {
+        if (keepAliveSec < 1) {
+            throw new IllegalArgumentException("keepAliveSec must be at least 1");
+        }
+        snapshotKeepAliveSec = keepAliveSec;
     }
 
+    public int getAccessGroupsLookupMinimum() {
+        return accessGroupsLookupMinimum;
+    }
+    
+    /** Set the minimum number of access groups for which
+     * {@link #storeAccessGroups(String, Collection)} stores a set of access groups. Searches with
+     * an access filter with a lookup key for a set of stored access groups refer to the stored
+     * groups with a terms lookup rather than sending the access group IDs with the query.
+     * 0, the default, disables storing access groups.
+     * @param minimum the minimum number of access groups to store, or 0 to store none.
+     */
+    public void setAccessGroupsLookupMinimum(final int minimum) {
+        if (minimum < 0) {
+            throw new IllegalArgumentException("minimum must be at least 0");
+        }
+        accessGroupsLookupMinimum = minimum;
+    }
+    
+    /** Store a set of access groups, typically the access groups of a user, so that searches
+     * with an {@link AccessFilter} with the same access groups and lookup key can refer to the
+     * stored groups rather than sending them with each query. The groups are only stored if
+     * storing access groups is enabled and there are at least
+     * {@link #getAccessGroupsLookupMinimum()} groups. The groups replace any groups previously
+     * stored under the key, unless a newer set has already been stored, possibly by another
+     * instance, in which case searches send the groups with the query instead.
+     * @param key the lookup key, usually the user name.
+     * @param accessGroupIds the access group IDs.
+     * @throws IOException if an IO error occurs.
+     */
+    public void storeAccessGroups(final String key, final Collection<Integer> accessGroupIds)
+            throws IOException {
+        Utils.notNullOrEmpty(key, "key cannot be null or empty");
+        Utils.nonNull(accessGroupIds, "accessGroupIds");
+        Utils.noNulls(accessGroupIds, "null item in accessGroupIds");
+        final int minimum = accessGroupsLookupMinimum;
+        final Set<Integer> groups = new HashSet<>(accessGroupIds);
+        if (minimum < 1 || groups.size() < minimum) {
+            storedAccessGroups.invalidate(key);
+            return;
+        }
+        checkAccessGroupsIndex();
+        /* the document is versioned by the time the groups were stored so that an older set
+         * can't overwrite a newer set stored by another instance.
+         * the terms lookup reads the document in real time, so no refresh is needed
+         */
+        try {
+            makeRequest("PUT", "/" + getAccessGroupsIndex() + "/" + ACCESS_GROUPS_TYPE + "/" +
+                    URLEncoder.encode(key, "UTF-8"),
+                    ImmutableMap.of(ACCESS_GROUPS_FIELD, new TreeSet<>(groups)),
+                    ImmutableMap.of("version", String.valueOf(System.currentTimeMillis()),
+                            "version_type", "external_gte"));
+        } catch (IOException e) {
+            storedAccessGroups.invalidate(key);
+            if (!(e.getCause() instanceof ResponseException) ||
+                    ((ResponseException) e.getCause()).getResponse().getStatusLine()
+                            .getStatusCode() != 409) {
+                throw e;
+            }
+            // a newer set of groups is stored under the key
+            return;
+        }
+        storedAccessGroups.put(key, groups);
+    }
+    
+    public boolean isAccessFieldsOnData() {
+        return accessFieldsOnData;
+    }
+    
+    /** Set whether indexes created by this instance copy the access fields of each object
+     * version - the access groups in which the version is the last version, all the access groups
+     * containing the version, and the access groups publishing the version externally - onto
+     * every data document for the version. Searches then filter the data documents with plain
+     * terms queries, which ElasticSearch can cache, rather than with a has_parent join against
+     * the access documents. Sharing, publishing and deleting objects become more expensive, as
+     * the data documents must be updated as well as the access documents.
+     * 
+     * Searches use the copied fields only if every index has them. Existing indexes are given
+     * the fields by {@link #migrateIndexes()} when this option is enabled. Instances that only
+     * search do not need to set this option. Defaults to false.
+     * @param accessFieldsOnData true to copy the access fields onto the data documents.
+     */
+    public void setAccessFieldsOnData(final boolean accessFieldsOnData) {
+        this.accessFieldsOnData = accessFieldsOnData;
+    }
+    
+    /* matches every type index. The auxiliary indexes share the index name prefix but have none
+     * of the document types and fields of the type indexes, so they are excluded - otherwise
+     * has_parent queries and sorts fail on their shards.
+     */
     private String getAnyIndexPattern() {
+        return getPrefixPattern() + ",-" + getLedgerIndex() + ",-" + getTypeCountsIndex() +
+                ",-" + getAccessGroupsIndex();
+    }
+    
+    // matches every index with the index name prefix, including the auxiliary indexes
+    private String getPrefixPattern() {
         return indexNamePrefix + "*";
     }
     
     public void dropData() throws IOException {
-        for (String indexName : listIndeces()) {
-            if (indexName.startsWith(indexNamePrefix)) {
-                deleteIndex(indexName);
-            }
+        indexCatalog.invalidate();
+        for (String indexName : indexCatalog.getIndexes()) {
+            deleteIndex(indexName);
         }
+        indexCatalog.invalidate();
         typeToIndex.clear();
         ruleToIndex.clear();
+        unrefreshed.clear();
+        indexLayouts.clear();
+        indexAccessFields.clear();
+        ledgerComplete = null;
+        typeCountsComplete = null;
+        uncountedGroups.clear();
+        storedAccessGroups.invalidateAll();
     }
 
 
@@ -258,12 +982,10 @@ public class ElasticIndexingStorage implements IndexingStorage {
     private void ensureAtLeastOneIndexExists(final String objectType) throws IOException {
         //TODO VERS need to check there aren't duplicate type names based on case
         final String prefix = (indexNamePrefix + objectType + "_").toLowerCase();
-        for (final String index: listIndeces()) {
-            if (index.startsWith(prefix)) {
-                return;
-            }
+        if (!indexCatalog.anyStartsWith(prefix, false) &&
+                !indexCatalog.anyStartsWith(prefix, true)) {
+            throw new IOException("No indexes exist for search type " + objectType);
         }
-        throw new IOException("No indexes exist for search type " + objectType);
     }
 
     private String getAnyTypePattern(final String objectType) {
@@ -283,10 +1005,19 @@ public class ElasticIndexingStorage implements IndexingStorage {
         String ret = ruleToIndex.get(rule);
         if (ret == null) {
             ret = toIndexString(rule);
-            if (!listIndeces().contains(ret)) {
+            // reload the catalog on a miss in case another process created the index
+            if (!indexCatalog.contains(ret, false) && !indexCatalog.contains(ret, true)) {
                 if (!noCreate) {
                     System.out.println("Creating Elasticsearch index: " + ret);
-                    createTables(ret, rule.getIndexingRules());
+                    try {
+                        createTables(ret, rule.getIndexingRules());
+                    } catch (IOException e) {
+                        // another process may have created the index in the meantime
+                        indexCatalog.reloadNow();
+                        if (!indexCatalog.contains(ret, false)) {
+                            throw e;
+                        }
+                    }
                 }
             }
             ruleToIndex.put(rule, ret);
@@ -329,77 +1060,359 @@ public class ElasticIndexingStorage implements IndexingStorage {
             final Map<GUID, ParsedObject> idToObj,
             final boolean isPublic)
             throws IOException {
-        final Map<GUID, ParsedObject> idToObjCopy = new HashMap<>(idToObj);
-        String indexName = checkIndex(rule, false);
-        for (GUID id : idToObjCopy.keySet()) {
-            GUID parentGuid = new GUID(id.getStorageCode(), id.getAccessGroupId(), 
-                    id.getAccessGroupObjectId(), id.getVersion(), null, null);
-            if (!parentGuid.equals(pguid)) {
-                throw new IllegalStateException("Object GUID doesn't match parent GUID");
-            }
+        indexObjects(Arrays.asList(new IndexObjectsRequest(
+                rule, data, timestamp, parentJsonValue, pguid, idToObj, isPublic)));
+    }
+    
+    // IO exceptions are thrown for failure on creating or writing to file or contacting ES.
+    @Override
+    public void indexObjects(final List<IndexObjectsRequest> allRequests) throws IOException {
+        Utils.nonNull(allRequests, "requests");
+        Utils.noNulls(allRequests, "null item in requests");
+        if (allRequests.isEmpty()) {
+            return;
         }
-        //TODO CODE if there's only a few objects to index, possible speed up by not using tempfile and just making direct API calls
-        File tempFile = File.createTempFile("es_bulk_", ".json", tempDir);
+        final boolean ledgerComplete = checkVersionLedger();
+        // the counts must exist before any type index is created to count every object
+        checkTypeCounts();
+        final List<IndexObjectsRequest> requests = removeRepeatedObjects(allRequests);
+        markUncountedInStorage(requests.stream().map(r -> r.getParentGUID().getAccessGroupId())
+                .collect(Collectors.toSet()));
+        // object prefix -> highest version of the object in the batch
+        final Map<String, Integer> batchVersions = new HashMap<>();
+        for (final IndexObjectsRequest req: requests) {
+            batchVersions.merge(toGUIDPrefix(req.getParentGUID()),
+                    req.getParentGUID().getVersion(), Math::max);
+        }
+        final Map<String, LedgerEntry> ledger = getLedgerEntries(batchVersions.keySet());
+        /* index name -> parent GUID -> access fields of the existing access document, for indexes
+         * with access fields on the data documents
+         */
+        final Map<String, Map<String, Map<String, Object>>> existingAccess =
+                getExistingAccessFields(requests);
+        // index name -> object prefix -> last version of the object prior to this batch
+        final Map<String, Map<String, Integer>> previousVersions = new LinkedHashMap<>();
+        // index name -> object prefix -> last version of the object
+        final Map<String, Map<String, Integer>> lastVersions = new LinkedHashMap<>();
+        // object prefix -> request with the highest version of the object in the batch
+        final Map<String, IndexObjectsRequest> lastRequests = new HashMap<>();
+        final boolean waitFor = refreshPolicy.equals(RefreshPolicy.WAIT_FOR);
+        // the position in the bulk body of the first action for each request
+        final List<Integer> firstActions = new ArrayList<>();
+        // bulk item position -> error for the items the storage system rejected
+        final Map<Integer, String> itemErrors;
+        final BulkRequestBody bulk = getBulkBody();
         try {
-            PrintWriter pw = new PrintWriter(tempFile);
-            int lastVersion = loadLastVersion(indexName, pguid, pguid.getVersion());
-            final String esParentId = checkParentDoc(indexName, new LinkedHashSet<>(
-                    Arrays.asList(pguid)), isPublic, lastVersion).get(pguid);
-            if (idToObjCopy.isEmpty()) {
-                // there were no search objects parsed from the source object, so just index
-                // the general object information
-                idToObjCopy.put(pguid, null);
-            }
-            Map<GUID, String> esIds = lookupDocIds(indexName, idToObjCopy.keySet());
-            for (GUID id : idToObjCopy.keySet()) {
-                final ParsedObject obj = idToObjCopy.get(id);
-                final Map<String, Object> doc = convertObject(id, rule.getGlobalObjectType(), obj,
-                        data, timestamp, parentJsonValue, isPublic, lastVersion);
-                final Map<String, Object> index = new HashMap<>();
-                index.put("_index", indexName);
-                index.put("_type", getDataTableName());
-                index.put("parent", esParentId);
-                if (esIds.containsKey(id)) {
-                    index.put("_id", esIds.get(id));
+            for (final IndexObjectsRequest req: requests) {
+                firstActions.add(bulk.getActionCount());
+                final String indexName = checkIndex(req.getRule(), false);
+                final GUID pguid = req.getParentGUID();
+                final String prefix = toGUIDPrefix(pguid);
+                previousVersions.putIfAbsent(indexName, new HashMap<>());
+                final Map<String, Integer> prevVers = previousVersions.get(indexName);
+                if (!prevVers.containsKey(prefix)) {
+                    Integer prev = ledger.get(prefix).getLastVersion(indexName);
+                    if (prev == null && !ledgerComplete) {
+                        // the object may have been indexed before the ledger existed
+                        refreshIfModified(indexName, Arrays.asList(prefix));
+                        prev = loadLastVersion(indexName, pguid, null);
+                    }
+                    prevVers.put(prefix, prev);
                 }
-                final Map<String, Object> header = ImmutableMap.of("index", index);
-                pw.println(UObject.transformObjectToString(header));
-                pw.println(UObject.transformObjectToString(doc));
+                final Integer prev = prevVers.get(prefix);
+                final int batchVersion = batchVersions.get(prefix);
+                final int lastVersion = prev == null ? batchVersion : Math.max(prev, batchVersion);
+                addToBulk(bulk, indexName, req, lastVersion, existingAccess.get(indexName));
+                lastVersions.putIfAbsent(indexName, new LinkedHashMap<>());
+                lastVersions.get(indexName).put(prefix, lastVersion);
+                // if any version is public, the public group must be updated
+                lastRequests.merge(prefix, req, (r1, r2) -> r1.isPublic() ? r1 : r2);
             }
-            pw.close();
-            makeBulkRequest("POST", indexName, tempFile);
-            updateLastVersionsInData(indexName, pguid, lastVersion);
+            itemErrors = checkBulkIndexingErrors(makeBulkRequest(bulk, waitFor));
         } finally {
-            tempFile.delete();
+            bulk.reset();
+        }
+        final Map<GUID, String> failures = new LinkedHashMap<>();
+        // index name -> object prefixes with a failed request
+        final Map<String, Set<String>> failedPrefixes = new HashMap<>();
+        for (final int item: itemErrors.keySet()) {
+            int reqIndex = 0;
+            while (reqIndex + 1 < firstActions.size() && firstActions.get(reqIndex + 1) <= item) {
+                reqIndex++;
+            }
+            final IndexObjectsRequest req = requests.get(reqIndex);
+            failures.putIfAbsent(req.getParentGUID(), itemErrors.get(item));
+            failedPrefixes.computeIfAbsent(checkIndex(req.getRule(), false),
+                    k -> new HashSet<>()).add(toGUIDPrefix(req.getParentGUID()));
+        }
+        for (final String indexName: lastVersions.keySet()) {
+            final Set<String> prefixes = lastVersions.get(indexName).keySet();
+            if (waitFor) {
+                // the bulk request waited for a refresh that included the access documents
+                final Set<String> modified = unrefreshed.get(indexName);
+                if (modified != null) {
+                    modified.removeAll(prefixes);
+                }
+            } else {
+                for (final String prefix: prefixes) {
+                    markModified(indexName, prefix);
+                }
+            }
+        }
+        /* the last versions and the ledger are left untouched for objects with rejected
+         * documents, since the documents for the object's last version may not exist. The
+         * object is completely rewritten if it's indexed again.
+         */
+        for (final String indexName: failedPrefixes.keySet()) {
+            lastVersions.get(indexName).keySet().removeAll(failedPrefixes.get(indexName));
+        }
+        /* the documents in the batch were written with the correct last version flags, so only
+         * the documents for the prior last version of each object need to be updated.
+         */
+        // object prefix -> index name -> new last version
+        final Map<String, Map<String, Integer>> ledgerUpdates = new HashMap<>();
+        for (final String indexName: lastVersions.keySet()) {
+            final Map<String, Integer> prefixToVer = lastVersions.get(indexName);
+            for (final String prefix: prefixToVer.keySet()) {
+                final Integer prev = previousVersions.get(indexName).get(prefix);
+                final int lastVersion = prefixToVer.get(prefix);
+                if (prev == null || prev < lastVersion) {
+                    if (prev != null) {
+                        updateLastVersionFlags(indexName, lastRequests.get(prefix), prev,
+                                lastVersion);
+                    }
+                    ledgerUpdates.computeIfAbsent(prefix, k -> new HashMap<>())
+                            .put(indexName, lastVersion);
+                }
+            }
+        }
+        // the ledger is updated last so a failed operation is fully redone on retry
+        updateLedger(ledgerUpdates, ledger, lastRequests);
+        for (final IndexObjectsRequest req: requests) {
+            markUncounted(req.getParentGUID().getAccessGroupId(),
+                    Arrays.asList(toGUIDPrefix(req.getParentGUID())));
+        }
+        refreshAfterWrite();
+        if (!failures.isEmpty()) {
+            throw new IndexRequestsFailedException(failures);
         }
-        refreshIndex(indexName);
     }
     
-    private Map<String, Object> convertObject(
-            final GUID id,
-            final SearchObjectType objectType,
-            final ParsedObject obj, 
-            final SourceData data,
-            final Instant timestamp,
-            final String parentJson,
-            final boolean isPublic,
-            final int lastVersion) {
-        Map<String, List<Object>> indexPart = new LinkedHashMap<>();
-        if (obj != null) {
-            for (String key : obj.getKeywords().keySet()) {
-                indexPart.put(getKeyProperty(key), obj.getKeywords().get(key));
+    /* returns the requests with all but the last request for each object version and index
+     * removed. Existing documents and versions are looked up before the bulk body is sent, so
+     * the lookups for a request can't see the documents written for an earlier request for the
+     * same object in the batch.
+     */
+    private List<IndexObjectsRequest> removeRepeatedObjects(
+            final List<IndexObjectsRequest> requests)
+            throws IOException {
+        // index name -> parent GUID -> last request
+        final Map<String, Map<GUID, IndexObjectsRequest>> last = new LinkedHashMap<>();
+        for (final IndexObjectsRequest req: requests) {
+            last.computeIfAbsent(checkIndex(req.getRule(), false), k -> new LinkedHashMap<>())
+                    .put(req.getParentGUID(), req);
+        }
+        final List<IndexObjectsRequest> ret = new ArrayList<>();
+        last.values().stream().forEach(m -> ret.addAll(m.values()));
+        return ret;
+    }
+    
+    /* returns index name -> parent GUID -> access fields of the existing access documents for the
+     * objects in indexes with access fields on the data documents. Reads are real time.
+     */
+    private Map<String, Map<String, Map<String, Object>>> getExistingAccessFields(
+            final List<IndexObjectsRequest> requests)
+            throws IOException {
+        final Map<String, Set<String>> pguids = new HashMap<>();
+        for (final IndexObjectsRequest req: requests) {
+            final String indexName = checkIndex(req.getRule(), false);
+            if (hasAccessFieldsOnData(indexName)) {
+                pguids.computeIfAbsent(indexName, k -> new HashSet<>())
+                        .add(req.getParentGUID().toString());
             }
         }
-        Map<String, Object> doc = new LinkedHashMap<>();
-        doc.putAll(indexPart);
-        doc.put(OBJ_GUID, id.toString());
-        doc.put(SEARCH_OBJ_TYPE, objectType.getType());
-        doc.put(SEARCH_OBJ_TYPE_VER, objectType.getVersion());
-        doc.put(SOURCE_TAGS, data.getSourceTags());
-
-        doc.put(OBJ_NAME, data.getName());
-        doc.put(OBJ_CREATOR, data.getCreator());
-        doc.put(OBJ_COPIER, data.getCopier().orNull());
+        final Map<String, Map<String, Map<String, Object>>> ret = new HashMap<>();
+        for (final String indexName: pguids.keySet()) {
+            final Map<String, Map<String, Object>> access = new HashMap<>();
+            for (final List<String> ids: partition(pguids.get(indexName))) {
+                final Response resp = makeRequest("POST",
+                        "/" + indexName + "/" + getAccessTableName() + "/_mget",
+                        ImmutableMap.of("ids", ids),
+                        ImmutableMap.of("_source", String.join(",", ACCESS_FIELDS)));
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> data = UObject.getMapper().readValue(
+                        resp.getEntity().getContent(), Map.class);
+                @SuppressWarnings("unchecked")
+                final List<Map<String, Object>> docs =
+                        (List<Map<String, Object>>) data.get("docs");
+                for (final Map<String, Object> doc: docs) {
+                    if (doc.get("error") != null) {
+                        throw new IOException("Failed reading access document for object " +
+                                doc.get("_id") + ": " +
+                                UObject.transformObjectToString(doc.get("error")));
+                    }
+                    if (Boolean.TRUE.equals(doc.get("found"))) {
+                        @SuppressWarnings("unchecked")
+                        final Map<String, Object> source =
+                                (Map<String, Object>) doc.get("_source");
+                        access.put((String) doc.get("_id"), source);
+                    }
+                }
+            }
+            ret.put(indexName, access);
+        }
+        return ret;
+    }
+    
+    /* adds the access document, for indexes with deterministic IDs, and the data documents for
+     * an object version to the bulk body. existingAccess maps parent GUID -> access fields of the
+     * existing access documents if the index has access fields on the data documents, and is
+     * otherwise null.
+     */
+    private void addToBulk(
+            final BulkRequestBody bulk,
+            final String indexName,
+            final IndexObjectsRequest req,
+            final int lastVersion,
+            final Map<String, Map<String, Object>> existingAccess)
+            throws IOException {
+        final GUID pguid = req.getParentGUID();
+        final Map<GUID, ParsedObject> idToObjCopy = new HashMap<>(req.getIdToObj());
+        for (GUID id : idToObjCopy.keySet()) {
+            GUID parentGuid = new GUID(id.getStorageCode(), id.getAccessGroupId(), 
+                    id.getAccessGroupObjectId(), id.getVersion(), null, null);
+            if (!parentGuid.equals(pguid)) {
+                throw new IllegalStateException("Object GUID doesn't match parent GUID");
+            }
+        }
+        final int layout = getIndexLayout(indexName);
+        final boolean deterministicIds = layout >= 2;
+        final String parentJson = req.getParentJson().orNull();
+        final boolean parentJsonOnAccessDoc = layout >= 3;
+        final String esParentId;
+        // the access fields to copy to the data documents, if any
+        final Map<String, Object> accessFields = new HashMap<>();
+        if (deterministicIds) {
+            esParentId = pguid.toString();
+            final Map<String, Object> accessMeta = ImmutableMap.of(
+                    "_index", indexName,
+                    "_type", getAccessTableName(),
+                    "_id", esParentId);
+            final Map<String, Object> accessDoc = createAccessDoc(
+                    pguid, req.isPublic(), lastVersion);
+            if (existingAccess != null) {
+                // an existing access document is not overwritten, so its fields are copied
+                final Map<String, Object> fields = existingAccess.containsKey(esParentId) ?
+                        existingAccess.get(esParentId) : accessDoc;
+                for (final String field: ACCESS_FIELDS) {
+                    accessFields.put(field, fields.get(field));
+                }
+            }
+            if (parentJsonOnAccessDoc && parentJson != null) {
+                /* the access document may predate layout 3 and so lack the parent data. If the
+                 * parent data is already present the update is a noop.
+                 */
+                accessDoc.put("pjson", parentJson);
+                // share, publish and delete operations may update the document concurrently
+                final Map<String, Object> updateMeta = new LinkedHashMap<>(accessMeta);
+                updateMeta.put("_retry_on_conflict", BULK_RETRY_ON_CONFLICT);
+                bulk.add("update", updateMeta, ImmutableMap.of(
+                        "doc", ImmutableMap.of("pjson", parentJson),
+                        "upsert", accessDoc));
+            } else {
+                // if the access document already exists the create action fails and is ignored
+                bulk.add("create", accessMeta, accessDoc);
+            }
+        } else {
+            refreshIfModified(indexName, Arrays.asList(toGUIDPrefix(pguid)));
+            esParentId = checkParentDoc(indexName, new LinkedHashSet<>(
+                    Arrays.asList(pguid)), req.isPublic(), lastVersion).get(pguid);
+        }
+        if (idToObjCopy.isEmpty()) {
+            // there were no search objects parsed from the source object, so just index
+            // the general object information
+            idToObjCopy.put(pguid, null);
+        }
+        final Map<GUID, String> esIds;
+        if (deterministicIds) {
+            esIds = idToObjCopy.keySet().stream().collect(
+                    Collectors.toMap(Function.identity(), id -> id.toString()));
+        } else {
+            esIds = lookupDocIds(indexName, idToObjCopy.keySet());
+        }
+        for (GUID id : idToObjCopy.keySet()) {
+            final ParsedObject obj = idToObjCopy.get(id);
+            final Map<String, Object> doc = convertObject(id,
+                    req.getRule().getGlobalObjectType(), obj, req.getSource(),
+                    req.getTimestamp(), parentJsonOnAccessDoc ? null : parentJson,
+                    req.isPublic(), lastVersion);
+            doc.putAll(accessFields);
+            final Map<String, Object> index = new HashMap<>();
+            index.put("_index", indexName);
+            index.put("_type", getDataTableName());
+            index.put("parent", esParentId);
+            if (esIds.containsKey(id)) {
+                index.put("_id", esIds.get(id));
+            }
+            bulk.add("index", index, doc);
+        }
+    }
+    
+    /* returns a mapping of the position of each failed action in a bulk indexing request to the
+     * error for the action. Creating an access document that already exists fails by design and
+     * is ignored. Failures of the request as a whole are thrown by makeBulkRequest.
+     */
+    private Map<Integer, String> checkBulkIndexingErrors(final Response resp)
+            throws IOException {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        final Map<Integer, String> ret = new LinkedHashMap<>();
+        if (!Boolean.TRUE.equals(data.get("errors"))) {
+            return ret;
+        }
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Map<String, Object>>> items =
+                (List<Map<String, Map<String, Object>>>) data.get("items");
+        for (int i = 0; i < items.size(); i++) {
+            final Map<String, Map<String, Object>> item = items.get(i);
+            final String action = item.keySet().iterator().next();
+            final Map<String, Object> result = item.get(action);
+            final int status = (Integer) result.get("status");
+            if (status >= 300 && !(status == 409 && action.equals("create"))) {
+                ret.put(i, String.format("Failed to %s document %s in index %s: %s",
+                        action, result.get("_id"), result.get("_index"),
+                        UObject.transformObjectToString(result.get("error"))));
+            }
+        }
+        return ret;
+    }
+    
+    private Map<String, Object> convertObject(
+            final GUID id,
+            final SearchObjectType objectType,
+            final ParsedObject obj, 
+            final SourceData data,
+            final Instant timestamp,
+            final String parentJson,
+            final boolean isPublic,
+            final int lastVersion) {
+        Map<String, List<Object>> indexPart = new LinkedHashMap<>();
+        if (obj != null) {
+            for (String key : obj.getKeywords().keySet()) {
+                indexPart.put(getKeyProperty(key), obj.getKeywords().get(key));
+            }
+        }
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.putAll(indexPart);
+        doc.put(OBJ_GUID, id.toString());
+        doc.put(SEARCH_OBJ_TYPE, objectType.getType());
+        doc.put(SEARCH_OBJ_TYPE_VER, objectType.getVersion());
+        doc.put(SOURCE_TAGS, data.getSourceTags());
+
+        doc.put(OBJ_NAME, data.getName());
+        doc.put(OBJ_CREATOR, data.getCreator());
+        doc.put(OBJ_COPIER, data.getCopier().orNull());
         doc.put(OBJ_PROV_MODULE, data.getModule().orNull());
         doc.put(OBJ_PROV_METHOD, data.getMethod().orNull());
         doc.put(OBJ_PROV_MODULE_VERSION, data.getVersion().orNull());
@@ -416,7 +1429,9 @@ public class ElasticIndexingStorage implements IndexingStorage {
         doc.put(OBJ_SHARED, false);
         if (obj != null) {
             doc.put("ojson", obj.getJson());
-            doc.put("pjson", parentJson);
+            if (parentJson != null) {
+                doc.put("pjson", parentJson);
+            }
         }
         return doc;
     }
@@ -426,10 +1441,18 @@ public class ElasticIndexingStorage implements IndexingStorage {
         refreshIndex(checkIndex(rule, true));
     }
     
+    @Override
+    public boolean flushBuffer(final boolean force) {
+        // writes are never buffered
+        return false;
+    }
+    
     private Map<GUID, String> lookupDocIds(String indexName, Set<GUID> guids) throws IOException {
 
-        // doc = {"query": {"bool": {"filter": [{"terms": {"guid": [guids]}}]}}}
+        // doc = {"query": {"bool": {"filter": [{"terms": {"guid": [guids]}}]}},
+        //        "_source": ["guid"]}
         Map<String, Object> doc = ImmutableMap.of(
+                "_source", Arrays.asList("guid"),
                 "query", ImmutableMap.of(
                         "bool", ImmutableMap.of(
                                 "filter", Arrays.asList(ImmutableMap.of(
@@ -439,28 +1462,18 @@ public class ElasticIndexingStorage implements IndexingStorage {
 
         String urlPath = "/" + indexName + "/" + getDataTableName() + "/_search";
         Response resp = makeRequest("GET", urlPath, doc);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
         Map<GUID, String> ret = new LinkedHashMap<>();
-        @SuppressWarnings("unchecked")
-        Map<String, Object> hitMap = (Map<String, Object>) data.get("hits");
-        @SuppressWarnings("unchecked")
-        List<Map<String, Object>> hitList = (List<Map<String, Object>>) hitMap.get("hits");
-        for (Map<String, Object> hit : hitList) {
-            String id = (String)hit.get("_id");
-            @SuppressWarnings("unchecked")
-            Map<String, Object> obj = (Map<String, Object>) hit.get("_source");
-            GUID guid = new GUID((String) obj.get("guid"));
-            ret.put(guid, id);
-        }
+        new SearchHitReader(f -> f.equals("guid"), false).read(resp.getEntity().getContent(),
+                hit -> ret.put(new GUID((String) hit.getSource().get("guid")), hit.getId()));
         return ImmutableMap.copyOf(ret);
     }
 
     private Map<GUID, String> lookupParentDocIds(String indexName, Set<GUID> guids) throws IOException {
-        // doc = {"query": {"bool": {"filter": [{"terms": {"pguid": [guids]}}]}}}
+        // doc = {"query": {"bool": {"filter": [{"terms": {"pguid": [guids]}}]}},
+        //        "_source": ["pguid"]}
         Map<String, Object> doc =
-                ImmutableMap.of("query",
+                ImmutableMap.of("_source", Arrays.asList("pguid"),
+                                "query",
                   ImmutableMap.of("bool",
                     ImmutableMap.of("filter",
                       Arrays.asList(ImmutableMap.of("terms",
@@ -469,21 +1482,9 @@ public class ElasticIndexingStorage implements IndexingStorage {
 
         String urlPath = "/" + indexName + "/" + getAccessTableName() + "/_search";
         Response resp = makeRequest("GET", urlPath, doc);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
         Map<GUID, String> ret = new LinkedHashMap<>();
-        @SuppressWarnings("unchecked")
-        Map<String, Object> hitMap = (Map<String, Object>) data.get("hits");
-        @SuppressWarnings("unchecked")
-        List<Map<String, Object>> hitList = (List<Map<String, Object>>) hitMap.get("hits");
-        for (Map<String, Object> hit : hitList) {
-            String id = (String)hit.get("_id");
-            @SuppressWarnings("unchecked")
-            Map<String, Object> obj = (Map<String, Object>) hit.get("_source");
-            GUID guid = new GUID((String)obj.get("pguid"));
-            ret.put(guid, id);
-        }
+        new SearchHitReader(f -> f.equals("pguid"), false).read(resp.getEntity().getContent(),
+                hit -> ret.put(new GUID((String) hit.getSource().get("pguid")), hit.getId()));
         return ImmutableMap.copyOf(ret);
     }
 
@@ -493,38 +1494,30 @@ public class ElasticIndexingStorage implements IndexingStorage {
             parentIds.add(new GUID(guid.getStorageCode(), guid.getAccessGroupId(), 
                     guid.getAccessGroupObjectId(), guid.getVersion(), null, null).toString());
         }
+        refreshIfModified(getAnyIndexPattern(), toGUIDPrefixes(ids));
 
-        // doc = {"query": {"bool": {"filter": {"terms: ": {"pguid": [ids]}}}},
-        //        "_source": ["pguid"]}
-        Map<String, Object> doc =
-                ImmutableMap.of("query",
-                   ImmutableMap.of("bool",
-                      ImmutableMap.of("filter",
-                         ImmutableMap.of("terms",
-                            ImmutableMap.of("pguid", parentIds)))),
-                                            "_source", Arrays.asList("pguid"));
-
-        String urlPath = "/" + indexNamePrefix + "*/" + getAccessTableName() + "/_search";
-        Response resp = makeRequest("GET", urlPath, doc);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
         Map<String, Set<GUID>> ret = new LinkedHashMap<>();
-        @SuppressWarnings("unchecked")
-        Map<String, Object> hitMap = (Map<String, Object>) data.get("hits");
-        @SuppressWarnings("unchecked")
-        List<Map<String, Object>> hitList = (List<Map<String, Object>>) hitMap.get("hits");
-        for (Map<String, Object> hit : hitList) {
-            String indexName = (String)hit.get("_index");
-            Set<GUID> retSet = ret.get(indexName);
-            if (retSet == null) {
-                retSet = new LinkedHashSet<>();
-                ret.put(indexName, retSet);
-            }
-            @SuppressWarnings("unchecked")
-            Map<String, Object> obj = (Map<String, Object>) hit.get("_source");
-            GUID guid = new GUID((String)obj.get("pguid"));
-            retSet.add(guid);
+        for (final List<String> chunk: partition(parentIds)) {
+            // an object may have an access document in each index the object was indexed in
+            // doc = {"query": {"bool": {"filter": {"terms: ": {"pguid": [ids]}}}},
+            //        "_source": ["pguid"],
+            //        "size": MAX_RESULT_WINDOW}
+            Map<String, Object> doc =
+                    ImmutableMap.of("query",
+                       ImmutableMap.of("bool",
+                          ImmutableMap.of("filter",
+                             ImmutableMap.of("terms",
+                                ImmutableMap.of("pguid", chunk)))),
+                                                "_source", Arrays.asList("pguid"),
+                                                "size", MAX_RESULT_WINDOW);
+
+            String urlPath = "/" + getAnyIndexPattern() + "/" + getAccessTableName() +
+                    "/_search";
+            Response resp = makeRequest("GET", urlPath, doc);
+            new SearchHitReader(f -> f.equals("pguid"), false).read(
+                    resp.getEntity().getContent(), hit -> ret.computeIfAbsent(
+                            hit.getIndex(), k -> new LinkedHashSet<>())
+                            .add(new GUID((String) hit.getSource().get("pguid"))));
         }
         return ImmutableMap.copyOf(ret);
     }
@@ -568,6 +1561,7 @@ public class ElasticIndexingStorage implements IndexingStorage {
                 null, null))
                 .collect(Collectors.toSet());
         final String indexName = getAnyIndexPattern();
+        refreshIfModified(indexName, toGUIDPrefixes(parentGUIDs));
         // In next operation map value may contain one of possible parents in case objectType==null
         final Map<GUID, String> map = lookupParentDocIds(indexName, parentGUIDs);
         return ImmutableMap.copyOf(parentGUIDs.stream().collect(
@@ -581,8 +1575,10 @@ public class ElasticIndexingStorage implements IndexingStorage {
         }
         String prefix = toGUIDPrefix(parentGUID);
 
-        // doc = {"query": {"bool": {"filter": [{"term": {"prefix": prefix}}]}}}
-        Map<String, Object> doc = ImmutableMap.of("query",
+        // doc = {"query": {"bool": {"filter": [{"term": {"prefix": prefix}}]}},
+        //        "_source": ["version"]}
+        Map<String, Object> doc = ImmutableMap.of("_source", Arrays.asList("version"),
+                                  "query",
                                      ImmutableMap.of("bool",
                                         ImmutableMap.of("filter",
                                            Arrays.asList(ImmutableMap.of(
@@ -613,30 +1609,1002 @@ public class ElasticIndexingStorage implements IndexingStorage {
         return ret;
     }
     
+    /* updates the last version flags of the documents for one version of an object after the
+     * last version of the object in the index changed.
+     */
+    private void updateLastVersionFlags(
+            final String indexName,
+            final IndexObjectsRequest req,
+            final int version,
+            final int lastVersion)
+            throws IOException {
+        final GUID pguid = req.getParentGUID();
+        final String prefix = toGUIDPrefix(pguid);
+        refreshIfModified(indexName, Arrays.asList(prefix));
+        final List<Integer> versions = Arrays.asList(version);
+        updateLastVersionsInData(indexName, prefix, lastVersion, versions);
+        updateAccessGroupForVersions(indexName, pguid, lastVersion, pguid.getAccessGroupId(),
+                req.isPublic(), true, versions);
+    }
+    
+    // returns the last version of an object in any index, or null if it has never been indexed
+    private Integer getLastVersion(final GUID guid) throws IOException {
+        final boolean complete = checkVersionLedger();
+        final String prefix = toGUIDPrefix(guid);
+        final Integer ret = getLedgerEntries(Arrays.asList(prefix)).get(prefix).getLastVersion();
+        if (ret == null && !complete) {
+            // the object may have been indexed before the ledger existed
+            return loadLastVersion(null, guid, null);
+        }
+        return ret;
+    }
+    
+    /* The last versions of an object in each index, as recorded in the version ledger. */
+    private static class LedgerEntry {
+        
+        // the ElasticSearch version of the ledger document, or null if there is no document
+        private final Long docVersion;
+        // index name -> last version of the object in the index
+        private final Map<String, Integer> lastVersions;
+        
+        private LedgerEntry(final Long docVersion, final Map<String, Integer> lastVersions) {
+            this.docVersion = docVersion;
+            this.lastVersions = lastVersions;
+        }
+        
+        private Integer getLastVersion(final String indexName) {
+            return lastVersions.get(indexName);
+        }
+        
+        private Integer getLastVersion() {
+            return lastVersions.isEmpty() ? null : Collections.max(lastVersions.values());
+        }
+    }
+    
+    private String getLedgerIndex() {
+        return indexNamePrefix + LEDGER_INDEX;
+    }
+    
+    /* Returns true if the version ledger contains every object in the indexes, in which case
+     * objects missing from the ledger have never been indexed. Otherwise the ledger was created
+     * after objects were indexed and the access documents must be searched for objects missing
+     * from the ledger until the ledger is built by migrateIndexes(). Creates the ledger if it
+     * does not exist.
+     */
+    private boolean checkVersionLedger() throws IOException {
+        Boolean complete = ledgerComplete;
+        if (complete == null) {
+            complete = loadVersionLedger();
+            ledgerComplete = complete;
+        }
+        return complete;
+    }
+    
+    private synchronized boolean loadVersionLedger() throws IOException {
+        final String ledger = getLedgerIndex();
+        if (!indexCatalog.contains(ledger, true)) {
+            // if nothing has been indexed yet, the ledger will see every object
+            final boolean complete = !hasTypeIndexes();
+            try {
+                makeRequest("PUT", "/" + ledger,
+                        ImmutableMap.of("mappings", createLedgerTable(complete)));
+                indexCatalog.add(ledger);
+                return complete;
+            } catch (IOException e) {
+                // another process may have created the ledger in the meantime
+                indexCatalog.reloadNow();
+                if (!indexCatalog.contains(ledger, false)) {
+                    throw e;
+                }
+            }
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> meta = (Map<String, Object>) getIndexMappings(ledger)
+                .get(LEDGER_TYPE).get("_meta");
+        return meta != null && Boolean.TRUE.equals(meta.get(META_LEDGER_COMPLETE));
+    }
+    
+    private Map<String, Object> createLedgerTable(final boolean complete) {
+        // mappings = {"ledger": {"_meta": {"complete": complete},
+        //                        "properties": {"last": {"type": "object",
+        //                                                "enabled": false}}}}
+        // the last versions are keyed by index name and are never searched, so aren't indexed
+        return ImmutableMap.of(LEDGER_TYPE, ImmutableMap.of(
+                "_meta", ImmutableMap.of(META_LEDGER_COMPLETE, complete),
+                "properties", ImmutableMap.of(LEDGER_LAST, ImmutableMap.of(
+                        "type", "object",
+                        "enabled", false))));
+    }
+    
+    // returns object prefix -> ledger entry for each prefix. Reads are real time.
+    private Map<String, LedgerEntry> getLedgerEntries(final Collection<String> prefixes)
+            throws IOException {
+        final Map<String, LedgerEntry> ret = new HashMap<>();
+        if (prefixes.isEmpty()) {
+            return ret;
+        }
+        final Response resp = makeRequest("POST",
+                "/" + getLedgerIndex() + "/" + LEDGER_TYPE + "/_mget",
+                ImmutableMap.of("ids", new ArrayList<>(prefixes)));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> docs = (List<Map<String, Object>>) data.get("docs");
+        for (final Map<String, Object> doc: docs) {
+            final String prefix = (String) doc.get("_id");
+            if (doc.get("error") != null) {
+                throw new IOException("Failed reading version ledger for object " + prefix +
+                        ": " + UObject.transformObjectToString(doc.get("error")));
+            }
+            if (Boolean.TRUE.equals(doc.get("found"))) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> source = (Map<String, Object>) doc.get("_source");
+                @SuppressWarnings("unchecked")
+                final Map<String, Integer> last = (Map<String, Integer>) source.get(LEDGER_LAST);
+                ret.put(prefix, new LedgerEntry(((Number) doc.get("_version")).longValue(),
+                        last == null ? Collections.emptyMap() : last));
+            } else {
+                ret.put(prefix, new LedgerEntry(null, Collections.emptyMap()));
+            }
+        }
+        return ret;
+    }
+    
+    /* Records new last versions in the ledger. If another process updates the ledger entry for
+     * an object concurrently, the entry is reread, the last version flags of any documents
+     * for versions that are no longer or are now the last version are corrected, and the write
+     * is retried.
+     * updates is object prefix -> index name -> new last version of the object.
+     */
+    private void updateLedger(
+            final Map<String, Map<String, Integer>> updates,
+            final Map<String, LedgerEntry> entries,
+            final Map<String, IndexObjectsRequest> requests)
+            throws IOException {
+        Map<String, Map<String, Integer>> pending = updates;
+        Map<String, LedgerEntry> current = entries;
+        while (!pending.isEmpty()) {
+            final Set<String> conflicts = writeLedgerEntries(pending, current);
+            current = getLedgerEntries(conflicts);
+            final Map<String, Map<String, Integer>> retry = new HashMap<>();
+            for (final String prefix: conflicts) {
+                final Map<String, Integer> merged = new HashMap<>();
+                final Map<String, Integer> ours = pending.get(prefix);
+                for (final String indexName: ours.keySet()) {
+                    final int version = ours.get(indexName);
+                    final Integer theirs = current.get(prefix).getLastVersion(indexName);
+                    if (theirs == null || theirs < version) {
+                        if (theirs != null) {
+                            updateLastVersionFlags(indexName, requests.get(prefix), theirs,
+                                    version);
+                        }
+                        merged.put(indexName, version);
+                    } else if (theirs > version) {
+                        updateLastVersionFlags(indexName, requests.get(prefix), version,
+                                theirs);
+                    }
+                }
+                if (!merged.isEmpty()) {
+                    retry.put(prefix, merged);
+                }
+            }
+            pending = retry;
+        }
+    }
+    
+    // returns the prefixes of the objects where the ledger entry was modified since it was read
+    private Set<String> writeLedgerEntries(
+            final Map<String, Map<String, Integer>> updates,
+            final Map<String, LedgerEntry> entries)
+            throws IOException {
+        final List<String> prefixes = new ArrayList<>(updates.keySet());
+        final BulkRequestBody bulk = getBulkBody();
+        final Response resp;
+        try {
+            for (final String prefix: prefixes) {
+                final LedgerEntry entry = entries.get(prefix);
+                final Map<String, Integer> last = new TreeMap<>(entry.lastVersions);
+                last.putAll(updates.get(prefix));
+                final Map<String, Object> action = new LinkedHashMap<>();
+                action.put("_index", getLedgerIndex());
+                action.put("_type", LEDGER_TYPE);
+                action.put("_id", prefix);
+                if (entry.docVersion == null) {
+                    bulk.add("create", action, ImmutableMap.of(LEDGER_LAST, last));
+                } else {
+                    // fails if the entry was modified since it was read
+                    action.put("_version", entry.docVersion);
+                    bulk.add("index", action, ImmutableMap.of(LEDGER_LAST, last));
+                }
+            }
+            resp = makeBulkRequest(bulk, false);
+        } finally {
+            bulk.reset();
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Map<String, Object>>> items =
+                (List<Map<String, Map<String, Object>>>) data.get("items");
+        final Set<String> conflicts = new HashSet<>();
+        for (int i = 0; i < items.size(); i++) {
+            final Map<String, Object> result = items.get(i).values().iterator().next();
+            final int status = (Integer) result.get("status");
+            if (status == 409) {
+                conflicts.add(prefixes.get(i));
+            } else if (status >= 300) {
+                throw new IOException("Failed updating version ledger for object " +
+                        prefixes.get(i) + ": " +
+                        UObject.transformObjectToString(result.get("error")));
+            }
+        }
+        return conflicts;
+    }
+    
+    /* Builds the version ledger from the access documents in all the indexes and marks the
+     * ledger as complete. No indexing should occur while the ledger is built.
+     * The access documents are read in order of object prefix, so the entries for each page
+     * can be written as soon as the page is read, other than the entry for the last prefix in
+     * the page, which may have more access documents in the next page.
+     */
+    private void buildVersionLedger() throws IOException {
+        final String pattern = getAnyIndexPattern();
+        makeRequest("POST", "/" + pattern + "/_refresh", null);
+        // object prefix -> index name -> last version
+        final Map<String, Map<String, Integer>> last = new LinkedHashMap<>();
+        scrollAccessDocuments(pattern, Arrays.asList("prefix", "version"),
+                Arrays.asList(ImmutableMap.of("prefix", ImmutableMap.of(
+                        "order", "asc", "unmapped_type", "keyword"))),
+                LEDGER_BUILD_BATCH_SIZE, hits -> {
+                    String prefix = null;
+                    for (final Map<String, Object> hit: hits) {
+                        @SuppressWarnings("unchecked")
+                        final Map<String, Object> source =
+                                (Map<String, Object>) hit.get("_source");
+                        prefix = (String) source.get("prefix");
+                        last.computeIfAbsent(prefix, k -> new TreeMap<>())
+                                .merge((String) hit.get("_index"),
+                                        (Integer) source.get("version"), Math::max);
+                    }
+                    final Map<String, Integer> carried = last.remove(prefix);
+                    writeLedgerBuildEntries(last);
+                    last.clear();
+                    last.put(prefix, carried);
+                });
+        writeLedgerBuildEntries(last);
+        // only mark the ledger complete once every entry is written
+        makeRequest("PUT", "/" + getLedgerIndex() + "/_mapping/" + LEDGER_TYPE,
+                ImmutableMap.of("_meta", ImmutableMap.of(META_LEDGER_COMPLETE, true)));
+        ledgerComplete = true;
+    }
+    
+    // writes ledger entries while the ledger is built, overwriting any existing entries
+    private void writeLedgerBuildEntries(final Map<String, Map<String, Integer>> entries)
+            throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final List<String> prefixes = new ArrayList<>(entries.keySet());
+        final BulkRequestBody bulk = getBulkBody();
+        final Response resp;
+        try {
+            for (final String prefix: prefixes) {
+                bulk.add("index", ImmutableMap.of(
+                        "_index", getLedgerIndex(),
+                        "_type", LEDGER_TYPE,
+                        "_id", prefix),
+                        ImmutableMap.of(LEDGER_LAST, entries.get(prefix)));
+            }
+            resp = makeBulkRequest(bulk, false);
+        } finally {
+            bulk.reset();
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Map<String, Object>>> items =
+                (List<Map<String, Map<String, Object>>>) data.get("items");
+        for (int i = 0; i < items.size(); i++) {
+            final Map<String, Object> result = items.get(i).values().iterator().next();
+            if ((Integer) result.get("status") >= 300) {
+                throw new IOException("Failed building version ledger entry for object " +
+                        prefixes.get(i) + ": " +
+                        UObject.transformObjectToString(result.get("error")));
+            }
+        }
+    }
+    
+    // a consumer of a page of search hits
+    private interface HitsConsumer {
+        
+        void accept(List<Map<String, Object>> hits) throws IOException;
+    }
+    
+    /* passes every access document in the indexes matching the index name or pattern to the
+     * consumer in pages of the given size.
+     */
+    private void scrollAccessDocuments(
+            final String indexName,
+            final List<String> sourceFields,
+            final int pageSize,
+            final HitsConsumer consumer)
+            throws IOException {
+        // _doc is the most efficient order for scrolling
+        scrollAccessDocuments(indexName, sourceFields, Arrays.asList("_doc"), pageSize,
+                consumer);
+    }
+    
+    /* passes every access document in the indexes matching the index name or pattern to the
+     * consumer in pages of the given size, in the given sort order.
+     */
+    private void scrollAccessDocuments(
+            final String indexName,
+            final List<String> sourceFields,
+            final List<?> sort,
+            final int pageSize,
+            final HitsConsumer consumer)
+            throws IOException {
+        final Map<String, Object> query = ImmutableMap.of(
+                "size", pageSize,
+                "_source", sourceFields,
+                "sort", sort);
+        Response resp = makeRequest("POST", "/" + indexName + "/" + getAccessTableName() +
+                "/_search", query, ImmutableMap.of("scroll", "1m"));
+        String scrollId = null;
+        try {
+            while (true) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> data = UObject.getMapper().readValue(
+                        resp.getEntity().getContent(), Map.class);
+                scrollId = (String) data.get("_scroll_id");
+                @SuppressWarnings("unchecked")
+                final List<Map<String, Object>> hits = (List<Map<String, Object>>)
+                        ((Map<String, Object>) data.get("hits")).get("hits");
+                if (hits.isEmpty()) {
+                    break;
+                }
+                consumer.accept(hits);
+                resp = makeRequest("POST", "/_search/scroll",
+                        ImmutableMap.of("scroll", "1m", "scroll_id", scrollId));
+            }
+        } finally {
+            if (scrollId != null) {
+                makeRequest("DELETE", "/_search/scroll",
+                        ImmutableMap.of("scroll_id", Arrays.asList(scrollId)));
+            }
+        }
+    }
+    
+    /* Copies the access fields of the access documents in an index to the data documents and
+     * marks the index as having access fields on the data documents. No indexing should occur
+     * while the fields are copied.
+     */
+    private void addAccessFields(final String index) throws IOException {
+        makeRequest("PUT", "/" + index + "/_mapping/" + getDataTableName(),
+                ImmutableMap.of("properties", createAccessFieldsMapping()));
+        refreshIndex(index);
+        scrollAccessDocuments(index, ACCESS_FIELDS, ACCESS_FIELDS_BATCH_SIZE, hits -> {
+            // parent GUID -> access fields
+            final Map<String, Object> access = new HashMap<>();
+            final Set<String> prefixes = new HashSet<>();
+            for (final Map<String, Object> hit: hits) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> source = (Map<String, Object>) hit.get("_source");
+                final String pguid = (String) source.get("pguid");
+                access.put(pguid, source);
+                prefixes.add(toGUIDPrefix(new GUID(pguid)));
+            }
+            /* data documents for versions of the objects in other pages are matched but not
+             * modified, so they are not modified twice without a refresh.
+             */
+            updateByQuery(index, getDataTableName(),
+                    createFilter("terms", OBJ_PREFIX, prefixes),
+                    getScript(StoredScript.SET_ACCESS_FIELDS, ImmutableMap.of("access", access)),
+                    prefixes);
+        });
+        // the index is only marked once every data document has the fields
+        makeRequest("PUT", "/" + index + "/_mapping/" + getDataTableName(), ImmutableMap.of(
+                "_meta", ImmutableMap.of(
+                        META_LAYOUT, getIndexLayout(index),
+                        META_ACCESS_FIELDS, true)));
+        indexAccessFields.put(index, true);
+    }
+    
+    private String getTypeCountsIndex() {
+        return indexNamePrefix + TYPE_COUNTS_INDEX;
+    }
+    
+    // returns true if the index is maintained by this class rather than holding a type
+    private boolean isAuxiliaryIndex(final String indexName) {
+        return indexName.equals(getLedgerIndex()) || indexName.equals(getTypeCountsIndex()) ||
+                indexName.equals(getAccessGroupsIndex());
+    }
+    
+    private String getAccessGroupsIndex() {
+        return indexNamePrefix + ACCESS_GROUPS_INDEX;
+    }
+    
+    // creates the access groups index if it does not exist
+    private synchronized void checkAccessGroupsIndex() throws IOException {
+        final String index = getAccessGroupsIndex();
+        if (indexCatalog.contains(index, true)) {
+            return;
+        }
+        // the index is small and read by every search, so a copy is kept on every node
+        final Map<String, Object> doc = ImmutableMap.of(
+                "settings", ImmutableMap.of(
+                        "number_of_shards", 1,
+                        "auto_expand_replicas", "0-all"),
+                "mappings", ImmutableMap.of(ACCESS_GROUPS_TYPE, ImmutableMap.of(
+                        "properties", ImmutableMap.of(ACCESS_GROUPS_FIELD,
+                                ImmutableMap.of("type", "integer")))));
+        try {
+            makeRequest("PUT", "/" + index, doc);
+            indexCatalog.add(index);
+        } catch (IOException e) {
+            // another process may have created the index in the meantime
+            indexCatalog.reloadNow();
+            if (!indexCatalog.contains(index, false)) {
+                throw e;
+            }
+        }
+    }
+    
+    /* Returns a terms filter on the field for the access groups in the access filter, referring
+     * to the stored access groups if this instance stored the same groups under the filter's
+     * lookup key.
+     */
+    private Map<String, Object> createAccessGroupsFilter(
+            final String field,
+            final AccessFilter accessFilter) {
+        final Set<Integer> groups = accessFilter.accessGroupIds == null ?
+                Collections.emptySet() : accessFilter.accessGroupIds;
+        if (isAccessGroupsStored(accessFilter)) {
+            // terms = {"terms": {field: {"index": index, "type": type, "id": key,
+            //                            "path": "groups"}}}
+            return ImmutableMap.of("terms", ImmutableMap.of(field, ImmutableMap.of(
+                    "index", getAccessGroupsIndex(),
+                    "type", ACCESS_GROUPS_TYPE,
+                    "id", accessFilter.accessGroupsLookupKey,
+                    "path", ACCESS_GROUPS_FIELD)));
+        }
+        return createFilter("terms", field, groups);
+    }
+    
+    private boolean isAccessGroupsStored(final AccessFilter accessFilter) {
+        if (accessFilter.accessGroupsLookupKey == null || accessFilter.accessGroupIds == null ||
+                accessGroupsLookupMinimum < 1) {
+            return false;
+        }
+        final Set<Integer> stored = storedAccessGroups.getIfPresent(
+                accessFilter.accessGroupsLookupKey);
+        return stored != null && stored.size() == accessFilter.accessGroupIds.size() &&
+                stored.containsAll(accessFilter.accessGroupIds);
+    }
+    
+    private boolean hasTypeIndexes() throws IOException {
+        for (final String index: indexCatalog.getIndexes()) {
+            if (!isAuxiliaryIndex(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /* Returns true if the type counts include every object in the indexes. Otherwise the counts
+     * were created after objects were indexed and cannot be used until they are built by
+     * migrateIndexes(). Creates the type counts index if it does not exist.
+     */
+    private boolean checkTypeCounts() throws IOException {
+        Boolean complete = typeCountsComplete;
+        if (complete == null) {
+            complete = loadTypeCounts();
+            typeCountsComplete = complete;
+        }
+        return complete;
+    }
+    
+    private synchronized boolean loadTypeCounts() throws IOException {
+        final String counts = getTypeCountsIndex();
+        if (!indexCatalog.contains(counts, true)) {
+            // if nothing has been indexed yet, every object will be counted
+            final boolean complete = !hasTypeIndexes();
+            try {
+                makeRequest("PUT", "/" + counts,
+                        ImmutableMap.of("mappings", createTypeCountsTable(complete)));
+                indexCatalog.add(counts);
+                return complete;
+            } catch (IOException e) {
+                // another process may have created the counts in the meantime
+                indexCatalog.reloadNow();
+                if (!indexCatalog.contains(counts, false)) {
+                    throw e;
+                }
+            }
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> meta = (Map<String, Object>) getIndexMappings(counts)
+                .get(TYPE_COUNTS_TYPE).get("_meta");
+        return meta != null && Boolean.TRUE.equals(meta.get(META_TYPE_COUNTS_COMPLETE));
+    }
+    
+    private Map<String, Object> createTypeCountsTable(final boolean complete) {
+        // the counts are keyed by type name and are never searched, so aren't indexed
+        final Map<String, Object> unindexed = ImmutableMap.of(
+                "type", "object",
+                "enabled", false);
+        return ImmutableMap.of(
+                TYPE_COUNTS_TYPE, ImmutableMap.of(
+                        "_meta", ImmutableMap.of(META_TYPE_COUNTS_COMPLETE, complete),
+                        "properties", ImmutableMap.of(
+                                TYPE_COUNTS_ALL, unindexed,
+                                TYPE_COUNTS_NO_SUB, unindexed,
+                                TYPE_COUNTS_SHARED_IN, ImmutableMap.of("type", "integer"))),
+                TYPE_COUNTS_DIRTY_TYPE, ImmutableMap.of(
+                        "properties", ImmutableMap.of(
+                                TYPE_COUNTS_MARKED_AT, ImmutableMap.of("type", "long"))));
+    }
+    
+    /* Marks the type counts of the access groups as out of date in the type counts index. Must
+     * be called before the access groups are modified, so that the mark exists even if this
+     * process dies before the modification is counted.
+     * A count by another process that starts while the modification is in progress removes the
+     * mark without counting the modification, in which case only the count this process makes
+     * after the modification updates the counts.
+     */
+    private void markUncountedInStorage(final Collection<Integer> accessGroupIds)
+            throws IOException {
+        // the public and admin groups are never counted
+        final Set<Integer> marking = accessGroupIds.stream()
+                .filter(g -> g >= 0)
+                .collect(Collectors.toCollection(TreeSet::new));
+        if (marking.isEmpty()) {
+            return;
+        }
+        checkTypeCounts();
+        final long markedAt = System.currentTimeMillis();
+        final BulkRequestBody bulk = getBulkBody();
+        final Response resp;
+        try {
+            for (final Integer accessGroupId: marking) {
+                final Map<String, Object> action = new LinkedHashMap<>();
+                action.put("_index", getTypeCountsIndex());
+                action.put("_type", TYPE_COUNTS_DIRTY_TYPE);
+                action.put("_id", String.valueOf(accessGroupId));
+                action.put("_version", markedAt);
+                action.put("_version_type", "external_gte");
+                bulk.add("index", action, ImmutableMap.of(TYPE_COUNTS_MARKED_AT, markedAt));
+            }
+            resp = makeBulkRequest(bulk, false);
+        } finally {
+            bulk.reset();
+        }
+        checkTypeCountsBulkErrors(resp, "marking type counts as out of date");
+    }
+    
+    /* Marks access groups marked as out of date in the type counts index long enough ago that
+     * the process that marked them has probably died as uncounted by this process, so that they
+     * are counted. Checks at most once per ABANDONED_DIRTY_MARK_MS.
+     */
+    private void markAbandonedUncounted() throws IOException {
+        final long now = System.currentTimeMillis();
+        if (now - abandonedMarksCheckedAt < ABANDONED_DIRTY_MARK_MS) {
+            return;
+        }
+        checkTypeCounts();
+        final Map<String, Object> doc = ImmutableMap.of(
+                "query", ImmutableMap.of("range", ImmutableMap.of(TYPE_COUNTS_MARKED_AT,
+                        ImmutableMap.of("lt", now - ABANDONED_DIRTY_MARK_MS))),
+                "_source", false,
+                "size", MAX_TERMS_PER_QUERY);
+        final Response resp = makeRequest("GET", "/" + getTypeCountsIndex() + "/" +
+                TYPE_COUNTS_DIRTY_TYPE + "/_search", doc);
+        final SearchHitReader reader = new SearchHitReader(f -> false, false);
+        // the access groups are refreshed by the index refresh interval long before they're
+        // counted, so there are no modified objects to refresh
+        reader.read(resp.getEntity().getContent(), hit -> markUncounted(
+                Integer.parseInt(hit.getId()), Collections.emptyList()));
+        abandonedMarksCheckedAt = now;
+    }
+    
+    // records that the type counts of an access group must be updated
+    private void markUncounted(final int accessGroupId, final Collection<String> prefixes) {
+        // the public and admin groups are never counted
+        if (accessGroupId >= 0) {
+            uncountedGroups.computeIfAbsent(accessGroupId, k -> ConcurrentHashMap.newKeySet())
+                    .addAll(prefixes);
+        }
+    }
+    
+    /* Counts the types in the access groups modified since they were last counted. Any
+     * modifications to the objects in the access groups that are not yet visible are refreshed
+     * first so that they are counted.
+     */
+    private void updateTypeCounts() throws IOException {
+        if (uncountedGroups.isEmpty()) {
+            return;
+        }
+        // access group ID -> modified object prefixes
+        final Map<Integer, Set<String>> counting = new HashMap<>();
+        for (final Integer accessGroupId: new ArrayList<>(uncountedGroups.keySet())) {
+            // any modifications made after this point will be marked in a new set
+            final Set<String> prefixes = uncountedGroups.remove(accessGroupId);
+            if (prefixes != null) {
+                counting.put(accessGroupId, prefixes);
+            }
+        }
+        try {
+            checkTypeCounts();
+            final Set<String> prefixes = new HashSet<>();
+            counting.values().stream().forEach(p -> prefixes.addAll(p));
+            refreshIfModified(getAnyIndexPattern(), prefixes);
+            for (final List<Integer> accessGroupIds: partition(counting.keySet())) {
+                writeTypeCounts(accessGroupIds);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (final Integer accessGroupId: counting.keySet()) {
+                markUncounted(accessGroupId, counting.get(accessGroupId));
+            }
+            throw e;
+        }
+    }
+    
+    /* Counts the types in the access groups and writes the counts to the type counts index. The
+     * documents are versioned by the time the counting started so that counts written
+     * concurrently by other processes are never overwritten with older counts. Any marks made
+     * before the counting started that the counts are out of date are removed.
+     */
+    private void writeTypeCounts(final List<Integer> accessGroupIds) throws IOException {
+        final long countedAt = System.currentTimeMillis();
+        final Map<Integer, Map<String, Integer>> all = countTypes(accessGroupIds, false);
+        final Map<Integer, Map<String, Integer>> noSub = countTypes(accessGroupIds, true);
+        final Map<Integer, Integer> sharedIn = countSharedIn(accessGroupIds);
+        final BulkRequestBody bulk = getBulkBody();
+        final Response resp;
+        try {
+            for (final Integer accessGroupId: accessGroupIds) {
+                final Map<String, Object> action = new LinkedHashMap<>();
+                action.put("_index", getTypeCountsIndex());
+                action.put("_type", TYPE_COUNTS_TYPE);
+                action.put("_id", String.valueOf(accessGroupId));
+                action.put("_version", countedAt);
+                action.put("_version_type", "external_gte");
+                bulk.add("index", action, ImmutableMap.of(
+                        TYPE_COUNTS_ALL, all.getOrDefault(accessGroupId,
+                                Collections.emptyMap()),
+                        TYPE_COUNTS_NO_SUB, noSub.getOrDefault(accessGroupId,
+                                Collections.emptyMap()),
+                        TYPE_COUNTS_SHARED_IN, sharedIn.getOrDefault(accessGroupId, 0)));
+                final Map<String, Object> dirty = new LinkedHashMap<>(action);
+                dirty.put("_type", TYPE_COUNTS_DIRTY_TYPE);
+                bulk.add("delete", dirty, null);
+            }
+            resp = makeBulkRequest(bulk, false);
+        } finally {
+            bulk.reset();
+        }
+        checkTypeCountsBulkErrors(resp, "updating type counts");
+    }
+    
+    /* Throws an exception for the first failed item of a bulk request to the type counts index.
+     * 409 means a newer document was already written, or a newer mark made, and 404 that there
+     * was no mark to delete, so neither are failures.
+     */
+    private void checkTypeCountsBulkErrors(final Response resp, final String operation)
+            throws IOException {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Map<String, Object>>> items =
+                (List<Map<String, Map<String, Object>>>) data.get("items");
+        for (final Map<String, Map<String, Object>> item: items) {
+            final Map<String, Object> result = item.values().iterator().next();
+            final int status = (Integer) result.get("status");
+            if (status >= 300 && status != 409 && status != 404) {
+                throw new IOException("Failed " + operation + " for access group " +
+                        result.get("_id") + ": " +
+                        UObject.transformObjectToString(result.get("error")));
+            }
+        }
+    }
+    
+    // returns access group ID -> type -> number of last versions owned by the access group
+    private Map<Integer, Map<String, Integer>> countTypes(
+            final List<Integer> accessGroupIds,
+            final boolean excludeSubObjects)
+            throws IOException {
+        // aggs = {"groups": {"terms": {"field": "accgrp", "size": groups},
+        //                    "aggregations": {"types": {"terms": {"field": "otype",
+        //                                                         "size": max}}}}}
+        final Map<String, Object> aggs = ImmutableMap.of("groups", ImmutableMap.of(
+                "terms", ImmutableMap.of(
+                        "field", OBJ_ACCESS_GROUP_ID,
+                        "size", accessGroupIds.size()),
+                "aggregations", ImmutableMap.of("types", ImmutableMap.of(
+                        "terms", ImmutableMap.of(
+                                "field", SEARCH_OBJ_TYPE,
+                                "size", MAX_TYPE_BUCKETS)))));
+        final Map<String, Object> doc = ImmutableMap.of(
+                "query", ImmutableMap.of("bool", ImmutableMap.of("filter", Arrays.asList(
+                        createFilter("terms", OBJ_ACCESS_GROUP_ID, accessGroupIds),
+                        createFilter("term", OBJ_IS_LAST, true)))),
+                "aggregations", aggs,
+                "size", 0);
+        final String urlPath = "/" + getAnyIndexPattern() +
+                (excludeSubObjects ? EXCLUDE_SUB_OJBS_URL_SUFFIX : "") +
+                "/" + getDataTableName() + "/_search";
+        final Map<Integer, Map<String, Integer>> ret = new HashMap<>();
+        for (final Map<String, Object> bucket: getAggregationBuckets(urlPath, doc, "groups")) {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> types = (Map<String, Object>) bucket.get("types");
+            @SuppressWarnings("unchecked")
+            final List<Map<String, Object>> typeBuckets =
+                    (List<Map<String, Object>>) types.get("buckets");
+            ret.put(toInt(bucket.get("key")), toTypeCounts(typeBuckets));
+        }
+        return ret;
+    }
+    
+    /* returns access group ID -> number of objects shared into the access group from other
+     * access groups.
+     */
+    private Map<Integer, Integer> countSharedIn(final List<Integer> accessGroupIds)
+            throws IOException {
+        final Map<String, Object> aggs = ImmutableMap.of("groups", ImmutableMap.of(
+                "terms", ImmutableMap.of(
+                        "script", getScript(StoredScript.SHARED_IN_GROUPS,
+                                ImmutableMap.of("groups", accessGroupIds)),
+                        "value_type", "long",
+                        "size", accessGroupIds.size())));
+        final Map<String, Object> doc = ImmutableMap.of(
+                "query", ImmutableMap.of("bool", ImmutableMap.of("filter", Arrays.asList(
+                        createFilter("terms", "lastin", accessGroupIds)))),
+                "aggregations", aggs,
+                "size", 0);
+        final String urlPath = "/" + getAnyIndexPattern() + "/" + getAccessTableName() +
+                "/_search";
+        final Map<Integer, Integer> ret = new HashMap<>();
+        for (final Map<String, Object> bucket: getAggregationBuckets(urlPath, doc, "groups")) {
+            ret.put(toInt(bucket.get("key")), toInt(bucket.get("doc_count")));
+        }
+        return ret;
+    }
+    
+    private List<Map<String, Object>> getAggregationBuckets(
+            final String urlPath,
+            final Map<String, Object> doc,
+            final String aggregation)
+            throws IOException {
+        final Response resp = makeRequest("GET", urlPath, doc);
+        final SearchHitReader reader = new SearchHitReader(f -> false, false);
+        reader.read(resp.getEntity().getContent(), hit -> {});
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> agg = (Map<String, Object>) reader.getAggregations()
+                .get(aggregation);
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> buckets = (List<Map<String, Object>>) agg.get("buckets");
+        return buckets;
+    }
+    
+    private static Map<String, Integer> toTypeCounts(final List<Map<String, Object>> buckets) {
+        final Map<String, Integer> ret = new TreeMap<>();
+        for (final Map<String, Object> bucket: buckets) {
+            ret.put((String) bucket.get("key"), toInt(bucket.get("doc_count")));
+        }
+        return ret;
+    }
+    
+    // aggregation keys may be returned as numbers or strings depending on the value type
+    private static int toInt(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return Integer.parseInt(String.valueOf(value));
+    }
+    
+    /* Returns the types visible through the access filter, and the number of objects of each
+     * type, from the type counts. Returns null if the counts cannot be used for the search and
+     * the data documents must be aggregated instead, which is the case if:
+     * the search is filtered by anything other than sub objects,
+     * the search is for all versions of objects or by an administrator,
+     * the counts are incomplete or have not yet been updated for a searched access group, by
+     * this or any other process,
+     * objects are shared into any of the searched access groups,
+     * or public objects are searched and any object is published via another access group.
+     */
+    private Map<String, Integer> getCountedTypes(
+            final MatchFilter matchFilter,
+            final AccessFilter accessFilter)
+            throws IOException {
+        if (!isUnfiltered(matchFilter) || accessFilter.isAdmin || accessFilter.withAllHistory ||
+                !checkTypeCounts()) {
+            return null;
+        }
+        final Set<Integer> accessGroupIds = new HashSet<>();
+        if (accessFilter.accessGroupIds != null) {
+            accessFilter.accessGroupIds.stream().filter(g -> g >= 0)
+                    .forEach(g -> accessGroupIds.add(g));
+        }
+        for (final Integer accessGroupId: accessGroupIds) {
+            if (uncountedGroups.containsKey(accessGroupId)) {
+                return null;
+            }
+        }
+        final String countField = matchFilter.isExcludeSubObjects() ?
+                TYPE_COUNTS_NO_SUB : TYPE_COUNTS_ALL;
+        final Map<String, Integer> ret = new TreeMap<>();
+        for (final List<Integer> part: partition(accessGroupIds)) {
+            // docs = [{"_type": "counts", "_id": id}, {"_type": "dirty", "_id": id}, ...]
+            final List<Map<String, Object>> getDocs = new LinkedList<>();
+            for (final Integer accessGroupId: part) {
+                for (final String type: Arrays.asList(TYPE_COUNTS_TYPE, TYPE_COUNTS_DIRTY_TYPE)) {
+                    getDocs.add(ImmutableMap.of(
+                            "_type", type, "_id", String.valueOf(accessGroupId)));
+                }
+            }
+            final Response resp = makeRequest("POST", "/" + getTypeCountsIndex() + "/_mget",
+                    ImmutableMap.of("docs", getDocs));
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> data = UObject.getMapper().readValue(
+                    resp.getEntity().getContent(), Map.class);
+            @SuppressWarnings("unchecked")
+            final List<Map<String, Object>> docs = (List<Map<String, Object>>) data.get("docs");
+            for (final Map<String, Object> doc: docs) {
+                if (doc.get("error") != null) {
+                    throw new IOException("Failed reading type counts for access group " +
+                            doc.get("_id") + ": " +
+                            UObject.transformObjectToString(doc.get("error")));
+                }
+                if (TYPE_COUNTS_DIRTY_TYPE.equals(doc.get("_type"))) {
+                    if (Boolean.TRUE.equals(doc.get("found"))) {
+                        return null;
+                    }
+                // access groups without counts have never contained an object
+                } else if (Boolean.TRUE.equals(doc.get("found"))) {
+                    @SuppressWarnings("unchecked")
+                    final Map<String, Object> source = (Map<String, Object>) doc.get("_source");
+                    if (toInt(source.get(TYPE_COUNTS_SHARED_IN)) > 0) {
+                        return null;
+                    }
+                    @SuppressWarnings("unchecked")
+                    final Map<String, Integer> counts =
+                            (Map<String, Integer>) source.get(countField);
+                    counts.forEach((type, count) -> ret.merge(type, count, Integer::sum));
+                }
+            }
+        }
+        if (accessFilter.withPublic) {
+            if (hasExternallyPublishedObjects()) {
+                return null;
+            }
+            countPublicTypes(accessGroupIds, matchFilter.isExcludeSubObjects())
+                    .forEach((type, count) -> ret.merge(type, count, Integer::sum));
+        }
+        return ImmutableMap.copyOf(ret);
+    }
+    
+    private boolean isUnfiltered(final MatchFilter matchFilter) {
+        return !matchFilter.getFullTextInAll().isPresent() &&
+                !matchFilter.getObjectName().isPresent() &&
+                matchFilter.getLookupInKeys().isEmpty() &&
+                !matchFilter.getTimestamp().isPresent() &&
+                matchFilter.getSourceTags().isEmpty();
+    }
+    
+    // returns true if any object is published via a public access group that does not own it
+    private boolean hasExternallyPublishedObjects() throws IOException {
+        final Map<String, Object> doc = ImmutableMap.of(
+                "query", createFilter("exists", "field", "extpub"),
+                "size", 0,
+                "terminate_after", 1);
+        final Response resp = makeRequest("GET", "/" + getAnyIndexPattern() + "/" +
+                getAccessTableName() + "/_search", doc);
+        final SearchHitReader reader = new SearchHitReader(f -> false, false);
+        reader.read(resp.getEntity().getContent(), hit -> {});
+        return reader.getTotal() > 0;
+    }
+    
+    /* returns the number of public last versions of objects of each type that are not owned by
+     * any of the access groups, since objects owned by the access groups are already counted.
+     */
+    private Map<String, Integer> countPublicTypes(
+            final Set<Integer> accessGroupIds,
+            final boolean excludeSubObjects)
+            throws IOException {
+        final Map<String, Object> query = ImmutableMap.of("bool", ImmutableMap.of(
+                "filter", Arrays.asList(
+                        createFilter("term", "public", true),
+                        createFilter("term", OBJ_IS_LAST, true)),
+                "must_not", Arrays.asList(
+                        createFilter("terms", OBJ_ACCESS_GROUP_ID, accessGroupIds))));
+        final Map<String, Object> doc = ImmutableMap.of(
+                "query", query,
+                "aggregations", ImmutableMap.of("types", ImmutableMap.of(
+                        "terms", ImmutableMap.of(
+                                "field", SEARCH_OBJ_TYPE,
+                                "size", MAX_TYPE_BUCKETS))),
+                "size", 0);
+        final String urlPath = "/" + getAnyIndexPattern() +
+                (excludeSubObjects ? EXCLUDE_SUB_OJBS_URL_SUFFIX : "") +
+                "/" + getDataTableName() + "/_search";
+        return toTypeCounts(getAggregationBuckets(urlPath, doc, "types"));
+    }
+    
+    /* Counts the types in every access group with objects and marks the type counts as
+     * complete. No indexing should occur while the counts are built.
+     */
+    private void buildTypeCounts() throws IOException {
+        final String pattern = getAnyIndexPattern();
+        makeRequest("POST", "/" + pattern + "/_refresh", null);
+        final String urlPath = "/" + pattern + "/" + getAccessTableName() + "/_search";
+        final Response resp = makeRequest("GET", urlPath, ImmutableMap.of(
+                "aggregations", ImmutableMap.of("groups", ImmutableMap.of(
+                        "cardinality", ImmutableMap.of("field", "lastin"))),
+                "size", 0));
+        final SearchHitReader reader = new SearchHitReader(f -> false, false);
+        reader.read(resp.getEntity().getContent(), hit -> {});
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> cardinality = (Map<String, Object>) reader.getAggregations()
+                .get("groups");
+        // the cardinality is approximate, so the partitions are sized with plenty of room
+        final int partitions = toInt(cardinality.get("value")) / MAX_TERMS_PER_QUERY + 1;
+        for (int i = 0; i < partitions; i++) {
+            final Map<String, Object> doc = ImmutableMap.of(
+                    "aggregations", ImmutableMap.of("groups", ImmutableMap.of(
+                            "terms", ImmutableMap.of(
+                                    "field", "lastin",
+                                    "include", ImmutableMap.of(
+                                            "partition", i,
+                                            "num_partitions", partitions),
+                                    "size", MAX_RESULT_WINDOW))),
+                    "size", 0);
+            final List<Integer> accessGroupIds = new LinkedList<>();
+            for (final Map<String, Object> bucket: getAggregationBuckets(urlPath, doc, "groups")) {
+                final int accessGroupId = toInt(bucket.get("key"));
+                if (accessGroupId >= 0) {
+                    accessGroupIds.add(accessGroupId);
+                }
+            }
+            for (final List<Integer> part: partition(accessGroupIds)) {
+                writeTypeCounts(part);
+            }
+        }
+        makeRequest("PUT", "/" + getTypeCountsIndex() + "/_mapping/" + TYPE_COUNTS_TYPE,
+                ImmutableMap.of("_meta", ImmutableMap.of(META_TYPE_COUNTS_COMPLETE, true)));
+        typeCountsComplete = true;
+    }
+    
     private int updateLastVersionsInData(String indexName, GUID parentGUID,
             int lastVersion) throws IOException {
+        return updateLastVersionsInData(indexName, toGUIDPrefix(parentGUID), lastVersion, null);
+    }
+    
+    // if versions is null, all the versions of the object are updated
+    private int updateLastVersionsInData(String indexName, String prefix,
+            int lastVersion, final Collection<Integer> versions) throws IOException {
         if (indexName == null) {
             indexName = getAnyIndexPattern();
         }
 
-        // query = {"bool": {"filter": [{"term": {"prefix": prefix}}]}}
+        // query = {"bool": {"filter": [{"term": {"prefix": prefix}},
+        //                              ({"terms": {"version": versions}})?]}}
         Map<String, Object> query = ImmutableMap.of("bool",
                                        ImmutableMap.of("filter",
-                                               Arrays.asList(ImmutableMap.of("term",
-                                                       ImmutableMap.of("prefix",
-                                                               toGUIDPrefix(parentGUID))))));
+                                               createVersionFilters(
+                                                       Arrays.asList(prefix), versions)));
 
         // params = {"lastver": lastVersion}
         final Map<String, Object> params = ImmutableMap.of("lastver", lastVersion);
 
-        // script = {"inline": "ctx._source.islast = (ctx._source.version == params.lastver)",
-        //           "params": {"lastver": lastVersion}}
-        Map<String, Object> script = ImmutableMap.of(
-                "inline", "ctx._source.islast = (ctx._source.version == params.lastver);",
-                "params", params);
+        // documents that already have the correct flag are not rewritten
+        Map<String, Object> script = getScript(StoredScript.UPDATE_LAST_VERSION, params);
 
         // doc = {"query": {"bool": {"filter": [{"term": {"prefix": prefix}}]}},
-        //        "script": {"inline": "ctx._source.islast = (ctx._source.version == params.lastver)",
+        //        "script": {"stored": UPDATE_LAST_VERSION id,
         //                   "params": {"lastver": lastVersion}}}
         Map<String, Object> doc = ImmutableMap.of("query", query,
                                                   "script", script);
@@ -646,204 +2614,423 @@ public class ElasticIndexingStorage implements IndexingStorage {
         @SuppressWarnings("unchecked")
         Map<String, Object> data = UObject.getMapper().readValue(
                 resp.getEntity().getContent(), Map.class);
-        return (Integer)data.get("updated");
+        final int updated = (Integer)data.get("updated");
+        if (updated > 0) {
+            markModified(indexName, prefix);
+        }
+        return updated;
+    }
+    
+    private List<Map<String, Object>> createVersionFilters(
+            final Collection<String> prefixes,
+            final Collection<Integer> versions) {
+        final List<Map<String, Object>> ret = new LinkedList<>();
+        ret.add(createFilter("terms", "prefix", new ArrayList<>(prefixes)));
+        if (versions != null) {
+            ret.add(createFilter("terms", "version", new ArrayList<>(versions)));
+        }
+        return ret;
+    }
+    
+    /* The painless scripts used to update documents. The scripts are stored in the cluster and
+     * referenced by ID, and all variable input is passed as parameters, so that each script is
+     * compiled only once rather than once per variant of an inline script. The ID includes a hash
+     * of the script so that a changed script never clashes with the prior version.
+     */
+    private enum StoredScript {
+        
+        // params: lastver
+        UPDATE_LAST_VERSION("update_last_version",
+                "boolean islast = ctx._source.version == params.lastver;\n" +
+                "if (ctx._source.islast == islast) {\n" +
+                "  ctx.op = 'noop';\n" +
+                "} else {\n" +
+                "  ctx._source.islast = islast;\n" +
+                "}\n"),
+        
+        // params: lastvers (object prefix -> last version), groups
+        UPDATE_ACCESS_GROUPS("update_access_groups",
+                "def lastver = params.lastvers[ctx._source.prefix];\n" +
+                "for (def grp: params.groups) {\n" +
+                "  if (ctx._source.lastin.indexOf(grp) >= 0) {\n" +
+                "    if (ctx._source.version != lastver) {\n" +
+                "      ctx._source.lastin.remove(ctx._source.lastin.indexOf(grp));\n" +
+                "      if (ctx._source.extpub.indexOf(grp) >= 0) {\n" +
+                "        ctx._source.extpub.remove(ctx._source.extpub.indexOf(grp));\n" +
+                "      }\n" +
+                "    }\n" +
+                "  } else {\n" +
+                "    if (ctx._source.version == lastver) {\n" +
+                "      ctx._source.lastin.add(grp);\n" +
+                "      if (ctx._source.groups.indexOf(grp) < 0) {\n" +
+                "        ctx._source.groups.add(grp);\n" +
+                "      }\n" +
+                "    }\n" +
+                "  }\n" +
+                "}\n"),
+        
+        // params: accgrp, fromallgroups
+        REMOVE_ACCESS_GROUP("remove_access_group",
+                "ctx._source.lastin.remove(ctx._source.lastin.indexOf(params.accgrp));\n" +
+                "if (ctx._source.extpub.indexOf(params.accgrp) >= 0) {\n" +
+                "  ctx._source.extpub.remove(ctx._source.extpub.indexOf(params.accgrp));\n" +
+                "}\n" +
+                "if (params.fromallgroups) {\n" +
+                "  int pos = ctx._source.groups.indexOf(params.accgrp);\n" +
+                "  if (pos >= 0) {\n" +
+                "    ctx._source.groups.remove(pos);\n" +
+                "  }\n" +
+                "}\n"),
+        
+        // params: accgrp
+        ADD_EXT_PUB("add_ext_pub",
+                "if (ctx._source.extpub.indexOf(params.accgrp) < 0) {\n" +
+                "  ctx._source.extpub.add(params.accgrp);\n" +
+                "}\n"),
+        
+        // params: accgrp
+        REMOVE_EXT_PUB("remove_ext_pub",
+                "ctx._source.extpub.remove(ctx._source.extpub.indexOf(params.accgrp));\n"),
+        
+        // params: field, value
+        SET_FIELD("set_field",
+                "if (ctx._source[params.field] == params.value) {\n" +
+                "  ctx.op = 'noop';\n" +
+                "} else {\n" +
+                "  ctx._source[params.field] = params.value;\n" +
+                "}\n"),
+        
+        /* params: groups. Returns the groups in the last version access groups of an access
+         * document that do not own the object, for aggregating objects by the access groups into
+         * which they are shared.
+         */
+        SHARED_IN_GROUPS("shared_in_groups",
+                "List out = new ArrayList();\n" +
+                "String prefix = doc['prefix'].value;\n" +
+                "for (def grp: doc['lastin']) {\n" +
+                "  if (grp >= 0 && params.groups.contains(grp.intValue()) &&\n" +
+                "      !prefix.contains(':' + grp + '/')) {\n" +
+                "    out.add(grp);\n" +
+                "  }\n" +
+                "}\n" +
+                "return out;\n"),
+        
+        // params: access (parent GUID -> access fields)
+        SET_ACCESS_FIELDS("set_access_fields",
+                "String pguid = ctx._source.prefix + '/' + ctx._source.version;\n" +
+                "def access = params.access[pguid];\n" +
+                "if (access == null) {\n" +
+                "  ctx.op = 'noop';\n" +
+                "} else {\n" +
+                "  ctx._source.pguid = pguid;\n" +
+                "  ctx._source.lastin = access.lastin;\n" +
+                "  ctx._source.groups = access.groups;\n" +
+                "  ctx._source.extpub = access.extpub;\n" +
+                "}\n");
+        
+        private final String id;
+        private final String source;
+        
+        private StoredScript(final String name, final String source) {
+            this.id = "kbsearch_" + name + "_" + Hashing.sha1()
+                    .hashString(source, StandardCharsets.UTF_8).toString().substring(0, 10);
+            this.source = source;
+        }
+    }
+    
+    /* returns a reference to a stored script with the given parameters, storing the scripts in
+     * the cluster first if necessary.
+     */
+    private Map<String, Object> getScript(
+            final StoredScript script,
+            final Map<String, Object> params)
+            throws IOException {
+        if (!scriptsStored) {
+            storeScripts();
+        }
+        // script = {"stored": id, "params": params}
+        return ImmutableMap.of("stored", script.id, "params", params);
+    }
+    
+    // storing a script that already exists overwrites it with the identical script
+    private synchronized void storeScripts() throws IOException {
+        if (scriptsStored) {
+            return;
+        }
+        for (final StoredScript script: StoredScript.values()) {
+            makeRequest("POST", "/_scripts/" + script.id, ImmutableMap.of("script",
+                    ImmutableMap.of("lang", "painless", "code", script.source)));
+        }
+        scriptsStored = true;
     }
-
+    
     private Map<GUID, String> checkParentDoc(String indexName, Set<GUID> parentGUIDs, 
             boolean isPublic, int lastVersion) throws IOException {
-        boolean changed = false;
         Map<GUID, String> ret = new LinkedHashMap<>(lookupParentDocIds(indexName, parentGUIDs));
         for (GUID parentGUID : parentGUIDs) {
             if (ret.containsKey(parentGUID)) {
                 continue;
             }
             String prefix = toGUIDPrefix(parentGUID);
-            Map<String, Object> doc = new LinkedHashMap<>();
-            doc.put("pguid", parentGUID.toString());
-            doc.put("prefix", prefix);
-            doc.put("version", parentGUID.getVersion());
-            Set<Integer> accessGroupIds = new LinkedHashSet<>(Arrays.asList(
-                    ADMIN_ACCESS_GROUP));
-            if (parentGUID.getAccessGroupId() != null) {
-                accessGroupIds.add(parentGUID.getAccessGroupId());
-            }
-            if (isPublic) {
-                accessGroupIds.add(PUBLIC_ACCESS_GROUP);
-            }
-            Set<Integer> lastinGroupIds = parentGUID.getVersion() == lastVersion ? 
-                    accessGroupIds : Collections.emptySet();
-            doc.put("lastin", lastinGroupIds);
-            doc.put("groups", accessGroupIds);
-            doc.put("extpub", new ArrayList<Integer>());
+            Map<String, Object> doc = createAccessDoc(parentGUID, isPublic, lastVersion);
             Response resp = makeRequest("POST", "/" + indexName + "/" + getAccessTableName() + "/", 
                     doc);
             @SuppressWarnings("unchecked")
             Map<String, Object> data = UObject.getMapper().readValue(
                     resp.getEntity().getContent(), Map.class);
             ret.put(parentGUID, (String)data.get("_id"));
-            changed = true;
-            updateAccessGroupForVersions(indexName, parentGUID, lastVersion,
-                    parentGUID.getAccessGroupId(), isPublic, true);
-        }
-        if (changed) {
-            refreshIndex(indexName);
+            markModified(indexName, prefix);
         }
         return ImmutableMap.copyOf(ret);
     }
     
-    private static final String UPDATE_ACC_GRP_VERS_TEMPLATE =
-            "if (ctx._source.lastin.indexOf(params.%1$s) >= 0) {\n" +
-            "  if (ctx._source.version != params.lastver) {\n" +
-            "    ctx._source.lastin.remove(ctx._source.lastin.indexOf(params.%1$s));\n" +
-            "    if (ctx._source.extpub.indexOf(params.%1$s) >= 0) {\n" + 
-            "      ctx._source.extpub.remove(ctx._source.extpub.indexOf(params.%1$s));\n" +
-            "    }\n" +
-            "  }\n" +
-            "} else {\n" +
-            "  if (ctx._source.version == params.lastver) {\n" +
-            "    ctx._source.lastin.add(params.%1$s);\n" +
-            "    if (ctx._source.groups.indexOf(params.%1$s) < 0) {\n" +
-            "      ctx._source.groups.add(params.%1$s);\n" +
-            "    }\n" +
-            "  }\n" +
-            "}\n";
+    private Map<String, Object> createAccessDoc(
+            final GUID parentGUID,
+            final boolean isPublic,
+            final int lastVersion) {
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("pguid", parentGUID.toString());
+        doc.put("prefix", toGUIDPrefix(parentGUID));
+        doc.put("version", parentGUID.getVersion());
+        Set<Integer> accessGroupIds = new LinkedHashSet<>(Arrays.asList(
+                ADMIN_ACCESS_GROUP));
+        if (parentGUID.getAccessGroupId() != null) {
+            accessGroupIds.add(parentGUID.getAccessGroupId());
+        }
+        if (isPublic) {
+            accessGroupIds.add(PUBLIC_ACCESS_GROUP);
+        }
+        Set<Integer> lastinGroupIds = parentGUID.getVersion() == lastVersion ? 
+                accessGroupIds : Collections.emptySet();
+        doc.put("lastin", lastinGroupIds);
+        doc.put("groups", accessGroupIds);
+        doc.put("extpub", new ArrayList<Integer>());
+        return doc;
+    }
     
     //IO exception thrown for deserialization & elasticsearch contact errors
     /* calling this method with accessGroupId == null and both booleans false is an error. */
     private boolean updateAccessGroupForVersions(
-            String indexName,
+            final String indexName,
             final GUID guid,
             final int lastVersion,
             final Integer accessGroupId,
             final boolean includePublicAccessID,
             final boolean includeAdminAccessID)
             throws IOException {
-        /* this method will cause at most 6 script compilations, which seems like a lot...
-         * Could make the script always the same and put in ifs but this should be ok for now.
-         */
+        return updateAccessGroupForVersions(indexName, guid, lastVersion, accessGroupId,
+                includePublicAccessID, includeAdminAccessID, null);
+    }
+    
+    // if versions is null, all the versions of the object are updated
+    private boolean updateAccessGroupForVersions(
+            final String indexName,
+            final GUID guid,
+            final int lastVersion,
+            final Integer accessGroupId,
+            final boolean includePublicAccessID,
+            final boolean includeAdminAccessID,
+            final Collection<Integer> versions)
+            throws IOException {
+        return updateAccessGroupForVersions(indexName,
+                ImmutableMap.of(toGUIDPrefix(guid), lastVersion), accessGroupId,
+                includePublicAccessID, includeAdminAccessID, versions);
+    }
+    
+    /* lastVersions maps object prefix -> last version of the object. If versions is null, all
+     * the versions of the objects are updated.
+     */
+    private boolean updateAccessGroupForVersions(
+            String indexName,
+            final Map<String, Integer> lastVersions,
+            final Integer accessGroupId,
+            final boolean includePublicAccessID,
+            final boolean includeAdminAccessID,
+            final Collection<Integer> versions)
+            throws IOException {
         if (indexName == null) {
             indexName = getAnyIndexPattern();
         }
-
-        // query = {"bool": {"must": [{"term": {"prefix": prefix}?}]}}
-        Map<String, Object> query = ImmutableMap.of("bool",
-                ImmutableMap.of("must",
-                        Arrays.asList(
-                                createFilter("term", "prefix", toGUIDPrefix(guid)))));
-
-        // params = {"lastver": lastVersion,
-        //           ("accgrp": accessGroupId)?,
-        //           ("pubaccgrp": -1)?,
-        //           ("pubaccgrp": -2)?}
-        StringBuilder inline = new StringBuilder();
-        final Map<String, Object> params = new HashMap<>();
-        params.put("lastver", lastVersion);
+        // params = {"lastvers": {prefix: lastVersion, ...},
+        //           "groups": [(accessGroupId)?, (-1)?, (-2)?]}
+        final List<Integer> groups = new LinkedList<>();
         if (accessGroupId != null) {
-            inline.append(String.format(UPDATE_ACC_GRP_VERS_TEMPLATE, "accgrp"));
-            params.put("accgrp", accessGroupId);
+            groups.add(accessGroupId);
         }
         if (includePublicAccessID) {
-            inline.append(String.format(UPDATE_ACC_GRP_VERS_TEMPLATE, "pubaccgrp"));
-            params.put("pubaccgrp", PUBLIC_ACCESS_GROUP);
+            groups.add(PUBLIC_ACCESS_GROUP);
         }
         if (includeAdminAccessID) {
-            inline.append(String.format(UPDATE_ACC_GRP_VERS_TEMPLATE, "adminaccgrp"));
-            params.put("adminaccgrp", ADMIN_ACCESS_GROUP);
+            groups.add(ADMIN_ACCESS_GROUP);
         }
-        Map<String, Object> script = new LinkedHashMap<>();
-        script.put("inline", inline.toString());
-        script.put("params", ImmutableMap.copyOf(params));
-
-        Map<String, Object> doc = ImmutableMap.of("query", query,
-                                                  "script", script);
-
-        String urlPath = "/" + indexName + "/" + getAccessTableName() + "/_update_by_query";
-        Response resp = makeRequest("POST", urlPath, doc);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
-        return (Integer)data.get("updated") > 0;
+        boolean updated = false;
+        for (final List<String> prefixes: partition(lastVersions.keySet())) {
+            // query = {"bool": {"must": [{"terms": {"prefix": prefixes}},
+            //                            ({"terms": {"version": versions}})?]}}
+            final Map<String, Object> query = ImmutableMap.of("bool",
+                    ImmutableMap.of("must", createVersionFilters(prefixes, versions)));
+            final Map<String, Integer> lastvers = new HashMap<>();
+            for (final String prefix: prefixes) {
+                lastvers.put(prefix, lastVersions.get(prefix));
+            }
+            final Map<String, Object> script = getScript(StoredScript.UPDATE_ACCESS_GROUPS,
+                    ImmutableMap.of("lastvers", lastvers, "groups", groups));
+            updated |= updateAccessByQuery(indexName, query, script, prefixes);
+        }
+        return updated;
     }
-
-    private boolean removeAccessGroupForVersion(String indexName, GUID guid, 
-            int accessGroupId) throws IOException {
+    
+    // parentGUIDs must not contain sub object info
+    private boolean removeAccessGroupForVersions(
+            String indexName,
+            final Collection<GUID> parentGUIDs,
+            final int accessGroupId)
+            throws IOException {
         if (indexName == null) {
             indexName = getAnyIndexPattern();
         }
-        // This flag shows that we work with other than physical access group this object exists in.
-        boolean fromAllGroups = accessGroupId != guid.getAccessGroupId();
-        String pguid = new GUID(guid.getStorageCode(), guid.getAccessGroupId(),
-                guid.getAccessGroupObjectId(), guid.getVersion(), null, null).toString();
-
-
-        Map<String, Object> query = ImmutableMap.of("bool",
-                                       ImmutableMap.of("must",
-                                          Arrays.asList(
-                                                  createFilter("term", "pguid", pguid),
-                                                  createFilter("term", "lastin", accessGroupId))));
-
-        final Map<String, Object> params = ImmutableMap.of("accgrp", accessGroupId);
-        Map<String, Object> script = ImmutableMap.of(
-                "inline",
-                "ctx._source.lastin.remove(ctx._source.lastin.indexOf(params.accgrp));\n" +
-                "if (ctx._source.extpub.indexOf(params.accgrp) >= 0) {\n" +
-                "  ctx._source.extpub.remove(ctx._source.extpub.indexOf(params.accgrp));\n" +
-                "}\n" +
-                (fromAllGroups ? (
-                        "int pos = ctx._source.groups.indexOf(params.accgrp);\n" +
-                                "if (pos >= 0) {\n" +
-                                "  ctx._source.groups.remove(pos);\n" +
-                                "}\n") : ""),
-                "params", params);
-
-        Map<String, Object> doc = ImmutableMap.of("query", query,
-                                                  "script", script);
-
-        String urlPath = "/" + indexName + "/" + getAccessTableName() + "/_update_by_query";
-        Response resp = makeRequest("POST", urlPath, doc);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
-        return (Integer)data.get("updated") > 0;
+        boolean updated = false;
+        for (final List<GUID> guids: partition(parentGUIDs)) {
+            /* This flag shows that we work with other than physical access group this object
+             * exists in. The flag is a parameter of the script, so the objects are split by
+             * the flag.
+             */
+            final Map<Boolean, List<GUID>> byFromAllGroups = guids.stream().collect(
+                    Collectors.partitioningBy(g -> accessGroupId != g.getAccessGroupId()));
+            for (final boolean fromAllGroups: byFromAllGroups.keySet()) {
+                final List<GUID> group = byFromAllGroups.get(fromAllGroups);
+                if (group.isEmpty()) {
+                    continue;
+                }
+                final Map<String, Object> query = ImmutableMap.of("bool",
+                        ImmutableMap.of("must", Arrays.asList(
+                                createFilter("terms", "pguid", toStrings(group)),
+                                createFilter("term", "lastin", accessGroupId))));
+                final Map<String, Object> params = ImmutableMap.of(
+                        "accgrp", accessGroupId,
+                        "fromallgroups", fromAllGroups);
+                final Map<String, Object> script = getScript(
+                        StoredScript.REMOVE_ACCESS_GROUP, params);
+                updated |= updateAccessByQuery(indexName, query, script, toGUIDPrefixes(group));
+            }
+        }
+        return updated;
     }
 
-    private boolean updateBooleanFieldInData(String indexName, GUID parentGUID,
-            String field, boolean value) throws IOException {
+    // parentGUIDs must not contain sub object info
+    private boolean updateBooleanFieldInData(
+            String indexName,
+            final Collection<GUID> parentGUIDs,
+            final String field,
+            final boolean value)
+            throws IOException {
         if (indexName == null) {
             indexName = getAnyIndexPattern();
         }
-
-        Map<String, Object> query = ImmutableMap.of("bool",
-                                       ImmutableMap.of("must",
-                Arrays.asList(createFilter("term", "prefix", toGUIDPrefix(parentGUID)),
-                              createFilter("term", "version", parentGUID.getVersion()))));
-
-        final Map<String, Object> params = ImmutableMap.of("field", field,
-                                                           "value", value);
-        Map<String, Object> script = ImmutableMap.of("inline",
-                                                     "ctx._source[params.field] = params.value;",
-                                                     "params", params);
-
-        Map<String, Object> doc = ImmutableMap.of("query", query,
-                                                  "script", script);
-
-        String urlPath = "/" + indexName + "/" + getDataTableName() + "/_update_by_query";
-        Response resp = makeRequest("POST", urlPath, doc);
+        if (getAccessFieldIndexes(indexName) != null) {
+            // the access fields on the data documents may have just been updated
+            refreshIfModified(indexName, toGUIDPrefixes(parentGUIDs));
+        }
+        boolean updated = false;
+        for (final List<GUID> guids: partition(parentGUIDs)) {
+            // the data documents for an object version are the children of its access document
+            // query = {"has_parent": {"parent_type": "access",
+            //                         "query": {"terms": {"pguid": guids}}}}
+            final Map<String, Object> query = ImmutableMap.of("has_parent", ImmutableMap.of(
+                    "parent_type", getAccessTableName(),
+                    "query", createFilter("terms", "pguid", toStrings(guids))));
+            final Map<String, Object> script = getScript(StoredScript.SET_FIELD,
+                    ImmutableMap.of("field", field, "value", value));
+            updated |= updateByQuery(indexName, getDataTableName(), query, script,
+                    toGUIDPrefixes(guids));
+        }
+        return updated;
+    }
+    
+    /* runs an update by query request against the access documents and repeats it against the
+     * data documents in the indexes with access fields on the data documents. The queries and
+     * scripts for access documents only use fields that are also copied to the data documents.
+     */
+    private boolean updateAccessByQuery(
+            final String indexName,
+            final Map<String, Object> query,
+            final Map<String, Object> script,
+            final Collection<String> prefixes)
+            throws IOException {
+        final String dataIndexes = getAccessFieldIndexes(indexName);
+        if (dataIndexes != null) {
+            /* the data documents are updated first so that updating the access documents doesn't
+             * require a refresh. Updating by query requires the latest versions of the documents
+             * to be visible.
+             */
+            refreshIfModified(dataIndexes, prefixes);
+            updateByQuery(dataIndexes, getDataTableName(), query, script, prefixes);
+        }
+        return updateByQuery(indexName, getAccessTableName(), query, script, prefixes);
+    }
+    
+    /* runs an update by query request and marks the objects as modified if any documents were
+     * updated.
+     */
+    private boolean updateByQuery(
+            final String indexName,
+            final String docType,
+            final Map<String, Object> query,
+            final Map<String, Object> script,
+            final Collection<String> prefixes)
+            throws IOException {
+        final Map<String, Object> doc = ImmutableMap.of("query", query,
+                                                        "script", script);
+        final String urlPath = "/" + indexName + "/" + docType + "/_update_by_query";
+        final Response resp = makeRequest("POST", urlPath, doc);
         @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
+        final Map<String, Object> data = UObject.getMapper().readValue(
                 resp.getEntity().getContent(), Map.class);
-        return (Integer)data.get("updated") > 0;
+        if ((Integer) data.get("updated") > 0) {
+            for (final String prefix: prefixes) {
+                markModified(indexName, prefix);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean markModifiedIfUpdated(
+            final String indexName,
+            final GUID guid,
+            final Map<String, Object> updateByQueryResponse) {
+        if ((Integer) updateByQueryResponse.get("updated") > 0) {
+            markModified(indexName, toGUIDPrefix(guid));
+            return true;
+        }
+        return false;
+    }
+    
+    // splits items into lists no larger than the maximum number of terms in a terms query
+    private static <T> List<List<T>> partition(final Collection<T> items) {
+        return Lists.partition(new ArrayList<>(items), MAX_TERMS_PER_QUERY);
+    }
+    
+    private static List<String> toStrings(final Collection<GUID> guids) {
+        return guids.stream().map(g -> g.toString()).collect(Collectors.toList());
     }
 
     private String toGUIDPrefix(GUID parentGUID) {
         return new GUID(parentGUID.getStorageCode(), parentGUID.getAccessGroupId(),
                 parentGUID.getAccessGroupObjectId(), null, null, null).toString();
     }
+    
+    private Set<String> toGUIDPrefixes(final Collection<GUID> guids) {
+        return guids.stream().map(g -> toGUIDPrefix(g)).collect(Collectors.toSet());
+    }
     //IO exception thrown for deserialization & elasticsearch contact errors
     @Override
     public int setNameOnAllObjectVersions(final GUID object, final String newName)
             throws IOException {
-        return setFieldOnObject(object, OBJ_NAME, newName, true);
+        refreshIfModified(getAnyIndexPattern(), Arrays.asList(toGUIDPrefix(object)));
+        final int updated = setFieldOnObject(object, OBJ_NAME, newName, true);
+        refreshAfterWrite();
+        return updated;
     }
     
     /* expects that GUID does not have sub object info */
@@ -861,9 +3048,8 @@ public class ElasticIndexingStorage implements IndexingStorage {
         } else {
             query = createFilter("term", "guid", object.toString());
         }
-        final Map<String, Object> script = ImmutableMap.of(
-                "inline", "ctx._source[params.field] = params.value",
-                "params", ImmutableMap.of("field", field, "value", value));
+        final Map<String, Object> script = getScript(StoredScript.SET_FIELD,
+                ImmutableMap.of("field", field, "value", value));
         final Map<String, Object> doc = ImmutableMap.of(
                 "query", query,
                 "script", script);
@@ -872,6 +3058,7 @@ public class ElasticIndexingStorage implements IndexingStorage {
         @SuppressWarnings("unchecked")
         final Map<String, Object> data = UObject.getMapper().readValue(
                 resp.getEntity().getContent(), Map.class);
+        markModifiedIfUpdated(index, object, data);
         return (int) data.get("updated");
     }
     
@@ -880,76 +3067,69 @@ public class ElasticIndexingStorage implements IndexingStorage {
     public void shareObjects(Set<GUID> guids, int accessGroupId, 
             boolean isExternalPublicGroup) throws IOException {
         Map<String, Set<GUID>> indexToGuids = groupParentIdsByIndex(guids);
+        if (!indexToGuids.isEmpty()) {
+            markUncountedInStorage(Arrays.asList(accessGroupId));
+        }
         for (String indexName : indexToGuids.keySet()) {
-            Set<GUID> toAddExtPub = new LinkedHashSet<GUID>();
-            boolean needRefresh = false;
-            for (GUID guid : indexToGuids.get(indexName)) {
-                if (updateAccessGroupForVersions(indexName, guid, guid.getVersion(), accessGroupId,
-                        false, false)) {
-                    needRefresh = true;
-                }
-                if (accessGroupId == PUBLIC_ACCESS_GROUP) {
-                    if (updateBooleanFieldInData(indexName, guid, "public", true)) {
-                        needRefresh = true;
-                    }
-                } else if (accessGroupId != guid.getAccessGroupId()) {
-                    if (updateBooleanFieldInData(indexName, guid, "shared", true)) {
-                        needRefresh = true;
-                    }
-                    if (isExternalPublicGroup) {
-                        toAddExtPub.add(guid);
-                    }
-                }
-            }
-            if (needRefresh) {
-                refreshIndex(indexName);
+            final Set<GUID> indexGuids = indexToGuids.get(indexName);
+            // if more than one version of an object is shared, the latest is the last version
+            final Map<String, Integer> lastVersions = new HashMap<>();
+            for (final GUID guid: indexGuids) {
+                lastVersions.merge(toGUIDPrefix(guid), guid.getVersion(), Math::max);
             }
-            if (!toAddExtPub.isEmpty()) {
-                needRefresh = false;
-                for (GUID guid : indexToGuids.get(indexName)) {
-                    if (addExtPubForVersion(indexName, guid, accessGroupId)) {
-                        needRefresh = true;
+            updateAccessGroupForVersions(indexName, lastVersions, accessGroupId, false, false,
+                    null);
+            if (accessGroupId == PUBLIC_ACCESS_GROUP) {
+                updateBooleanFieldInData(indexName, indexGuids, "public", true);
+            } else {
+                final List<GUID> external = indexGuids.stream()
+                        .filter(g -> accessGroupId != g.getAccessGroupId())
+                        .collect(Collectors.toList());
+                if (!external.isEmpty()) {
+                    updateBooleanFieldInData(indexName, external, "shared", true);
+                    if (isExternalPublicGroup) {
+                        // the access documents were just updated and must be visible to update
+                        // again
+                        refreshIfModified(indexName, toGUIDPrefixes(external));
+                        addExtPubForVersions(indexName, external, accessGroupId);
                     }
                 }
-                if (needRefresh) {
-                    refreshIndex(indexName);
-                }
             }
+            markUncounted(accessGroupId, toGUIDPrefixes(indexGuids));
         }
+        refreshAfterWrite();
     }
     
     //IO exception thrown for deserialization & elasticsearch contact errors
     @Override
     public void unshareObjects(Set<GUID> guids, int accessGroupId) throws IOException {
         Map<String, Set<GUID>> indexToGuids = groupParentIdsByIndex(guids);
+        if (!indexToGuids.isEmpty()) {
+            markUncountedInStorage(Arrays.asList(accessGroupId));
+        }
         for (String indexName : indexToGuids.keySet()) {
-            boolean needRefresh = false;
-            for (GUID guid : indexToGuids.get(indexName)) {
-                if (removeAccessGroupForVersion(indexName, guid, accessGroupId)) {
-                    needRefresh = true;
-                }
-                if (accessGroupId == PUBLIC_ACCESS_GROUP) {
-                    if (updateBooleanFieldInData(indexName, guid, "public", false)) {
-                        needRefresh = true;
-                    }
-                }
-                //TODO NOW how is share bit unset?
-            }
-            if (needRefresh) {
-                refreshIndex(indexName);
+            removeAccessGroupForVersions(indexName, indexToGuids.get(indexName), accessGroupId);
+            if (accessGroupId == PUBLIC_ACCESS_GROUP) {
+                updateBooleanFieldInData(indexName, indexToGuids.get(indexName), "public",
+                        false);
             }
+            //TODO NOW how is share bit unset?
+            markUncounted(accessGroupId, toGUIDPrefixes(indexToGuids.get(indexName)));
         }
+        refreshAfterWrite();
     }
     
     //IO exception thrown for deserialization & elasticsearch contact errors
     @Override
     public void deleteAllVersions(final GUID guid) throws IOException {
+        refreshIfModified(getAnyIndexPattern(), Arrays.asList(toGUIDPrefix(guid)));
         // could optimize later by making LLV return the index name
-        final Integer ver = loadLastVersion(null, guid, null);
+        final Integer ver = getLastVersion(guid);
         if (ver == null) {
             //TODO NOW throw exception? means a delete event occurred when there were no objects
             return;
         }
+        markUncountedInStorage(Arrays.asList(guid.getAccessGroupId()));
         final String indexName = getAnyIndexPattern();
         setFieldOnObject(withVersion(guid, ver), "islast", false, false);
         // -3 is a hack to always remove access groups
@@ -961,21 +3141,26 @@ public class ElasticIndexingStorage implements IndexingStorage {
 //        setFieldOnObjectForAllVersions(guid, "public", false);
         //TODO NOW this doesn't handle removing public (-1) from the access doc because it can't know that's the right thing to do
         //TODO NOW admin access group id has same problem as public access group id
+        markUncounted(guid.getAccessGroupId(), Arrays.asList(toGUIDPrefix(guid)));
+        refreshAfterWrite();
     }
     
     //IO exception thrown for deserialization & elasticsearch contact errors
     @Override
     public void undeleteAllVersions(final GUID guid) throws IOException {
+        refreshIfModified(getAnyIndexPattern(), Arrays.asList(toGUIDPrefix(guid)));
         // could optimize later by making LLV return the index name
-        final Integer ver = loadLastVersion(null, guid, null);
+        final Integer ver = getLastVersion(guid);
         if (ver == null) {
             //TODO NOW throw exception? means an undelete event occurred when there were no objects
             return;
         }
+        markUncountedInStorage(Arrays.asList(guid.getAccessGroupId()));
         updateLastVersionsInData(null, guid, ver);
         updateAccessGroupForVersions(null, guid, ver, guid.getAccessGroupId(), false, true);
         // TODO NOW remove deleted flag from delete all versions
-        
+        markUncounted(guid.getAccessGroupId(), Arrays.asList(toGUIDPrefix(guid)));
+        refreshAfterWrite();
     }
     
     private GUID withVersion(final GUID guid, int ver) {
@@ -998,123 +3183,177 @@ public class ElasticIndexingStorage implements IndexingStorage {
     //IO exception thrown for deserialization & elasticsearch contact errors
     @Override
     public void publishAllVersions(final GUID guid) throws IOException {
+        refreshIfModified(getAnyIndexPattern(), Arrays.asList(toGUIDPrefix(guid)));
         setFieldOnObject(guid, "public", true, true);
+        refreshAfterWrite();
     }
     
     //IO exception thrown for deserialization & elasticsearch contact errors
     @Override
     public void unpublishAllVersions(final GUID guid) throws IOException {
+        refreshIfModified(getAnyIndexPattern(), Arrays.asList(toGUIDPrefix(guid)));
         setFieldOnObject(guid, "public", false, true);
+        refreshAfterWrite();
+    }
+    
+    //IO exception thrown for deserialization & elasticsearch contact errors
+    @Override
+    public void deleteAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        final String groupPrefix = toAccessGroupPrefix(storageCode, accessGroupId);
+        final String indexName = getAnyIndexPattern();
+        markUncountedInStorage(Arrays.asList(accessGroupId));
+        refreshIfModified(indexName, Arrays.asList(groupPrefix));
+        final List<Map<String, Object>> filters = new LinkedList<>(
+                createAccessGroupFilters(storageCode, accessGroupId));
+        filters.add(createFilter("term", OBJ_IS_LAST, true));
+        updateByQuery(indexName, getDataTableName(),
+                ImmutableMap.of("bool", ImmutableMap.of("filter", filters)),
+                getScript(StoredScript.SET_FIELD,
+                        ImmutableMap.of("field", OBJ_IS_LAST, "value", false)),
+                Arrays.asList(groupPrefix));
+        // no version is the last version, so the access group is removed from every version
+        updateAccessByQuery(indexName,
+                createFilter("prefix", "prefix", groupPrefix),
+                getScript(StoredScript.UPDATE_ACCESS_GROUPS, ImmutableMap.of(
+                        "lastvers", Collections.emptyMap(),
+                        "groups", Arrays.asList(accessGroupId))),
+                Arrays.asList(groupPrefix));
+        markUncounted(accessGroupId, Arrays.asList(groupPrefix));
+        refreshAfterWrite();
+    }
+    
+    //IO exception thrown for deserialization & elasticsearch contact errors
+    @Override
+    public void publishAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        setFieldOnAccessGroup(storageCode, accessGroupId, OBJ_PUBLIC, true);
+    }
+    
+    //IO exception thrown for deserialization & elasticsearch contact errors
+    @Override
+    public void unpublishAccessGroup(final String storageCode, final int accessGroupId)
+            throws IOException {
+        setFieldOnAccessGroup(storageCode, accessGroupId, OBJ_PUBLIC, false);
+    }
+    
+    private void setFieldOnAccessGroup(
+            final String storageCode,
+            final int accessGroupId,
+            final String field,
+            final Object value)
+            throws IOException {
+        final String groupPrefix = toAccessGroupPrefix(storageCode, accessGroupId);
+        final String indexName = getAnyIndexPattern();
+        refreshIfModified(indexName, Arrays.asList(groupPrefix));
+        updateByQuery(indexName, getDataTableName(),
+                ImmutableMap.of("bool", ImmutableMap.of("filter",
+                        createAccessGroupFilters(storageCode, accessGroupId))),
+                getScript(StoredScript.SET_FIELD,
+                        ImmutableMap.of("field", field, "value", value)),
+                Arrays.asList(groupPrefix));
+        refreshAfterWrite();
+    }
+    
+    // matches the data documents for every object in an access group
+    private List<Map<String, Object>> createAccessGroupFilters(
+            final String storageCode,
+            final int accessGroupId) {
+        return Arrays.asList(
+                createFilter("term", OBJ_STORAGE_CODE, storageCode),
+                createFilter("term", OBJ_ACCESS_GROUP_ID, accessGroupId));
+    }
+    
+    // the prefix common to the prefixes of every object in an access group
+    private String toAccessGroupPrefix(final String storageCode, final int accessGroupId) {
+        Utils.notNullOrEmpty(storageCode, "storageCode cannot be null or empty");
+        return storageCode + ":" + accessGroupId + "/";
     }
 
-    private boolean addExtPubForVersion(String indexName, GUID guid, 
-            int accessGroupId) throws IOException {
-        // Check that we work with other than physical access group this object exists in.
-        if (accessGroupId == guid.getAccessGroupId()) {
-            throw new IllegalStateException("Access group should be external");
-        }
+    // parentGUIDs must not contain sub object info
+    private boolean addExtPubForVersions(
+            String indexName,
+            final Collection<GUID> parentGUIDs,
+            final int accessGroupId)
+            throws IOException {
+        checkExternalAccessGroup(parentGUIDs, accessGroupId);
         if (indexName == null) {
             indexName = getAnyIndexPattern();
         }
-        String pguid = new GUID(guid.getStorageCode(), guid.getAccessGroupId(),
-                guid.getAccessGroupObjectId(), guid.getVersion(), null, null).toString();
-
-        Map<String, Object> query = ImmutableMap.of("bool",
-                                       ImmutableMap.of("must",
-                          Arrays.asList(createFilter("term", "pguid", pguid))));
-
-        final Map<String, Object> params = ImmutableMap.of("accgrp", accessGroupId);
-        Map<String, Object> script = ImmutableMap.of(
-                "inline",
-                "if (ctx._source.extpub.indexOf(params.accgrp) < 0) {\n" +
-                "  ctx._source.extpub.add(params.accgrp);\n" +
-                "}\n",
-                "params", params);
-
-        Map<String, Object> doc = ImmutableMap.of("query", query,
-                                                  "script", script);
-
-        String urlPath = "/" + indexName + "/" + getAccessTableName() + "/_update_by_query";
-        Response resp = makeRequest("POST", urlPath, doc);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
-        return (Integer)data.get("updated") > 0;
+        boolean updated = false;
+        for (final List<GUID> guids: partition(parentGUIDs)) {
+            final Map<String, Object> query = ImmutableMap.of("bool",
+                    ImmutableMap.of("must", Arrays.asList(
+                            createFilter("terms", "pguid", toStrings(guids)))));
+            final Map<String, Object> script = getScript(StoredScript.ADD_EXT_PUB,
+                    ImmutableMap.of("accgrp", accessGroupId));
+            updated |= updateAccessByQuery(indexName, query, script, toGUIDPrefixes(guids));
+        }
+        return updated;
+    }
+    
+    private void checkExternalAccessGroup(final Collection<GUID> guids, final int accessGroupId) {
+        // Check that we work with other than physical access group this object exists in.
+        for (final GUID guid: guids) {
+            if (accessGroupId == guid.getAccessGroupId()) {
+                throw new IllegalStateException("Access group should be external");
+            }
+        }
     }
 
     @Override
     public void publishObjectsExternally(Set<GUID> guids, int accessGroupId) throws IOException {
         Map<String, Set<GUID>> indexToGuids = groupParentIdsByIndex(guids);
         for (String indexName : indexToGuids.keySet()) {
-            boolean needRefresh = false;
-            for (GUID guid : indexToGuids.get(indexName)) {
-                if (addExtPubForVersion(indexName, guid, accessGroupId)) {
-                    needRefresh = true;
-                }
-            }
-            if (needRefresh) {
-                refreshIndex(indexName);
-            }
+            addExtPubForVersions(indexName, indexToGuids.get(indexName), accessGroupId);
         }
+        refreshAfterWrite();
     }
 
-    private boolean removeExtPubForVersion(String indexName, GUID guid, 
-            int accessGroupId) throws IOException {
-        // Check that we work with other than physical access group this object exists in.
-        if (accessGroupId == guid.getAccessGroupId()) {
-            throw new IllegalStateException("Access group should be external");
-        }
+    // parentGUIDs must not contain sub object info
+    private boolean removeExtPubForVersions(
+            String indexName,
+            final Collection<GUID> parentGUIDs,
+            final int accessGroupId)
+            throws IOException {
+        checkExternalAccessGroup(parentGUIDs, accessGroupId);
         if (indexName == null) {
             indexName = getAnyIndexPattern();
         }
-        String pguid = new GUID(guid.getStorageCode(), guid.getAccessGroupId(),
-                guid.getAccessGroupObjectId(), guid.getVersion(), null, null).toString();
-
-        Map<String, Object> query = ImmutableMap.of("bool",
-                                       ImmutableMap.of("must",
-                             Arrays.asList(createFilter("term", "pguid", pguid),
-                                           createFilter("term", "extpub", accessGroupId))));
-
-        final Map<String, Object> params = ImmutableMap.of("accgrp", accessGroupId);
-        Map<String, Object> script = ImmutableMap.of(
-                "inline",
-                "ctx._source.extpub.remove(ctx._source.extpub.indexOf(params.accgrp));\n",
-                "params", params);
-
-        Map<String, Object> doc = ImmutableMap.of("query", query,
-                                                  "script", script);
-
-        String urlPath = "/" + indexName + "/" + getAccessTableName() + "/_update_by_query";
-        Response resp = makeRequest("POST", urlPath, doc);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
-        return (Integer)data.get("updated") > 0;
+        boolean updated = false;
+        for (final List<GUID> guids: partition(parentGUIDs)) {
+            final Map<String, Object> query = ImmutableMap.of("bool",
+                    ImmutableMap.of("must", Arrays.asList(
+                            createFilter("terms", "pguid", toStrings(guids)),
+                            createFilter("term", "extpub", accessGroupId))));
+            final Map<String, Object> script = getScript(StoredScript.REMOVE_EXT_PUB,
+                    ImmutableMap.of("accgrp", accessGroupId));
+            updated |= updateAccessByQuery(indexName, query, script, toGUIDPrefixes(guids));
+        }
+        return updated;
     }
 
     @Override
     public void unpublishObjectsExternally(Set<GUID> guids, int accessGroupId) throws IOException {
         Map<String, Set<GUID>> indexToGuids = groupParentIdsByIndex(guids);
         for (String indexName : indexToGuids.keySet()) {
-            boolean needRefresh = false;
-            for (GUID guid : indexToGuids.get(indexName)) {
-                if (removeExtPubForVersion(indexName, guid, accessGroupId)) {
-                    needRefresh = true;
-                }
-            }
-            if (needRefresh) {
-                refreshIndex(indexName);
-            }
+            removeExtPubForVersions(indexName, indexToGuids.get(indexName), accessGroupId);
         }
+        refreshAfterWrite();
     }
     
     @Override
     public List<ObjectData> getObjectsByIds(Set<GUID> ids) throws IOException {
-        PostProcessing pp = new PostProcessing();
+        return getObjectsByIds(ids, getDefaultPostProcessing());
+    }
+    
+    // the post processing options used when none are provided: everything but highlights
+    private static PostProcessing getDefaultPostProcessing() {
+        final PostProcessing pp = new PostProcessing();
         pp.objectInfo = true;
         pp.objectData = true;
         pp.objectKeys = true;
-        return getObjectsByIds(ids, pp);
+        return pp;
     }
 
     private Map<String, Object> createHighlightQuery(){
@@ -1123,8 +3362,79 @@ public class ElasticIndexingStorage implements IndexingStorage {
                             ImmutableMap.of("require_field_match", false)));
     }
 
+    /* Objects are routed to the indexes that contain them using the version ledger, which
+     * records the indexes containing each object as the object is indexed. If every index that
+     * may contain the objects has document IDs derived from the GUIDs, the documents are fetched
+     * in real time with _mget. Otherwise, or if highlights are requested, the candidate indexes
+     * are searched, routed to the shards holding the objects where possible. Every index is only
+     * searched if the ledger is incomplete.
+     * A null postProcessing returns the same fields as getObjectsByIds(Set) with no highlights.
+     */
     @Override
-    public List<ObjectData> getObjectsByIds(final Set<GUID> ids, final PostProcessing pp)
+    public List<ObjectData> getObjectsByIds(
+            final Set<GUID> ids,
+            final PostProcessing postProcessing)
+            throws IOException {
+        final PostProcessing pp = postProcessing == null ?
+                getDefaultPostProcessing() : postProcessing;
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        if (!checkVersionLedger()) {
+            return searchObjectsByIds(getAnyIndexPattern(), ids, null,
+                    ids.size() * Math.max(1, indexCatalog.getIndexes().size()), pp);
+        }
+        final Map<String, LedgerEntry> entries = getLedgerEntries(toGUIDPrefixes(ids));
+        // index name -> guids possibly in the index
+        final Map<String, Set<GUID>> indexToGuids = new LinkedHashMap<>();
+        boolean mget = !pp.objectHighlight;
+        int candidates = 0;
+        for (final GUID guid: ids) {
+            final LedgerEntry entry = entries.get(toGUIDPrefix(guid));
+            for (final String indexName: entry.lastVersions.keySet()) {
+                /* an index cannot contain versions later than the last version in the index.
+                 * The ledger is not updated when an index is deleted.
+                 */
+                if ((guid.getVersion() == null ||
+                        guid.getVersion() <= entry.getLastVersion(indexName)) &&
+                        indexCatalog.contains(indexName, true)) {
+                    indexToGuids.computeIfAbsent(indexName, k -> new LinkedHashSet<>())
+                            .add(guid);
+                    mget = mget && getIndexLayout(indexName) >= 2;
+                    candidates++;
+                }
+            }
+        }
+        if (indexToGuids.isEmpty()) {
+            // none of the objects have been indexed
+            return new ArrayList<>();
+        }
+        if (mget) {
+            return getObjectsByIds(indexToGuids, pp);
+        }
+        final List<String> routing = new LinkedList<>();
+        for (final String indexName: indexToGuids.keySet()) {
+            if (getIndexLayout(indexName) < 2) {
+                // the access document IDs, and so the shards, are unknown
+                routing.clear();
+                break;
+            }
+            for (final GUID guid: indexToGuids.get(indexName)) {
+                routing.add(new GUID(guid, null, null).toString());
+            }
+        }
+        return searchObjectsByIds(String.join(",", indexToGuids.keySet()), ids,
+                routing.isEmpty() ? null : String.join(",", new LinkedHashSet<>(routing)),
+                candidates, pp);
+    }
+    
+    // searches the indexes for the objects, routing the search to the given shards if not null
+    private List<ObjectData> searchObjectsByIds(
+            final String indexName,
+            final Set<GUID> ids,
+            final String routing,
+            final int maxHits,
+            final PostProcessing pp)
             throws IOException {
 
         final Map<String, Object> query = ImmutableMap.of("bool",
@@ -1134,35 +3444,172 @@ public class ElasticIndexingStorage implements IndexingStorage {
 
         final Map<String, Object> doc = new LinkedHashMap<>();
         doc.put("query", query);
+        doc.put("_source", getSourceIncludes(pp));
+        // a GUID may be found in more than one index, e.g. the indexes for two type versions
+        doc.put("size", Math.min(maxHits, MAX_RESULT_WINDOW));
 
         if (Objects.nonNull(pp) && pp.objectHighlight) {
             doc.put("highlight", createHighlightQuery());
         }
 
-        final String urlPath = "/" + indexNamePrefix + "*/" + getDataTableName() + "/_search";
-        final Response resp = makeRequest("GET", urlPath, doc);
+        final String urlPath = "/" + indexName + "/" + getDataTableName() + "/_search";
+        final Response resp = makeRequest("GET", urlPath, doc, routing == null ?
+                Collections.emptyMap() : ImmutableMap.of("routing", routing));
+        final List<Hit> hits = new ArrayList<>();
+        new SearchHitReader(getSourceFields(pp), pp.objectHighlight).read(
+                resp.getEntity().getContent(), hit -> hits.add(hit));
+        return buildObjectData(hits, pp);
+    }
+    
+    /* fetches the objects from the indexes in real time with _mget. The indexes must be layout 2
+     * or later.
+     * indexToGuids is index name -> the guids to fetch from the index.
+     */
+    private List<ObjectData> getObjectsByIds(
+            final Map<String, Set<GUID>> indexToGuids,
+            final PostProcessing pp)
+            throws IOException {
+        // docs = [{"_index": index, "_type": "data", "_id": guid, "_routing": pguid,
+        //          "_source": [fields]}]
+        final List<String> includes = getSourceIncludes(pp);
+        final List<Map<String, Object>> docs = new LinkedList<>();
+        for (final String indexName: indexToGuids.keySet()) {
+            for (final GUID guid: indexToGuids.get(indexName)) {
+                docs.add(ImmutableMap.of(
+                        "_index", indexName,
+                        "_type", getDataTableName(),
+                        "_id", guid.toString(),
+                        "_routing", new GUID(guid, null, null).toString(),
+                        "_source", includes));
+            }
+        }
+        final Response resp = makeRequest("POST", "/_mget", ImmutableMap.of("docs", docs));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> found = (List<Map<String, Object>>) data.get("docs");
+        final List<Hit> hits = new ArrayList<>();
+        for (final Map<String, Object> doc: found) {
+            if (doc.get("error") != null) {
+                throw new IOException("Failed reading object " + doc.get("_id") + ": " +
+                        UObject.transformObjectToString(doc.get("error")));
+            }
+            if (Boolean.TRUE.equals(doc.get("found"))) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> source = (Map<String, Object>) doc.get("_source");
+                hits.add(new Hit((String) doc.get("_index"), (String) doc.get("_id"), source,
+                        null, null));
+            }
+        }
+        return buildObjectData(hits, pp);
+    }
+    
+    /* the _source fields to request from ElasticSearch in order to build object data with the
+     * given post processing options. Must agree with getSourceFields().
+     */
+    private static List<String> getSourceIncludes(final PostProcessing pp) {
+        final List<String> ret = new LinkedList<>();
+        ret.add("guid");
+        if (pp.objectInfo) {
+            ret.addAll(OBJ_INFO_FIELDS);
+        }
+        if (pp.objectData) {
+            ret.add("ojson");
+            ret.add("pjson");
+        }
+        if (pp.objectKeys) {
+            ret.add("key.*");
+        }
+        return ret;
+    }
+
+    // the _source fields required to build object data with the given post processing options
+    private static Predicate<String> getSourceFields(final PostProcessing pp) {
+        return field -> field.equals("guid") ||
+                (pp.objectInfo && OBJ_INFO_FIELDS.contains(field)) ||
+                (pp.objectData && (field.equals("ojson") || field.equals("pjson"))) ||
+                (pp.objectKeys && field.startsWith("key."));
+    }
+
+    /* builds the object data for a set of search hits. The parent data for hits in layout 3 and
+     * later indexes is fetched from the access documents in one request.
+     */
+    private List<ObjectData> buildObjectData(final List<Hit> hits, final PostProcessing pp)
+            throws IOException {
+        final Map<String, Map<String, String>> parentJson = pp.objectData ?
+                loadParentJson(hits) : Collections.emptyMap();
+        final List<ObjectData> ret = new ArrayList<>();
+        for (final Hit hit: hits) {
+            final Map<String, Object> source = hit.getSource();
+            String pjson = (String) source.get("pjson");
+            if (pjson == null && parentJson.containsKey(hit.getIndex())) {
+                pjson = parentJson.get(hit.getIndex()).get(toAccessDocId(source));
+            }
+            ret.add(buildObjectData(source, pjson, hit.getHighlight(), pp));
+        }
+        return ret;
+    }
+    
+    // the ID of the access document for a data document in layout 2 and later indexes
+    private static String toAccessDocId(final Map<String, Object> source) {
+        return new GUID(new GUID((String) source.get("guid")), null, null).toString();
+    }
+    
+    /* loads the parent data from the access documents for hits with object data but no parent
+     * data in layout 3 and later indexes.
+     * Returns index name -> access document ID -> parent JSON.
+     */
+    private Map<String, Map<String, String>> loadParentJson(final List<Hit> hits)
+            throws IOException {
+        final Map<String, Set<String>> toLoad = new LinkedHashMap<>();
+        for (final Hit hit: hits) {
+            final Map<String, Object> source = hit.getSource();
+            if (source.get("ojson") != null && source.get("pjson") == null &&
+                    getIndexLayout(hit.getIndex()) >= 3) {
+                toLoad.computeIfAbsent(hit.getIndex(), k -> new LinkedHashSet<>())
+                        .add(toAccessDocId(source));
+            }
+        }
+        if (toLoad.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        // docs = [{"_index": index, "_type": "access", "_id": pguid, "_source": ["pjson"]}]
+        final List<Map<String, Object>> docs = new LinkedList<>();
+        for (final String indexName: toLoad.keySet()) {
+            for (final String id: toLoad.get(indexName)) {
+                docs.add(ImmutableMap.of(
+                        "_index", indexName,
+                        "_type", getAccessTableName(),
+                        "_id", id,
+                        "_source", Arrays.asList("pjson")));
+            }
+        }
+        final Response resp = makeRequest("POST", "/_mget", ImmutableMap.of("docs", docs));
         @SuppressWarnings("unchecked")
         final Map<String, Object> data = UObject.getMapper().readValue(
                 resp.getEntity().getContent(), Map.class);
-        final List<ObjectData> ret = new ArrayList<>();
         @SuppressWarnings("unchecked")
-        final Map<String, Object> hitMap = (Map<String, Object>) data.get("hits");
-        @SuppressWarnings("unchecked")
-        final List<Map<String, Object>> hitList = (List<Map<String, Object>>) hitMap.get("hits");
-        for (Map<String, Object> hit : hitList) {
-            @SuppressWarnings("unchecked")
-            final Map<String, Object> obj = (Map<String, Object>) hit.get("_source");
-            @SuppressWarnings("unchecked")
-            final Map<String, List<String>> highlightRes =
-                    (Map<String, List<String>>) hit.get("highlight");
-            final ObjectData item = buildObjectData(obj, highlightRes, pp);
-            ret.add(item);
+        final List<Map<String, Object>> found = (List<Map<String, Object>>) data.get("docs");
+        final Map<String, Map<String, String>> ret = new HashMap<>();
+        for (final Map<String, Object> doc: found) {
+            if (doc.get("error") != null) {
+                throw new IOException("Failed reading parent data for object " +
+                        doc.get("_id") + ": " + UObject.transformObjectToString(doc.get("error")));
+            }
+            if (Boolean.TRUE.equals(doc.get("found"))) {
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> source = (Map<String, Object>) doc.get("_source");
+                ret.computeIfAbsent((String) doc.get("_index"), k -> new HashMap<>())
+                        .put((String) doc.get("_id"), (String) source.get("pjson"));
+            }
         }
         return ret;
     }
 
     private ObjectData buildObjectData(
             final Map<String, Object> obj,
+            final String pjson,
             final Map<String, List<String>> highlight,
             final PostProcessing pp) {
         // TODO: support sub-data selection based on objectDataIncludes (acts on parent json or sub object json)
@@ -1198,7 +3645,6 @@ public class ElasticIndexingStorage implements IndexingStorage {
                 b.withNullableData(UObject.transformStringToObject(
                         ojson, Object.class));
             }
-            final String pjson = (String) obj.get("pjson");
             if (pjson != null) {
                 b.withNullableParentData(UObject.transformStringToObject(pjson, Object.class));
             }
@@ -1262,11 +3708,7 @@ public class ElasticIndexingStorage implements IndexingStorage {
     private Map<String, Object> createOwnerShouldBlock(AccessFilter accessFilter) {
         List<Object> must1List = new ArrayList<>();
         if (!accessFilter.isAdmin) {
-            Set<Integer> accGroups = accessFilter.accessGroupIds;
-            if (accGroups == null) {
-                accGroups = Collections.emptySet();
-            }
-            must1List.add(createFilter("terms", "accgrp", accGroups));
+            must1List.add(createAccessGroupsFilter("accgrp", accessFilter));
         }
         if (!accessFilter.withAllHistory) {
             must1List.add(createFilter("term", "islast", true));
@@ -1297,27 +3739,29 @@ public class ElasticIndexingStorage implements IndexingStorage {
         if (mustForShared == null) {
             return Collections.emptyMap();
         }
+        final Map<String, Integer> counted = getCountedTypes(matchFilter, accessFilter);
+        if (counted != null) {
+            return counted;
+        }
         //TODO VERS if this aggregates by type version, need to add the version field to the terms
         Map<String, Object> aggs = ImmutableMap.of("types",
                                       ImmutableMap.of("terms",
-                                         ImmutableMap.of("field", SEARCH_OBJ_TYPE)));
+                                         ImmutableMap.of("field", SEARCH_OBJ_TYPE,
+                                                         "size", MAX_TYPE_BUCKETS)));
 
         Map<String, Object> doc = ImmutableMap.of(
                 "query", createObjectQuery(matchFilter, accessFilter),
                 "aggregations", aggs,
                 "size", 0);
 
-        String urlPath = "/" + indexNamePrefix + "*" +
+        String urlPath = "/" + getAnyIndexPattern() +
                 (matchFilter.isExcludeSubObjects() ? EXCLUDE_SUB_OJBS_URL_SUFFIX : "") +
                 "/" + getDataTableName() + "/_search";
         Response resp = makeRequest("GET", urlPath, doc);
+        final SearchHitReader reader = new SearchHitReader(f -> false, false);
+        reader.read(resp.getEntity().getContent(), hit -> {});
         @SuppressWarnings("unchecked")
-        Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> aggMap = (Map<String, Object>) data.get("aggregations");
-        @SuppressWarnings("unchecked")
-        Map<String, Object> typeMap = (Map<String, Object>) aggMap.get("types");
+        Map<String, Object> typeMap = (Map<String, Object>) reader.getAggregations().get("types");
         @SuppressWarnings("unchecked")
         List<Map<String, Object>> buckets = (List<Map<String, Object>>) typeMap.get("buckets");
         Map<String, Integer> ret = new TreeMap<>();
@@ -1331,7 +3775,8 @@ public class ElasticIndexingStorage implements IndexingStorage {
 
     private Map<String, Object> createObjectQuery(
             final MatchFilter matchFilter,
-            final AccessFilter accessFilter) {
+            final AccessFilter accessFilter)
+            throws IOException {
         
         final List<Object> shouldList = new ArrayList<>();
         // Public block (we exclude it for admin because it's covered by owner block)
@@ -1343,7 +3788,8 @@ public class ElasticIndexingStorage implements IndexingStorage {
         shouldList.add(createOwnerShouldBlock(accessFilter));
 
         // Shared block
-        shouldList.add(createSharedShouldBlock(createAccessMustBlock(accessFilter)));
+        shouldList.add(createSharedShouldBlock(createAccessMustBlock(
+                accessFilter, searchesAccessFields())));
         // Rest of query
         
         final Map<String, Object> bool = new HashMap<>();
@@ -1377,6 +3823,37 @@ public class ElasticIndexingStorage implements IndexingStorage {
                 postProcessing);
     }
     
+    @Override
+    public long exportObjects(
+            final List<String> objectTypes,
+            final MatchFilter matchFilter,
+            final List<SortingRule> sorting,
+            final AccessFilter accessFilter,
+            final PostProcessing postProcessing,
+            final ObjectDataConsumer consumer)
+            throws IOException {
+        Utils.nonNull(consumer, "consumer");
+        long count = 0;
+        String cursor = null;
+        do {
+            final FoundHits hits = queryHits(objectTypes, matchFilter, sorting, accessFilter,
+                    new Pagination(0, EXPORT_PAGE_SIZE, cursor), postProcessing);
+            if (hits.objects != null) {
+                for (final ObjectData obj: hits.objects) {
+                    consumer.accept(obj);
+                    count++;
+                }
+            } else {
+                for (final GUID guid: hits.guids) {
+                    consumer.accept(ObjectData.getBuilder(guid).build());
+                    count++;
+                }
+            }
+            cursor = hits.nextCursor;
+        } while (cursor != null);
+        return count;
+    }
+    
  // this is only used for tests
     public Set<GUID> searchIds(
             final List<String> objectTypes,
@@ -1450,6 +3927,27 @@ public class ElasticIndexingStorage implements IndexingStorage {
     }
     
     private Map<String, Object> createAccessMustBlock(AccessFilter accessFilter) {
+        return createAccessMustBlock(accessFilter, false);
+    }
+    
+    /* if onData is true, the access fields on the data documents are queried directly rather
+     * than the access documents.
+     */
+    private Map<String, Object> createAccessMustBlock(
+            final AccessFilter accessFilter,
+            final boolean onData) {
+        // match = {groupListProp: [accessGroupIds]}
+        String groupListProp = accessFilter.withAllHistory ? "groups" : "lastin";  // I think lastin means last version even though version is orthogonal to the concept of groups?
+        if (!accessFilter.isAdmin && isAccessGroupsStored(accessFilter)) {
+            // the public group is never stored with the user's groups
+            final List<Object> terms = new ArrayList<>(Arrays.asList(
+                    createAccessGroupsFilter(groupListProp, accessFilter)));
+            if (accessFilter.withPublic) {
+                terms.add(createFilter("terms", groupListProp,
+                        Arrays.asList(PUBLIC_ACCESS_GROUP)));
+            }
+            return createAccessMustBlock(terms, accessFilter.withPublic, onData);
+        }
         Set<Integer> accessGroupIds = new LinkedHashSet<>();
         if (accessFilter.isAdmin) {
             accessGroupIds.add(ADMIN_ACCESS_GROUP);
@@ -1464,25 +3962,17 @@ public class ElasticIndexingStorage implements IndexingStorage {
         if (accessGroupIds.isEmpty()) {
             return null;
         }
-        return createAccessMustBlock(accessGroupIds, accessFilter.withAllHistory,
-                accessFilter.withPublic);
+        // terms = {"terms": { groupListProp: [accessGroupIds]}}
+        return createAccessMustBlock(
+                Arrays.asList(createFilter("terms", groupListProp, accessGroupIds)),
+                accessFilter.withPublic, onData);
     }
     
-    private Map<String, Object> createAccessMustBlock(Set<Integer> accessGroupIds, 
-            boolean withAllHistory, boolean withPublic) {
-        // should = []
-        List<Object> should = new ArrayList<>();
-
-        // match = {groupListProp: [accessGroupIds]}
-        String groupListProp = withAllHistory ? "groups" : "lastin";  // I think lastin means last version even though version is orthogonal to the concept of groups?
-
-        // terms = {"terms": { groupListProp: [accessGroupIds]}}
-        Map<String, Object> terms = ImmutableMap.of("terms",
-                                       ImmutableMap.of(groupListProp, accessGroupIds));
-
-
+    // groupTerms are the terms filters on the access groups containing the versions
+    private Map<String, Object> createAccessMustBlock(List<Object> groupTerms, 
+            boolean withPublic, boolean onData) {
         // should = [{"terms": {groupListProp: [accessGroupIds]}}]
-        should.add(terms);
+        List<Object> should = new ArrayList<>(groupTerms);
 
         if (withPublic) {
             // Case of public workspaces containing DataPalette referencing to given object
@@ -1501,14 +3991,20 @@ public class ElasticIndexingStorage implements IndexingStorage {
             //           {"exists": {"field", "extpub"}}]
             should.add(existwrapper);
         }
+        
+        final Map<String, Object> accessQuery = ImmutableMap.of("bool",
+                ImmutableMap.of("should", should));
+        if (onData) {
+            // the data documents carry the same fields as the access documents
+            return accessQuery;
+        }
 
         // hasParentWrapper = {"hasParent": {"parent_type": "access",
         //                                   "query": {"bool": {"should": [{"terms": {groupListProp: [accessGroupIds]}}
         //                                                     {"exists": {"field", "extpub"}}?]}}}}
         Map<String, Object> hasParentWrapper = ImmutableMap.of("has_parent",
                                                   ImmutableMap.of("parent_type", getAccessTableName(),
-                                                                  "query", ImmutableMap.of("bool",
-                                                                              ImmutableMap.of("should", should))));
+                                                                  "query", accessQuery));
         return hasParentWrapper;
     }
     
@@ -1523,7 +4019,33 @@ public class ElasticIndexingStorage implements IndexingStorage {
         // initialize args
         int pgStart = pg == null || pg.start == null ? 0 : pg.start;
         int pgCount = pg == null || pg.count == null ? 50 : pg.count;
-        Pagination pagination = new Pagination(pgStart, pgCount);
+        final String cursor = pg == null ? null : pg.cursor;
+        final boolean snapshot = pg != null && pg.snapshot;
+        if ((cursor != null || snapshot) && pgStart != 0) {
+            throw new IllegalArgumentException(
+                    "The pagination start must be 0 for snapshot searches or when a cursor " +
+                    "is provided");
+        }
+        final Object cursorValue = cursor == null ? null : decodeCursor(cursor);
+        final String scrollId;
+        if (cursorValue instanceof Map) {
+            if (!snapshot) {
+                throw new IllegalArgumentException(
+                        "The snapshot cursor is not valid for this search");
+            }
+            final Map<?, ?> snapshotCursor = (Map<?, ?>) cursorValue;
+            scrollId = (String) snapshotCursor.get("scroll");
+            // the page size of a snapshot search is fixed when the search starts
+            pgCount = (Integer) snapshotCursor.get("count");
+        } else {
+            if (snapshot && cursorValue != null) {
+                throw new IllegalArgumentException(
+                        "Snapshot searches can only be continued with a snapshot cursor");
+            }
+            scrollId = null;
+        }
+        Pagination pagination = new Pagination(pgStart, pgCount, cursor);
+        pagination.snapshot = snapshot;
         if (sorting == null || sorting.isEmpty()) {
             final SortingRule sr = SortingRule.getStandardPropertyBuilder(R_OBJ_TIMESTAMP).build();
             sorting = Arrays.asList(sr);
@@ -1544,15 +4066,26 @@ public class ElasticIndexingStorage implements IndexingStorage {
         if (Objects.nonNull(pp) && pp.objectHighlight) {
             doc.put("highlight", createHighlightQuery());
         }
-        doc.put("from", pagination.start);
+        if (cursor == null && !snapshot) {
+            doc.put("from", pagination.start);
+        }
         doc.put("size", pagination.count);
 
         boolean loadObjects = pp != null &&
                 (pp.objectInfo || pp.objectData || pp.objectKeys || pp.objectHighlight);
-        if (!loadObjects) {
-            doc.put("_source", Arrays.asList("guid"));
+        // highlights are built from the indexed fields, not _source
+        doc.put("_source", loadObjects ? getSourceIncludes(pp) : Arrays.asList("guid"));
+        final List<Object> sort = createSortQuery(sorting);
+        // the GUID breaks ties so that the order of the hits, and therefore a cursor, is stable
+        sort.add(ImmutableMap.of(OBJ_GUID, ImmutableMap.of("order", "asc")));
+        doc.put("sort", sort);
+        if (cursorValue instanceof List) {
+            if (((List<?>) cursorValue).size() != sort.size()) {
+                throw new IllegalArgumentException(
+                        "The pagination cursor does not match the sorting rules");
+            }
+            doc.put("search_after", cursorValue);
         }
-        doc.put("sort", createSortQuery(sorting));
 
         validateObjectTypes(objectTypes);
 
@@ -1576,34 +4109,103 @@ public class ElasticIndexingStorage implements IndexingStorage {
         }
 
         final String urlPath = "/" + indexName + "/" + getDataTableName() + "/_search";
-        final Response resp = makeRequest("GET", urlPath, ImmutableMap.copyOf(doc));
+        // ElasticSearch does not allow scroll contexts with a page size of 0
+        final boolean scroll = snapshot && pagination.count > 0;
+        final String keepAlive = snapshotKeepAliveSec + "s";
+        final Response resp;
+        if (scrollId != null) {
+            resp = makeRequest("POST", "/_search/scroll",
+                    ImmutableMap.of("scroll", keepAlive, "scroll_id", scrollId));
+        } else if (scroll) {
+            resp = makeRequest("GET", urlPath, ImmutableMap.copyOf(doc),
+                    ImmutableMap.of("scroll", keepAlive));
+        } else {
+            resp = makeRequest("GET", urlPath, ImmutableMap.copyOf(doc));
+        }
 
-        @SuppressWarnings("unchecked")
-        final Map<String, Object> data = UObject.getMapper().readValue(
-                resp.getEntity().getContent(), Map.class);
         ret.guids = new LinkedHashSet<>();
-        @SuppressWarnings("unchecked")
-        final Map<String, Object> hitMap = (Map<String, Object>) data.get("hits");
-        ret.total = (Integer)hitMap.get("total");
-        @SuppressWarnings("unchecked")
-        final List<Map<String, Object>> hitList = (List<Map<String, Object>>) hitMap.get("hits");
+        final List<Hit> hits = new ArrayList<>();
+        final AtomicInteger hitCount = new AtomicInteger();
+        final AtomicReference<List<Object>> lastSort = new AtomicReference<>();
+        final SearchHitReader reader = loadObjects ?
+                new SearchHitReader(getSourceFields(pp), pp.objectHighlight) :
+                new SearchHitReader(f -> f.equals("guid"), false);
+        reader.read(resp.getEntity().getContent(), hit -> {
+            ret.guids.add(new GUID((String) hit.getSource().get("guid")));
+            hitCount.incrementAndGet();
+            lastSort.set(hit.getSort());
+            if (loadObjects) {
+                hits.add(hit);
+            }
+        });
         if (loadObjects) {
-            ret.objects = new ArrayList<>();
+            ret.objects = buildObjectData(hits, pp);
         }
-        for (Map<String, Object> hit : hitList) {
-            @SuppressWarnings("unchecked")
-            final Map<String, Object> obj = (Map<String, Object>) hit.get("_source");
-            @SuppressWarnings("unchecked")
-            final Map<String, List<String>> highlightRes =
-                    (Map<String, List<String>>) hit.get("highlight");
-            final String guidText = (String)obj.get("guid");
-            ret.guids.add(new GUID(guidText));
-            if (loadObjects) {
-                ret.objects.add(buildObjectData(obj, highlightRes, pp));
+        ret.total = Math.toIntExact(reader.getTotal());
+        final boolean more = pagination.count > 0 && hitCount.get() == pagination.count;
+        if (scroll) {
+            if (more) {
+                ret.nextCursor = encodeCursor(ImmutableMap.of(
+                        "scroll", reader.getScrollId(), "count", pagination.count));
+            } else {
+                // the snapshot is exhausted, so free the scroll context now
+                clearScroll(reader.getScrollId());
             }
+        } else if (more) {
+            ret.nextCursor = encodeCursor(lastSort.get());
         }
         return ret;
     }
+    
+    /* A search_after cursor is a list of the sort values of the last hit of a page. A snapshot
+     * cursor is a map containing the ID of the scroll context for the snapshot and the page size.
+     * Both are encoded as URL safe base64 JSON.
+     */
+    private static String encodeCursor(final Object cursor) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                UObject.transformObjectToString(cursor).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static Object decodeCursor(final String cursor) {
+        final Object ret;
+        try {
+            ret = UObject.getMapper().readValue(Base64.getUrlDecoder().decode(cursor),
+                    Object.class);
+        } catch (IllegalArgumentException | IOException e) {
+            throw new IllegalArgumentException("Invalid pagination cursor: " + cursor);
+        }
+        if (ret instanceof List) {
+            return ret;
+        }
+        if (ret instanceof Map && ((Map<?, ?>) ret).get("scroll") instanceof String &&
+                ((Map<?, ?>) ret).get("count") instanceof Integer) {
+            return ret;
+        }
+        throw new IllegalArgumentException("Invalid pagination cursor: " + cursor);
+    }
+    
+    private void clearScroll(final String scrollId) throws IOException {
+        try {
+            makeRequest("DELETE", "/_search/scroll",
+                    ImmutableMap.of("scroll_id", Arrays.asList(scrollId)));
+        } catch (IOException e) {
+            // the scroll context has already expired
+            if (!(e.getCause() instanceof ResponseException) ||
+                    ((ResponseException) e.getCause()).getResponse().getStatusLine()
+                            .getStatusCode() != 404) {
+                throw e;
+            }
+        }
+    }
+    
+    @Override
+    public void releaseCursor(final String cursor) throws IOException {
+        Utils.nonNull(cursor, "cursor");
+        final Object cursorValue = decodeCursor(cursor);
+        if (cursorValue instanceof Map) {
+            clearScroll((String) ((Map<?, ?>) cursorValue).get("scroll"));
+        }
+    }
 
     private List<Object> createSortQuery(final List<SortingRule> sorting) {
         final List<Object> sort = new ArrayList<>();
@@ -1630,6 +4232,92 @@ public class ElasticIndexingStorage implements IndexingStorage {
         return "key." + keyName;
     }
 
+    /* A thread safe cache of the names of the indexes matching the index name prefix. */
+    private class IndexCatalog {
+        
+        private volatile long ttlMS = DEFAULT_INDEX_CATALOG_TTL_MS;
+        private volatile Set<String> indexes = null;
+        private volatile long loaded = 0;
+        
+        private Set<String> getIndexes() throws IOException {
+            final Set<String> current = indexes;
+            if (current != null && System.currentTimeMillis() - loaded < ttlMS) {
+                return current;
+            }
+            return reload(current);
+        }
+        
+        // only reloads if the catalog hasn't been replaced since it was read
+        private synchronized Set<String> reload(final Set<String> expected) throws IOException {
+            if (indexes != expected) {
+                return indexes;
+            }
+            final Set<String> ret = Collections.unmodifiableSet(loadIndexes());
+            indexes = ret;
+            loaded = System.currentTimeMillis();
+            return ret;
+        }
+        
+        /* if reloadOnMiss is true, the catalog is reloaded prior to checking unless it was
+         * loaded very recently
+         */
+        private Set<String> getIndexes(final boolean reloadOnMiss) throws IOException {
+            if (reloadOnMiss) {
+                final Set<String> current = indexes;
+                if (System.currentTimeMillis() - loaded >= INDEX_CATALOG_MIN_RELOAD_MS) {
+                    return reload(current);
+                }
+            }
+            return getIndexes();
+        }
+        
+        private boolean contains(final String indexName, final boolean reloadOnMiss)
+                throws IOException {
+            return getIndexes(reloadOnMiss).contains(indexName);
+        }
+        
+        private boolean anyStartsWith(final String prefix, final boolean reloadOnMiss)
+                throws IOException {
+            return getIndexes(reloadOnMiss).stream().anyMatch(i -> i.startsWith(prefix));
+        }
+        
+        private void reloadNow() throws IOException {
+            reload(indexes);
+        }
+        
+        private synchronized void add(final String indexName) {
+            if (indexes != null && indexName.startsWith(indexNamePrefix)) {
+                final Set<String> updated = new TreeSet<>(indexes);
+                updated.add(indexName);
+                indexes = Collections.unmodifiableSet(updated);
+            }
+        }
+        
+        private synchronized void remove(final String indexName) {
+            if (indexes != null && indexes.contains(indexName)) {
+                final Set<String> updated = new TreeSet<>(indexes);
+                updated.remove(indexName);
+                indexes = Collections.unmodifiableSet(updated);
+            }
+        }
+        
+        private synchronized void invalidate() {
+            indexes = null;
+            loaded = 0;
+        }
+    }
+    
+    // only fetches the indexes matching the index name prefix rather than the entire cluster
+    private Set<String> loadIndexes() throws IOException {
+        final Set<String> ret = new TreeSet<>();
+        @SuppressWarnings("unchecked")
+        Map<String, Object> data = UObject.getMapper().readValue(
+                makeRequest("GET", "/" + getPrefixPattern() + "/_aliases", null)
+                        .getEntity().getContent(), Map.class);
+        ret.addAll(data.keySet());
+        return ret;
+    }
+    
     public Set<String> listIndeces() throws IOException {
         Set<String> ret = new TreeSet<>();
         @SuppressWarnings("unchecked")
@@ -1640,13 +4328,356 @@ public class ElasticIndexingStorage implements IndexingStorage {
     }
     
     public Response deleteIndex(String indexName) throws IOException {
-        return makeRequest("DELETE", "/" + indexName, null);
+        unrefreshed.remove(indexName);
+        indexLayouts.remove(indexName);
+        indexAccessFields.remove(indexName);
+        final Response resp = makeRequest("DELETE", "/" + indexName, null);
+        indexCatalog.remove(indexName);
+        return resp;
     }
     
     public Response refreshIndex(String indexName) throws IOException {
+        unrefreshed.remove(indexName);
         return makeRequest("POST", "/" + indexName + "/_refresh", null);
     }
     
+    /** Get the layout version of an index. See {@link #CURRENT_INDEX_LAYOUT}.
+     * @param indexName the name of the index.
+     * @return the layout version.
+     * @throws IOException if an IO error occurs.
+     */
+    public int getIndexLayout(final String indexName) throws IOException {
+        Integer layout = indexLayouts.get(indexName);
+        if (layout == null) {
+            loadIndexMetadata(indexName);
+            layout = indexLayouts.get(indexName);
+        }
+        return layout;
+    }
+    
+    /** Determine whether the data documents in an index carry the access fields. See
+     * {@link #setAccessFieldsOnData(boolean)}.
+     * @param indexName the name of the index.
+     * @return true if the data documents carry the access fields.
+     * @throws IOException if an IO error occurs.
+     */
+    public boolean hasAccessFieldsOnData(final String indexName) throws IOException {
+        Boolean accessFields = indexAccessFields.get(indexName);
+        if (accessFields == null) {
+            loadIndexMetadata(indexName);
+            accessFields = indexAccessFields.get(indexName);
+        }
+        return accessFields;
+    }
+    
+    private void loadIndexMetadata(final String indexName) throws IOException {
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> meta = (Map<String, Object>) getIndexMappings(indexName)
+                .get(getDataTableName()).get("_meta");
+        int layout = 1; // indexes created prior to layout versioning have no metadata
+        if (meta != null && meta.get(META_LAYOUT) != null) {
+            layout = (Integer) meta.get(META_LAYOUT);
+        }
+        indexLayouts.put(indexName, layout);
+        indexAccessFields.put(indexName,
+                meta != null && Boolean.TRUE.equals(meta.get(META_ACCESS_FIELDS)));
+    }
+    
+    /* returns the indexes matching an index name or pattern where the data documents carry the
+     * access fields, joined for use in a URL, or null if there are no such indexes. Patterns are
+     * treated as matching every type index, since the queries they are used with select the
+     * documents.
+     */
+    private String getAccessFieldIndexes(final String indexName) throws IOException {
+        final List<String> ret = new LinkedList<>();
+        if (isIndexPattern(indexName)) {
+            for (final String index: indexCatalog.getIndexes()) {
+                if (!isAuxiliaryIndex(index) && hasAccessFieldsOnData(index)) {
+                    ret.add(index);
+                }
+            }
+        } else if (hasAccessFieldsOnData(indexName)) {
+            ret.add(indexName);
+        }
+        return ret.isEmpty() ? null : String.join(",", ret);
+    }
+    
+    // returns true if every type index has the access fields on the data documents
+    private boolean searchesAccessFields() throws IOException {
+        boolean any = false;
+        for (final String index: indexCatalog.getIndexes()) {
+            if (!isAuxiliaryIndex(index)) {
+                if (!hasAccessFieldsOnData(index)) {
+                    return false;
+                }
+                any = true;
+            }
+        }
+        return any;
+    }
+    
+    // returns document type -> mapping for the document type
+    private Map<String, Map<String, Object>> getIndexMappings(final String indexName)
+            throws IOException {
+        final Response resp = makeRequest("GET", "/" + indexName + "/_mapping", null);
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Map<String, Map<String, Object>>>> data =
+                UObject.getMapper().readValue(resp.getEntity().getContent(), Map.class);
+        return data.get(indexName).get("mappings");
+    }
+    
+    /** Migrate all the indexes with the index name prefix that were created with a prior layout
+     * version to the current layout version. See {@link #CURRENT_INDEX_LAYOUT}.
+     * 
+     * Each index is copied to a temporary index, prefixed with "migrating.", with the new layout,
+     * deleted, recreated with the new layout, and the data copied back. If a migration is
+     * interrupted, running the migration again completes it. Layout 2 indexes only require a
+     * mapping update and are upgraded in place.
+     * 
+     * The version ledger, which records the last version of each object, is also built if it
+     * does not yet contain objects indexed before the ledger was introduced. Similarly, the
+     * per access group type counts used by {@link #searchTypes(MatchFilter, AccessFilter)} are
+     * built if they do not yet include objects indexed before the counts were introduced.
+     * 
+     * If {@link #setAccessFieldsOnData(boolean)} is enabled, the access fields are copied to the
+     * data documents of any indexes without them.
+     * 
+     * No indexing or searching should occur while indexes are being migrated.
+     * @return the names of the migrated indexes, including the version ledger and type counts
+     * if they were built.
+     * @throws IOException if an IO error occurs.
+     */
+    public List<String> migrateIndexes() throws IOException {
+        final List<String> migrated = new LinkedList<>();
+        final Set<String> indexes = listIndeces();
+        final String tempPrefix = MIGRATION_INDEX_PREFIX + indexNamePrefix;
+        for (final String index: indexes) {
+            if (index.startsWith(tempPrefix)) {
+                final String target = index.substring(MIGRATION_INDEX_PREFIX.length());
+                if (!indexes.contains(target)) {
+                    // the target index was deleted before the data was copied back
+                    copyIndex(index, target);
+                    deleteIndex(index);
+                    migrated.add(target);
+                }
+            }
+        }
+        for (final String index: indexes) {
+            if (index.startsWith(indexNamePrefix) && !index.startsWith(MIGRATION_INDEX_PREFIX) &&
+                    !isAuxiliaryIndex(index) &&
+                    getIndexLayout(index) < CURRENT_INDEX_LAYOUT) {
+                if (getIndexLayout(index) == 2) {
+                    upgradeLayout2Index(index);
+                    migrated.add(index);
+                    continue;
+                }
+                final String tempIndex = MIGRATION_INDEX_PREFIX + index;
+                if (indexes.contains(tempIndex) &&
+                        getIndexLayout(tempIndex) == CURRENT_INDEX_LAYOUT) {
+                    /* the migration was interrupted after the data was copied to the temporary
+                     * index, and the index may be partially copied back
+                     */
+                    deleteIndex(index);
+                } else {
+                    if (indexes.contains(tempIndex)) {
+                        // the migration was interrupted while copying to the temporary index
+                        deleteIndex(tempIndex);
+                    }
+                    copyIndex(index, tempIndex);
+                    deleteIndex(index);
+                }
+                copyIndex(tempIndex, index);
+                deleteIndex(tempIndex);
+                migrated.add(index);
+            }
+        }
+        if (accessFieldsOnData) {
+            for (final String index: indexes) {
+                if (index.startsWith(indexNamePrefix) &&
+                        !index.startsWith(MIGRATION_INDEX_PREFIX) && !isAuxiliaryIndex(index) &&
+                        !hasAccessFieldsOnData(index)) {
+                    addAccessFields(index);
+                    if (!migrated.contains(index)) {
+                        migrated.add(index);
+                    }
+                }
+            }
+        }
+        typeToIndex.clear();
+        ruleToIndex.clear();
+        indexCatalog.invalidate();
+        ledgerComplete = null;
+        if (!checkVersionLedger()) {
+            buildVersionLedger();
+            migrated.add(getLedgerIndex());
+        }
+        typeCountsComplete = null;
+        if (!checkTypeCounts()) {
+            buildTypeCounts();
+            migrated.add(getTypeCountsIndex());
+        }
+        return migrated;
+    }
+    
+    /* sets the document IDs and parents from the GUIDs. The copied data documents would
+     * otherwise keep the routing of their legacy parents, whose IDs were generated by
+     * ElasticSearch, and so be stored on a different shard than their new parents.
+     */
+    private static final String MIGRATE_ACCESS_SCRIPT = "ctx._id = ctx._source.pguid;";
+    private static final String MIGRATE_DATA_SCRIPT =
+            "String guid = ctx._source.guid;\n" +
+            "int subObj = guid.indexOf(':', guid.indexOf(':') + 1);\n" +
+            "ctx._parent = subObj < 0 ? guid : guid.substring(0, subObj);\n" +
+            "ctx._routing = ctx._parent;\n" +
+            "ctx._id = guid;\n";
+    
+    /* layout 3 only adds the parent data to the access document mapping, so layout 2 indexes
+     * are upgraded in place. The parent data already stored on the data documents continues to
+     * be read from there.
+     */
+    private void upgradeLayout2Index(final String index) throws IOException {
+        makeRequest("PUT", "/" + index + "/_mapping/" + getAccessTableName(), ImmutableMap.of(
+                "properties", ImmutableMap.of("pjson", createParentJsonMapping())));
+        makeRequest("PUT", "/" + index + "/_mapping/" + getDataTableName(), ImmutableMap.of(
+                "_meta", ImmutableMap.of(META_LAYOUT, CURRENT_INDEX_LAYOUT)));
+        indexLayouts.put(index, CURRENT_INDEX_LAYOUT);
+        indexAccessFields.put(index, false);
+    }
+    
+    /* creates the target index with the mappings of the source index, copies the documents to
+     * the target index with deterministic IDs, and marks the target index with the current
+     * layout version. The layout version is only set once every document is copied, so an index
+     * with the current layout version is always a complete copy.
+     */
+    private void copyIndex(final String source, final String target) throws IOException {
+        final Map<String, Object> mappings = new LinkedHashMap<>(getIndexMappings(source));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> accessMapping = new LinkedHashMap<>(
+                (Map<String, Object>) mappings.get(getAccessTableName()));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> accessProps = new LinkedHashMap<>(
+                (Map<String, Object>) accessMapping.get("properties"));
+        accessProps.put("pjson", createParentJsonMapping());
+        accessMapping.put("properties", accessProps);
+        mappings.put(getAccessTableName(), accessMapping);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> dataMapping = new LinkedHashMap<>(
+                (Map<String, Object>) mappings.get(getDataTableName()));
+        dataMapping.remove("_meta");
+        mappings.put(getDataTableName(), dataMapping);
+        makeRequest("PUT", "/" + target, ImmutableMap.of("mappings", mappings));
+        // parents must be copied before their children
+        reindex(source, target, getAccessTableName(), MIGRATE_ACCESS_SCRIPT);
+        reindex(source, target, getDataTableName(), MIGRATE_DATA_SCRIPT);
+        makeRequest("PUT", "/" + target + "/_mapping/" + getDataTableName(), ImmutableMap.of(
+                "_meta", ImmutableMap.of(META_LAYOUT, CURRENT_INDEX_LAYOUT)));
+        indexLayouts.put(target, CURRENT_INDEX_LAYOUT);
+        indexAccessFields.put(target, false);
+    }
+    
+    private void reindex(
+            final String source,
+            final String target,
+            final String docType,
+            final String script)
+            throws IOException {
+        final Map<String, Object> doc = ImmutableMap.of(
+                "source", ImmutableMap.of("index", source, "type", docType),
+                "dest", ImmutableMap.of("index", target),
+                "script", ImmutableMap.of("inline", script));
+        final Response resp = makeRequest("POST", "/_reindex", doc,
+                ImmutableMap.of("refresh", "true"));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> data = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        final List<?> failures = (List<?>) data.get("failures");
+        if (failures != null && !failures.isEmpty()) {
+            throw new IOException(String.format("Failed copying %s documents from index %s " +
+                    "to index %s: %s", docType, source, target,
+                    UObject.transformObjectToString(failures.get(0))));
+        }
+    }
+    
+    // records that an object has been modified in an index or index pattern
+    private void markModified(final String indexName, final String prefix) {
+        unrefreshed.computeIfAbsent(indexName, k -> ConcurrentHashMap.newKeySet()).add(prefix);
+    }
+    
+    private boolean isIndexPattern(final String indexName) {
+        return indexName.contains("*") || indexName.contains(",");
+    }
+    
+    /* Refreshes any indexes matching the index name or pattern where any of the objects have been
+     * modified since the index was last refreshed, so that the objects can be safely read or
+     * updated. Any other indexes are left alone.
+     */
+    private void refreshIfModified(final String indexName, final Collection<String> prefixes)
+            throws IOException {
+        final List<String> toRefresh = new LinkedList<>();
+        for (final String modifiedIndex: unrefreshed.keySet()) {
+            if (modifiedIndex.equals(indexName) || isIndexPattern(modifiedIndex) ||
+                    isIndexPattern(indexName)) {
+                final Set<String> modified = unrefreshed.get(modifiedIndex);
+                if (modified != null && isModified(modified, prefixes)) {
+                    toRefresh.add(modifiedIndex);
+                }
+            }
+        }
+        refreshModified(toRefresh);
+    }
+    
+    /* Object prefixes are of the form storageCode:accessGroupId/objectId. Modifications to an
+     * entire access group are recorded with the access group prefix, storageCode:accessGroupId/,
+     * which matches every object in the access group.
+     */
+    private boolean isModified(final Set<String> modified, final Collection<String> prefixes) {
+        for (final String prefix: prefixes) {
+            if (prefix.endsWith("/")) {
+                for (final String m: modified) {
+                    if (m.startsWith(prefix)) {
+                        return true;
+                    }
+                }
+            } else if (modified.contains(prefix) ||
+                    modified.contains(prefix.substring(0, prefix.lastIndexOf('/') + 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // refreshes the modified indexes at the end of a write operation, depending on the policy
+    private void refreshAfterWrite() throws IOException {
+        if (refreshPolicy.equals(RefreshPolicy.IMMEDIATE) ||
+                refreshPolicy.equals(RefreshPolicy.WAIT_FOR)) {
+            refreshModified(new ArrayList<>(unrefreshed.keySet()));
+            updateTypeCounts();
+        }
+    }
+    
+    private void refreshModified(final Collection<String> indexNames) throws IOException {
+        final Map<String, Set<String>> refreshing = new LinkedHashMap<>();
+        for (final String indexName: indexNames) {
+            // any modifications made after this point will be marked in a new set
+            final Set<String> modified = unrefreshed.remove(indexName);
+            if (modified != null) {
+                refreshing.put(indexName, modified);
+            }
+        }
+        if (refreshing.isEmpty()) {
+            return;
+        }
+        try {
+            makeRequest("POST", "/" + String.join(",", refreshing.keySet()) + "/_refresh", null);
+        } catch (IOException | RuntimeException e) {
+            for (final String indexName: refreshing.keySet()) {
+                unrefreshed.computeIfAbsent(indexName, k -> ConcurrentHashMap.newKeySet())
+                        .addAll(refreshing.get(indexName));
+            }
+            throw e;
+        }
+    }
+    
     /** Refresh the elasticsearch index, where the index prefix is set by
      * {@link #setIndexNamePrefix(String)}. Primarily used for testing.
      * @param rule the parsing rules that describes the index.
@@ -1663,53 +4694,65 @@ public class ElasticIndexingStorage implements IndexingStorage {
         return makeRequest(reqType, urlPath, doc, Collections.<String, String>emptyMap());
     }
 
-    private RestClient getRestClient() {
-        if (restClient == null) {
-            RestClientBuilder restClientBld = RestClient.builder(esHost);
-            restClientBld.setRequestConfigCallback(new RestClientBuilder.RequestConfigCallback() {
-                @Override
-                public RequestConfig.Builder customizeRequestConfig(RequestConfig.Builder requestConfigBuilder) {
-                    return requestConfigBuilder.setConnectTimeout(10000)
-                            .setSocketTimeout(120000);
-                }
-            }).setMaxRetryTimeoutMillis(120000);
-            List<Header> headers = new ArrayList<>();
-            headers.add(new BasicHeader(HttpHeaders.CONTENT_TYPE, "application/json"));
-            //headers.add(new BasicHeader("Role", "Read"));
-            restClientBld.setDefaultHeaders(headers.toArray(new Header[headers.size()]));
-            if (esUser != null) {
-                CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-                credentialsProvider.setCredentials(AuthScope.ANY, 
-                        new UsernamePasswordCredentials(esUser, esPassword));
-                restClientBld.setHttpClientConfigCallback(new RestClientBuilder.HttpClientConfigCallback() {
-                    public HttpAsyncClientBuilder customizeHttpClient(HttpAsyncClientBuilder hacb) {
-                        return hacb.setDefaultCredentialsProvider(credentialsProvider);
-                    }
-                });
-            }
-            restClient = restClientBld.build();
+    /* Searches and other requests that do not modify data are sent to the read pool so that
+     * indexing traffic can't starve them of connections.
+     */
+    private ElasticClientPool getPool(final String reqType, final String urlPath) {
+        if ("GET".equals(reqType) || "HEAD".equals(reqType) ||
+                urlPath.startsWith("/_search/scroll") ||
+                ("POST".equals(reqType) && (urlPath.endsWith("/_search") ||
+                        urlPath.endsWith("/_mget") || urlPath.endsWith("/_count")))) {
+            return getReadPool();
         }
-        return restClient;
+        return getWritePool();
     }
     
     public Response makeBulkRequest(String reqType, String indexName, File jsonData) 
             throws IOException {
-        RestClient restClient = getRestClient();
         try (InputStream is = new FileInputStream(jsonData)) {
             InputStreamEntity body = new InputStreamEntity(is);
-            Response response = restClient.performRequest(reqType, "/" + indexName + "/_bulk", 
-                    Collections.emptyMap(), body);
+            Response response = getWritePool().performRequest(reqType,
+                    "/" + indexName + "/_bulk", Collections.emptyMap(), body);
             return response;
         }
     }
     
+    public Response makeBulkRequest(
+            final String reqType,
+            final String indexName,
+            final BulkRequestBody body)
+            throws IOException {
+        try {
+            return getWritePool().performRequest(reqType, "/" + indexName + "/_bulk",
+                    Collections.emptyMap(), body.toEntity());
+        } catch (ResponseException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+    
+    // the index for each action must be specified in the action metadata
+    private Response makeBulkRequest(final BulkRequestBody body, final boolean waitForRefresh)
+            throws IOException {
+        final Map<String, String> params = new HashMap<>();
+        // only the outcome of each action is needed, not the document metadata
+        params.put("filter_path", "errors,items.*._index,items.*._id,items.*.status," +
+                "items.*.error");
+        if (waitForRefresh) {
+            params.put("refresh", "wait_for");
+        }
+        try {
+            return getWritePool().performRequest("POST", "/_bulk", params, body.toEntity());
+        } catch (ResponseException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+    
     public Response makeRequest(String reqType, String urlPath, Map<String, ?> doc, 
             Map<String, String> attributes) throws IOException {
         try {
             HttpEntity body = doc == null ? null : stringEntity(
                 UObject.transformObjectToString(doc));
-            RestClient restClient = getRestClient();  //restClientBld.build();
-            return restClient.performRequest(reqType, urlPath, attributes, body);
+            return getPool(reqType, urlPath).performRequest(reqType, urlPath, attributes, body);
         } catch (ResponseException ex) {
             throw new IOException(ex.getMessage(), ex);
         }
@@ -1746,6 +4789,23 @@ public class ElasticIndexingStorage implements IndexingStorage {
         return "access";
     }
     
+    private static Map<String, Object> createParentJsonMapping() {
+        return ImmutableMap.of(
+                "type", "keyword",
+                "index", false,
+                "doc_values", false);
+    }
+    
+    // the mappings of the access fields copied to the data documents
+    private Map<String, Object> createAccessFieldsMapping() {
+        final Map<String, Object> integer = ImmutableMap.of("type", "integer");
+        return ImmutableMap.of(
+                "pguid", ImmutableMap.of("type", "keyword"),
+                "lastin", integer,
+                "groups", integer,
+                "extpub", integer);
+    }
+    
     private Map<String, Object> createAccessTable() {
 
         // props = {"properties": {},
@@ -1782,6 +4842,9 @@ public class ElasticIndexingStorage implements IndexingStorage {
         tmp = ImmutableMap.of("type", "integer");
         props.put("extpub", tmp);
 
+        // the parent object data, shared by all the data documents for the object
+        props.put("pjson", createParentJsonMapping());
+
         // mappings = {"access": {}}
         Map<String, Object> table = ImmutableMap.of("properties", ImmutableMap.copyOf(props));
 
@@ -1825,18 +4888,17 @@ public class ElasticIndexingStorage implements IndexingStorage {
         props.put(OBJ_IS_LAST, bool);
         props.put(OBJ_PUBLIC, bool);
         props.put(OBJ_SHARED, bool);
+        
+        final boolean accessFields = accessFieldsOnData;
+        if (accessFields) {
+            props.putAll(createAccessFieldsMapping());
+        }
 
         props.put("ojson", ImmutableMap.of(
                 "type", "keyword",
                 "index", false,
                 "doc_values", false));
 
-        props.put("pjson", ImmutableMap.of(
-                "type", "keyword",
-                "index", false,
-                "doc_values", false));
-        
-        
         for (IndexingRules rules : indexingRules) {
             String propName = getKeyProperty(rules.getKeyName());
             String propType = getEsType(rules.isFullText(), rules.getKeywordType());
@@ -1855,6 +4917,9 @@ public class ElasticIndexingStorage implements IndexingStorage {
 
 
         table.put("_parent", ImmutableMap.of("type", getAccessTableName()));
+        table.put("_meta", ImmutableMap.of(
+                META_LAYOUT, CURRENT_INDEX_LAYOUT,
+                META_ACCESS_FIELDS, accessFields));
         table.put("properties", ImmutableMap.copyOf(props));
 
         // Access (parent)
@@ -1867,12 +4932,24 @@ public class ElasticIndexingStorage implements IndexingStorage {
         doc.put("mappings", mappings);
 
         makeRequest("PUT", "/" + indexName, doc);
+        indexLayouts.put(indexName, CURRENT_INDEX_LAYOUT);
+        indexAccessFields.put(indexName, accessFields);
+        indexCatalog.add(indexName);
     }
     
     public void close() throws IOException {
-        if (restClient != null) {
-            restClient.close();
-            restClient = null;
+        synchronized (this) {
+            stopRefresher();
+            stopNodeDiscoverer();
+            stopPoolMetricsLogger();
+            if (readPool != null) {
+                readPool.close();
+                readPool = null;
+            }
+            if (writePool != null) {
+                writePool.close();
+                writePool = null;
+            }
         }
     }
 }
@@ -14,4 +14,6 @@ public class FoundHits {
     public Set<GUID> guids;
     public List<ObjectData> objects;
     public int total;
+    /* the cursor for the next page of hits, or null if there are no more hits. */
+    public String nextCursor;
 }
@@ -0,0 +1,138 @@
+package kbasesearchengine.search;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+
+import kbasesearchengine.common.GUID;
+import kbasesearchengine.events.handler.SourceData;
+import kbasesearchengine.parse.ParsedObject;
+import kbasesearchengine.system.ObjectTypeParsingRules;
+import kbasesearchengine.tools.Utils;
+
+/** A request to index the search objects parsed from one version of a source object with one
+ * set of parsing rules. Equivalent to the arguments of
+ * {@link IndexingStorage#indexObjects(ObjectTypeParsingRules, SourceData, Instant, String, GUID,
+ * Map, boolean)}.
+ */
+public class IndexObjectsRequest {
+
+    // rough per document overhead for the document metadata fields, in bytes
+    private static final int DOC_OVERHEAD_ESTIMATE = 1000;
+
+    private final ObjectTypeParsingRules rule;
+    private final SourceData source;
+    private final Instant timestamp;
+    private final Optional<String> parentJson;
+    private final GUID parentGUID;
+    private final Map<GUID, ParsedObject> idToObj;
+    private final boolean isPublic;
+
+    /** Create the request.
+     * @param rule the parsing rules used to parse the objects.
+     * @param source the source data.
+     * @param timestamp the time the source data was saved.
+     * @param parentJson the parent JSON fragment or null if there is none.
+     * @param parentGUID the GUID of the source object.
+     * @param idToObj the parsed search objects. If empty, only the general object information
+     * is indexed.
+     * @param isPublic true if the source object is public.
+     */
+    public IndexObjectsRequest(
+            final ObjectTypeParsingRules rule,
+            final SourceData source,
+            final Instant timestamp,
+            final String parentJson,
+            final GUID parentGUID,
+            final Map<GUID, ParsedObject> idToObj,
+            final boolean isPublic) {
+        Utils.nonNull(rule, "rule");
+        Utils.nonNull(source, "source");
+        Utils.nonNull(timestamp, "timestamp");
+        Utils.nonNull(parentGUID, "parentGUID");
+        Utils.nonNull(idToObj, "idToObj");
+        this.rule = rule;
+        this.source = source;
+        this.timestamp = timestamp;
+        this.parentJson = Optional.fromNullable(parentJson);
+        this.parentGUID = parentGUID;
+        this.idToObj = Collections.unmodifiableMap(new HashMap<>(idToObj));
+        this.isPublic = isPublic;
+    }
+
+    /** Get the parsing rules used to parse the objects.
+     * @return the parsing rules.
+     */
+    public ObjectTypeParsingRules getRule() {
+        return rule;
+    }
+
+    /** Get the source data.
+     * @return the source data.
+     */
+    public SourceData getSource() {
+        return source;
+    }
+
+    /** Get the time the source data was saved.
+     * @return the timestamp.
+     */
+    public Instant getTimestamp() {
+        return timestamp;
+    }
+
+    /** Get the parent JSON fragment, if any.
+     * @return the parent JSON.
+     */
+    public Optional<String> getParentJson() {
+        return parentJson;
+    }
+
+    /** Get the GUID of the source object.
+     * @return the parent GUID.
+     */
+    public GUID getParentGUID() {
+        return parentGUID;
+    }
+
+    /** Get the parsed search objects.
+     * @return a mapping of search object GUID to the parsed object.
+     */
+    public Map<GUID, ParsedObject> getIdToObj() {
+        return idToObj;
+    }
+
+    /** Get whether the source object is public.
+     * @return true if the object is public.
+     */
+    public boolean isPublic() {
+        return isPublic;
+    }
+
+    /** Get the number of documents that will be written to the data index.
+     * @return the document count.
+     */
+    public int getDocumentCount() {
+        return idToObj.isEmpty() ? 1 : idToObj.size();
+    }
+
+    /** Get a rough estimate of the size, in bytes, of the documents that will be written to
+     * the data index. The parent JSON is counted once, since it is stored once per parent
+     * object.
+     * @return the size estimate.
+     */
+    public long getSizeEstimate() {
+        long size = parentJson.isPresent() ? parentJson.get().length() : 0;
+        for (final ParsedObject obj: idToObj.values()) {
+            size += DOC_OVERHEAD_ESTIMATE;
+            if (obj != null && obj.getJson() != null) {
+                // keywords are usually a subset of the json
+                size += 2 * obj.getJson().length();
+            }
+        }
+        return idToObj.isEmpty() ? DOC_OVERHEAD_ESTIMATE : size;
+    }
+}
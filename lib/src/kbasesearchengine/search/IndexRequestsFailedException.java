@@ -0,0 +1,47 @@
+package kbasesearchengine.search;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import kbasesearchengine.common.GUID;
+import kbasesearchengine.tools.Utils;
+
+/** Thrown when the storage system rejected the documents for some of the source objects in a
+ * batch of index requests, for example because a document did not match the index mapping.
+ * The data for all the other source objects in the batch was written.
+ */
+public class IndexRequestsFailedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<GUID, String> failures;
+
+    /** Create the exception.
+     * @param failures a mapping of the parent GUID of each source object that failed to be
+     * indexed to the error that caused the failure.
+     */
+    public IndexRequestsFailedException(final Map<GUID, String> failures) {
+        super(buildMessage(failures));
+        this.failures = Collections.unmodifiableMap(new LinkedHashMap<>(failures));
+    }
+
+    private static String buildMessage(final Map<GUID, String> failures) {
+        Utils.nonNull(failures, "failures");
+        if (failures.isEmpty()) {
+            throw new IllegalArgumentException("failures cannot be empty");
+        }
+        final Map.Entry<GUID, String> first = failures.entrySet().iterator().next();
+        return String.format("Failed to index %s object(s). First failure for %s: %s",
+                failures.size(), first.getKey(), first.getValue());
+    }
+
+    /** Get the source objects that failed to be indexed.
+     * @return a mapping of the parent GUID of each failed source object to the error that
+     * caused the failure.
+     */
+    public Map<GUID, String> getFailures() {
+        return failures;
+    }
+}
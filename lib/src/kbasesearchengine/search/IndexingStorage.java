@@ -46,6 +46,28 @@ public interface IndexingStorage {
             boolean isPublic) 
             throws IOException;
     
+    /** Index the search objects from multiple source objects, possibly of differing types, in
+     * as few requests to the storage system as possible.
+     * @param requests the indexing requests.
+     * @throws IndexRequestsFailedException if the storage system rejected the data for some of
+     * the source objects. The data for the remaining objects has been written.
+     * @throws IOException if an IO error occurs.
+     */
+    public void indexObjects(List<IndexObjectsRequest> requests) throws IOException;
+    
+    /** Write any index data buffered by the storage system. Storage systems that do not buffer
+     * writes have nothing to do.
+     * @param force true to write all buffered data, false to write the data only if a buffer
+     * limit, such as the maximum buffer size or age, has been reached.
+     * @return true if data remains buffered after the call, false if all indexed data has been
+     * written to the storage system.
+     * @throws IndexRequestsFailedException if the storage system rejected the data for some of
+     * the buffered source objects. The exception is only thrown once no data remains buffered,
+     * and the data for all the other source objects has been written.
+     * @throws IOException if an IO error occurs.
+     */
+    public boolean flushBuffer(boolean force) throws IOException;
+    
     /** Check that the parent objects (e.g. the access information) exists for a set of GUIDS.
      * Equivalent to {@link #checkParentGuidsExist(String, Set)} with a null String.
      * @param parentGuids the parent guids to check.
@@ -117,6 +139,36 @@ public interface IndexingStorage {
             PostProcessing postProcessing)
             throws IOException;
 
+    /** Release any resources held by a cursor returned from a search, for example a snapshot
+     * of the data. The cursor is invalid afterwards. Cursors that hold no resources are
+     * ignored.
+     * @param cursor the cursor.
+     * @throws IOException if an IO error occurs.
+     */
+    public void releaseCursor(String cursor) throws IOException;
+
+    /** Search for all the objects matching a query and pass each object to a consumer. The
+     * objects are read from the storage system a page at a time, so the memory required is
+     * independent of the number of objects found.
+     * @param objectType a non-null list of object types to constrain the search to.
+     *                   An empty list indicates a search that is unconstrained by object type.
+     * @param matchFilter the filter for the objects to find.
+     * @param sorting the sort order of the objects, or null for the default order.
+     * @param accessFilter the filter determining which objects may be accessed.
+     * @param postProcessing the data to include for each object.
+     * @param consumer the consumer to which each object is passed, in order.
+     * @return the number of objects found.
+     * @throws IOException if an IO error occurs or the consumer throws an exception.
+     */
+    public long exportObjects(
+            List<String> objectType,
+            MatchFilter matchFilter,
+            List<SortingRule> sorting,
+            AccessFilter accessFilter,
+            PostProcessing postProcessing,
+            ObjectDataConsumer consumer)
+            throws IOException;
+
     /** Change the name of all the versions of an object.
      * @param object the GUID of the object. The version field is ignored.
      * @param newName the new name of the object.
@@ -149,4 +201,29 @@ public interface IndexingStorage {
      * @throws IOException if an IO error occurs when contacting the indexing storage.
      */
     void unpublishAllVersions(GUID guid) throws IOException;
+
+    /** Delete all versions of all the objects in an access group from the access group. The
+     * objects may still be accessible via other access groups. Equivalent to calling
+     * {@link #deleteAllVersions(GUID)} for every object in the access group.
+     * @param storageCode the storage code of the access group.
+     * @param accessGroupId the ID of the access group.
+     * @throws IOException if an IO error occurs when contacting the indexing storage.
+     */
+    void deleteAccessGroup(String storageCode, int accessGroupId) throws IOException;
+
+    /** Set all versions of all the objects in an access group to public. Equivalent to calling
+     * {@link #publishAllVersions(GUID)} for every object in the access group.
+     * @param storageCode the storage code of the access group.
+     * @param accessGroupId the ID of the access group.
+     * @throws IOException if an IO error occurs when contacting the indexing storage.
+     */
+    void publishAccessGroup(String storageCode, int accessGroupId) throws IOException;
+
+    /** Make all versions of all the objects in an access group private. Equivalent to calling
+     * {@link #unpublishAllVersions(GUID)} for every object in the access group.
+     * @param storageCode the storage code of the access group.
+     * @param accessGroupId the ID of the access group.
+     * @throws IOException if an IO error occurs when contacting the indexing storage.
+     */
+    void unpublishAccessGroup(String storageCode, int accessGroupId) throws IOException;
 }
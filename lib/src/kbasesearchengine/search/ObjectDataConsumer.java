@@ -0,0 +1,15 @@
+package kbasesearchengine.search;
+
+import java.io.IOException;
+
+/** A consumer of objects found by a search.
+ */
+@FunctionalInterface
+public interface ObjectDataConsumer {
+
+    /** Consume an object.
+     * @param obj the object.
+     * @throws IOException if an IO error occurs.
+     */
+    void accept(ObjectData obj) throws IOException;
+}
@@ -3,9 +3,23 @@ package kbasesearchengine.search;
 public class Pagination {
     public Integer start;
     public Integer count;
+    /* an opaque cursor returned from a prior search as FoundHits.nextCursor. If present, the
+     * hits following the hits of the prior search are returned and start must be 0 or null.
+     */
+    public String cursor;
+    /* true to pin the search to a snapshot of the data at the time the first page is retrieved,
+     * so that subsequent pages are consistent with the first page regardless of concurrent
+     * writes. Subsequent pages must be retrieved with the cursor from the prior page.
+     */
+    public boolean snapshot;
     
     public Pagination(Integer start, Integer count) {
+        this(start, count, null);
+    }
+    
+    public Pagination(Integer start, Integer count, String cursor) {
         this.start = start;
         this.count = count;
+        this.cursor = cursor;
     }
 }
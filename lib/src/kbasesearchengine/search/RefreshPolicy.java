@@ -0,0 +1,32 @@
+package kbasesearchengine.search;
+
+/** Policies determining when data written to an ElasticSearch index is made visible to
+ * searches.
+ *
+ * Regardless of the policy, an index is always refreshed before an operation reads or updates
+ * an object that has been modified in that index since the index was last refreshed, so that
+ * the indexing storage remains internally consistent.
+ */
+public enum RefreshPolicy {
+
+    /** Refresh the modified indexes at the end of every write operation. Writes are visible to
+     * searches as soon as the operation returns.
+     */
+    IMMEDIATE,
+
+    /** Refresh modified indexes in the background, at most once per refresh interval per index.
+     * Writes are visible to searches within roughly one refresh interval.
+     */
+    COALESCED,
+
+    /** Never explicitly refresh indexes for search visibility, and rely on the
+     * refresh_interval setting of each index.
+     */
+    INDEX_INTERVAL,
+
+    /** Block write requests until their changes are visible to searches, without forcing a
+     * refresh, where ElasticSearch supports it. Indexes modified by update by query requests,
+     * which do not support waiting for a refresh, are refreshed at the end of the operation.
+     */
+    WAIT_FOR;
+}
@@ -0,0 +1,250 @@
+package kbasesearchengine.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import kbasesearchengine.tools.Utils;
+import us.kbase.common.service.UObject;
+
+/** Reads an ElasticSearch search response from a stream, passing each hit to a consumer as it
+ * is read.
+ *
+ * Only the _source fields accepted by the field filter are deserialized, and highlights are
+ * only deserialized if requested. Everything else in the response, other than the total hit
+ * count, any aggregations, any scroll ID, and the sort values of each hit, is skipped without
+ * being built in memory. The memory required to read a response therefore depends on the size
+ * of the individual hits the consumer retains rather than the size of the response.
+ *
+ * A reader may be used for one response only. This class is not thread safe.
+ */
+public class SearchHitReader {
+
+    private static final ObjectMapper MAPPER = UObject.getMapper();
+
+    private final Predicate<String> sourceFields;
+    private final boolean readHighlights;
+    private long total = 0;
+    private Map<String, Object> aggregations = Collections.emptyMap();
+    private String scrollId = null;
+
+    /** A single search hit.
+     */
+    public static class Hit {
+
+        private final String index;
+        private final String id;
+        private final Map<String, Object> source;
+        private final Map<String, List<String>> highlight;
+        private final List<Object> sort;
+
+        // exposed to the storage for documents fetched without a search
+        Hit(
+                final String index,
+                final String id,
+                final Map<String, Object> source,
+                final Map<String, List<String>> highlight,
+                final List<Object> sort) {
+            this.index = index;
+            this.id = id;
+            this.source = source;
+            this.highlight = highlight;
+            this.sort = sort;
+        }
+
+        /** Get the index containing the document.
+         * @return the index name.
+         */
+        public String getIndex() {
+            return index;
+        }
+
+        /** Get the ID of the document.
+         * @return the document ID.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /** Get the _source fields accepted by the field filter.
+         * @return the source fields.
+         */
+        public Map<String, Object> getSource() {
+            return source;
+        }
+
+        /** Get the highlights for the document.
+         * @return the highlights, or null if there are none or highlights were not requested.
+         */
+        public Map<String, List<String>> getHighlight() {
+            return highlight;
+        }
+
+        /** Get the sort values for the document.
+         * @return the sort values, or null if the search was not sorted.
+         */
+        public List<Object> getSort() {
+            return sort;
+        }
+    }
+
+    /** A consumer of search hits.
+     */
+    @FunctionalInterface
+    public interface HitConsumer {
+
+        /** Consume a hit.
+         * @param hit the hit.
+         * @throws IOException if an IO error occurs.
+         */
+        void accept(Hit hit) throws IOException;
+    }
+
+    /** Create a reader.
+     * @param sourceFields a filter that accepts the names of the _source fields to deserialize.
+     * @param readHighlights true to deserialize highlights.
+     */
+    public SearchHitReader(final Predicate<String> sourceFields, final boolean readHighlights) {
+        Utils.nonNull(sourceFields, "sourceFields");
+        this.sourceFields = sourceFields;
+        this.readHighlights = readHighlights;
+    }
+
+    /** Read a search response. The stream is closed when the response has been read.
+     * @param in the response.
+     * @param consumer the consumer to which each hit is passed, in order.
+     * @throws IOException if the response could not be read or parsed, or the consumer throws
+     * an exception.
+     */
+    public void read(final InputStream in, final HitConsumer consumer) throws IOException {
+        Utils.nonNull(in, "in");
+        Utils.nonNull(consumer, "consumer");
+        try (final JsonParser p = MAPPER.getFactory().createParser(in)) {
+            expect(p, p.nextToken(), JsonToken.START_OBJECT);
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = p.getCurrentName();
+                p.nextToken();
+                if ("hits".equals(field)) {
+                    readHits(p, consumer);
+                } else if ("aggregations".equals(field)) {
+                    aggregations = readMap(p);
+                } else if ("_scroll_id".equals(field)) {
+                    scrollId = p.getText();
+                } else {
+                    p.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void readHits(final JsonParser p, final HitConsumer consumer) throws IOException {
+        expect(p, p.getCurrentToken(), JsonToken.START_OBJECT);
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = p.getCurrentName();
+            final JsonToken t = p.nextToken();
+            if ("total".equals(field)) {
+                total = p.getLongValue();
+            } else if ("hits".equals(field)) {
+                expect(p, t, JsonToken.START_ARRAY);
+                while (p.nextToken() == JsonToken.START_OBJECT) {
+                    consumer.accept(readHit(p));
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    private Hit readHit(final JsonParser p) throws IOException {
+        String index = null;
+        String id = null;
+        Map<String, Object> source = Collections.emptyMap();
+        Map<String, List<String>> highlight = null;
+        List<Object> sort = null;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = p.getCurrentName();
+            final JsonToken t = p.nextToken();
+            if ("_index".equals(field)) {
+                index = p.getText();
+            } else if ("_id".equals(field)) {
+                id = p.getText();
+            } else if ("_source".equals(field)) {
+                expect(p, t, JsonToken.START_OBJECT);
+                source = readSource(p);
+            } else if ("highlight".equals(field) && readHighlights &&
+                    t != JsonToken.VALUE_NULL) {
+                @SuppressWarnings("unchecked")
+                final Map<String, List<String>> hl = MAPPER.readValue(p, Map.class);
+                highlight = hl;
+            } else if ("sort".equals(field) && t == JsonToken.START_ARRAY) {
+                @SuppressWarnings("unchecked")
+                final List<Object> sortValues = MAPPER.readValue(p, List.class);
+                sort = sortValues;
+            } else {
+                p.skipChildren();
+            }
+        }
+        return new Hit(index, id, source, highlight, sort);
+    }
+
+    private Map<String, Object> readSource(final JsonParser p) throws IOException {
+        final Map<String, Object> source = new HashMap<>();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = p.getCurrentName();
+            p.nextToken();
+            if (sourceFields.test(field)) {
+                source.put(field, MAPPER.readValue(p, Object.class));
+            } else {
+                // strings that are skipped are never decoded
+                p.skipChildren();
+            }
+        }
+        return source;
+    }
+
+    private Map<String, Object> readMap(final JsonParser p) throws IOException {
+        expect(p, p.getCurrentToken(), JsonToken.START_OBJECT);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> map = MAPPER.readValue(p, Map.class);
+        return map;
+    }
+
+    private void expect(final JsonParser p, final JsonToken got, final JsonToken expected)
+            throws IOException {
+        if (got != expected) {
+            throw new IOException(String.format(
+                    "Unexpected token in ElasticSearch search response at line %s, column %s: " +
+                    "expected %s, got %s", p.getCurrentLocation().getLineNr(),
+                    p.getCurrentLocation().getColumnNr(), expected, got));
+        }
+    }
+
+    /** Get the total number of hits for the search. Available after the response is read.
+     * @return the total hits.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /** Get the aggregations in the response, if any. Available after the response is read.
+     * @return the aggregations.
+     */
+    public Map<String, Object> getAggregations() {
+        return aggregations;
+    }
+
+    /** Get the scroll ID in the response, if any. Available after the response is read.
+     * @return the scroll ID or null.
+     */
+    public String getScrollId() {
+        return scrollId;
+    }
+}
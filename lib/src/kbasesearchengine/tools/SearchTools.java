@@ -8,7 +8,9 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -16,6 +18,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -25,7 +28,6 @@ import java.util.Set;
 import java.util.UUID;
 
 import kbasesearchengine.common.FileUtil;
-import org.apache.http.HttpHost;
 import org.slf4j.LoggerFactory;
 
 import com.beust.jcommander.JCommander;
@@ -52,14 +54,20 @@ import kbasesearchengine.events.storage.MongoDBStatusEventStorage;
 import kbasesearchengine.events.storage.StatusEventStorage;
 import kbasesearchengine.events.storage.StorageInitException;
 import kbasesearchengine.main.LineLogger;
+import kbasesearchengine.main.SearchMethods;
 import kbasesearchengine.main.SearchVersion;
 import kbasesearchengine.main.Stoppable;
 import kbasesearchengine.main.GitInfo;
 import kbasesearchengine.main.IndexerCoordinator;
 import kbasesearchengine.main.IndexerWorker;
+import kbasesearchengine.main.IndexingPipeline;
 import kbasesearchengine.parse.ObjectParseException;
+import kbasesearchengine.search.AccessFilter;
+import kbasesearchengine.search.BufferedIndexingStorage;
 import kbasesearchengine.search.ElasticIndexingStorage;
 import kbasesearchengine.search.IndexingStorage;
+import kbasesearchengine.search.MatchFilter;
+import kbasesearchengine.search.PostProcessing;
 import kbasesearchengine.system.FileLister;
 import kbasesearchengine.system.ObjectTypeParsingRulesFileParser;
 import kbasesearchengine.system.TypeFileStorage;
@@ -74,6 +82,7 @@ import us.kbase.auth.AuthConfig;
 import us.kbase.auth.AuthException;
 import us.kbase.auth.AuthToken;
 import us.kbase.auth.ConfigurableAuthService;
+import us.kbase.common.service.UObject;
 import us.kbase.common.service.UnauthorizedException;
 import us.kbase.workspace.WorkspaceClient;
 
@@ -105,6 +114,7 @@ public class SearchTools {
     private MongoDatabase workspaceDB = null;
     private MongoDatabase searchDB = null;
     private IndexingStorage indexStore = null;
+    private ElasticIndexingStorage elasticStore = null;
 
     /** Create a new CLI instance.
      * @param args the program arguments.
@@ -190,7 +200,8 @@ public class SearchTools {
         }
         try {
             setUpMongoDBs(cfg, a.genWSEvents, a.dropDB || a.startCoordinator || startWorker);
-            setUpElasticSearch(cfg, a.dropDB || startWorker);
+            setUpElasticSearch(cfg, a.dropDB || a.migrateIndexes || startWorker ||
+                    a.exportPath != null);
         } catch (MongoException | IOException e) {
             printError(e, a.verbose);
             return 1;
@@ -206,6 +217,30 @@ public class SearchTools {
                 return 1;
             }
         }
+        if (a.migrateIndexes) {
+            try {
+                out.println("Migrating ElasticSearch indexes to layout version " +
+                        ElasticIndexingStorage.CURRENT_INDEX_LAYOUT);
+                for (final String index: elasticStore.migrateIndexes()) {
+                    out.println("Migrated index " + index);
+                }
+                noCommand = false;
+            } catch (IOException e) {
+                printError(e, a.verbose);
+                return 1;
+            }
+        }
+        if (a.exportPath != null) {
+            try {
+                final long count = exportObjects(
+                        Paths.get(a.exportPath), a.exportTypes, a.exportQuery);
+                out.println("Exported " + count + " objects to " + a.exportPath);
+                noCommand = false;
+            } catch (IOException e) {
+                printError(e, a.verbose);
+                return 1;
+            }
+        }
         if (a.startCoordinator) {
             try {
                 printVer();
@@ -329,6 +364,31 @@ public class SearchTools {
         return coord;
     }
     
+    private long exportObjects(
+            final Path target,
+            final List<String> objectTypes,
+            final String query)
+            throws IOException {
+        final PostProcessing pp = new PostProcessing();
+        pp.objectInfo = true;
+        pp.objectKeys = true;
+        pp.objectData = true;
+        // the objects are paged through the indexes, so memory use is independent of the count
+        try (final Writer w = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            return indexStore.exportObjects(
+                    objectTypes == null ? Collections.emptyList() : objectTypes,
+                    MatchFilter.getBuilder().withNullableFullTextInAll(query).build(),
+                    null,
+                    AccessFilter.create().withAdmin(true),
+                    pp,
+                    obj -> {
+                        w.write(UObject.getMapper().writeValueAsString(
+                                SearchMethods.fromSearch(obj)));
+                        w.write("\n");
+                    });
+        }
+    }
+    
     private IndexerWorker runWorker(
             final SearchToolsConfig cfg,
             final String id,
@@ -342,6 +402,11 @@ public class SearchTools {
             tempDir.mkdirs();
         }
         final LineLogger logger = buildLogger(logTarget, errTarget);
+        if (elasticStore != null) {
+            elasticStore.setLogger(logger);
+            elasticStore.setPoolMetricsLogIntervalMS(
+                    ElasticIndexingStorage.DEFAULT_POOL_METRICS_LOG_INTERVAL_MS);
+        }
         
         final Map<String, TypeMappingParser> parsers = ImmutableMap.of(
                 "yaml", new YAMLTypeMappingParser());
@@ -358,9 +423,21 @@ public class SearchTools {
         final EventHandler weh = new WorkspaceEventHandler(
                 new CloneableWorkspaceClientImpl(wsClient));
         
+        final IndexingStorage workerIndexStore;
+        if (cfg.getIndexBufferMaxDocuments().isPresent()) {
+            workerIndexStore = new BufferedIndexingStorage(indexStore,
+                    cfg.getIndexBufferMaxBytes(), cfg.getIndexBufferMaxDocuments().get(),
+                    cfg.getIndexBufferMaxLatencyMS());
+        } else {
+            workerIndexStore = indexStore;
+        }
+        
         final IndexerWorker wrk = new IndexerWorker(
-                getID(id), Arrays.asList(weh), storage, indexStore, ss, tempDir, logger,
-                cfg.getWorkerCodes());
+                getID(id), Arrays.asList(weh), storage, workerIndexStore, ss, tempDir, logger,
+                cfg.getWorkerCodes(), cfg.getWorkerConcurrentEvents(),
+                cfg.getWorkerClaimBatchSize(),
+                new IndexingPipeline(cfg.getWorkerLoadThreads(), cfg.getWorkerParseThreads(),
+                        cfg.getWorkerIndexThreads()));
         wrk.startIndexer();
         return wrk;
     }
@@ -425,17 +502,25 @@ public class SearchTools {
         if (!dontSkip) {
             return;
         }
-        final HttpHost esHostPort = new HttpHost(cfg.getElasticHost(), cfg.getElasticPort());
         final File tempSubDir = FileUtil.getOrCreateSubDir(
                 new File(cfg.getTempDir()), "esbulk");
         final ElasticIndexingStorage esStorage = new ElasticIndexingStorage(
-                esHostPort, tempSubDir);
+                cfg.getElasticHosts(), tempSubDir);
         if (cfg.getElasticUser().isPresent()) {
             esStorage.setEsUser(cfg.getElasticUser().get());
             esStorage.setEsPassword(new String(cfg.getElasticPassword().get()));
         }
         esStorage.setIndexNamePrefix(cfg.getElasticNamespace() + ".");
+        esStorage.setRefreshPolicy(
+                cfg.getElasticRefreshPolicy(), cfg.getElasticRefreshIntervalMS());
+        esStorage.setReadPool(cfg.getElasticReadMaxConnections(),
+                cfg.getElasticConnectTimeoutMS(), cfg.getElasticReadSocketTimeoutMS());
+        esStorage.setWritePool(cfg.getElasticWriteMaxConnections(),
+                cfg.getElasticConnectTimeoutMS(), cfg.getElasticWriteSocketTimeoutMS());
+        esStorage.setNodeDiscoveryIntervalMS(cfg.getElasticNodeDiscoveryIntervalMS());
+        esStorage.setAccessFieldsOnData(cfg.isElasticAccessFieldsOnData());
         indexStore = esStorage;
+        elasticStore = esStorage;
     }
 
     private void setUpMongoDBs(
@@ -637,6 +722,29 @@ public class SearchTools {
                 "be dropped immediately and will be unrecoverable.")
         private boolean dropDB;
         
+        @Parameter(names = {"--migrate-indexes"}, description =
+                "Migrate elasticsearch indexes created by prior versions of the software to " +
+                "the current index layout. The indexer coordinator and workers must not be " +
+                "running during the migration.")
+        private boolean migrateIndexes;
+        
+        @Parameter(names = {"--export-objects"}, description =
+                "Export the latest version of every object matching --export-types and " +
+                "--export-query to the provided file, one JSON object per line, regardless of " +
+                "access permissions. The objects are paged through with a cursor, so exports " +
+                "of any size run in constant memory.")
+        private String exportPath;
+        
+        @Parameter(names = {"--export-types"}, description =
+                "A comma delimited list of search types to export. See --export-objects. " +
+                "If omitted, objects of all types are exported.")
+        private List<String> exportTypes;
+        
+        @Parameter(names = {"--export-query"}, description =
+                "A full text query that exported objects must match. See --export-objects. " +
+                "If omitted, all objects are exported.")
+        private String exportQuery;
+        
         @Parameter(names = {"-s", "--start-coordinator"}, description =
                 "Start the indexer coordinator. Only one coordinator may be run per search " +
                 "instance, but many workers may be run.")
@@ -14,8 +14,14 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 
+import org.apache.http.HttpHost;
+
 import com.google.common.base.Optional;
 
+import kbasesearchengine.search.ElasticClientPool;
+import kbasesearchengine.search.ElasticIndexingStorage;
+import kbasesearchengine.search.RefreshPolicy;
+
 public class SearchToolsConfig {
     
     //TODO TESTS
@@ -26,12 +32,27 @@ public class SearchToolsConfig {
     private static final String SEARCH_MONGO_USER = "search-mongo-user";
     private static final String SEARCH_MONGO_PWD = "search-mongo-pwd";
     private static final String WORKER_CODES = "worker-codes";
+    private static final String WORKER_CONCURRENT_EVENTS = "worker-concurrent-events";
+    private static final String WORKER_CLAIM_BATCH_SIZE = "worker-claim-batch-size";
+    private static final String WORKER_LOAD_THREADS = "worker-load-threads";
+    private static final String WORKER_PARSE_THREADS = "worker-parse-threads";
+    private static final String WORKER_INDEX_THREADS = "worker-index-threads";
 
     private static final String ELASTIC_HOST = "elastic-host";
     private static final String ELASTIC_PORT = "elastic-port";
     private static final String ELASTIC_USER = "elastic-user";
     private static final String ELASTIC_PWD = "elastic-password";
     private static final String ELASTIC_NAMESPACE = "elastic-namespace";
+    private static final String ELASTIC_REFRESH_POLICY = "elastic-refresh-policy";
+    private static final String ELASTIC_REFRESH_INTERVAL = "elastic-refresh-interval-ms";
+    private static final String ELASTIC_NODE_DISCOVERY_INTERVAL =
+            "elastic-node-discovery-interval-ms";
+    private static final String ELASTIC_CONNECT_TIMEOUT = "elastic-connect-timeout-ms";
+    private static final String ELASTIC_READ_MAX_CONNECTIONS = "elastic-read-max-connections";
+    private static final String ELASTIC_READ_SOCKET_TIMEOUT = "elastic-read-socket-timeout-ms";
+    private static final String ELASTIC_WRITE_MAX_CONNECTIONS = "elastic-write-max-connections";
+    private static final String ELASTIC_WRITE_SOCKET_TIMEOUT = "elastic-write-socket-timeout-ms";
+    private static final String ELASTIC_ACCESS_FIELDS_ON_DATA = "elastic-access-fields-on-data";
     private static final String TEMP_DIR = "scratch";
 
     private static final String WS_URL = "workspace-url";
@@ -49,6 +70,13 @@ public class SearchToolsConfig {
     
     private static final String WS_ID_BLACKLIST = "workspace-blacklist";
     private static final String WS_TYPES_LIST = "workspace-types";
+    
+    private static final String INDEX_BUFFER_MAX_DOCS = "index-buffer-max-documents";
+    private static final String INDEX_BUFFER_MAX_BYTES = "index-buffer-max-bytes";
+    private static final String INDEX_BUFFER_MAX_LATENCY = "index-buffer-max-latency-ms";
+    
+    private static final long INDEX_BUFFER_MAX_BYTES_DEFAULT = 20 * 1024 * 1024;
+    private static final long INDEX_BUFFER_MAX_LATENCY_DEFAULT = 5000;
 
     private final String searchMongoHost;
     private final String searchMongoDB;
@@ -56,8 +84,7 @@ public class SearchToolsConfig {
     private final Optional<char[]> searchMongoPwd;
     private final Set<String> workerCodes;
     
-    private final String elasticHost;
-    private final int elasticPort;
+    private final List<HttpHost> elasticHosts;
     private final Optional<String> elasticUser;
     private final Optional<char[]> elasticPassword;
     private final String elasticNamespace;
@@ -77,6 +104,24 @@ public class SearchToolsConfig {
     private final Optional<char[]> workspaceMongoPwd;
     private final List<WorkspaceIdentifier> workspaceBlackList;
     private final List<String> workspaceTypes;
+    
+    private final Optional<Integer> indexBufferMaxDocuments;
+    private final long indexBufferMaxBytes;
+    private final long indexBufferMaxLatencyMS;
+    private final RefreshPolicy elasticRefreshPolicy;
+    private final long elasticRefreshIntervalMS;
+    private final long elasticNodeDiscoveryIntervalMS;
+    private final int elasticConnectTimeoutMS;
+    private final int elasticReadMaxConnections;
+    private final int elasticReadSocketTimeoutMS;
+    private final int elasticWriteMaxConnections;
+    private final int elasticWriteSocketTimeoutMS;
+    private final boolean elasticAccessFieldsOnData;
+    private final int workerConcurrentEvents;
+    private final int workerClaimBatchSize;
+    private final int workerLoadThreads;
+    private final int workerParseThreads;
+    private final int workerIndexThreads;
 
     private SearchToolsConfig(
             final String searchMongoHost,
@@ -84,8 +129,7 @@ public class SearchToolsConfig {
             final String searchMongoUser,
             String searchMongoPwd,
             final List<String> workerCodes,
-            final String elasticHost,
-            final int elasticPort,
+            final List<HttpHost> elasticHosts,
             final String elasticUser,
             String elasticPassword,
             final String elasticNamespace,
@@ -101,7 +145,24 @@ public class SearchToolsConfig {
             final String workspaceMongoUser,
             String workspaceMongoPwd,
             final List<WorkspaceIdentifier> workspaceBlackList,
-            final List<String> workspaceTypes)
+            final List<String> workspaceTypes,
+            final Integer indexBufferMaxDocuments,
+            final long indexBufferMaxBytes,
+            final long indexBufferMaxLatencyMS,
+            final RefreshPolicy elasticRefreshPolicy,
+            final long elasticRefreshIntervalMS,
+            final long elasticNodeDiscoveryIntervalMS,
+            final int elasticConnectTimeoutMS,
+            final int elasticReadMaxConnections,
+            final int elasticReadSocketTimeoutMS,
+            final int elasticWriteMaxConnections,
+            final int elasticWriteSocketTimeoutMS,
+            final boolean elasticAccessFieldsOnData,
+            final int workerConcurrentEvents,
+            final int workerClaimBatchSize,
+            final int workerLoadThreads,
+            final int workerParseThreads,
+            final int workerIndexThreads)
             throws SearchToolsConfigException {
         this.workspaceBlackList = Collections.unmodifiableList(workspaceBlackList);
         this.workspaceTypes = Collections.unmodifiableList(workspaceTypes);
@@ -122,8 +183,7 @@ public class SearchToolsConfig {
         
         this.workerCodes = Collections.unmodifiableSet(new HashSet<>(workerCodes));
         
-        this.elasticHost = elasticHost;
-        this.elasticPort = elasticPort;
+        this.elasticHosts = Collections.unmodifiableList(elasticHosts);
         if (elasticUser == null ^ elasticPassword == null) { // xor
             elasticPassword = null; // gc
             throw new SearchToolsConfigException(String.format(
@@ -159,6 +219,33 @@ public class SearchToolsConfig {
         this.workspaceMongoPwd = Optional.fromNullable(workspaceMongoPwd == null ?
                 null :workspaceMongoPwd.toCharArray());
         workspaceMongoPwd = null; //gc
+        
+        this.indexBufferMaxDocuments = Optional.fromNullable(indexBufferMaxDocuments);
+        this.indexBufferMaxBytes = indexBufferMaxBytes;
+        this.indexBufferMaxLatencyMS = indexBufferMaxLatencyMS;
+        this.elasticRefreshPolicy = elasticRefreshPolicy;
+        this.elasticRefreshIntervalMS = elasticRefreshIntervalMS;
+        this.elasticNodeDiscoveryIntervalMS = elasticNodeDiscoveryIntervalMS;
+        this.elasticConnectTimeoutMS = elasticConnectTimeoutMS;
+        this.elasticReadMaxConnections = elasticReadMaxConnections;
+        this.elasticReadSocketTimeoutMS = elasticReadSocketTimeoutMS;
+        this.elasticWriteMaxConnections = elasticWriteMaxConnections;
+        this.elasticWriteSocketTimeoutMS = elasticWriteSocketTimeoutMS;
+        this.elasticAccessFieldsOnData = elasticAccessFieldsOnData;
+        // each event thread waits for every stage of an object in turn, so with one event
+        // thread the stage threads would never run in parallel and only add overhead
+        if (workerConcurrentEvents < 2 &&
+                workerLoadThreads + workerParseThreads + workerIndexThreads > 0) {
+            throw new SearchToolsConfigException(String.format(
+                    "Parameters %s, %s, and %s have no effect unless %s is greater than 1",
+                    WORKER_LOAD_THREADS, WORKER_PARSE_THREADS, WORKER_INDEX_THREADS,
+                    WORKER_CONCURRENT_EVENTS));
+        }
+        this.workerConcurrentEvents = workerConcurrentEvents;
+        this.workerClaimBatchSize = workerClaimBatchSize;
+        this.workerLoadThreads = workerLoadThreads;
+        this.workerParseThreads = workerParseThreads;
+        this.workerIndexThreads = workerIndexThreads;
     }
 
     public String getSearchMongoHost() {
@@ -181,12 +268,50 @@ public class SearchToolsConfig {
         return workerCodes;
     }
 
-    public String getElasticHost() {
-        return elasticHost;
+    /** Get the maximum number of events an indexer worker processes concurrently.
+     * @return the number of concurrent events, 1 by default.
+     */
+    public int getWorkerConcurrentEvents() {
+        return workerConcurrentEvents;
     }
 
-    public int getElasticPort() {
-        return elasticPort;
+    /** Get the maximum number of events an indexer worker claims from the event storage at
+     * once. If greater than 1, events are claimed with a lease that expires if the worker stops
+     * renewing it.
+     * @return the claim batch size, 1 by default.
+     */
+    public int getWorkerClaimBatchSize() {
+        return workerClaimBatchSize;
+    }
+
+    /** Get the number of threads an indexer worker dedicates to loading objects from the data
+     * source.
+     * @return the number of threads, or 0 if objects are loaded on the event threads.
+     */
+    public int getWorkerLoadThreads() {
+        return workerLoadThreads;
+    }
+
+    /** Get the number of threads an indexer worker dedicates to parsing objects.
+     * @return the number of threads, or 0 if objects are parsed on the event threads.
+     */
+    public int getWorkerParseThreads() {
+        return workerParseThreads;
+    }
+
+    /** Get the number of threads an indexer worker dedicates to writing parsed objects to the
+     * indexing storage.
+     * @return the number of threads, or 0 if objects are written on the event threads.
+     */
+    public int getWorkerIndexThreads() {
+        return workerIndexThreads;
+    }
+
+    /** Get the ElasticSearch nodes to contact.
+     * @return the ElasticSearch hosts.
+     */
+    public List<HttpHost> getElasticHosts() {
+        return elasticHosts;
     }
 
     public Optional<String> getElasticUser() {
@@ -201,6 +326,78 @@ public class SearchToolsConfig {
         return elasticNamespace;
     }
     
+    /** Get the policy determining when data written to ElasticSearch is made visible to
+     * searches.
+     * @return the refresh policy.
+     */
+    public RefreshPolicy getElasticRefreshPolicy() {
+        return elasticRefreshPolicy;
+    }
+    
+    /** Get the interval, in milliseconds, between refreshes of modified indexes when the
+     * refresh policy is {@link RefreshPolicy#COALESCED}.
+     * @return the refresh interval.
+     */
+    public long getElasticRefreshIntervalMS() {
+        return elasticRefreshIntervalMS;
+    }
+    
+    /** Get the interval, in milliseconds, between discoveries of the nodes in the
+     * ElasticSearch cluster. 0 indicates nodes should not be discovered.
+     * @return the node discovery interval.
+     */
+    public long getElasticNodeDiscoveryIntervalMS() {
+        return elasticNodeDiscoveryIntervalMS;
+    }
+    
+    /** Get the timeout, in milliseconds, for connecting to an ElasticSearch node.
+     * @return the connection timeout.
+     */
+    public int getElasticConnectTimeoutMS() {
+        return elasticConnectTimeoutMS;
+    }
+    
+    /** Get the maximum number of connections used for ElasticSearch searches and other read
+     * requests.
+     * @return the maximum number of read connections.
+     */
+    public int getElasticReadMaxConnections() {
+        return elasticReadMaxConnections;
+    }
+    
+    /** Get the timeout, in milliseconds, for waiting for data from an ElasticSearch node for
+     * searches and other read requests.
+     * @return the read socket timeout.
+     */
+    public int getElasticReadSocketTimeoutMS() {
+        return elasticReadSocketTimeoutMS;
+    }
+    
+    /** Get the maximum number of connections used for ElasticSearch indexing and other write
+     * requests.
+     * @return the maximum number of write connections.
+     */
+    public int getElasticWriteMaxConnections() {
+        return elasticWriteMaxConnections;
+    }
+    
+    /** Get the timeout, in milliseconds, for waiting for data from an ElasticSearch node for
+     * indexing and other write requests.
+     * @return the write socket timeout.
+     */
+    public int getElasticWriteSocketTimeoutMS() {
+        return elasticWriteSocketTimeoutMS;
+    }
+    
+    /** Get whether the access fields of each object version should be copied to its data
+     * documents when new indexes are created or indexes are migrated, allowing searches to
+     * filter data documents without a parent-child join.
+     * @return true if access fields should be copied to data documents.
+     */
+    public boolean isElasticAccessFieldsOnData() {
+        return elasticAccessFieldsOnData;
+    }
+    
     public String getTempDir() {
         return tempDir;
     }
@@ -252,6 +449,29 @@ public class SearchToolsConfig {
     public List<String> getWorkspaceTypes() {
         return workspaceTypes;
     }
+    
+    /** Get the maximum number of documents the indexer should buffer before writing them to
+     * the indexing storage. If absent, index data should not be buffered.
+     * @return the maximum number of buffered documents.
+     */
+    public Optional<Integer> getIndexBufferMaxDocuments() {
+        return indexBufferMaxDocuments;
+    }
+    
+    /** Get the maximum estimated size, in bytes, of the documents the indexer should buffer
+     * before writing them to the indexing storage.
+     * @return the maximum buffer size.
+     */
+    public long getIndexBufferMaxBytes() {
+        return indexBufferMaxBytes;
+    }
+    
+    /** Get the maximum time, in milliseconds, index data should remain in the indexer buffer.
+     * @return the maximum buffer latency.
+     */
+    public long getIndexBufferMaxLatencyMS() {
+        return indexBufferMaxLatencyMS;
+    }
 
     public static SearchToolsConfig from(final Properties p) throws SearchToolsConfigException {
         final Map<String, String> cfg = new HashMap<>();
@@ -272,14 +492,22 @@ public class SearchToolsConfig {
                     "Invalid value for parameter %s (%s): %s",
                     ELASTIC_PORT, esPortStr, e.getMessage(), e));
         }
+        final List<HttpHost> esHosts;
+        final String esHostsStr = getString(ELASTIC_HOST, cfg, true);
+        try {
+            esHosts = ElasticClientPool.parseHosts(esHostsStr, esPort);
+        } catch (IllegalArgumentException e) {
+            throw new SearchToolsConfigException(String.format(
+                    "Invalid value for parameter %s (%s): %s",
+                    ELASTIC_HOST, esHostsStr, e.getMessage()));
+        }
         return new SearchToolsConfig(
                 getString(SEARCH_MONGO_HOST, cfg, true),
                 getString(SEARCH_MONGO_DB, cfg, true),
                 getString(SEARCH_MONGO_USER, cfg),
                 getString(SEARCH_MONGO_PWD, cfg),
                 getStringList(WORKER_CODES, cfg),
-                getString(ELASTIC_HOST, cfg, true),
-                esPort,
+                esHosts,
                 getString(ELASTIC_USER, cfg),
                 getString(ELASTIC_PWD, cfg),
                 getString(ELASTIC_NAMESPACE, cfg, true),
@@ -295,7 +523,114 @@ public class SearchToolsConfig {
                 getString(WS_MONGO_USER, cfg),
                 getString(WS_MONGO_PWD, cfg),
                 getWSIDList(WS_ID_BLACKLIST, cfg),
-                getStringList(WS_TYPES_LIST, cfg));
+                getStringList(WS_TYPES_LIST, cfg),
+                getNullableInteger(INDEX_BUFFER_MAX_DOCS, cfg, 1),
+                getLong(INDEX_BUFFER_MAX_BYTES, cfg, INDEX_BUFFER_MAX_BYTES_DEFAULT, 1),
+                getLong(INDEX_BUFFER_MAX_LATENCY, cfg, INDEX_BUFFER_MAX_LATENCY_DEFAULT, 0),
+                getRefreshPolicy(ELASTIC_REFRESH_POLICY, cfg),
+                getLong(ELASTIC_REFRESH_INTERVAL, cfg,
+                        ElasticIndexingStorage.DEFAULT_REFRESH_INTERVAL_MS, 1),
+                getLong(ELASTIC_NODE_DISCOVERY_INTERVAL, cfg, 0, 0),
+                getInteger(ELASTIC_CONNECT_TIMEOUT, cfg,
+                        ElasticIndexingStorage.DEFAULT_CONNECT_TIMEOUT_MS),
+                getInteger(ELASTIC_READ_MAX_CONNECTIONS, cfg,
+                        ElasticIndexingStorage.DEFAULT_READ_POOL_MAX_CONNECTIONS),
+                getInteger(ELASTIC_READ_SOCKET_TIMEOUT, cfg,
+                        ElasticIndexingStorage.DEFAULT_SOCKET_TIMEOUT_MS),
+                getInteger(ELASTIC_WRITE_MAX_CONNECTIONS, cfg,
+                        ElasticIndexingStorage.DEFAULT_WRITE_POOL_MAX_CONNECTIONS),
+                getInteger(ELASTIC_WRITE_SOCKET_TIMEOUT, cfg,
+                        ElasticIndexingStorage.DEFAULT_SOCKET_TIMEOUT_MS),
+                "true".equals(getString(ELASTIC_ACCESS_FIELDS_ON_DATA, cfg)),
+                getInteger(WORKER_CONCURRENT_EVENTS, cfg, 1),
+                getInteger(WORKER_CLAIM_BATCH_SIZE, cfg, 1),
+                getInteger(WORKER_LOAD_THREADS, cfg, 0, 0),
+                getInteger(WORKER_PARSE_THREADS, cfg, 0, 0),
+                getInteger(WORKER_INDEX_THREADS, cfg, 0, 0));
+    }
+    
+    private static RefreshPolicy getRefreshPolicy(
+            final String paramName,
+            final Map<String, String> cfg)
+            throws SearchToolsConfigException {
+        final String s = getString(paramName, cfg);
+        if (s == null) {
+            return RefreshPolicy.IMMEDIATE;
+        }
+        try {
+            return RefreshPolicy.valueOf(s.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new SearchToolsConfigException(String.format(
+                    "Invalid value for parameter %s (%s): must be one of %s",
+                    paramName, s, Arrays.asList(RefreshPolicy.values())));
+        }
+    }
+    
+    // the minimum value is 1
+    private static int getInteger(
+            final String paramName,
+            final Map<String, String> cfg,
+            final int default_)
+            throws SearchToolsConfigException {
+        return getInteger(paramName, cfg, default_, 1);
+    }
+    
+    private static int getInteger(
+            final String paramName,
+            final Map<String, String> cfg,
+            final int default_,
+            final int minimum)
+            throws SearchToolsConfigException {
+        final Integer i = getNullableInteger(paramName, cfg, minimum);
+        return i == null ? default_ : i;
+    }
+    
+    // returns null if no value
+    private static Integer getNullableInteger(
+            final String paramName,
+            final Map<String, String> cfg,
+            final int minimum)
+            throws SearchToolsConfigException {
+        final String s = getString(paramName, cfg);
+        if (s == null) {
+            return null;
+        }
+        return (int) parseLong(paramName, s, minimum, Integer.MAX_VALUE);
+    }
+    
+    private static long getLong(
+            final String paramName,
+            final Map<String, String> cfg,
+            final long default_,
+            final long minimum)
+            throws SearchToolsConfigException {
+        final String s = getString(paramName, cfg);
+        if (s == null) {
+            return default_;
+        }
+        return parseLong(paramName, s, minimum, Long.MAX_VALUE);
+    }
+    
+    private static long parseLong(
+            final String paramName,
+            final String value,
+            final long minimum,
+            final long maximum)
+            throws SearchToolsConfigException {
+        final long ret;
+        try {
+            ret = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new SearchToolsConfigException(String.format(
+                    "Invalid value for parameter %s (%s): %s",
+                    paramName, value, e.getMessage()));
+        }
+        if (ret < minimum || ret > maximum) {
+            throw new SearchToolsConfigException(String.format(
+                    "Value for parameter %s (%s) must be between %s and %s",
+                    paramName, value, minimum, maximum));
+        }
+        return ret;
     }
 
     private static List<String> getStringList(
@@ -394,10 +729,8 @@ public class SearchToolsConfig {
         builder.append(searchMongoUser);
         builder.append(", searchMongoPwd=");
         builder.append(searchMongoPwd);
-        builder.append(", elasticHost=");
-        builder.append(elasticHost);
-        builder.append(", elasticPort=");
-        builder.append(elasticPort);
+        builder.append(", elasticHosts=");
+        builder.append(elasticHosts);
         builder.append(", elasticUser=");
         builder.append(elasticUser);
         builder.append(", elasticPassword=");
@@ -428,6 +761,40 @@ public class SearchToolsConfig {
         builder.append(workspaceBlackList);
         builder.append(", workspaceTypes=");
         builder.append(workspaceTypes);
+        builder.append(", indexBufferMaxDocuments=");
+        builder.append(indexBufferMaxDocuments);
+        builder.append(", indexBufferMaxBytes=");
+        builder.append(indexBufferMaxBytes);
+        builder.append(", indexBufferMaxLatencyMS=");
+        builder.append(indexBufferMaxLatencyMS);
+        builder.append(", elasticRefreshPolicy=");
+        builder.append(elasticRefreshPolicy);
+        builder.append(", elasticRefreshIntervalMS=");
+        builder.append(elasticRefreshIntervalMS);
+        builder.append(", elasticNodeDiscoveryIntervalMS=");
+        builder.append(elasticNodeDiscoveryIntervalMS);
+        builder.append(", elasticConnectTimeoutMS=");
+        builder.append(elasticConnectTimeoutMS);
+        builder.append(", elasticReadMaxConnections=");
+        builder.append(elasticReadMaxConnections);
+        builder.append(", elasticReadSocketTimeoutMS=");
+        builder.append(elasticReadSocketTimeoutMS);
+        builder.append(", elasticWriteMaxConnections=");
+        builder.append(elasticWriteMaxConnections);
+        builder.append(", elasticWriteSocketTimeoutMS=");
+        builder.append(elasticWriteSocketTimeoutMS);
+        builder.append(", elasticAccessFieldsOnData=");
+        builder.append(elasticAccessFieldsOnData);
+        builder.append(", workerConcurrentEvents=");
+        builder.append(workerConcurrentEvents);
+        builder.append(", workerClaimBatchSize=");
+        builder.append(workerClaimBatchSize);
+        builder.append(", workerLoadThreads=");
+        builder.append(workerLoadThreads);
+        builder.append(", workerParseThreads=");
+        builder.append(workerParseThreads);
+        builder.append(", workerIndexThreads=");
+        builder.append(workerIndexThreads);
         builder.append("]");
         return builder.toString();
     }
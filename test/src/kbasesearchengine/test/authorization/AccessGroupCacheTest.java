@@ -1,10 +1,13 @@
 package kbasesearchengine.test.authorization;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
@@ -15,6 +18,7 @@ import org.junit.Test;
 import com.google.common.base.Ticker;
 
 import kbasesearchengine.authorization.AccessGroupCache;
+import kbasesearchengine.authorization.AccessGroupListener;
 import kbasesearchengine.authorization.AccessGroupProvider;
 import kbasesearchengine.test.common.TestCommon;
 
@@ -123,6 +127,51 @@ public class AccessGroupCacheTest {
                 is(Arrays.asList(20, 21)));
     }
     
+    @SuppressWarnings("unchecked")
+    @Test
+    public void listener() throws Exception {
+        final AccessGroupProvider wrapped = mock(AccessGroupProvider.class);
+        final AccessGroupListener listener = mock(AccessGroupListener.class);
+        final AtomicLong nanos = new AtomicLong();
+        final Ticker ticker = new Ticker() {
+            
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        };
+        final AccessGroupCache cache = new AccessGroupCache(
+                wrapped, 10, 10000, ticker, listener);
+        
+        when(wrapped.findAccessGroupIds("foo")).thenReturn(
+                Arrays.asList(1), Arrays.asList(2, 3), null);
+        
+        assertThat("incorrect access groups", cache.findAccessGroupIds("foo"),
+                is(Arrays.asList(1)));
+        assertThat("incorrect access groups", cache.findAccessGroupIds("foo"),
+                is(Arrays.asList(1)));
+        // the listener is only notified when the groups are loaded
+        verify(listener, times(1)).accessGroupsLoaded("foo", Arrays.asList(1));
+        
+        nanos.set(10000000001L);
+        assertThat("incorrect access groups", cache.findAccessGroupIds("foo"),
+                is(Arrays.asList(2, 3)));
+        verify(listener).accessGroupsLoaded("foo", Arrays.asList(2, 3));
+    }
+    
+    @Test
+    public void listenerFail() throws Exception {
+        final AccessGroupProvider wrapped = mock(AccessGroupProvider.class);
+        final AccessGroupCache cache = new AccessGroupCache(wrapped, 10000, 10,
+                (user, groups) -> {
+                    throw new IOException("store failed");
+                });
+        
+        when(wrapped.findAccessGroupIds("foo")).thenReturn(Arrays.asList(1));
+        
+        failFindAccessGroupIDs(cache, "foo", new IOException("store failed"));
+    }
+    
     @Test
     public void constructFail() throws Exception {
         final AccessGroupProvider wrapped = mock(AccessGroupProvider.class);
@@ -131,6 +180,12 @@ public class AccessGroupCacheTest {
                 new IllegalArgumentException("cache lifetime must be at least one second"));
         failConstruct(wrapped, 10, 0,
                 new IllegalArgumentException("cache size must be at least one"));
+        try {
+            new AccessGroupCache(wrapped, 10, 10, (AccessGroupListener) null);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, new NullPointerException("listener"));
+        }
     }
 
     private void failConstruct(
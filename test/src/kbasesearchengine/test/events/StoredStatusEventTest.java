@@ -45,6 +45,7 @@ public class StoredStatusEventTest {
         assertThat("incorrect tags", sei.getWorkerCodes(), is(Collections.emptySet()));
         assertThat("incorrect storedby", sei.getStoredBy(), is(Optional.absent()));
         assertThat("incorrect storeTime", sei.getStoreTime(), is(Optional.absent()));
+        assertThat("incorrect attempts", sei.getAttempts(), is(0));
         assertThat("incorrect toString", sei.toString(), is(
                 "StoredStatusEvent [event=StatusEvent [time=1970-01-01T00:00:10Z, " +
                 "eventType=DELETE_ALL_VERSIONS, storageCode=foo, " +
@@ -53,7 +54,7 @@ public class StoredStatusEventTest {
                 "isPublic=Optional.absent(), newName=Optional.absent()], " +
                 "id=StatusEventID [id=bar], state=UNPROC, updateTime=Optional.absent(), " +
                 "updater=Optional.absent(), workerCodes=[], storedBy=Optional.absent(), " +
-                "storeTime=Optional.absent()]"));
+                "storeTime=Optional.absent(), attempts=0]"));
         
     }
 
@@ -80,6 +81,7 @@ public class StoredStatusEventTest {
         assertThat("incorrect tags", sei.getWorkerCodes(), is(Collections.emptySet()));
         assertThat("incorrect storedby", sei.getStoredBy(), is(Optional.absent()));
         assertThat("incorrect storeTime", sei.getStoreTime(), is(Optional.absent()));
+        assertThat("incorrect attempts", sei.getAttempts(), is(0));
         assertThat("incorrect toString", sei.toString(), is(
                 "StoredStatusEvent [event=StatusEvent [time=1970-01-01T00:00:10Z, " +
                 "eventType=DELETE_ALL_VERSIONS, storageCode=foo, " +
@@ -88,7 +90,7 @@ public class StoredStatusEventTest {
                 "isPublic=Optional.absent(), newName=Optional.absent()], " +
                 "id=StatusEventID [id=bar], state=UNPROC, updateTime=Optional.absent(), " +
                 "updater=Optional.absent(), workerCodes=[], storedBy=Optional.absent(), " +
-                "storeTime=Optional.absent()]"));
+                "storeTime=Optional.absent(), attempts=0]"));
     }
     
     @Test 
@@ -116,6 +118,7 @@ public class StoredStatusEventTest {
         assertThat("incorrect tags", sei.getWorkerCodes(), is(Collections.emptySet()));
         assertThat("incorrect storedby", sei.getStoredBy(), is(Optional.absent()));
         assertThat("incorrect storeTime", sei.getStoreTime(), is(Optional.absent()));
+        assertThat("incorrect attempts", sei.getAttempts(), is(0));
         assertThat("incorrect toString", sei.toString(), is(
                 "StoredStatusEvent [event=StatusEvent [time=1970-01-01T00:00:10Z, " +
                 "eventType=DELETE_ALL_VERSIONS, storageCode=foo, " +
@@ -125,7 +128,7 @@ public class StoredStatusEventTest {
                 "id=StatusEventID [id=bar], state=UNPROC, " +
                 "updateTime=Optional.of(1970-01-01T00:00:20Z), " +
                 "updater=Optional.absent(), workerCodes=[], storedBy=Optional.absent(), " +
-                "storeTime=Optional.absent()]"));
+                "storeTime=Optional.absent(), attempts=0]"));
     }
     
     @Test
@@ -149,6 +152,7 @@ public class StoredStatusEventTest {
         assertThat("incorrect tags", sei.getWorkerCodes(), is(Collections.emptySet()));
         assertThat("incorrect storedby", sei.getStoredBy(), is(Optional.absent()));
         assertThat("incorrect storeTime", sei.getStoreTime(), is(Optional.absent()));
+        assertThat("incorrect attempts", sei.getAttempts(), is(0));
         assertThat("incorrect toString", sei.toString(), is(
                 "StoredStatusEvent [event=StatusEvent [time=1970-01-01T00:00:10Z, " +
                 "eventType=DELETE_ALL_VERSIONS, storageCode=foo, " +
@@ -158,7 +162,7 @@ public class StoredStatusEventTest {
                 "id=StatusEventID [id=baz], state=UNPROC, " +
                 "updateTime=Optional.of(1970-01-01T00:00:20Z), " +
                 "updater=Optional.of(bar), workerCodes=[], storedBy=Optional.absent(), " +
-                "storeTime=Optional.absent()]"));
+                "storeTime=Optional.absent(), attempts=0]"));
     }
     
     @Test
@@ -182,6 +186,7 @@ public class StoredStatusEventTest {
         assertThat("incorrect tags", sei.getWorkerCodes(), is(Collections.emptySet()));
         assertThat("incorrect storedby", sei.getStoredBy(), is(Optional.absent()));
         assertThat("incorrect storeTime", sei.getStoreTime(), is(Optional.absent()));
+        assertThat("incorrect attempts", sei.getAttempts(), is(0));
         assertThat("incorrect toString", sei.toString(), is(
                 "StoredStatusEvent [event=StatusEvent [time=1970-01-01T00:00:10Z, " +
                 "eventType=DELETE_ALL_VERSIONS, storageCode=foo, " +
@@ -191,7 +196,7 @@ public class StoredStatusEventTest {
                 "id=StatusEventID [id=baz], state=UNPROC, " +
                 "updateTime=Optional.of(1970-01-01T00:00:20Z), " +
                 "updater=Optional.absent(), workerCodes=[], storedBy=Optional.absent(), " +
-                "storeTime=Optional.absent()]"));
+                "storeTime=Optional.absent(), attempts=0]"));
     }
     
     @Test
@@ -206,6 +211,7 @@ public class StoredStatusEventTest {
                 .withWorkerCode("bar")
                 .withNullableStoredBy("my man")
                 .withNullableStoreTime(Instant.ofEpochMilli(30000))
+                .withAttempts(2)
                 .build();
         assertThat("incorrect id", sei.getId(), is(new StatusEventID("foo")));
         assertThat("incorrect event", sei.getEvent(), is(StatusEvent.getBuilder(
@@ -219,6 +225,7 @@ public class StoredStatusEventTest {
         assertThat("incorrect storedby", sei.getStoredBy(), is(Optional.of("my man")));
         assertThat("incorrect storeTime", sei.getStoreTime(),
                 is(Optional.of(Instant.ofEpochMilli(30000))));
+        assertThat("incorrect attempts", sei.getAttempts(), is(2));
         assertThat("incorrect toString", sei.toString(), is(
                 "StoredStatusEvent [event=StatusEvent [time=1970-01-01T00:00:10Z, " +
                 "eventType=DELETE_ALL_VERSIONS, storageCode=foo, " +
@@ -228,7 +235,7 @@ public class StoredStatusEventTest {
                 "id=StatusEventID [id=foo], state=UNPROC, " +
                 "updateTime=Optional.of(1970-01-01T00:00:20Z), updater=Optional.of(foo), " +
                 "workerCodes=[bar, foo], storedBy=Optional.of(my man), " +
-                "storeTime=Optional.of(1970-01-01T00:00:30Z)]"));
+                "storeTime=Optional.of(1970-01-01T00:00:30Z), attempts=2]"));
     }
     
     @Test
@@ -271,6 +278,21 @@ public class StoredStatusEventTest {
                 new IllegalArgumentException("workerCode cannot be null or whitespace"));
     }
     
+    @Test
+    public void buildFailAttempts() {
+        final StatusEvent event = StatusEvent.getBuilder(
+                "foo", Instant.ofEpochMilli(10000), StatusEventType.DELETE_ALL_VERSIONS).build();
+        try {
+            StoredStatusEvent.getBuilder(event, new StatusEventID("foo"),
+                    StatusEventProcessingState.UNINDX)
+                    .withAttempts(-1);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got,
+                    new IllegalArgumentException("attempts must be at least 0"));
+        }
+    }
+    
     private void failBuildTag(final String tag, final Exception expected) {
         final StatusEvent event = StatusEvent.getBuilder(
                 "foo", Instant.ofEpochMilli(10000), StatusEventType.DELETE_ALL_VERSIONS).build();
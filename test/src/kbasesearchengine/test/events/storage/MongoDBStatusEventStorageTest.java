@@ -10,6 +10,7 @@ import static kbasesearchengine.test.common.TestCommon.set;
 
 import java.nio.file.Paths;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -18,6 +19,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -27,6 +29,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Range;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoDatabase;
@@ -381,6 +384,34 @@ public class MongoDBStatusEventStorageTest {
         assertThat("expected fail", success, is(false));
     }
 
+    @Test
+    public void setProcessingStateWithUpdater() throws Exception {
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+        store(1, 2, StatusEventProcessingState.READY, null);
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(20000));
+        final StatusEventID id = storage.claimEvents(null, 1, LEASE, "w1").get(0).getId();
+        // the event is requeued and claimed by another worker
+        assertThat("incorrect requeue", storage.requeueEvent(id, "w1"), is(true));
+        storage.claimEvents(null, 1, LEASE, "w2");
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(30000));
+        assertThat("incorrect set", storage.setProcessingState(id,
+                StatusEventProcessingState.PROC, StatusEventProcessingState.INDX, "w1"),
+                is(false));
+        assertThat("incorrect state", storage.get(id).get().getState(),
+                is(StatusEventProcessingState.PROC));
+        
+        assertThat("incorrect set", storage.setProcessingState(id,
+                StatusEventProcessingState.PROC, StatusEventProcessingState.FAIL, "w2"),
+                is(true));
+        final StoredStatusEvent got = storage.get(id).get();
+        assertThat("incorrect state", got.getState(), is(StatusEventProcessingState.FAIL));
+        assertThat("incorrect updater", got.getUpdater(), is(Optional.of("w2")));
+        assertThat("incorrect update time", got.getUpdateTime(),
+                is(Optional.of(Instant.ofEpochMilli(30000))));
+    }
+
     @Test
     public void getAndSetProcessingWithSortNoDBWorkerCodeField() throws Exception {
         getAndSetProcessingWithSort(set(),
@@ -659,6 +690,341 @@ public class MongoDBStatusEventStorageTest {
         }
     }
     
+    private static final Duration LEASE = Duration.ofSeconds(10);
+    
+    private List<Integer> getTimesInSec(final List<StoredStatusEvent> events) {
+        return events.stream().map(e -> (int) e.getEvent().getTimestamp().toEpochMilli() / 1000)
+                .collect(Collectors.toList());
+    }
+    
+    private Set<StatusEventID> getIDs(final List<StoredStatusEvent> events) {
+        return events.stream().map(e -> e.getId()).collect(Collectors.toSet());
+    }
+    
+    @Test
+    public void claimEvents() throws Exception {
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+        store(1, 5, StatusEventProcessingState.READY, null);
+        store(6, 7, StatusEventProcessingState.READY, set("foo"));
+        store(8, 9, StatusEventProcessingState.UNPROC, null);
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(100000));
+        final List<StoredStatusEvent> events = storage.claimEvents(null, 3, LEASE, "w1");
+        assertThat("incorrect events", getTimesInSec(events), is(Arrays.asList(1, 2, 3)));
+        for (final StoredStatusEvent ev: events) {
+            assertThat("incorrect state", ev.getState(), is(StatusEventProcessingState.PROC));
+            assertThat("incorrect updater", ev.getUpdater(), is(Optional.of("w1")));
+            assertThat("incorrect update time", ev.getUpdateTime(),
+                    is(Optional.of(Instant.ofEpochMilli(100000))));
+            assertThat("incorrect worker codes", ev.getWorkerCodes(), is(set("default")));
+            assertThat("incorrect stored event", storage.get(ev.getId()).get(), is(ev));
+        }
+        
+        assertThat("incorrect events", getTimesInSec(
+                storage.claimEvents(set("default", "foo"), -1, LEASE, "w1")),
+                is(Arrays.asList(4, 5, 6, 7)));
+        assertThat("incorrect events", storage.claimEvents(set("default", "foo"), 10, LEASE, "w1"),
+                is(Collections.emptyList()));
+        assertThat("incorrect events", storage.get(StatusEventProcessingState.UNPROC, -1).size(),
+                is(2));
+    }
+    
+    @Test
+    public void claimEventsReclaimExpiredLeases() throws Exception {
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+        store(1, 4, StatusEventProcessingState.READY, null);
+        // events claimed without a lease are never reclaimed
+        storage.setAndGetProcessingState(StatusEventProcessingState.READY, null,
+                StatusEventProcessingState.PROC, "w0");
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(100000));
+        assertThat("incorrect events", getTimesInSec(storage.claimEvents(null, 2, LEASE, "w1")),
+                is(Arrays.asList(2, 3)));
+        
+        // lease not yet expired
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(109999));
+        assertThat("incorrect events", getTimesInSec(storage.claimEvents(null, 5, LEASE, "w2")),
+                is(Arrays.asList(4)));
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(110001));
+        final List<StoredStatusEvent> events = storage.claimEvents(null, 5, LEASE, "w2");
+        assertThat("incorrect events", getTimesInSec(events), is(Arrays.asList(2, 3)));
+        for (final StoredStatusEvent ev: events) {
+            assertThat("incorrect updater", ev.getUpdater(), is(Optional.of("w2")));
+        }
+        
+        // the old claimant can no longer renew or release the events
+        assertThat("incorrect renew count", storage.renewLeases(getIDs(events), "w1", LEASE),
+                is(0));
+        assertThat("incorrect release count", storage.releaseLeases(getIDs(events), "w1"),
+                is(0));
+    }
+    
+    @Test
+    public void renewLeases() throws Exception {
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+        store(1, 3, StatusEventProcessingState.READY, null);
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(100000));
+        final List<StoredStatusEvent> events = storage.claimEvents(null, 2, LEASE, "w1");
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(105000));
+        assertThat("incorrect renew count", storage.renewLeases(getIDs(events), "w1", LEASE),
+                is(2));
+        assertThat("incorrect renew count", storage.renewLeases(set(), "w1", LEASE), is(0));
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(114999));
+        assertThat("incorrect events", getTimesInSec(storage.claimEvents(null, 5, LEASE, "w2")),
+                is(Arrays.asList(3)));
+        
+        // completed events are not renewed or reclaimed
+        storage.setProcessingState(events.get(0).getId(), StatusEventProcessingState.PROC,
+                StatusEventProcessingState.INDX);
+        assertThat("incorrect renew count", storage.renewLeases(getIDs(events), "w1", LEASE),
+                is(1));
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(125001));
+        assertThat("incorrect events", getTimesInSec(storage.claimEvents(null, 1, LEASE, "w2")),
+                is(Arrays.asList(2)));
+    }
+    
+    @Test
+    public void releaseLeases() throws Exception {
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+        store(1, 3, StatusEventProcessingState.READY, null);
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(100000));
+        final List<StoredStatusEvent> events = storage.claimEvents(null, 2, LEASE, "w1");
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(101000));
+        assertThat("incorrect release count", storage.releaseLeases(getIDs(events), "w2"),
+                is(0));
+        assertThat("incorrect release count", storage.releaseLeases(getIDs(events), "w1"),
+                is(2));
+        assertThat("incorrect release count", storage.releaseLeases(set(), "w1"), is(0));
+        
+        final StoredStatusEvent got = storage.get(events.get(0).getId()).get();
+        assertThat("incorrect state", got.getState(), is(StatusEventProcessingState.READY));
+        assertThat("incorrect update time", got.getUpdateTime(),
+                is(Optional.of(Instant.ofEpochMilli(101000))));
+        
+        // released events can't be renewed
+        assertThat("incorrect renew count", storage.renewLeases(getIDs(events), "w1", LEASE),
+                is(0));
+        assertThat("incorrect events", getTimesInSec(storage.claimEvents(null, 5, LEASE, "w2")),
+                is(Arrays.asList(1, 2, 3)));
+    }
+    
+    @Test
+    public void leaseFail() {
+        failClaim(set("foo", null), LEASE, "w", new NullPointerException("null item in workerCodes"));
+        failClaim(null, null, "w", new NullPointerException("leaseTime"));
+        failClaim(null, Duration.ZERO, "w",
+                new IllegalArgumentException("leaseTime must be positive"));
+        failClaim(null, Duration.ofMillis(-1), "w",
+                new IllegalArgumentException("leaseTime must be positive"));
+        failClaim(null, LEASE, null,
+                new IllegalArgumentException("updater cannot be null or whitespace"));
+        failClaim(null, LEASE, "  \t  ",
+                new IllegalArgumentException("updater cannot be null or whitespace"));
+        
+        final Set<StatusEventID> ids = set(new StatusEventID(new ObjectId().toString()));
+        failRenew(null, "w", LEASE, new NullPointerException("ids"));
+        failRenew(set(new StatusEventID("foo"), null), "w", LEASE,
+                new NullPointerException("null item in ids"));
+        failRenew(ids, null, LEASE,
+                new IllegalArgumentException("updater cannot be null or whitespace"));
+        failRenew(ids, "w", null, new NullPointerException("leaseTime"));
+        failRenew(ids, "w", Duration.ZERO,
+                new IllegalArgumentException("leaseTime must be positive"));
+        
+        failRelease(null, "w", new NullPointerException("ids"));
+        failRelease(set(new StatusEventID("foo"), null), "w",
+                new NullPointerException("null item in ids"));
+        failRelease(ids, "   ",
+                new IllegalArgumentException("updater cannot be null or whitespace"));
+    }
+    
+    private void failClaim(
+            final Set<String> workerCodes,
+            final Duration lease,
+            final String updater,
+            final Exception expected) {
+        try {
+            storage.claimEvents(workerCodes, 1, lease, updater);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, expected);
+        }
+    }
+    
+    private void failRenew(
+            final Set<StatusEventID> ids,
+            final String updater,
+            final Duration lease,
+            final Exception expected) {
+        try {
+            storage.renewLeases(ids, updater, lease);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, expected);
+        }
+    }
+    
+    private void failRelease(
+            final Set<StatusEventID> ids,
+            final String updater,
+            final Exception expected) {
+        try {
+            storage.releaseLeases(ids, updater);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, expected);
+        }
+    }
+    
+    @Test
+    public void heartbeats() throws Exception {
+        assertThat("incorrect heartbeats", storage.getHeartbeats(set("w1")),
+                is(Collections.emptyMap()));
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+        storage.recordHeartbeat("w1");
+        storage.recordHeartbeat("w2");
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(20000));
+        storage.recordHeartbeat("w1");
+        
+        assertThat("incorrect heartbeats", storage.getHeartbeats(set("w1", "w2", "w3")),
+                is(ImmutableMap.of("w1", Instant.ofEpochMilli(20000),
+                        "w2", Instant.ofEpochMilli(10000))));
+        assertThat("incorrect heartbeats", storage.getHeartbeats(set("w2")),
+                is(ImmutableMap.of("w2", Instant.ofEpochMilli(10000))));
+        assertThat("incorrect heartbeats", storage.getHeartbeats(set()),
+                is(Collections.emptyMap()));
+    }
+    
+    @Test
+    public void deleteHeartbeats() throws Exception {
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+        storage.recordHeartbeat("w1");
+        storage.recordHeartbeat("w2");
+        storage.recordHeartbeat("w3");
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(20000));
+        storage.recordHeartbeat("w4");
+        
+        assertThat("incorrect delete", storage.deleteHeartbeat("w1"), is(true));
+        assertThat("incorrect delete", storage.deleteHeartbeat("w1"), is(false));
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(25000));
+        assertThat("incorrect delete count", storage.deleteHeartbeatsOlderThan(
+                Duration.ofSeconds(10), set("w3")), is(1));
+        assertThat("incorrect heartbeats", storage.getHeartbeats(set("w1", "w2", "w3", "w4")),
+                is(ImmutableMap.of("w3", Instant.ofEpochMilli(10000),
+                        "w4", Instant.ofEpochMilli(20000))));
+        
+        assertThat("incorrect delete count", storage.deleteHeartbeatsOlderThan(
+                Duration.ofSeconds(1), set()), is(2));
+        assertThat("incorrect heartbeats", storage.getHeartbeats(set("w3", "w4")),
+                is(Collections.emptyMap()));
+    }
+    
+    @Test
+    public void requeueEvent() throws Exception {
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000));
+        store(1, 2, StatusEventProcessingState.READY, null);
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(100000));
+        final List<StoredStatusEvent> events = storage.claimEvents(null, 1, LEASE, "w1");
+        final StatusEventID id = events.get(0).getId();
+        assertThat("incorrect attempts", events.get(0).getAttempts(), is(0));
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(101000));
+        assertThat("incorrect requeue", storage.requeueEvent(id, "w2"), is(false));
+        assertThat("incorrect requeue", storage.requeueEvent(id, "w1"), is(true));
+        // the event is no longer being processed
+        assertThat("incorrect requeue", storage.requeueEvent(id, "w1"), is(false));
+        
+        StoredStatusEvent got = storage.get(id).get();
+        assertThat("incorrect state", got.getState(), is(StatusEventProcessingState.READY));
+        assertThat("incorrect update time", got.getUpdateTime(),
+                is(Optional.of(Instant.ofEpochMilli(101000))));
+        assertThat("incorrect attempts", got.getAttempts(), is(1));
+        // the lease is removed
+        assertThat("incorrect renew count", storage.renewLeases(set(id), "w1", LEASE), is(0));
+        
+        // events claimed without a lease can also be requeued
+        final StoredStatusEvent claimed = storage.setAndGetProcessingState(
+                StatusEventProcessingState.READY, null, StatusEventProcessingState.PROC, "w3")
+                .get();
+        assertThat("incorrect id", claimed.getId(), is(id));
+        assertThat("incorrect attempts", claimed.getAttempts(), is(1));
+        assertThat("incorrect requeue", storage.requeueEvent(id, "w3"), is(true));
+        got = storage.get(id).get();
+        assertThat("incorrect state", got.getState(), is(StatusEventProcessingState.READY));
+        assertThat("incorrect attempts", got.getAttempts(), is(2));
+        
+        assertThat("incorrect requeue", storage.requeueEvent(
+                new StatusEventID(new ObjectId().toString()), "w1"), is(false));
+    }
+    
+    @Test
+    public void heartbeatFail() {
+        try {
+            storage.recordHeartbeat("   \t  ");
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got,
+                    new IllegalArgumentException("workerID cannot be null or whitespace"));
+        }
+        try {
+            storage.getHeartbeats(null);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, new NullPointerException("workerIDs"));
+        }
+        try {
+            storage.getHeartbeats(set("w", null));
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got,
+                    new NullPointerException("null item in workerIDs"));
+        }
+        try {
+            storage.deleteHeartbeat(null);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got,
+                    new IllegalArgumentException("workerID cannot be null or whitespace"));
+        }
+        try {
+            storage.deleteHeartbeatsOlderThan(Duration.ofSeconds(-1), set());
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got,
+                    new IllegalArgumentException("age cannot be negative"));
+        }
+        try {
+            storage.deleteHeartbeatsOlderThan(Duration.ofSeconds(1), set("w", null));
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got,
+                    new NullPointerException("null item in keepWorkerIDs"));
+        }
+        try {
+            storage.requeueEvent(null, "w");
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, new NullPointerException("id"));
+        }
+        try {
+            storage.requeueEvent(new StatusEventID(new ObjectId().toString()), null);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got,
+                    new IllegalArgumentException("updater cannot be null or whitespace"));
+        }
+    }
+    
     @Test
     public void getByState() throws Exception {
         when(clock.instant()).thenReturn(Instant.now());
@@ -855,6 +1221,10 @@ public class MongoDBStatusEventStorageTest {
                         .append("key", new Document("status", 1).append("time", 1))
                         .append("name", "status_1_time_1")
                         .append("ns", "test_mongostorage.searchEvents"),
+                new Document()
+                        .append("key", new Document("status", 1).append("lease", 1))
+                        .append("name", "status_1_lease_1")
+                        .append("ns", "test_mongostorage.searchEvents"),
                 new Document()
                         .append("key", new Document("_id", 1))
                         .append("name", "_id_")
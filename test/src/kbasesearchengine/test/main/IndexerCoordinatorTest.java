@@ -11,8 +11,10 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static kbasesearchengine.test.common.TestCommon.set;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,6 +29,7 @@ import org.mockito.stubbing.Answer;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
 
 import kbasesearchengine.events.StatusEvent;
 import kbasesearchengine.events.StatusEventID;
@@ -886,6 +889,111 @@ public class IndexerCoordinatorTest {
         verify(logger, never()).logError(any(Throwable.class));
     }
     
+    @Test
+    public void requeueAbandonedEvent() throws Exception {
+        final StoredStatusEvent event1 = StoredStatusEvent.getBuilder(StatusEvent.getBuilder(
+                "WS", Instant.ofEpochMilli(10000), StatusEventType.PUBLISH_ACCESS_GROUP)
+                .withNullableAccessGroupID(2)
+                .build(),
+                new StatusEventID("foo1"), StatusEventProcessingState.PROC)
+                .withNullableUpdate(Instant.ofEpochMilli(10000), "work1")
+                .withAttempts(1)
+                .build();
+        // work2 has never recorded a heartbeat and so its events are never requeued
+        final StoredStatusEvent event2 = StoredStatusEvent.getBuilder(StatusEvent.getBuilder(
+                "WS", Instant.ofEpochMilli(10000), StatusEventType.PUBLISH_ACCESS_GROUP)
+                .withNullableAccessGroupID(3)
+                .build(),
+                new StatusEventID("foo2"), StatusEventProcessingState.PROC)
+                .withNullableUpdate(Instant.ofEpochMilli(10000), "work2")
+                .build();
+        
+        final StatusEventStorage storage = mock(StatusEventStorage.class);
+        final LineLogger logger = mock(LineLogger.class);
+        final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        final Clock clock = mock(Clock.class);
+        
+        when(storage.get(StatusEventProcessingState.PROC, 3))
+                .thenReturn(Arrays.asList(event1, event2));
+        
+        final IndexerCoordinator coord = new IndexerCoordinator(storage, logger, SM, 3, executor,
+                MT, ST, clock);
+        assertThat("incorrect queue size", coord.getQueueSize(), is(2));
+
+        final Runnable coordRunner = getIndexerRunnable(executor, coord);
+        
+        when(storage.get(new StatusEventID("foo1"))).thenReturn(Optional.of(event1));
+        when(storage.get(new StatusEventID("foo2"))).thenReturn(Optional.of(event2));
+        when(storage.getHeartbeats(set("work1", "work2")))
+                .thenReturn(ImmutableMap.of("work1", Instant.ofEpochMilli(20000)));
+        when(storage.requeueEvent(new StatusEventID("foo1"), "work1")).thenReturn(true);
+        
+        // the heartbeat is exactly at the timeout
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(80000));
+        coordRunner.run();
+        assertThat("incorrect queue size", coord.getQueueSize(), is(2));
+        verify(storage, never()).requeueEvent(any(), any());
+        
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(80001));
+        coordRunner.run();
+        // the event remains in the queue until a worker completes it
+        assertThat("incorrect queue size", coord.getQueueSize(), is(2));
+        verify(storage).requeueEvent(new StatusEventID("foo1"), "work1");
+        verify(storage, never()).requeueEvent(new StatusEventID("foo2"), "work2");
+        verify(logger).logInfo("Event foo1 PUBLISH_ACCESS_GROUP WS:2/null was abandoned by " +
+                "worker work1, last heartbeat 1970-01-01T00:00:20Z. Moved from PROC to READY, " +
+                "attempt 2");
+        // old heartbeats are pruned once, keeping those of workers with events in process
+        verify(storage).deleteHeartbeatsOlderThan(Duration.ofDays(1), set("work1", "work2"));
+        
+        verify(storage, never()).setProcessingState(any(), any(), any());
+        verify(logger, never()).logError(any(String.class));
+        verify(logger, never()).logError(any(Throwable.class));
+    }
+    
+    @Test
+    public void failAbandonedEvent() throws Exception {
+        final StoredStatusEvent event1 = StoredStatusEvent.getBuilder(StatusEvent.getBuilder(
+                "WS", Instant.ofEpochMilli(10000), StatusEventType.PUBLISH_ACCESS_GROUP)
+                .withNullableAccessGroupID(2)
+                .build(),
+                new StatusEventID("foo1"), StatusEventProcessingState.PROC)
+                .withNullableUpdate(Instant.ofEpochMilli(10000), "work1")
+                .withAttempts(2)
+                .build();
+        
+        final StatusEventStorage storage = mock(StatusEventStorage.class);
+        final LineLogger logger = mock(LineLogger.class);
+        final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        final Clock clock = mock(Clock.class);
+        
+        when(storage.get(StatusEventProcessingState.PROC, 3)).thenReturn(Arrays.asList(event1));
+        
+        final IndexerCoordinator coord = new IndexerCoordinator(storage, logger, SM, 3, executor,
+                MT, ST, clock);
+        assertThat("incorrect queue size", coord.getQueueSize(), is(1));
+
+        final Runnable coordRunner = getIndexerRunnable(executor, coord);
+        
+        when(storage.get(new StatusEventID("foo1"))).thenReturn(Optional.of(event1));
+        when(storage.getHeartbeats(set("work1")))
+                .thenReturn(ImmutableMap.of("work1", Instant.ofEpochMilli(20000)));
+        when(storage.setProcessingState(new StatusEventID("foo1"),
+                StatusEventProcessingState.PROC, StatusEventProcessingState.FAIL))
+                .thenReturn(true);
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(100000));
+        
+        coordRunner.run();
+        assertThat("incorrect queue size", coord.getQueueSize(), is(0));
+        verify(storage).setProcessingState(new StatusEventID("foo1"),
+                StatusEventProcessingState.PROC, StatusEventProcessingState.FAIL);
+        verify(storage, never()).requeueEvent(any(), any());
+        verify(logger).logError("Event foo1 PUBLISH_ACCESS_GROUP WS:2/null was abandoned by " +
+                "worker work1, last heartbeat 1970-01-01T00:00:20Z. Processing was abandoned " +
+                "3 times, setting state to FAIL");
+        verify(logger, never()).logError(any(Throwable.class));
+    }
+    
     @Test
     public void awaitShutdown() throws Exception {
         final StatusEventStorage storage = mock(StatusEventStorage.class);
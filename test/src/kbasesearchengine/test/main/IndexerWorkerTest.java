@@ -1,11 +1,17 @@
 package kbasesearchengine.test.main;
 
 import static kbasesearchengine.test.common.TestCommon.set;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -13,10 +19,16 @@ import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.mockito.InOrder;
@@ -24,17 +36,23 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 
 import kbasesearchengine.common.GUID;
 import kbasesearchengine.common.ObjectJsonPath;
 import kbasesearchengine.events.StatusEvent;
+import kbasesearchengine.events.StatusEventID;
+import kbasesearchengine.events.StatusEventProcessingState;
 import kbasesearchengine.events.StatusEventType;
+import kbasesearchengine.events.StoredStatusEvent;
+import kbasesearchengine.events.exceptions.FatalRetriableIndexingException;
 import kbasesearchengine.events.exceptions.UnprocessableEventIndexingException;
 import kbasesearchengine.events.handler.EventHandler;
 import kbasesearchengine.events.handler.SourceData;
 import kbasesearchengine.events.storage.StatusEventStorage;
 import kbasesearchengine.main.IndexerWorker;
+import kbasesearchengine.main.IndexingPipeline;
 import kbasesearchengine.main.LineLogger;
 import kbasesearchengine.parse.ParsedObject;
 import kbasesearchengine.search.IndexingStorage;
@@ -366,6 +384,232 @@ public class IndexerWorkerTest {
                 eq(false));
     }
     
+    @Test
+    public void accessGroupEvents() throws Exception {
+        /* tests that access group level events are applied to the access group as a whole
+         * rather than to each object in the access group.
+         */
+        final EventHandler ws = mock(EventHandler.class);
+        final StatusEventStorage storage = mock(StatusEventStorage.class);
+        final IndexingStorage idxStore = mock(IndexingStorage.class);
+        final TypeStorage typeStore = mock(TypeStorage.class);
+        final LineLogger logger = mock(LineLogger.class);
+        
+        final Path tempDir = Paths.get(TestCommon.getTempDir()).toAbsolutePath()
+                .resolve("IndexerWorkerTest");
+        deleteRecursively(tempDir);
+        
+        when(ws.getStorageCode()).thenReturn("code");
+        
+        final IndexerWorker worker = new IndexerWorker(
+                "myid", Arrays.asList(ws), storage, idxStore, typeStore, tempDir.toFile(), logger,
+                null);
+        
+        final InOrder idxOrder = inOrder(idxStore);
+        
+        for (final StatusEventType type: Arrays.asList(StatusEventType.DELETE_ACCESS_GROUP,
+                StatusEventType.PUBLISH_ACCESS_GROUP, StatusEventType.UNPUBLISH_ACCESS_GROUP)) {
+            worker.processOneEvent(StatusEvent.getBuilder(
+                    "code", Instant.ofEpochMilli(10000), type)
+                    .withNullableAccessGroupID(6)
+                    .build());
+        }
+        
+        idxOrder.verify(idxStore).deleteAccessGroup("code", 6);
+        idxOrder.verify(idxStore).publishAccessGroup("code", 6);
+        idxOrder.verify(idxStore).unpublishAccessGroup("code", 6);
+        idxOrder.verifyNoMoreInteractions();
+    }
+    
+    @Test
+    public void concurrentEvents() throws Exception {
+        /* tests that a worker with more than one event slot processes events concurrently.
+         * Each event blocks until the other event is being processed.
+         */
+        final EventHandler ws = mock(EventHandler.class);
+        final StatusEventStorage storage = mock(StatusEventStorage.class);
+        final IndexingStorage idxStore = mock(IndexingStorage.class);
+        final TypeStorage typeStore = mock(TypeStorage.class);
+        final LineLogger logger = mock(LineLogger.class);
+        
+        final Path tempDir = Paths.get(TestCommon.getTempDir()).toAbsolutePath()
+                .resolve("IndexerWorkerTest");
+        deleteRecursively(tempDir);
+        
+        when(ws.getStorageCode()).thenReturn("code");
+        
+        final StoredStatusEvent ev1 = StoredStatusEvent.getBuilder(StatusEvent.getBuilder(
+                "code", Instant.ofEpochMilli(10000), StatusEventType.DELETE_ALL_VERSIONS)
+                .withNullableAccessGroupID(1)
+                .withNullableObjectID("2")
+                .build(),
+                new StatusEventID("ev1"), StatusEventProcessingState.PROC)
+                .build();
+        final StoredStatusEvent ev2 = StoredStatusEvent.getBuilder(StatusEvent.getBuilder(
+                "code", Instant.ofEpochMilli(10000), StatusEventType.DELETE_ALL_VERSIONS)
+                .withNullableAccessGroupID(1)
+                .withNullableObjectID("3")
+                .build(),
+                new StatusEventID("ev2"), StatusEventProcessingState.PROC)
+                .build();
+        
+        final IndexerWorker worker = new IndexerWorker(
+                "myid", Arrays.asList(ws), storage, idxStore, typeStore, tempDir.toFile(), logger,
+                null, 2, 1, new IndexingPipeline());
+        
+        when(storage.setAndGetProcessingState(StatusEventProcessingState.READY, null,
+                StatusEventProcessingState.PROC, worker.getInstanceID()))
+                .thenReturn(Optional.of(ev1), Optional.of(ev2), Optional.absent());
+        
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        doAnswer(inv -> barrier.await(10, TimeUnit.SECONDS))
+                .when(idxStore).deleteAllVersions(any());
+        
+        worker.startIndexer();
+        try {
+            verify(storage, timeout(10000)).setProcessingState(new StatusEventID("ev1"),
+                    StatusEventProcessingState.PROC, StatusEventProcessingState.INDX,
+                    worker.getInstanceID());
+            verify(storage, timeout(10000)).setProcessingState(new StatusEventID("ev2"),
+                    StatusEventProcessingState.PROC, StatusEventProcessingState.INDX,
+                    worker.getInstanceID());
+        } finally {
+            worker.stop(0);
+        }
+        verify(idxStore).deleteAllVersions(new GUID("code:1/2"));
+        verify(idxStore).deleteAllVersions(new GUID("code:1/3"));
+    }
+    
+    @Test
+    public void claimEventBatches() throws Exception {
+        /* tests that a worker with a claim batch size greater than one claims events in batches
+         * rather than one at a time.
+         */
+        final EventHandler ws = mock(EventHandler.class);
+        final StatusEventStorage storage = mock(StatusEventStorage.class);
+        final IndexingStorage idxStore = mock(IndexingStorage.class);
+        final TypeStorage typeStore = mock(TypeStorage.class);
+        final LineLogger logger = mock(LineLogger.class);
+        
+        final Path tempDir = Paths.get(TestCommon.getTempDir()).toAbsolutePath()
+                .resolve("IndexerWorkerTest");
+        deleteRecursively(tempDir);
+        
+        when(ws.getStorageCode()).thenReturn("code");
+        
+        final List<StoredStatusEvent> events = new LinkedList<>();
+        for (final String objid: Arrays.asList("2", "3", "4")) {
+            events.add(StoredStatusEvent.getBuilder(StatusEvent.getBuilder(
+                    "code", Instant.ofEpochMilli(10000), StatusEventType.DELETE_ALL_VERSIONS)
+                    .withNullableAccessGroupID(1)
+                    .withNullableObjectID(objid)
+                    .build(),
+                    new StatusEventID("ev" + objid), StatusEventProcessingState.PROC)
+                    .build());
+        }
+        
+        final IndexerWorker worker = new IndexerWorker(
+                "myid", Arrays.asList(ws), storage, idxStore, typeStore, tempDir.toFile(), logger,
+                null, 1, 3, new IndexingPipeline());
+        
+        when(storage.claimEvents(null, 3, Duration.ofMinutes(5), worker.getInstanceID()))
+                .thenReturn(events, Collections.emptyList());
+        
+        worker.startIndexer();
+        try {
+            for (final String objid: Arrays.asList("2", "3", "4")) {
+                verify(storage, timeout(10000)).setProcessingState(new StatusEventID("ev" + objid),
+                        StatusEventProcessingState.PROC, StatusEventProcessingState.INDX,
+                        worker.getInstanceID());
+            }
+        } finally {
+            worker.stop(0);
+        }
+        final InOrder idxOrder = inOrder(idxStore);
+        idxOrder.verify(idxStore).deleteAllVersions(new GUID("code:1/2"));
+        idxOrder.verify(idxStore).deleteAllVersions(new GUID("code:1/3"));
+        idxOrder.verify(idxStore).deleteAllVersions(new GUID("code:1/4"));
+        verify(storage, never()).setAndGetProcessingState(any(), any(), any(), any());
+        // all the claimed events were processed, so there's nothing to release
+        verify(storage, never()).releaseLeases(any(), any());
+    }
+    
+    @Test
+    public void heartbeat() throws Exception {
+        // tests that the worker records a heartbeat on startup and logs heartbeat failures
+        final EventHandler ws = mock(EventHandler.class);
+        final StatusEventStorage storage = mock(StatusEventStorage.class);
+        final IndexingStorage idxStore = mock(IndexingStorage.class);
+        final TypeStorage typeStore = mock(TypeStorage.class);
+        final LineLogger logger = mock(LineLogger.class);
+        
+        final Path tempDir = Paths.get(TestCommon.getTempDir()).toAbsolutePath()
+                .resolve("IndexerWorkerTest");
+        deleteRecursively(tempDir);
+        
+        when(ws.getStorageCode()).thenReturn("code");
+        final IndexerWorker worker = new IndexerWorker(
+                "myid", Arrays.asList(ws), storage, idxStore, typeStore, tempDir.toFile(), logger,
+                null);
+        // the heartbeat is recorded for this worker process, not just the worker ID
+        final String instanceID = worker.getInstanceID();
+        assertThat("incorrect instance ID", instanceID.startsWith("myid_"), is(true));
+        assertThat("instance ID not unique", instanceID.equals(new IndexerWorker(
+                "myid", Arrays.asList(ws), storage, idxStore, typeStore, tempDir.toFile(), logger,
+                null).getInstanceID()), is(false));
+        
+        when(storage.setAndGetProcessingState(any(), any(), any(), any()))
+                .thenReturn(Optional.absent());
+        doThrow(new FatalRetriableIndexingException("oops"))
+                .when(storage).recordHeartbeat(instanceID);
+        
+        worker.startIndexer();
+        try {
+            verify(storage, timeout(10000)).recordHeartbeat(instanceID);
+            verify(logger, timeout(10000)).logError("Error recording worker heartbeat: " +
+                    "kbasesearchengine.events.exceptions.FatalRetriableIndexingException: oops");
+        } finally {
+            worker.stop(0);
+        }
+        // the worker had no events in process, so its heartbeat is removed
+        verify(storage).deleteHeartbeat(instanceID);
+    }
+    
+    @Test
+    public void constructFailConcurrentEvents() throws Exception {
+        failConstruct(0, 1, new IllegalArgumentException(
+                "maxConcurrentEvents must be at least 1"));
+        failConstruct(1, 0, new IllegalArgumentException("claimBatchSize must be at least 1"));
+        failConstruct(1, 1, null, new NullPointerException("pipeline"));
+    }
+    
+    private void failConstruct(
+            final int maxConcurrentEvents,
+            final int claimBatchSize,
+            final Exception expected)
+            throws Exception {
+        failConstruct(maxConcurrentEvents, claimBatchSize, new IndexingPipeline(), expected);
+    }
+    
+    private void failConstruct(
+            final int maxConcurrentEvents,
+            final int claimBatchSize,
+            final IndexingPipeline pipeline,
+            final Exception expected)
+            throws Exception {
+        final Path tempDir = Paths.get(TestCommon.getTempDir()).toAbsolutePath()
+                .resolve("IndexerWorkerTest");
+        deleteRecursively(tempDir);
+        try {
+            new IndexerWorker("myid", Arrays.asList(), mock(StatusEventStorage.class),
+                    mock(IndexingStorage.class), mock(TypeStorage.class), tempDir.toFile(),
+                    mock(LineLogger.class), null, maxConcurrentEvents, claimBatchSize, pipeline);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, expected);
+        }
+    }
+    
     private void deleteRecursively(final Path path) throws Exception {
         // https://stackoverflow.com/a/35989142/643675
         if (Files.exists(path)) {
@@ -0,0 +1,258 @@
+package kbasesearchengine.test.main;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import kbasesearchengine.events.exceptions.FatalIndexingException;
+import kbasesearchengine.events.exceptions.IndexingException;
+import kbasesearchengine.events.exceptions.RetriableIndexingException;
+import kbasesearchengine.events.exceptions.UnprocessableEventIndexingException;
+import kbasesearchengine.main.IndexingPipeline;
+import kbasesearchengine.main.IndexingPipeline.PendingTask;
+import kbasesearchengine.main.IndexingPipeline.Stage;
+import kbasesearchengine.main.IndexingPipeline.StageTask;
+import kbasesearchengine.test.common.TestCommon;
+
+public class IndexingPipelineTest {
+
+    private static String threadName() {
+        return Thread.currentThread().getName();
+    }
+
+    @Test
+    public void construct() throws Exception {
+        final IndexingPipeline p = new IndexingPipeline(1, 2, 3);
+        assertThat("incorrect threads", p.getThreads(Stage.LOAD), is(1));
+        assertThat("incorrect threads", p.getThreads(Stage.PARSE), is(2));
+        assertThat("incorrect threads", p.getThreads(Stage.INDEX), is(3));
+
+        final IndexingPipeline p2 = new IndexingPipeline();
+        for (final Stage s: Stage.values()) {
+            assertThat("incorrect threads", p2.getThreads(s), is(0));
+        }
+    }
+
+    @Test
+    public void constructFail() throws Exception {
+        failConstruct(-1, 0, 0, new IllegalArgumentException("loadThreads must be at least 0"));
+        failConstruct(0, -1, 0, new IllegalArgumentException("parseThreads must be at least 0"));
+        failConstruct(0, 0, -1, new IllegalArgumentException("indexThreads must be at least 0"));
+    }
+
+    private void failConstruct(
+            final int load,
+            final int parse,
+            final int index,
+            final Exception expected) {
+        try {
+            new IndexingPipeline(load, parse, index);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, expected);
+        }
+    }
+
+    @Test
+    public void runInlineWhenNotStarted() throws Exception {
+        final IndexingPipeline p = new IndexingPipeline(1, 1, 1);
+        final String caller = threadName();
+        assertThat("incorrect thread", p.run(Stage.PARSE, () -> threadName()), is(caller));
+    }
+
+    @Test
+    public void runInlineWithNoThreads() throws Exception {
+        final IndexingPipeline p = new IndexingPipeline(1, 0, 1);
+        p.start();
+        try {
+            final String caller = threadName();
+            assertThat("incorrect thread", p.run(Stage.PARSE, () -> threadName()), is(caller));
+            assertThat("incorrect thread", p.run(Stage.LOAD, () -> threadName()),
+                    is("indexer-load-1"));
+        } finally {
+            p.stop();
+        }
+    }
+
+    @Test
+    public void runOnStageThreads() throws Exception {
+        final IndexingPipeline p = new IndexingPipeline(1, 1, 1);
+        p.start();
+        try {
+            assertThat("incorrect thread", p.run(Stage.LOAD, () -> threadName()),
+                    is("indexer-load-1"));
+            assertThat("incorrect thread", p.run(Stage.PARSE, () -> threadName()),
+                    is("indexer-parse-1"));
+            assertThat("incorrect thread", p.run(Stage.INDEX, () -> threadName()),
+                    is("indexer-index-1"));
+        } finally {
+            p.stop();
+        }
+        // stopped pipelines run tasks on the calling thread
+        final String caller = threadName();
+        assertThat("incorrect thread", p.run(Stage.LOAD, () -> threadName()), is(caller));
+    }
+
+    @Test
+    public void nestedTasksRunInline() throws Exception {
+        /* a task that submits a task to a full stage would deadlock if the nested task weren't
+         * run on the task's thread.
+         */
+        final IndexingPipeline p = new IndexingPipeline(1, 1, 1);
+        p.start();
+        try {
+            assertThat("incorrect thread", p.run(Stage.PARSE,
+                    () -> p.run(Stage.PARSE, () -> p.run(Stage.LOAD, () -> threadName()))),
+                    is("indexer-parse-1"));
+        } finally {
+            p.stop();
+        }
+    }
+
+    @Test
+    public void submitDoesNotWait() throws Exception {
+        final IndexingPipeline p = new IndexingPipeline(0, 0, 1);
+        p.start();
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final PendingTask<String> t = p.submit(Stage.INDEX, () -> {
+                latch.await(10, TimeUnit.SECONDS);
+                return threadName();
+            });
+            latch.countDown();
+            assertThat("incorrect thread", t.get(), is("indexer-index-1"));
+        } finally {
+            p.stop();
+        }
+    }
+
+    @Test
+    public void boundedQueue() throws Exception {
+        // one task runs and one waits in the queue, so the third submit blocks
+        final IndexingPipeline p = new IndexingPipeline(1, 0, 0);
+        p.start();
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final StageTask<Void> task = () -> {
+                latch.await(10, TimeUnit.SECONDS);
+                return null;
+            };
+            final PendingTask<Void> t1 = p.submit(Stage.LOAD, task);
+            final PendingTask<Void> t2 = p.submit(Stage.LOAD, task);
+            final AtomicBoolean submitted = new AtomicBoolean(false);
+            final Thread submitter = new Thread(() -> {
+                p.submit(Stage.LOAD, task);
+                submitted.set(true);
+            });
+            submitter.start();
+            submitter.join(200);
+            assertThat("submit didn't block", submitted.get(), is(false));
+            latch.countDown();
+            submitter.join(10000);
+            assertThat("submit blocked", submitted.get(), is(true));
+            t1.get();
+            t2.get();
+        } finally {
+            p.stop();
+        }
+    }
+
+    @Test
+    public void stopWhileSubmitBlocked() throws Exception {
+        /* a task submitted to a full stage that is stopped before the queue has space must still
+         * run, even if the stage threads exit before the task reaches the queue
+         */
+        final IndexingPipeline p = new IndexingPipeline(1, 0, 0);
+        p.start();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final StageTask<Void> task = () -> {
+            latch.await(10, TimeUnit.SECONDS);
+            return null;
+        };
+        final PendingTask<Void> t1 = p.submit(Stage.LOAD, task);
+        final PendingTask<Void> t2 = p.submit(Stage.LOAD, task);
+        final AtomicBoolean submitted = new AtomicBoolean(false);
+        final AtomicBoolean completed = new AtomicBoolean(false);
+        final Thread submitter = new Thread(() -> {
+            try {
+                final PendingTask<String> t3 = p.submit(Stage.LOAD, () -> threadName());
+                submitted.set(true);
+                t3.get();
+                completed.set(true);
+            } catch (Exception e) {
+                // completed remains false
+            }
+        });
+        submitter.start();
+        submitter.join(200);
+        assertThat("submit didn't block", submitted.get(), is(false));
+        p.stop();
+        latch.countDown();
+        t1.get();
+        t2.get();
+        submitter.join(10000);
+        assertThat("submit blocked", submitted.get(), is(true));
+        assertThat("task didn't complete", completed.get(), is(true));
+    }
+
+    @Test
+    public void exceptions() throws Exception {
+        final IndexingPipeline inline = new IndexingPipeline();
+        final IndexingPipeline threaded = new IndexingPipeline(1, 1, 1);
+        threaded.start();
+        try {
+            for (final IndexingPipeline p: new IndexingPipeline[] {inline, threaded}) {
+                failRun(p, new FatalIndexingException("fatal"));
+                failRun(p, new UnprocessableEventIndexingException("idx"));
+                failRun(p, new RetriableIndexingException("retry"));
+                failRun(p, new InterruptedException("int"));
+                failRun(p, new IllegalStateException("ise"));
+            }
+        } finally {
+            threaded.stop();
+        }
+    }
+
+    private void failRun(final IndexingPipeline p, final Exception e) {
+        // the task's exception is rethrown unchanged
+        try {
+            p.run(Stage.PARSE, () -> {
+                if (e instanceof IndexingException) {
+                    throw (IndexingException) e;
+                } else if (e instanceof RetriableIndexingException) {
+                    throw (RetriableIndexingException) e;
+                } else if (e instanceof InterruptedException) {
+                    throw (InterruptedException) e;
+                } else {
+                    throw (RuntimeException) e;
+                }
+            });
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, e);
+        }
+    }
+
+    @Test
+    public void runFail() throws Exception {
+        final IndexingPipeline p = new IndexingPipeline();
+        try {
+            p.run(null, () -> null);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, new NullPointerException("stage"));
+        }
+        try {
+            p.submit(Stage.LOAD, null);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, new NullPointerException("task"));
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package kbasesearchengine.test.main;
 
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableMap;
 import kbasesearchengine.AccessFilter;
 import kbasesearchengine.MatchFilter;
@@ -21,6 +22,7 @@ import kbasesearchengine.system.SearchObjectType;
 import kbasesearchengine.system.TypeStorage;
 import kbasesearchengine.test.common.TestCommon;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import us.kbase.common.service.UObject;
 
 import java.time.Instant;
@@ -28,6 +30,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -35,7 +38,10 @@ import static kbasesearchengine.test.common.TestCommon.set;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class SearchMethodsTest {
@@ -110,6 +116,176 @@ public class SearchMethodsTest {
                         .build());
     }
     
+    @Test
+    public void searchObjectsCursor() throws Exception {
+        final AccessGroupProvider agp = mock(AccessGroupProvider.class);
+        final IndexingStorage is = mock(IndexingStorage.class);
+        final TypeStorage ts = mock(TypeStorage.class);
+
+        final SearchInterface sm = new SearchMethods(agp, is, ts, Collections.emptySet());
+        
+        final FoundHits fh = new FoundHits();
+        fh.pagination = new kbasesearchengine.search.Pagination(0, 10, "cursor1");
+        fh.sortingRules = Collections.emptyList();
+        fh.total = 30;
+        fh.guids = set();
+        fh.objects = Collections.emptyList();
+        fh.nextCursor = "cursor2";
+        
+        final ArgumentCaptor<kbasesearchengine.search.Pagination> pg =
+                ArgumentCaptor.forClass(kbasesearchengine.search.Pagination.class);
+        when(is.searchObjects(any(), any(), any(), any(), pg.capture(), any())).thenReturn(fh);
+        
+        final SearchObjectsOutput res = sm.searchObjects(new SearchObjectsInput()
+                .withMatchFilter(new MatchFilter())
+                .withAccessFilter(new AccessFilter())
+                .withPagination(new Pagination().withCount(10L).withCursor("cursor1")),
+                "auser");
+        
+        assertThat("incorrect start", pg.getValue().start, is((Integer) null));
+        assertThat("incorrect count", pg.getValue().count, is(10));
+        assertThat("incorrect cursor", pg.getValue().cursor, is("cursor1"));
+        assertThat("incorrect pagination", res.getPagination().getCursor(), is("cursor1"));
+        assertThat("incorrect next cursor", res.getNextCursor(), is("cursor2"));
+    }
+    
+    private static FoundHits foundHits(final String nextCursor) {
+        final FoundHits fh = new FoundHits();
+        fh.pagination = new kbasesearchengine.search.Pagination(0, 10, null);
+        fh.sortingRules = Collections.emptyList();
+        fh.total = 30;
+        fh.guids = set();
+        fh.objects = Collections.emptyList();
+        fh.nextCursor = nextCursor;
+        return fh;
+    }
+    
+    private static SearchObjectsInput snapshotInput(final String cursor) {
+        return new SearchObjectsInput()
+                .withMatchFilter(new MatchFilter())
+                .withAccessFilter(new AccessFilter())
+                .withPagination(new Pagination().withCount(10L).withCursor(cursor)
+                        .withSnapshot(cursor == null ? 1L : null));
+    }
+    
+    @Test
+    public void searchObjectsSnapshots() throws Exception {
+        final AccessGroupProvider agp = mock(AccessGroupProvider.class);
+        final IndexingStorage is = mock(IndexingStorage.class);
+        final TypeStorage ts = mock(TypeStorage.class);
+
+        final SearchMethods sm = new SearchMethods(agp, is, ts, Collections.emptySet());
+        sm.setMaxSnapshotsPerUser(2);
+        
+        final ArgumentCaptor<kbasesearchengine.search.Pagination> pg =
+                ArgumentCaptor.forClass(kbasesearchengine.search.Pagination.class);
+        when(is.searchObjects(any(), any(), any(), any(), pg.capture(), any())).thenReturn(
+                foundHits("s1"), foundHits("s2"), foundHits("s1b"), foundHits("s1b"),
+                foundHits("s3"), foundHits(null), foundHits(null));
+        
+        // start two snapshots
+        sm.searchObjects(snapshotInput(null), "auser");
+        sm.searchObjects(snapshotInput(null), "auser");
+        // only the user that started a snapshot may continue it
+        sm.searchObjects(snapshotInput("s1"), "buser");
+        sm.searchObjects(snapshotInput("s1"), "auser");
+        // starting a third snapshot closes the least recently used snapshot
+        sm.searchObjects(snapshotInput(null), "auser");
+        sm.searchObjects(snapshotInput("s2"), "auser");
+        sm.searchObjects(snapshotInput("s1b"), "auser");
+        
+        final List<Boolean> snapshots = new LinkedList<>();
+        for (final kbasesearchengine.search.Pagination p: pg.getAllValues()) {
+            snapshots.add(p.snapshot);
+        }
+        assertThat("incorrect snapshot flags", snapshots,
+                is(Arrays.asList(true, true, false, true, true, false, true)));
+        verify(is).releaseCursor("s2");
+        verify(is, never()).releaseCursor("s1b");
+        verify(is, never()).releaseCursor("s3");
+    }
+    
+    @Test
+    public void setMaxSnapshotsPerUserFail() throws Exception {
+        final SearchMethods sm = new SearchMethods(mock(AccessGroupProvider.class),
+                mock(IndexingStorage.class), mock(TypeStorage.class), Collections.emptySet());
+        try {
+            sm.setMaxSnapshotsPerUser(0);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+                    "maxSnapshotsPerUser must be at least 1"));
+        }
+    }
+    
+    @Test
+    public void searchObjectsSnapshotsExpire() throws Exception {
+        final AccessGroupProvider agp = mock(AccessGroupProvider.class);
+        final IndexingStorage is = mock(IndexingStorage.class);
+        final TypeStorage ts = mock(TypeStorage.class);
+        final Ticker ticker = mock(Ticker.class);
+        
+        when(ticker.read()).thenReturn(0L, 1000000000L, 2000000000L, 12000000000L,
+                12000000000L, 12000000000L);
+        final SearchMethods sm = new SearchMethods(agp, is, ts, Collections.emptySet(), ticker);
+        sm.setSnapshotKeepAliveSec(10);
+        
+        final ArgumentCaptor<kbasesearchengine.search.Pagination> pg =
+                ArgumentCaptor.forClass(kbasesearchengine.search.Pagination.class);
+        when(is.searchObjects(any(), any(), any(), any(), pg.capture(), any())).thenReturn(
+                foundHits("s1"), foundHits("s2"), foundHits("s1b"), foundHits("s2b"));
+        
+        sm.searchObjects(snapshotInput(null), "auser");
+        sm.searchObjects(snapshotInput(null), "auser");
+        // s1 was last used more than the keep alive time ago
+        sm.searchObjects(snapshotInput("s1"), "auser");
+        sm.searchObjects(snapshotInput("s2"), "auser");
+        
+        final List<Boolean> snapshots = new LinkedList<>();
+        for (final kbasesearchengine.search.Pagination p: pg.getAllValues()) {
+            snapshots.add(p.snapshot);
+        }
+        assertThat("incorrect snapshot flags", snapshots,
+                is(Arrays.asList(true, true, false, true)));
+        verify(is, never()).releaseCursor(any());
+    }
+    
+    @Test
+    public void searchObjectsSnapshotsAnonymous() throws Exception {
+        final AccessGroupProvider agp = mock(AccessGroupProvider.class);
+        final IndexingStorage is = mock(IndexingStorage.class);
+        final TypeStorage ts = mock(TypeStorage.class);
+        final SearchMethods sm = new SearchMethods(agp, is, ts, Collections.emptySet());
+        
+        try {
+            sm.searchObjects(snapshotInput(null), null);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+                    "Snapshot searches require authentication"));
+        }
+        
+        final ArgumentCaptor<kbasesearchengine.search.Pagination> pg =
+                ArgumentCaptor.forClass(kbasesearchengine.search.Pagination.class);
+        when(is.searchObjects(any(), any(), any(), any(), pg.capture(), any())).thenReturn(
+                foundHits(null));
+        sm.searchObjects(snapshotInput("s1"), null);
+        assertThat("incorrect snapshot flag", pg.getValue().snapshot, is(false));
+    }
+    
+    @Test
+    public void setSnapshotKeepAliveSecFail() throws Exception {
+        final SearchMethods sm = new SearchMethods(mock(AccessGroupProvider.class),
+                mock(IndexingStorage.class), mock(TypeStorage.class), Collections.emptySet());
+        try {
+            sm.setSnapshotKeepAliveSec(0);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, new IllegalArgumentException(
+                    "keepAliveSec must be at least 1"));
+        }
+    }
+    
     @Test
     public void searchObjectsIllegalSourceTag() {
         failSearchObjectsSourceTag(null, new IllegalArgumentException(
@@ -13,6 +13,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -32,6 +33,7 @@ import kbasesearchengine.common.ObjectJsonPath;
 import kbasesearchengine.events.handler.SourceData;
 import kbasesearchengine.parse.IdMapper;
 import kbasesearchengine.parse.ObjectParser;
+import kbasesearchengine.parse.ObjectParser.ExtractedObject;
 import kbasesearchengine.parse.SimpleIdConsumer;
 import kbasesearchengine.parse.SimpleSubObjectConsumer;
 import kbasesearchengine.parse.SubObjectConsumer;
@@ -469,6 +471,42 @@ public class ObjectParserTest {
         }
     }
 
+    /**
+     * Testing extracting data for several types from one object in one pass
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void extractObjectsGenomeTest() throws Exception {
+
+        final String jsonResource = "genome01";
+        final List<String> types = Arrays.asList(
+                "Genome", "GenomeFeature", "GenomeNonCodingFeature");
+        final GUID guid = new GUID("WS:1/1/1");
+
+        final List<ObjectTypeParsingRules> rules = new ArrayList<>();
+        for (final String type : types) {
+            rules.add(ObjectTypeParsingRulesFileParser.fromFile(
+                    new File("resources/types/" + type + ".yaml")).get(0));
+        }
+        final List<ExtractedObject> extracted = ObjectParser.extractObjects(
+                getSourceData("Genome", jsonResource), guid, rules);
+
+        // the results are the same as extracting each type separately
+        assertThat(extracted.size(), is(3));
+        for (int i = 0; i < types.size(); i++) {
+            assertThat(extracted.get(i).getGuidToJson(),
+                    is(parseSubObjects(types.get(i), jsonResource, guid.toString())));
+            assertThat(extracted.get(i).getParentJson(),
+                    is(extractParentFragment(types.get(i), jsonResource)));
+        }
+        assertThat(extracted.get(1).getGuidToJson().size(), is(3));
+        assertNull(extracted.get(0).getParentJson());
+
+        assertThat(ObjectParser.extractObjects(getSourceData("Genome", jsonResource), guid,
+                Collections.emptyList()), is(Collections.emptyList()));
+    }
+
     /**
      * Helper method for ObjectParser.parseSubObjects tests
      * 
@@ -484,6 +522,26 @@ public class ObjectParserTest {
 
         final GUID guid = new GUID(guidString);
 
+        final SourceData obj = getSourceData(type, jsonResource);
+        final File rulesFile = new File("resources/types/" + type + ".yaml");
+        final ObjectTypeParsingRules parsingRules = ObjectTypeParsingRulesFileParser
+                .fromFile(rulesFile).get(rule_version);
+
+        final Map<GUID, String> guidToJson = ObjectParser.parseSubObjects(obj, guid, parsingRules);
+
+        return guidToJson;
+    }
+
+    /**
+     * Helper method for loading a test object
+     * 
+     * @param type
+     * @param jsonResource
+     * @return
+     * @throws Exception
+     */
+    public static SourceData getSourceData(String type, String jsonResource) throws Exception {
+
         final InputStream inputStream = ObjectParserTest.class
                 .getResourceAsStream(jsonResource + ".json.properties");
         final Reader reader = new InputStreamReader(inputStream);
@@ -492,14 +550,7 @@ public class ObjectParserTest {
         final String name = "TestObj" + "_" + type;
         final String creator = "creator";
 
-        final SourceData obj = SourceData.getBuilder(data, name, creator).build();
-        final File rulesFile = new File("resources/types/" + type + ".yaml");
-        final ObjectTypeParsingRules parsingRules = ObjectTypeParsingRulesFileParser
-                .fromFile(rulesFile).get(rule_version);
-
-        final Map<GUID, String> guidToJson = ObjectParser.parseSubObjects(obj, guid, parsingRules);
-
-        return guidToJson;
+        return SourceData.getBuilder(data, name, creator).build();
     }
 
     /**
@@ -2,6 +2,7 @@ package kbasesearchengine.test.parse;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +11,7 @@ import junit.framework.Assert;
 import kbasesearchengine.common.ObjectJsonPath;
 import kbasesearchengine.parse.SimpleSubObjectConsumer;
 import kbasesearchengine.parse.SubObjectConsumer;
+import kbasesearchengine.parse.SubObjectExtractionNode;
 import kbasesearchengine.parse.SubObjectExtractor;
 
 import org.junit.Test;
@@ -72,18 +74,56 @@ public class SubObjectExtractorTest {
         }
     }
 
+    @Test
+    public void multipleTrees() throws Exception {
+        // extracting several trees in one pass gives the same data as extracting each alone
+        final List<String[]> specs = new ArrayList<String[]>();
+        specs.add(new String[] {"/features/[*]", "id", "location"});
+        specs.add(new String[] {"/", "domain", "gc_content", "genetic_code", "id",
+                "num_contigs", "scientific_name", "source", "source_id", "additional"});
+        specs.add(new String[] {"/features/[*]/location/0", "[*]"});
+        specs.add(new String[] {"/features/[*]", "location/0/1"});
+        specs.add(new String[] {"/", "features"});
+        specs.add(new String[] {"/", "no_such_field"});
+        
+        final Map<SubObjectConsumer, SubObjectExtractionNode> trees =
+                new LinkedHashMap<SubObjectConsumer, SubObjectExtractionNode>();
+        final List<Map<ObjectJsonPath, String>> data =
+                new ArrayList<Map<ObjectJsonPath, String>>();
+        for (String[] spec : specs) {
+            Map<ObjectJsonPath, String> d = new LinkedHashMap<ObjectJsonPath, String>();
+            trees.put(createStringMapConsumer(d), SubObjectExtractor.buildTree(
+                    new ObjectJsonPath(spec[0]), toPaths(Arrays.copyOfRange(spec, 1, spec.length))));
+            data.add(d);
+        }
+        try (JsonParser jp = getParsedJsonResource("genome01")) {
+            SubObjectExtractor.extract(trees, jp);
+        }
+        for (int i = 0; i < specs.size(); i++) {
+            String[] spec = specs.get(i);
+            Assert.assertEquals(extractSubObjects("genome01", spec[0],
+                    Arrays.copyOfRange(spec, 1, spec.length)), data.get(i));
+        }
+        Assert.assertEquals(3, data.get(0).size());
+        Assert.assertEquals(1, data.get(4).size());
+    }
+
     public static Map<ObjectJsonPath, String> extractSubObjects(String resourceName, 
             String pathToSub, String... objPaths) throws Exception {
         JsonParser jp = getParsedJsonResource(resourceName);
         Map<ObjectJsonPath, String> data = new LinkedHashMap<ObjectJsonPath, String>();
         SubObjectConsumer consumer = createStringMapConsumer(data);
+        SubObjectExtractor.extract(new ObjectJsonPath(pathToSub), 
+                toPaths(objPaths), jp, consumer);
+        return data;
+    }
+    
+    private static List<ObjectJsonPath> toPaths(String... objPaths) throws Exception {
         List<ObjectJsonPath> objPaths2 = new ArrayList<ObjectJsonPath>();
         for (String objPath : objPaths) {
             objPaths2.add(new ObjectJsonPath(objPath));
         }
-        SubObjectExtractor.extract(new ObjectJsonPath(pathToSub), 
-                objPaths2, jp, consumer);
-        return data;
+        return objPaths2;
     }
     
     private static SubObjectConsumer createStringMapConsumer(final Map<ObjectJsonPath, String> data) {
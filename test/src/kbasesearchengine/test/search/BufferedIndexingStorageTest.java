@@ -0,0 +1,229 @@
+package kbasesearchengine.test.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import kbasesearchengine.common.GUID;
+import kbasesearchengine.events.handler.SourceData;
+import kbasesearchengine.parse.ParsedObject;
+import kbasesearchengine.search.BufferedIndexingStorage;
+import kbasesearchengine.search.IndexObjectsRequest;
+import kbasesearchengine.search.IndexRequestsFailedException;
+import kbasesearchengine.search.IndexingStorage;
+import kbasesearchengine.system.ObjectTypeParsingRules;
+
+public class BufferedIndexingStorageTest {
+
+    private static IndexObjectsRequest req(final String guid, final int docs) {
+        final ParsedObject po = new ParsedObject("{\"a\":1}", Collections.emptyMap());
+        final ImmutableMap.Builder<GUID, ParsedObject> idToObj = ImmutableMap.builder();
+        for (int i = 0; i < docs; i++) {
+            idToObj.put(new GUID(guid + ":sub/" + i), po);
+        }
+        return new IndexObjectsRequest(mock(ObjectTypeParsingRules.class),
+                mock(SourceData.class), Instant.ofEpochMilli(10000), null, new GUID(guid),
+                idToObj.build(), false);
+    }
+
+    @Test
+    public void flushOnDocumentCount() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final BufferedIndexingStorage bis = new BufferedIndexingStorage(
+                storage, 1000000, 5, 100000);
+
+        final IndexObjectsRequest r1 = req("WS:1/1/1", 3);
+        final IndexObjectsRequest r2 = req("WS:1/2/1", 2);
+        bis.indexObjects(Arrays.asList(r1));
+        assertThat("incorrect count", bis.getBufferedRequestCount(), is(1));
+        assertThat("incorrect flush", bis.flushBuffer(false), is(true));
+        verifyNoMoreInteractions(storage);
+
+        bis.indexObjects(Arrays.asList(r2));
+        verify(storage).indexObjects(Arrays.asList(r1, r2));
+        assertThat("incorrect count", bis.getBufferedRequestCount(), is(0));
+        assertThat("incorrect flush", bis.flushBuffer(false), is(false));
+    }
+
+    @Test
+    public void flushOnSize() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final BufferedIndexingStorage bis = new BufferedIndexingStorage(
+                storage, 1500, 100, 100000);
+
+        final IndexObjectsRequest r1 = req("WS:1/1/1", 1);
+        bis.indexObjects(Arrays.asList(r1));
+        verifyNoMoreInteractions(storage);
+        final IndexObjectsRequest r2 = req("WS:1/2/1", 1);
+        bis.indexObjects(Arrays.asList(r2));
+        verify(storage).indexObjects(Arrays.asList(r1, r2));
+    }
+
+    @Test
+    public void flushOnLatencyAndForce() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final Clock clock = mock(Clock.class);
+        final BufferedIndexingStorage bis = new BufferedIndexingStorage(
+                storage, 1000000, 100, 5000, clock);
+
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(10000),
+                Instant.ofEpochMilli(14999), Instant.ofEpochMilli(15000));
+        final IndexObjectsRequest r1 = req("WS:1/1/1", 1);
+        bis.indexObjects(Arrays.asList(r1));
+        assertThat("incorrect flush", bis.flushBuffer(false), is(true));
+        verifyNoMoreInteractions(storage);
+        assertThat("incorrect flush", bis.flushBuffer(false), is(false));
+        verify(storage).indexObjects(Arrays.asList(r1));
+
+        when(clock.instant()).thenReturn(Instant.ofEpochMilli(20000));
+        final IndexObjectsRequest r2 = req("WS:1/2/1", 1);
+        bis.indexObjects(Arrays.asList(r2));
+        assertThat("incorrect flush", bis.flushBuffer(true), is(false));
+        verify(storage).indexObjects(Arrays.asList(r2));
+    }
+
+    @Test
+    public void flushBeforeOtherOperations() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final BufferedIndexingStorage bis = new BufferedIndexingStorage(
+                storage, 1000000, 100, 100000);
+
+        final IndexObjectsRequest r1 = req("WS:1/1/1", 1);
+        bis.indexObjects(Arrays.asList(r1));
+        bis.deleteAllVersions(new GUID("WS:1/1/1"));
+        verify(storage).indexObjects(Arrays.asList(r1));
+        verify(storage).deleteAllVersions(new GUID("WS:1/1/1"));
+        assertThat("incorrect count", bis.getBufferedRequestCount(), is(0));
+    }
+
+    @Test
+    public void checkParentGuidsExist() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final BufferedIndexingStorage bis = new BufferedIndexingStorage(
+                storage, 1000000, 100, 100000);
+
+        bis.indexObjects(Arrays.asList(req("WS:1/1/1", 1)));
+        when(storage.checkParentGuidsExist(ImmutableSet.of(new GUID("WS:1/2/1"))))
+                .thenReturn(ImmutableMap.of(new GUID("WS:1/2/1"), false));
+
+        final Map<GUID, Boolean> res = bis.checkParentGuidsExist(
+                ImmutableSet.of(new GUID("WS:1/1/1"), new GUID("WS:1/2/1")));
+        assertThat("incorrect exists", res, is(ImmutableMap.of(
+                new GUID("WS:1/1/1"), true, new GUID("WS:1/2/1"), false)));
+        assertThat("incorrect count", bis.getBufferedRequestCount(), is(1));
+    }
+
+    @Test
+    public void failedFlushRetainsBuffer() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final BufferedIndexingStorage bis = new BufferedIndexingStorage(
+                storage, 1000000, 100, 100000);
+
+        final IndexObjectsRequest r1 = req("WS:1/1/1", 1);
+        bis.indexObjects(Arrays.asList(r1));
+        doThrow(new IOException("whoops")).when(storage).indexObjects(Arrays.asList(r1));
+        try {
+            bis.flushBuffer(true);
+            fail("expected exception");
+        } catch (IOException e) {
+            assertThat("incorrect message", e.getMessage(), is("whoops"));
+        }
+        assertThat("incorrect count", bis.getBufferedRequestCount(), is(1));
+    }
+
+    @Test
+    public void rejectedObjectsAreDroppedAndReported() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final BufferedIndexingStorage bis = new BufferedIndexingStorage(
+                storage, 1000000, 100, 100000);
+
+        final IndexObjectsRequest r1 = req("WS:1/1/1", 1);
+        final IndexObjectsRequest r2 = req("WS:1/2/1", 1);
+        bis.indexObjects(Arrays.asList(r1, r2));
+        doThrow(new IndexRequestsFailedException(ImmutableMap.of(new GUID("WS:1/2/1"), "bad")))
+                .when(storage).indexObjects(Arrays.asList(r1, r2));
+        try {
+            bis.flushBuffer(true);
+            fail("expected exception");
+        } catch (IndexRequestsFailedException e) {
+            assertThat("incorrect failures", e.getFailures(),
+                    is(ImmutableMap.of(new GUID("WS:1/2/1"), "bad")));
+        }
+        assertThat("incorrect count", bis.getBufferedRequestCount(), is(0));
+        // the failures are only reported once
+        assertThat("incorrect flush", bis.flushBuffer(true), is(false));
+    }
+
+    @Test
+    public void rejectedObjectsAreReportedWhenBufferIsEmpty() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final BufferedIndexingStorage bis = new BufferedIndexingStorage(
+                storage, 1000000, 100, 100000);
+
+        final IndexObjectsRequest r1 = req("WS:1/1/1", 1);
+        bis.indexObjects(Arrays.asList(r1));
+        doThrow(new IndexRequestsFailedException(ImmutableMap.of(new GUID("WS:1/1/1"), "bad")))
+                .when(storage).indexObjects(Arrays.asList(r1));
+        // writes the buffer, but the other operation doesn't report the failure
+        bis.deleteAllVersions(new GUID("WS:1/3/1"));
+        verify(storage).deleteAllVersions(new GUID("WS:1/3/1"));
+
+        final IndexObjectsRequest r2 = req("WS:1/2/1", 1);
+        bis.indexObjects(Arrays.asList(r2));
+        assertThat("incorrect flush", bis.flushBuffer(false), is(true));
+        try {
+            bis.flushBuffer(true);
+            fail("expected exception");
+        } catch (IndexRequestsFailedException e) {
+            assertThat("incorrect failures", e.getFailures(),
+                    is(ImmutableMap.of(new GUID("WS:1/1/1"), "bad")));
+        }
+        verify(storage).indexObjects(Arrays.asList(r2));
+    }
+
+    @Test
+    public void constructFail() throws Exception {
+        final IndexingStorage s = mock(IndexingStorage.class);
+        failConstruct(null, 1, 1, 0, Clock.systemUTC(), new NullPointerException("storage"));
+        failConstruct(s, 1, 1, 0, null, new NullPointerException("clock"));
+        failConstruct(s, 0, 1, 0, Clock.systemUTC(),
+                new IllegalArgumentException("maxBytes must be at least 1"));
+        failConstruct(s, 1, 0, 0, Clock.systemUTC(),
+                new IllegalArgumentException("maxDocuments must be at least 1"));
+        failConstruct(s, 1, 1, -1, Clock.systemUTC(),
+                new IllegalArgumentException("maxLatencyMS must be at least 0"));
+    }
+
+    private void failConstruct(
+            final IndexingStorage storage,
+            final long maxBytes,
+            final int maxDocuments,
+            final long maxLatencyMS,
+            final Clock clock,
+            final Exception expected) {
+        try {
+            new BufferedIndexingStorage(storage, maxBytes, maxDocuments, maxLatencyMS, clock);
+            fail("expected exception");
+        } catch (Exception got) {
+            assertThat("incorrect exception", got.getClass(), is((Object) expected.getClass()));
+            assertThat("incorrect message", got.getMessage(), is(expected.getMessage()));
+        }
+    }
+}
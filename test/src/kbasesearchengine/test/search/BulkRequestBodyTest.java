@@ -0,0 +1,164 @@
+package kbasesearchengine.test.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import kbasesearchengine.search.BulkRequestBody;
+import kbasesearchengine.test.common.TestCommon;
+
+public class BulkRequestBodyTest {
+
+    private static Path tempDir;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        tempDir = Paths.get(TestCommon.getTempDir()).resolve("BulkRequestBodyTest")
+                .toAbsolutePath();
+        FileUtils.deleteQuietly(tempDir.toFile());
+        tempDir.toFile().mkdirs();
+    }
+
+    @AfterClass
+    public static void teardown() throws Exception {
+        if (tempDir != null && TestCommon.getDeleteTempFiles()) {
+            FileUtils.deleteQuietly(tempDir.toFile());
+        }
+    }
+
+    private static String read(final HttpEntity entity) throws Exception {
+        return IOUtils.toString(entity.getContent(), "UTF-8");
+    }
+
+    @Test
+    public void empty() throws Exception {
+        final BulkRequestBody b = new BulkRequestBody(tempDir.toFile(), 1000);
+        assertThat("incorrect limit", b.getMemoryLimit(), is(1000));
+        assertThat("incorrect empty", b.isEmpty(), is(true));
+        assertThat("incorrect count", b.getActionCount(), is(0));
+        assertThat("incorrect size", b.getSize(), is(0L));
+        assertThat("incorrect body", read(b.toEntity()), is(""));
+    }
+
+    @Test
+    public void inMemory() throws Exception {
+        final BulkRequestBody b = new BulkRequestBody(tempDir.toFile(), 1000);
+        b.add("index", ImmutableMap.of("_index", "foo", "_id", "1"), ImmutableMap.of("a", 1));
+        b.add("delete", ImmutableMap.of("_index", "foo", "_id", "2"), null);
+
+        final String expected =
+                "{\"index\":{\"_index\":\"foo\",\"_id\":\"1\"}}\n" +
+                "{\"a\":1}\n" +
+                "{\"delete\":{\"_index\":\"foo\",\"_id\":\"2\"}}\n";
+        assertThat("incorrect empty", b.isEmpty(), is(false));
+        assertThat("incorrect count", b.getActionCount(), is(2));
+        assertThat("incorrect size", b.getSize(), is((long) expected.length()));
+        assertThat("incorrect spill", b.isSpilled(), is(false));
+        assertThat("incorrect body", read(b.toEntity()), is(expected));
+        assertThat("incorrect temp files", tempDir.toFile().list().length, is(0));
+    }
+
+    @Test
+    public void spillAndReset() throws Exception {
+        final BulkRequestBody b = new BulkRequestBody(tempDir.toFile(), 40);
+        b.add("index", ImmutableMap.of("_index", "foo"), ImmutableMap.of("a", "b"));
+        assertThat("incorrect spill", b.isSpilled(), is(false));
+        b.add("index", ImmutableMap.of("_index", "bar"), ImmutableMap.of("c", "d"));
+        assertThat("incorrect spill", b.isSpilled(), is(true));
+
+        final String expected =
+                "{\"index\":{\"_index\":\"foo\"}}\n" +
+                "{\"a\":\"b\"}\n" +
+                "{\"index\":{\"_index\":\"bar\"}}\n" +
+                "{\"c\":\"d\"}\n";
+        assertThat("incorrect size", b.getSize(), is((long) expected.length()));
+        assertThat("incorrect body", read(b.toEntity()), is(expected));
+        assertThat("incorrect temp files", tempDir.toFile().list().length, is(1));
+
+        b.reset();
+        assertThat("incorrect temp files", tempDir.toFile().list().length, is(0));
+        assertThat("incorrect empty", b.isEmpty(), is(true));
+        assertThat("incorrect size", b.getSize(), is(0L));
+
+        b.add("index", ImmutableMap.of("_index", "baz"), Collections.emptyMap());
+        assertThat("incorrect spill", b.isSpilled(), is(false));
+        assertThat("incorrect body", read(b.toEntity()),
+                is("{\"index\":{\"_index\":\"baz\"}}\n{}\n"));
+        b.close();
+    }
+
+    @Test
+    public void resetReleasesLargeBuffer() throws Exception {
+        final BulkRequestBody b = new BulkRequestBody(
+                tempDir.toFile(), BulkRequestBody.MAX_RETAINED_CAPACITY * 4);
+        b.add("index", ImmutableMap.of("_index", "foo"), ImmutableMap.of("a", "b"));
+        final int smallCapacity = b.getCapacity();
+        b.reset();
+        assertThat("incorrect capacity", b.getCapacity(), is(smallCapacity));
+
+        final char[] big = new char[BulkRequestBody.MAX_RETAINED_CAPACITY * 2];
+        Arrays.fill(big, 'x');
+        b.add("index", ImmutableMap.of("_index", "foo"), ImmutableMap.of("a", new String(big)));
+        assertThat("incorrect spill", b.isSpilled(), is(false));
+        assertThat("buffer not grown", b.getCapacity() > BulkRequestBody.MAX_RETAINED_CAPACITY,
+                is(true));
+        b.reset();
+        assertThat("buffer not released",
+                b.getCapacity() <= BulkRequestBody.MAX_RETAINED_CAPACITY, is(true));
+
+        b.add("index", ImmutableMap.of("_index", "baz"), Collections.emptyMap());
+        assertThat("incorrect body", read(b.toEntity()),
+                is("{\"index\":{\"_index\":\"baz\"}}\n{}\n"));
+        b.close();
+    }
+
+    @Test
+    public void constructFail() throws Exception {
+        try {
+            new BulkRequestBody(null, 1);
+            fail("expected exception");
+        } catch (NullPointerException e) {
+            assertThat("incorrect message", e.getMessage(), is("tempDir"));
+        }
+        try {
+            new BulkRequestBody(tempDir.toFile(), -1);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            assertThat("incorrect message", e.getMessage(),
+                    is("memoryLimit must be at least 0"));
+        }
+    }
+
+    @Test
+    public void addFail() throws Exception {
+        final BulkRequestBody b = new BulkRequestBody(tempDir.toFile(), 1);
+        try {
+            b.add("  ", Collections.emptyMap(), null);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            assertThat("incorrect message", e.getMessage(),
+                    is("action cannot be null or empty"));
+        }
+        try {
+            b.add("index", null, null);
+            fail("expected exception");
+        } catch (NullPointerException e) {
+            assertThat("incorrect message", e.getMessage(), is("metadata"));
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package kbasesearchengine.test.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+
+import kbasesearchengine.common.GUID;
+import kbasesearchengine.search.AccessFilter;
+import kbasesearchengine.search.CachingIndexingStorage;
+import kbasesearchengine.search.FoundHits;
+import kbasesearchengine.search.IndexingStorage;
+import kbasesearchengine.search.MatchFilter;
+import kbasesearchengine.search.ObjectData;
+import kbasesearchengine.search.Pagination;
+import kbasesearchengine.search.PostProcessing;
+import kbasesearchengine.search.SortingRule;
+import kbasesearchengine.system.ObjectTypeParsingRules;
+import kbasesearchengine.system.SearchObjectType;
+import kbasesearchengine.system.StorageObjectType;
+import kbasesearchengine.test.common.TestCommon;
+
+public class CachingIndexingStorageTest {
+
+    private static final MatchFilter MF = MatchFilter.getBuilder()
+            .withNullableFullTextInAll("foo").build();
+
+    private static FoundHits hits() {
+        final FoundHits fh = new FoundHits();
+        fh.guids = TestCommon.set(new GUID("WS:1/1/1"));
+        fh.objects = Collections.emptyList();
+        return fh;
+    }
+
+    private static FoundHits search(
+            final IndexingStorage storage,
+            final List<String> types,
+            final Integer... groups)
+            throws IOException {
+        return storage.searchObjects(types, MF, null,
+                AccessFilter.create().withAccessGroups(groups), new Pagination(0, 10),
+                new PostProcessing());
+    }
+
+    @Test
+    public void cacheSearchObjects() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final CachingIndexingStorage cis = new CachingIndexingStorage(storage, 10, 10000);
+
+        final FoundHits fh1 = hits();
+        final FoundHits fh2 = hits();
+        when(storage.searchObjects(
+                eq(Arrays.asList("Genome", "Assembly")), any(), any(), any(), any(), any()))
+                .thenReturn(fh1, (FoundHits) null);
+        when(storage.searchObjects(
+                eq(Arrays.asList("Genome")), any(), any(), any(), any(), any()))
+                .thenReturn(fh2, (FoundHits) null);
+
+        assertThat("incorrect hits", search(cis, Arrays.asList("Genome", "Assembly"), 1, 2),
+                sameInstance(fh1));
+        // the order of the types and access groups doesn't matter, and the access filter and
+        // pagination are compared by value
+        assertThat("incorrect hits", search(cis, Arrays.asList("Assembly", "Genome"), 2, 1),
+                sameInstance(fh1));
+        assertThat("incorrect hits", search(cis, Arrays.asList("Genome"), 1, 2),
+                sameInstance(fh2));
+        assertThat("incorrect hits", search(cis, Arrays.asList("Genome"), 1, 2),
+                sameInstance(fh2));
+
+        assertThat("incorrect hit count", cis.getStats().hitCount(), is(2L));
+        assertThat("incorrect miss count", cis.getStats().missCount(), is(2L));
+        assertThat("incorrect cached count", cis.getCachedSearchCount(), is(2L));
+    }
+
+    @Test
+    public void noCacheLargeSearchObjects() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final CachingIndexingStorage cis = new CachingIndexingStorage(storage, 10, 10000);
+
+        // the cache is limited by the size of the results, not the number of hits
+        final FoundHits fh = hits();
+        fh.objects = Arrays.asList(ObjectData.getBuilder(new GUID("WS:1/1/1"))
+                .withNullableData(String.join("", Collections.nCopies(10000, "a"))).build());
+        when(storage.searchObjects(any(), any(), any(), any(), any(), any()))
+                .thenReturn(fh, fh);
+
+        assertThat("incorrect hits", search(cis, Arrays.asList("Genome"), 1),
+                sameInstance(fh));
+        assertThat("incorrect hits", search(cis, Arrays.asList("Genome"), 1),
+                sameInstance(fh));
+
+        verify(storage, times(2)).searchObjects(any(), any(), any(), any(), any(), any());
+        assertThat("incorrect cached count", cis.getCachedSearchCount(), is(0L));
+    }
+
+    @Test
+    public void cacheSearchTypes() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final CachingIndexingStorage cis = new CachingIndexingStorage(storage, 10, 10000);
+
+        final Map<String, Integer> types = ImmutableMap.of("Genome", 3);
+        when(storage.searchTypes(MF, AccessFilter.create().withPublic(true)))
+                .thenReturn(types, (Map<String, Integer>) null);
+
+        assertThat("incorrect types", cis.searchTypes(MF, AccessFilter.create()
+                .withPublic(true)), is(types));
+        assertThat("incorrect types", cis.searchTypes(MF, AccessFilter.create()
+                .withPublic(true)), is(types));
+        verify(storage, times(1)).searchTypes(MF, AccessFilter.create().withPublic(true));
+    }
+
+    @Test
+    public void expire() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final AtomicLong nanos = new AtomicLong();
+        final Ticker ticker = new Ticker() {
+            
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        };
+        final CachingIndexingStorage cis = new CachingIndexingStorage(
+                storage, 10, 10000, ticker);
+
+        final FoundHits fh1 = hits();
+        final FoundHits fh2 = hits();
+        when(storage.searchObjects(
+                eq(Collections.emptyList()), any(), any(), any(), any(), any()))
+                .thenReturn(fh1, fh2, null);
+
+        assertThat("incorrect hits", search(cis, Collections.emptyList(), 1),
+                sameInstance(fh1));
+        nanos.set(9999999999L);
+        assertThat("incorrect hits", search(cis, Collections.emptyList(), 1),
+                sameInstance(fh1));
+        nanos.set(10000000001L);
+        assertThat("incorrect hits", search(cis, Collections.emptyList(), 1),
+                sameInstance(fh2));
+    }
+
+    @Test
+    public void invalidateOnWrite() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final CachingIndexingStorage cis = new CachingIndexingStorage(storage, 10, 10000);
+
+        final FoundHits genome = hits();
+        final FoundHits assembly = hits();
+        final FoundHits all = hits();
+        when(storage.searchObjects(
+                eq(Arrays.asList("Genome")), any(), any(), any(), any(), any()))
+                .thenReturn(genome);
+        when(storage.searchObjects(
+                eq(Arrays.asList("Assembly")), any(), any(), any(), any(), any()))
+                .thenReturn(assembly);
+        when(storage.searchObjects(
+                eq(Collections.emptyList()), any(), any(), any(), any(), any()))
+                .thenReturn(all);
+
+        search(cis, Arrays.asList("Genome"), 1);
+        search(cis, Arrays.asList("Assembly"), 1);
+        search(cis, Collections.emptyList(), 1);
+        assertThat("incorrect cached count", cis.getCachedSearchCount(), is(3L));
+
+        // writing a genome affects searches for genomes and for all types
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                new SearchObjectType("Genome", 1), new StorageObjectType("WS", "KBG.Genome"))
+                .build();
+        cis.indexObject(rule, null, null, null, new GUID("WS:1/1/1"), null, false);
+        verify(storage).indexObject(rule, null, null, null, new GUID("WS:1/1/1"), null, false);
+        assertThat("incorrect cached count", cis.getCachedSearchCount(), is(1L));
+
+        search(cis, Arrays.asList("Assembly"), 1);
+        verify(storage, times(1)).searchObjects(
+                eq(Arrays.asList("Assembly")), any(), any(), any(), any(), any());
+
+        // writes by GUID may affect any type
+        cis.deleteAllVersions(new GUID("WS:1/1/1"));
+        verify(storage).deleteAllVersions(new GUID("WS:1/1/1"));
+        assertThat("incorrect cached count", cis.getCachedSearchCount(), is(0L));
+    }
+
+    @Test
+    public void noCacheSnapshot() throws Exception {
+        final IndexingStorage storage = mock(IndexingStorage.class);
+        final CachingIndexingStorage cis = new CachingIndexingStorage(storage, 10, 10000);
+
+        final Pagination pg = new Pagination(0, 10);
+        pg.snapshot = true;
+        final List<SortingRule> sorting = Collections.emptyList();
+        cis.searchIds(Collections.emptyList(), MF, sorting, AccessFilter.create(), pg);
+        cis.searchIds(Collections.emptyList(), MF, sorting, AccessFilter.create(), pg);
+        verify(storage, times(2)).searchIds(
+                Collections.emptyList(), MF, sorting, AccessFilter.create(), pg);
+        assertThat("incorrect cached count", cis.getCachedSearchCount(), is(0L));
+    }
+
+    @Test
+    public void constructFail() throws Exception {
+        final IndexingStorage s = mock(IndexingStorage.class);
+        failConstruct(null, 1, 1, Ticker.systemTicker(), new NullPointerException("storage"));
+        failConstruct(s, 1, 1, null, new NullPointerException("ticker"));
+        failConstruct(s, 0, 1, Ticker.systemTicker(), new IllegalArgumentException(
+                "cache lifetime must be at least one second"));
+        failConstruct(s, 1, 0, Ticker.systemTicker(), new IllegalArgumentException(
+                "cache size must be at least one byte"));
+    }
+
+    private void failConstruct(
+            final IndexingStorage storage,
+            final int lifetime,
+            final long size,
+            final Ticker ticker,
+            final Exception expected) {
+        try {
+            new CachingIndexingStorage(storage, lifetime, size, ticker);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, expected);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package kbasesearchengine.test.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import kbasesearchengine.search.ElasticClientPool;
+
+public class ElasticClientPoolTest {
+
+    private static final List<HttpHost> HOSTS = Arrays.asList(new HttpHost("localhost", 9200));
+
+    @Test
+    public void parseHosts() throws Exception {
+        assertThat("incorrect hosts", ElasticClientPool.parseHosts(
+                "foo, bar:9201 ,, https://baz:443,http://bat", 9200), is(Arrays.asList(
+                        new HttpHost("foo", 9200),
+                        new HttpHost("bar", 9201),
+                        new HttpHost("baz", 443, "https"),
+                        new HttpHost("bat", 9200))));
+    }
+
+    @Test
+    public void parseHostsFail() throws Exception {
+        failParseHosts(null, new IllegalArgumentException("hosts cannot be null or empty"));
+        failParseHosts("   ", new IllegalArgumentException("hosts cannot be null or empty"));
+        failParseHosts(" , ", new IllegalArgumentException("No hosts in host list  , "));
+    }
+
+    private void failParseHosts(final String hosts, final Exception expected) {
+        try {
+            ElasticClientPool.parseHosts(hosts, 9200);
+            fail("expected exception");
+        } catch (Exception got) {
+            assertThat("incorrect exception", got.getClass(), is((Object) expected.getClass()));
+            assertThat("incorrect message", got.getMessage(), is(expected.getMessage()));
+        }
+    }
+
+    @Test
+    public void construct() throws Exception {
+        try (final ElasticClientPool pool = new ElasticClientPool(
+                "read", HOSTS, 20, 1000, 2000, null, null)) {
+            assertThat("incorrect name", pool.getName(), is("read"));
+            assertThat("incorrect hosts", pool.getHosts(), is(HOSTS));
+            assertThat("incorrect max conns", pool.getMaxConnections(), is(20));
+            assertThat("incorrect connect timeout", pool.getConnectTimeoutMS(), is(1000));
+            assertThat("incorrect socket timeout", pool.getSocketTimeoutMS(), is(2000));
+            assertThat("incorrect requests", pool.getRequestCount(), is(0L));
+            assertThat("incorrect failures", pool.getFailedRequestCount(), is(0L));
+            assertThat("incorrect time", pool.getTotalRequestTimeMS(), is(0L));
+            assertThat("incorrect active", pool.getActiveRequestCount(), is(0));
+            assertThat("incorrect peak", pool.getPeakActiveRequestCount(), is(0));
+        }
+    }
+
+    @Test
+    public void constructFail() throws Exception {
+        failConstruct(null, HOSTS, 1, 1, 1,
+                new IllegalArgumentException("name cannot be null or empty"));
+        failConstruct("  ", HOSTS, 1, 1, 1,
+                new IllegalArgumentException("name cannot be null or empty"));
+        failConstruct("n", null, 1, 1, 1, new NullPointerException("hosts"));
+        failConstruct("n", Arrays.asList(new HttpHost("foo"), null), 1, 1, 1,
+                new NullPointerException("null item in hosts"));
+        failConstruct("n", Collections.emptyList(), 1, 1, 1,
+                new IllegalArgumentException("At least one host is required"));
+        failConstruct("n", HOSTS, 0, 1, 1,
+                new IllegalArgumentException("maxConnections must be at least 1"));
+        failConstruct("n", HOSTS, 1, 0, 1,
+                new IllegalArgumentException("connectTimeoutMS must be at least 1"));
+        failConstruct("n", HOSTS, 1, 1, 0,
+                new IllegalArgumentException("socketTimeoutMS must be at least 1"));
+    }
+
+    private void failConstruct(
+            final String name,
+            final List<HttpHost> hosts,
+            final int maxConnections,
+            final int connectTimeoutMS,
+            final int socketTimeoutMS,
+            final Exception expected) {
+        try {
+            new ElasticClientPool(name, hosts, maxConnections, connectTimeoutMS,
+                    socketTimeoutMS, null, null);
+            fail("expected exception");
+        } catch (Exception got) {
+            assertThat("incorrect exception", got.getClass(), is((Object) expected.getClass()));
+            assertThat("incorrect message", got.getMessage(), is(expected.getMessage()));
+        }
+    }
+
+    @Test
+    public void setHosts() throws Exception {
+        try (final ElasticClientPool pool = new ElasticClientPool(
+                "read", HOSTS, 20, 1000, 2000, null, null)) {
+            final List<HttpHost> hosts = Arrays.asList(
+                    new HttpHost("foo", 9200), new HttpHost("bar", 9201));
+            pool.setHosts(hosts);
+            assertThat("incorrect hosts", pool.getHosts(), is(hosts));
+            try {
+                pool.setHosts(Collections.emptyList());
+                fail("expected exception");
+            } catch (IllegalArgumentException e) {
+                assertThat("incorrect message", e.getMessage(),
+                        is("At least one host is required"));
+            }
+            assertThat("incorrect hosts", pool.getHosts(), is(hosts));
+        }
+    }
+
+    @Test
+    public void metricsOnFailure() throws Exception {
+        final int port;
+        try (final ServerSocket ss = new ServerSocket(0)) {
+            port = ss.getLocalPort();
+        }
+        try (final ElasticClientPool pool = new ElasticClientPool("write",
+                Arrays.asList(new HttpHost("localhost", port)), 5, 1000, 2000, "u", "p")) {
+            try {
+                pool.performRequest("GET", "/", Collections.emptyMap(), null);
+                fail("expected exception");
+            } catch (IOException e) {
+                // expected, nothing is listening on the port
+            }
+            assertThat("incorrect requests", pool.getRequestCount(), is(1L));
+            assertThat("incorrect failures", pool.getFailedRequestCount(), is(1L));
+            assertThat("incorrect active", pool.getActiveRequestCount(), is(0));
+            assertThat("incorrect peak", pool.getPeakActiveRequestCount(), is(1));
+        }
+    }
+}
@@ -7,6 +7,7 @@ import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URLEncoder;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
@@ -26,6 +27,8 @@ import java.util.stream.Collectors;
 import com.google.common.collect.ImmutableList;
 import org.apache.commons.io.FileUtils;
 import org.apache.http.HttpHost;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -34,6 +37,7 @@ import org.junit.Test;
 
 
 import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableMap;
 
 import junit.framework.Assert;
@@ -53,11 +57,13 @@ import kbasesearchengine.parse.SubObjectConsumer;
 import kbasesearchengine.parse.KeywordParser.ObjectLookupProvider;
 import kbasesearchengine.search.AccessFilter;
 import kbasesearchengine.search.ElasticIndexingStorage;
+import kbasesearchengine.search.IndexObjectsRequest;
 import kbasesearchengine.search.MatchFilter;
 import kbasesearchengine.search.MatchFilter.Builder;
 import kbasesearchengine.search.MatchValue;
 import kbasesearchengine.search.ObjectData;
 import kbasesearchengine.search.PostProcessing;
+import kbasesearchengine.search.RefreshPolicy;
 import kbasesearchengine.search.SortingRule;
 import kbasesearchengine.search.FoundHits;
 import kbasesearchengine.system.IndexingRules;
@@ -160,6 +166,8 @@ public class ElasticIndexingStorageTest {
 
     @After
     public void cleanup() throws Exception {
+        indexStorage.setAccessFieldsOnData(false);
+        indexStorage.setAccessGroupsLookupMinimum(0);
         indexStorage.dropData();
     }
 
@@ -462,6 +470,861 @@ public class ElasticIndexingStorageTest {
                 AccessFilter.create().withAccessGroups(2).withAllHistory(true)).size());
     }
 
+    @Test
+    public void versionsWithCoalescedRefresh() throws Exception {
+        // the indexer must see its own writes to an object even if the index isn't refreshed
+        indexStorage.setRefreshPolicy(RefreshPolicy.COALESCED, 1000000);
+        try {
+            SearchObjectType objType = new SearchObjectType("CoalescedSimple", 1);
+            List<String> type = ImmutableList.of(objType.getType());
+            IndexingRules ir = IndexingRules.fromPath(new ObjectJsonPath("prop1"))
+                    .withFullText().build();
+            final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                    objType, new StorageObjectType("foo", "bar"))
+                    .withIndexingRule(ir).build();
+            indexObject(new GUID("WS:2/1/1"), rule, "{\"prop1\":\"abc 123\"}", "obj.1",
+                    Instant.now(), null, false);
+            indexObject(new GUID("WS:2/1/2"), rule, "{\"prop1\":\"abc 124\"}", "obj.1",
+                    Instant.now(), null, false);
+            final GUID id13 = new GUID("WS:2/1/3");
+            indexObject(id13, rule, "{\"prop1\":\"abc 125\"}", "obj.1",
+                    Instant.now(), null, false);
+            indexStorage.refreshIndexByType(rule);
+            checkIdInSet(indexStorage.searchIds(type, ft("abc"), null,
+                    AccessFilter.create().withAccessGroups(2)), 1, id13);
+            Assert.assertEquals(3, indexStorage.searchIds(type, ft("abc"), null,
+                    AccessFilter.create().withAccessGroups(2).withAllHistory(true)).size());
+        } finally {
+            indexStorage.setRefreshPolicy(RefreshPolicy.IMMEDIATE, 1000);
+        }
+    }
+    
+    @Test
+    public void setRefreshPolicyFail() throws Exception {
+        try {
+            indexStorage.setRefreshPolicy(null, 1);
+            Assert.fail("expected exception");
+        } catch (NullPointerException e) {
+            assertThat("incorrect message", e.getMessage(), is("refreshPolicy"));
+        }
+        try {
+            indexStorage.setRefreshPolicy(RefreshPolicy.COALESCED, 0);
+            Assert.fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            assertThat("incorrect message", e.getMessage(),
+                    is("refreshIntervalMS must be at least 1"));
+        }
+        assertThat("incorrect policy", indexStorage.getRefreshPolicy(),
+                is(RefreshPolicy.IMMEDIATE));
+        try {
+            indexStorage.setLogger(null);
+            Assert.fail("expected exception");
+        } catch (NullPointerException e) {
+            assertThat("incorrect message", e.getMessage(), is("logger"));
+        }
+    }
+
+    @Test
+    public void deterministicIds() throws Exception {
+        SearchObjectType objType = new SearchObjectType("DetIds", 1);
+        IndexingRules ir = IndexingRules.fromPath(new ObjectJsonPath("prop1"))
+                .withFullText().build();
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                objType, new StorageObjectType("foo", "bar"))
+                .withIndexingRule(ir).build();
+        final GUID id = new GUID("WS:2/1/1");
+        indexObject(id, rule, "{\"prop1\":\"abc\"}", "obj.1", Instant.now(), null, false);
+        // reindexing the same object must overwrite, not duplicate, the documents
+        indexObject(id, rule, "{\"prop1\":\"abc\"}", "obj.1", Instant.now(), null, false);
+
+        final String index = indexStorage.getIndexNamePrefix() + "detids_1";
+        assertThat("incorrect layout", indexStorage.getIndexLayout(index),
+                is(ElasticIndexingStorage.CURRENT_INDEX_LAYOUT));
+        assertThat("incorrect access doc", getDoc(index, "access", "WS:2/1/1", null)
+                .get("pguid"), is("WS:2/1/1"));
+        assertThat("incorrect data doc", getDoc(index, "data", "WS:2/1/1", "WS:2/1/1")
+                .get("guid"), is("WS:2/1/1"));
+        assertThat("incorrect count", indexStorage.searchIds(ImmutableList.of("DetIds"),
+                ft("abc"), null, AccessFilter.create().withAccessGroups(2)
+                .withAllHistory(true)).size(), is(1));
+    }
+    
+    @Test
+    public void versionLedger() throws Exception {
+        SearchObjectType objType = new SearchObjectType("Ledger", 1);
+        List<String> type = ImmutableList.of(objType.getType());
+        IndexingRules ir = IndexingRules.fromPath(new ObjectJsonPath("prop1"))
+                .withFullText().build();
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                objType, new StorageObjectType("foo", "bar"))
+                .withIndexingRule(ir).build();
+        indexObject(new GUID("WS:2/1/1"), rule, "{\"prop1\":\"abc\"}", "obj.1",
+                Instant.now(), null, false);
+        final GUID id12 = new GUID("WS:2/1/2");
+        indexObject(id12, rule, "{\"prop1\":\"abc\"}", "obj.1", Instant.now(), null, false);
+        // reindexing an older version must not change the last version
+        indexObject(new GUID("WS:2/1/1"), rule, "{\"prop1\":\"abc\"}", "obj.1",
+                Instant.now(), null, false);
+        
+        final String index = indexStorage.getIndexNamePrefix() + "ledger_1";
+        final String ledger = indexStorage.getIndexNamePrefix() + "ledger.versions";
+        assertThat("incorrect ledger", getDoc(ledger, "ledger", "WS:2/1", null).get("last"),
+                is(ImmutableMap.of(index, 2)));
+        assertThat("incorrect islast", getDoc(index, "data", "WS:2/1/1", "WS:2/1/1")
+                .get("islast"), is(false));
+        assertThat("incorrect lastin", getDoc(index, "access", "WS:2/1/1", null)
+                .get("lastin"), is(Collections.emptyList()));
+        checkIdInSet(indexStorage.searchIds(type, ft("abc"), null,
+                AccessFilter.create().withAccessGroups(2)), 1, id12);
+        Assert.assertEquals(2, indexStorage.searchIds(type, ft("abc"), null,
+                AccessFilter.create().withAccessGroups(2).withAllHistory(true)).size());
+        // the ledger isn't a type index
+        assertThat("incorrect migrated", indexStorage.migrateIndexes(),
+                is(Collections.emptyList()));
+        
+        indexStorage.deleteAllVersions(id12);
+        Assert.assertEquals(0, indexStorage.searchIds(type, ft("abc"), null,
+                AccessFilter.create().withAccessGroups(2)).size());
+        indexStorage.undeleteAllVersions(id12);
+        checkIdInSet(indexStorage.searchIds(type, ft("abc"), null,
+                AccessFilter.create().withAccessGroups(2)), 1, id12);
+    }
+    
+    private static ObjectTypeParsingRules countedRule(final String type) {
+        return ObjectTypeParsingRules.getBuilder(
+                new SearchObjectType(type, 1), new StorageObjectType("foo", "bar"))
+                .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("prop1"))
+                        .withFullText().build())
+                .build();
+    }
+    
+    @Test
+    public void typeCounts() throws Exception {
+        final ObjectTypeParsingRules ruleA = countedRule("CountedA");
+        final ObjectTypeParsingRules ruleB = countedRule("CountedB");
+        final String json = "{\"prop1\":\"abc\"}";
+        indexObject(new GUID("WS:41/1/1"), ruleA, json, "obj.1", Instant.now(), null, false);
+        indexObject(new GUID("WS:41/1/2"), ruleA, json, "obj.1", Instant.now(), null, false);
+        indexObject(new GUID("WS:41/2/1"), ruleB, json, "obj.2", Instant.now(), null, false);
+        indexObject(new GUID("WS:42/1/1"), ruleA, json, "obj.1", Instant.now(), null, false);
+        indexObject(new GUID("WS:43/1/1"), ruleB, json, "obj.1", Instant.now(), null, true);
+        
+        final MatchFilter counted = MatchFilter.getBuilder().build();
+        // a source tag filter requires the data documents to be aggregated
+        final MatchFilter aggregated = MatchFilter.getBuilder().withSourceTag("notatag")
+                .withIsSourceTagsBlackList(true).build();
+        
+        for (final MatchFilter mf: Arrays.asList(counted, aggregated)) {
+            assertThat("incorrect types", indexStorage.searchTypes(mf,
+                    AccessFilter.create().withAccessGroups(41, 42)),
+                    is(ImmutableMap.of("CountedA", 2, "CountedB", 1)));
+            assertThat("incorrect types", indexStorage.searchTypes(mf,
+                    AccessFilter.create().withAccessGroups(41, 42).withPublic(true)),
+                    is(ImmutableMap.of("CountedA", 2, "CountedB", 2)));
+            // public objects owned by the access groups are only counted once
+            assertThat("incorrect types", indexStorage.searchTypes(mf,
+                    AccessFilter.create().withAccessGroups(43).withPublic(true)),
+                    is(ImmutableMap.of("CountedB", 1)));
+            assertThat("incorrect types", indexStorage.searchTypes(mf,
+                    AccessFilter.create().withAccessGroups(44)),
+                    is(Collections.emptyMap()));
+        }
+        final String counts = indexStorage.getIndexNamePrefix() + "counts.types";
+        final Map<String, Object> doc = getDoc(counts, "counts", "41", null);
+        assertThat("incorrect counts", doc.get("types"),
+                is(ImmutableMap.of("CountedA", 1, "CountedB", 1)));
+        assertThat("incorrect shared in", doc.get("sharedin"), is(0));
+        
+        indexStorage.deleteAllVersions(new GUID("WS:41/2/1"));
+        for (final MatchFilter mf: Arrays.asList(counted, aggregated)) {
+            assertThat("incorrect types", indexStorage.searchTypes(mf,
+                    AccessFilter.create().withAccessGroups(41)),
+                    is(ImmutableMap.of("CountedA", 1)));
+        }
+        
+        // objects shared into an access group are aggregated rather than counted
+        indexStorage.shareObjects(set(new GUID("WS:42/1/1")), 41, false);
+        assertThat("incorrect shared in", getDoc(counts, "counts", "41", null).get("sharedin"),
+                is(1));
+        assertThat("incorrect types", indexStorage.searchTypes(counted,
+                AccessFilter.create().withAccessGroups(41)),
+                is(ImmutableMap.of("CountedA", 2)));
+        
+        // the counts are complete, so the migration doesn't rebuild them
+        assertThat("incorrect migrated", indexStorage.migrateIndexes(),
+                is(Collections.emptyList()));
+    }
+    
+    @Test
+    public void typeCountsMarkedOutOfDate() throws Exception {
+        /* access groups are marked as uncounted in ElasticSearch before they're modified, so
+         * other processes don't use their counts until they're counted
+         */
+        final ObjectTypeParsingRules ruleA = countedRule("MarkedA");
+        final ObjectTypeParsingRules ruleB = countedRule("MarkedB");
+        final String json = "{\"prop1\":\"abc\"}";
+        indexObject(new GUID("WS:81/1/1"), ruleA, json, "obj.1", Instant.now(), null, false);
+        final String counts = indexStorage.getIndexNamePrefix() + "counts.types";
+        assertMarkAbsent(counts, "81");
+        
+        // simulate another process that hasn't counted its writes yet
+        final ElasticIndexingStorage other = new ElasticIndexingStorage(
+                indexStorage.getEsHost(), tempDir);
+        other.setIndexNamePrefix(indexStorage.getIndexNamePrefix());
+        other.setRefreshPolicy(RefreshPolicy.COALESCED, 1000000);
+        try {
+            other.indexObjects(ruleB, SourceData.getBuilder(new UObject(json), "obj.2", "creator")
+                    .build(), Instant.now(), null, new GUID("WS:81/2/1"),
+                    Collections.emptyMap(), false);
+            other.refreshIndexByType(ruleB);
+        } finally {
+            other.close();
+        }
+        assertThat("incorrect mark", getDoc(counts, "dirty", "81", null).get("markedat")
+                instanceof Number, is(true));
+        assertThat("incorrect counts", getDoc(counts, "counts", "81", null).get("types"),
+                is(ImmutableMap.of("MarkedA", 1)));
+        // this instance never saw the write, but doesn't use the out of date counts
+        assertThat("incorrect types", indexStorage.searchTypes(MatchFilter.getBuilder().build(),
+                AccessFilter.create().withAccessGroups(81)),
+                is(ImmutableMap.of("MarkedA", 1, "MarkedB", 1)));
+        
+        // counting the access group removes the mark
+        indexObject(new GUID("WS:81/3/1"), ruleA, json, "obj.3", Instant.now(), null, false);
+        assertMarkAbsent(counts, "81");
+        assertThat("incorrect counts", getDoc(counts, "counts", "81", null).get("types"),
+                is(ImmutableMap.of("MarkedA", 2, "MarkedB", 1)));
+        assertThat("incorrect types", indexStorage.searchTypes(MatchFilter.getBuilder().build(),
+                AccessFilter.create().withAccessGroups(81)),
+                is(ImmutableMap.of("MarkedA", 2, "MarkedB", 1)));
+    }
+    
+    private void assertMarkAbsent(final String counts, final String accessGroupId)
+            throws Exception {
+        try {
+            getDoc(counts, "dirty", accessGroupId, null);
+            fail("expected exception");
+        } catch (ResponseException e) {
+            assertThat("incorrect status", e.getResponse().getStatusLine().getStatusCode(),
+                    is(404));
+        }
+    }
+    
+    private static Set<GUID> searchAll(final AccessFilter af) throws Exception {
+        return indexStorage.searchIds(Collections.emptyList(), MatchFilter.getBuilder().build(),
+                null, af);
+    }
+    
+    @Test
+    public void accessFieldsOnData() throws Exception {
+        final ObjectTypeParsingRules oldRule = countedRule("AccessFieldsOld");
+        final ObjectTypeParsingRules newRule = countedRule("AccessFieldsNew");
+        final String oldIndex = indexStorage.getIndexNamePrefix() + "accessfieldsold_1";
+        final String newIndex = indexStorage.getIndexNamePrefix() + "accessfieldsnew_1";
+        final String json = "{\"prop1\":\"abc\"}";
+        indexObject(new GUID("WS:51/1/1"), oldRule, json, "obj.1", Instant.now(), null, false);
+        indexObject(new GUID("WS:51/1/2"), oldRule, json, "obj.1", Instant.now(), null, false);
+        
+        indexStorage.setAccessFieldsOnData(true);
+        indexObject(new GUID("WS:52/1/1"), newRule, json, "obj.1", Instant.now(), null, false);
+        assertThat("incorrect access fields", indexStorage.hasAccessFieldsOnData(oldIndex),
+                is(false));
+        assertThat("incorrect access fields", indexStorage.hasAccessFieldsOnData(newIndex),
+                is(true));
+        Map<String, Object> doc = getDoc(newIndex, "data", "WS:52/1/1", "WS:52/1/1");
+        assertThat("incorrect pguid", doc.get("pguid"), is("WS:52/1/1"));
+        assertThat("incorrect lastin", ((List<?>) doc.get("lastin")).contains(52), is(true));
+        
+        // searches join the data documents to the access documents until every index is migrated
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(51, 52)),
+                is(set(new GUID("WS:51/1/2"), new GUID("WS:52/1/1"))));
+        
+        assertThat("incorrect migrated", indexStorage.migrateIndexes(),
+                is(Arrays.asList(oldIndex)));
+        assertThat("incorrect access fields", indexStorage.hasAccessFieldsOnData(oldIndex),
+                is(true));
+        doc = getDoc(oldIndex, "data", "WS:51/1/1", "WS:51/1/1");
+        assertThat("incorrect lastin", doc.get("lastin"), is(Collections.emptyList()));
+        assertThat("incorrect groups", ((List<?>) doc.get("groups")).contains(51), is(true));
+        assertThat("incorrect migrated", indexStorage.migrateIndexes(),
+                is(Collections.emptyList()));
+        
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(51, 52)),
+                is(set(new GUID("WS:51/1/2"), new GUID("WS:52/1/1"))));
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(51)
+                .withAllHistory(true)),
+                is(set(new GUID("WS:51/1/1"), new GUID("WS:51/1/2"))));
+        
+        // access changes are applied to the data documents
+        indexStorage.shareObjects(set(new GUID("WS:52/1/1")), 53, false);
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(53)),
+                is(set(new GUID("WS:52/1/1"))));
+        indexStorage.unshareObjects(set(new GUID("WS:52/1/1")), 53);
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(53)),
+                is(Collections.emptySet()));
+        
+        indexStorage.deleteAllVersions(new GUID("WS:51/1/2"));
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(51)),
+                is(Collections.emptySet()));
+        indexStorage.undeleteAllVersions(new GUID("WS:51/1/2"));
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(51)),
+                is(set(new GUID("WS:51/1/2"))));
+        
+        indexStorage.publishAllVersions(new GUID("WS:52/1/1"));
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withPublic(true)),
+                is(set(new GUID("WS:52/1/1"))));
+    }
+    
+    @Test
+    public void accessGroupsLookup() throws Exception {
+        final ObjectTypeParsingRules rule = countedRule("LookedUp");
+        final String json = "{\"prop1\":\"abc\"}";
+        indexObject(new GUID("WS:61/1/1"), rule, json, "obj.1", Instant.now(), null, false);
+        indexObject(new GUID("WS:62/1/1"), rule, json, "obj.1", Instant.now(), null, false);
+        indexObject(new GUID("WS:63/1/1"), rule, json, "obj.1", Instant.now(), null, true);
+        
+        indexStorage.setAccessGroupsLookupMinimum(2);
+        indexStorage.storeAccessGroups("user1", Arrays.asList(62, 61));
+        final String lookup = indexStorage.getIndexNamePrefix() + "lookup.accessgroups";
+        assertThat("incorrect stored groups", getDoc(lookup, "groups", "user1", null)
+                .get("groups"), is(Arrays.asList(61, 62)));
+        
+        final AccessFilter af = AccessFilter.create().withAccessGroups(61, 62)
+                .withAccessGroupsLookupKey("user1");
+        assertThat("incorrect ids", searchAll(af),
+                is(set(new GUID("WS:61/1/1"), new GUID("WS:62/1/1"))));
+        assertThat("incorrect ids", searchAll(af.withPublic(true)),
+                is(set(new GUID("WS:61/1/1"), new GUID("WS:62/1/1"), new GUID("WS:63/1/1"))));
+        
+        // storing different groups under the same key replaces the stored groups
+        indexStorage.storeAccessGroups("user1", Arrays.asList(61, 62, 63));
+        assertThat("incorrect stored groups", getDoc(lookup, "groups", "user1", null)
+                .get("groups"), is(Arrays.asList(61, 62, 63)));
+        indexStorage.makeRequest("POST", "/" + lookup + "/_refresh", null);
+        final Response count = indexStorage.makeRequest("GET", "/" + lookup + "/_count", null);
+        assertThat("incorrect stored documents", ((Map<?, ?>) UObject.getMapper().readValue(
+                count.getEntity().getContent(), Map.class)).get("count"), is(1));
+        
+        // change the stored groups behind the storage's back to show they're looked up
+        indexStorage.makeRequest("PUT", "/" + lookup + "/groups/user1",
+                ImmutableMap.of("groups", Arrays.asList(61)),
+                ImmutableMap.of("version", String.valueOf(Long.MAX_VALUE - 1),
+                        "version_type", "external_gte"));
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(61, 62, 63)
+                .withAccessGroupsLookupKey("user1")),
+                is(set(new GUID("WS:61/1/1"))));
+        
+        // groups that differ from the stored groups are sent with the query
+        assertThat("incorrect ids", searchAll(af.withPublic(false)),
+                is(set(new GUID("WS:61/1/1"), new GUID("WS:62/1/1"))));
+        
+        // a newer set of groups, for example from another server, isn't overwritten by an
+        // older set, so the older set is sent with the query
+        indexStorage.storeAccessGroups("user1", Arrays.asList(61, 62, 63));
+        assertThat("incorrect stored groups", getDoc(lookup, "groups", "user1", null)
+                .get("groups"), is(Arrays.asList(61)));
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(61, 62, 63)
+                .withAccessGroupsLookupKey("user1")),
+                is(set(new GUID("WS:61/1/1"), new GUID("WS:62/1/1"), new GUID("WS:63/1/1"))));
+        
+        // too few groups to store
+        indexStorage.storeAccessGroups("user1", Arrays.asList(62));
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(62)
+                .withAccessGroupsLookupKey("user1")),
+                is(set(new GUID("WS:62/1/1"))));
+    }
+    
+    @Test
+    public void auxiliaryIndexesNotSearched() throws Exception {
+        /* the auxiliary indexes share the index name prefix, but have no access or data
+         * documents, so joins and sorts on the data documents fail if they are searched
+         */
+        final ObjectTypeParsingRules rule = countedRule("Auxiliary");
+        final String json = "{\"prop1\":\"abc\"}";
+        indexObject(new GUID("WS:71/1/1"), rule, json, "obj.1", Instant.ofEpochMilli(20000),
+                null, false);
+        indexObject(new GUID("WS:71/2/1"), rule, json, "obj.2", Instant.ofEpochMilli(10000),
+                null, false);
+        indexStorage.setAccessGroupsLookupMinimum(1);
+        indexStorage.storeAccessGroups("user1", Arrays.asList(71, 72));
+        final String prefix = indexStorage.getIndexNamePrefix();
+        assertThat("missing auxiliary indexes", indexStorage.listIndeces().containsAll(
+                Arrays.asList(prefix + "ledger.versions", prefix + "counts.types",
+                        prefix + "lookup.accessgroups")), is(true));
+        
+        indexStorage.shareObjects(set(new GUID("WS:71/1/1")), 72, false);
+        final PostProcessing pp = new PostProcessing();
+        pp.objectInfo = true;
+        final List<GUID> guids = indexStorage.searchObjects(
+                Collections.emptyList(),
+                MatchFilter.getBuilder().build(),
+                Arrays.asList(SortingRule.getStandardPropertyBuilder("timestamp").build()),
+                AccessFilter.create().withAccessGroups(71, 72)
+                        .withAccessGroupsLookupKey("user1"),
+                null,
+                pp)
+                .objects.stream().map(od -> od.getGUID()).collect(Collectors.toList());
+        assertThat("incorrect sort order", guids,
+                is(Arrays.asList(new GUID("WS:71/2/1"), new GUID("WS:71/1/1"))));
+        assertThat("incorrect ids", searchAll(AccessFilter.create().withAccessGroups(72)),
+                is(set(new GUID("WS:71/1/1"))));
+        assertThat("incorrect types", indexStorage.searchTypes(MatchFilter.getBuilder().build(),
+                AccessFilter.create().withAccessGroups(71, 72)),
+                is(ImmutableMap.of("Auxiliary", 2)));
+    }
+    
+    @Test
+    public void storeAccessGroupsFail() throws Exception {
+        failStoreAccessGroups(null, Arrays.asList(1),
+                new IllegalArgumentException("key cannot be null or empty"));
+        failStoreAccessGroups("  ", Arrays.asList(1),
+                new IllegalArgumentException("key cannot be null or empty"));
+        failStoreAccessGroups("u", null, new NullPointerException("accessGroupIds"));
+        failStoreAccessGroups("u", Arrays.asList(1, null),
+                new NullPointerException("null item in accessGroupIds"));
+        try {
+            indexStorage.setAccessGroupsLookupMinimum(-1);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            assertThat("incorrect message", e.getMessage(), is("minimum must be at least 0"));
+        }
+    }
+    
+    private void failStoreAccessGroups(
+            final String key,
+            final List<Integer> groups,
+            final Exception expected) {
+        try {
+            indexStorage.storeAccessGroups(key, groups);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, expected);
+        }
+    }
+    
+    @Test
+    public void getObjectsByIdsRouted() throws Exception {
+        final ObjectTypeParsingRules ruleA = countedRule("RoutedA");
+        final ObjectTypeParsingRules ruleB = countedRule("RoutedB");
+        final String json = "{\"prop1\":\"abc\"}";
+        final Set<GUID> guids = new HashSet<>();
+        // more objects than the default search result size
+        for (int i = 1; i <= 12; i++) {
+            final GUID guid = new GUID("WS:71/" + i + "/1");
+            indexObject(guid, ruleA, json, "obj." + i, Instant.now(), null, false);
+            guids.add(guid);
+        }
+        // the type of object 1 changes in version 2
+        indexObject(new GUID("WS:71/1/2"), ruleB, json, "obj.1", Instant.now(), null, false);
+        guids.add(new GUID("WS:71/1/2"));
+        
+        final Set<GUID> requested = new HashSet<>(guids);
+        requested.add(new GUID("WS:71/1/3"));
+        requested.add(new GUID("WS:72/1/1"));
+        assertThat("incorrect objects", indexStorage.getObjectsByIds(requested).stream()
+                .map(od -> od.getGUID()).collect(Collectors.toSet()), is(guids));
+        
+        final PostProcessing pp = new PostProcessing();
+        pp.objectInfo = true;
+        pp.objectHighlight = true;
+        final List<ObjectData> objs = indexStorage.getObjectsByIds(requested, pp);
+        assertThat("incorrect objects", objs.stream().map(od -> od.getGUID())
+                .collect(Collectors.toSet()), is(guids));
+        assertThat("incorrect object name", objs.stream()
+                .filter(od -> od.getGUID().equals(new GUID("WS:71/1/2")))
+                .findFirst().get().getObjectName(), is(Optional.of("obj.1")));
+        
+        // null post processing returns the default fields without highlights
+        final List<ObjectData> defobjs = indexStorage.getObjectsByIds(requested, null);
+        assertThat("incorrect objects", defobjs.stream().map(od -> od.getGUID())
+                .collect(Collectors.toSet()), is(guids));
+        final ObjectData defobj = defobjs.stream()
+                .filter(od -> od.getGUID().equals(new GUID("WS:71/1/2")))
+                .findFirst().get();
+        assertThat("incorrect object name", defobj.getObjectName(), is(Optional.of("obj.1")));
+        assertThat("incorrect highlight", defobj.getHighlight().isEmpty(), is(true));
+        
+        // the ledger still refers to deleted indexes
+        indexStorage.deleteIndex(indexStorage.getIndexNamePrefix() + "routedb_1");
+        guids.remove(new GUID("WS:71/1/2"));
+        assertThat("incorrect objects", indexStorage.getObjectsByIds(requested).stream()
+                .map(od -> od.getGUID()).collect(Collectors.toSet()), is(guids));
+    }
+    
+    // creates an index with layout 1, where ElasticSearch generates the document IDs
+    private static void createLegacyIndex(final String index) throws Exception {
+        final Map<String, Object> keyword = ImmutableMap.of("type", "keyword");
+        final Map<String, Object> integer = ImmutableMap.of("type", "integer");
+        indexStorage.makeRequest("PUT", "/" + index, ImmutableMap.of("mappings", ImmutableMap.of(
+                "access", ImmutableMap.of("properties", ImmutableMap.of(
+                        "pguid", keyword, "prefix", keyword, "version", integer,
+                        "lastin", integer, "groups", integer)),
+                "data", ImmutableMap.of(
+                        "_parent", ImmutableMap.of("type", "access"),
+                        "properties", ImmutableMap.of(
+                                "guid", keyword, "prefix", keyword, "otype", keyword,
+                                "version", integer)))));
+        assertThat("incorrect layout", indexStorage.getIndexLayout(index), is(1));
+    }
+    
+    @Test
+    public void migrateLegacyIndex() throws Exception {
+        final String index = indexStorage.getIndexNamePrefix() + "legacy_1";
+        createLegacyIndex(index);
+        
+        SearchObjectType objType = new SearchObjectType("Legacy", 1);
+        IndexingRules ir = IndexingRules.fromPath(new ObjectJsonPath("prop1"))
+                .withFullText().build();
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                objType, new StorageObjectType("foo", "bar"))
+                .withIndexingRule(ir).build();
+        indexObject(new GUID("WS:2/1/1"), rule, "{\"prop1\":\"abc\"}", "obj.1",
+                Instant.now(), null, false);
+        indexObject(new GUID("WS:2/1/2"), rule, "{\"prop1\":\"abc\"}", "obj.1",
+                Instant.now(), null, false);
+        /* data documents must be routed to the same shard as their migrated parents. With
+         * several shards a single object may end up on the right shard by chance, so migrate
+         * enough objects that every shard is involved
+         */
+        final Set<GUID> many = new LinkedHashSet<>();
+        for (int i = 1; i <= 30; i++) {
+            final GUID guid = new GUID("WS:3/" + i + "/1");
+            indexObject(guid, rule, "{\"prop1\":\"xyz\"}", "obj." + i, Instant.now(), null,
+                    false);
+            many.add(guid);
+        }
+        
+        /* the ledger and type counts were created after the legacy index, so they must be built
+         * by the migration
+         */
+        final String ledger = indexStorage.getIndexNamePrefix() + "ledger.versions";
+        final String counts = indexStorage.getIndexNamePrefix() + "counts.types";
+        assertThat("incorrect migrated", indexStorage.migrateIndexes(),
+                is(Arrays.asList(index, ledger, counts)));
+        assertThat("incorrect layout", indexStorage.getIndexLayout(index),
+                is(ElasticIndexingStorage.CURRENT_INDEX_LAYOUT));
+        assertThat("incorrect ledger", getDoc(ledger, "ledger", "WS:2/1", null).get("last"),
+                is(ImmutableMap.of(index, 2)));
+        for (int i = 1; i <= 30; i++) {
+            assertThat("incorrect ledger", getDoc(ledger, "ledger", "WS:3/" + i, null)
+                    .get("last"), is(ImmutableMap.of(index, 1)));
+        }
+        assertThat("incorrect counts", getDoc(counts, "counts", "2", null).get("types"),
+                is(ImmutableMap.of("Legacy", 1)));
+        assertThat("incorrect migrated", indexStorage.migrateIndexes(),
+                is(Collections.emptyList()));
+        assertThat("incorrect data doc", getDoc(index, "data", "WS:2/1/2", "WS:2/1/2")
+                .get("guid"), is("WS:2/1/2"));
+        
+        checkIdInSet(indexStorage.searchIds(ImmutableList.of("Legacy"), ft("abc"), null,
+                AccessFilter.create().withAccessGroups(2)), 1, new GUID("WS:2/1/2"));
+        Assert.assertEquals(2, indexStorage.searchIds(ImmutableList.of("Legacy"), ft("abc"),
+                null, AccessFilter.create().withAccessGroups(2).withAllHistory(true)).size());
+        
+        assertThat("incorrect ids", new HashSet<>(indexStorage.searchIds(
+                ImmutableList.of("Legacy"), ft("xyz"), null,
+                AccessFilter.create().withAccessGroups(3))), is(many));
+        assertThat("incorrect objects", indexStorage.getObjectsByIds(many).stream()
+                .map(od -> od.getGUID()).collect(Collectors.toSet()), is(many));
+    }
+    
+    @Test
+    public void migrateInterruptedCopyBack() throws Exception {
+        final String index = indexStorage.getIndexNamePrefix() + "interrupted_1";
+        final String temp = "migrating." + index;
+        createLegacyIndex(index);
+        final ObjectTypeParsingRules rule = countedRule("Interrupted");
+        indexObject(new GUID("WS:2/1/1"), rule, "{\"prop1\":\"abc\"}", "obj.1",
+                Instant.now(), null, false);
+        indexObject(new GUID("WS:2/1/2"), rule, "{\"prop1\":\"abc\"}", "obj.1",
+                Instant.now(), null, false);
+        indexStorage.migrateIndexes();
+        
+        /* simulate a migration interrupted while copying the data back from the temporary index:
+         * the temporary index is complete, and the recreated index is empty and unmarked.
+         */
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Object>> mappings = (Map<String, Map<String, Object>>)
+                UObject.getMapper().readValue(indexStorage.makeRequest("GET",
+                        "/" + index + "/_mapping", null).getEntity().getContent(), Map.class)
+                .get(index);
+        indexStorage.makeRequest("PUT", "/" + temp, mappings);
+        indexStorage.makeRequest("POST", "/_reindex", ImmutableMap.of(
+                "source", ImmutableMap.of("index", index),
+                "dest", ImmutableMap.of("index", temp)),
+                ImmutableMap.of("refresh", "true"));
+        indexStorage.deleteIndex(index);
+        createLegacyIndex(index);
+        
+        assertThat("incorrect migrated", indexStorage.migrateIndexes(),
+                is(Arrays.asList(index)));
+        assertThat("incorrect layout", indexStorage.getIndexLayout(index),
+                is(ElasticIndexingStorage.CURRENT_INDEX_LAYOUT));
+        assertThat("temp index not deleted", indexStorage.listIndeces().contains(temp),
+                is(false));
+        checkIdInSet(indexStorage.searchIds(ImmutableList.of("Interrupted"), ft("abc"), null,
+                AccessFilter.create().withAccessGroups(2)), 1, new GUID("WS:2/1/2"));
+        Assert.assertEquals(2, indexStorage.searchIds(ImmutableList.of("Interrupted"),
+                ft("abc"), null, AccessFilter.create().withAccessGroups(2)
+                .withAllHistory(true)).size());
+    }
+    
+    @Test
+    public void repeatedObjectInBatch() throws Exception {
+        // the same object version may be buffered twice, e.g. by a new version and a reindex event
+        createLegacyIndex(indexStorage.getIndexNamePrefix() + "repeatedlegacy_1");
+        for (final String type: Arrays.asList("RepeatedLegacy", "Repeated")) {
+            final ObjectTypeParsingRules rule = countedRule(type);
+            final GUID id = new GUID("WS:2/1/1");
+            final SourceData data = SourceData.getBuilder(
+                    new UObject("{\"prop1\":\"abd\"}"), "obj.1", "creator").build();
+            final List<IndexObjectsRequest> requests = new ArrayList<>();
+            for (final String value: Arrays.asList("abc", "abd")) {
+                requests.add(new IndexObjectsRequest(rule, data, Instant.now(), null, id,
+                        ImmutableMap.of(id, new ParsedObject("{\"prop1\":\"" + value + "\"}",
+                                ImmutableMap.of("prop1", Arrays.asList(value)))),
+                        false));
+            }
+            indexStorage.indexObjects(requests);
+            
+            // the last request for the object is indexed, once
+            final AccessFilter af = AccessFilter.create().withAccessGroups(2)
+                    .withAllHistory(true);
+            checkIdInSet(indexStorage.searchIds(ImmutableList.of(type), ft("abd"), null, af),
+                    1, id);
+            assertThat("incorrect count", indexStorage.searchIds(ImmutableList.of(type),
+                    ft("abc"), null, af).size(), is(0));
+            checkIdInSet(indexStorage.searchIds(ImmutableList.of(type), ft("abd"), null,
+                    AccessFilter.create().withAccessGroups(2)), 1, id);
+        }
+    }
+    
+    @Test
+    public void bulkIndexingFailure() throws Exception {
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                new SearchObjectType("BulkFail", 1), new StorageObjectType("foo", "bar"))
+                .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("count"))
+                        .withKeywordType("integer").build())
+                .build();
+        final GUID id = new GUID("WS:2/1/1");
+        try {
+            indexStorage.indexObject(rule, SourceData.getBuilder(
+                    new UObject("{\"count\":\"many\"}"), "obj.1", "creator").build(),
+                    Instant.now(), null, id, new ParsedObject("{\"count\":\"many\"}",
+                            ImmutableMap.of("count", Arrays.asList("many"))),
+                    false);
+            fail("expected exception");
+        } catch (IOException e) {
+            assertThat("incorrect message", e.getMessage().startsWith(
+                    "Failed to index document WS:2/1/1 in index " +
+                    indexStorage.getIndexNamePrefix() + "bulkfail_1: "), is(true));
+        }
+    }
+    
+    private static Map<GUID, ParsedObject> subObjects(final GUID parent, final String... ids) {
+        final Map<GUID, ParsedObject> ret = new LinkedHashMap<>();
+        for (final String id: ids) {
+            ret.put(new GUID(parent, "sub", id), new ParsedObject(
+                    "{\"whee\": \"" + id + "\"}", ImmutableMap.of("whee", Arrays.asList(id))));
+        }
+        return ret;
+    }
+    
+    @Test
+    public void parentDataStoredOnce() throws Exception {
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                new SearchObjectType("ParentData", 1), new StorageObjectType("foo", "bar"))
+                .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("whee")).build())
+                .build();
+        final GUID pguid = new GUID("WS:3/1/1");
+        indexStorage.indexObjects(rule,
+                SourceData.getBuilder(new UObject(new HashMap<>()), "obj", "creator").build(),
+                Instant.ofEpochMilli(10000), "{\"parent\": \"data\"}", pguid,
+                subObjects(pguid, "a", "b"), false);
+        
+        final String index = indexStorage.getIndexNamePrefix() + "parentdata_1";
+        assertThat("incorrect access doc", getDoc(index, "access", "WS:3/1/1", null)
+                .get("pjson"), is("{\"parent\": \"data\"}"));
+        assertThat("incorrect data doc", getDoc(index, "data", "WS:3/1/1:sub/a", "WS:3/1/1")
+                .containsKey("pjson"), is(false));
+        
+        final PostProcessing pp = new PostProcessing();
+        pp.objectData = true;
+        final List<ObjectData> objs = indexStorage.searchObjects(
+                Collections.emptyList(),
+                MatchFilter.getBuilder().build(),
+                null,
+                AccessFilter.create().withAccessGroups(3),
+                null,
+                pp)
+                .objects;
+        assertThat("incorrect object count", objs.size(), is(2));
+        for (final ObjectData od: objs) {
+            assertThat("incorrect parent data", od.getParentData(),
+                    is(Optional.of(ImmutableMap.of("parent", "data"))));
+        }
+        assertThat("incorrect parent data", indexStorage.getObjectsByIds(
+                TestCommon.set(new GUID(pguid, "sub", "b"))).get(0).getParentData(),
+                is(Optional.of(ImmutableMap.of("parent", "data"))));
+    }
+    
+    @Test
+    public void migrateLayout2Index() throws Exception {
+        final String index = indexStorage.getIndexNamePrefix() + "layout2_1";
+        final Map<String, Object> keyword = ImmutableMap.of("type", "keyword");
+        final Map<String, Object> integer = ImmutableMap.of("type", "integer");
+        final Map<String, Object> bool = ImmutableMap.of("type", "boolean");
+        indexStorage.makeRequest("PUT", "/" + index, ImmutableMap.of("mappings", ImmutableMap.of(
+                "access", ImmutableMap.of("properties", ImmutableMap.of(
+                        "pguid", keyword, "prefix", keyword, "version", integer,
+                        "lastin", integer, "groups", integer)),
+                "data", ImmutableMap.of(
+                        "_parent", ImmutableMap.of("type", "access"),
+                        "_meta", ImmutableMap.of("layout_version", 2),
+                        "properties", ImmutableMap.builder()
+                                .put("guid", keyword).put("prefix", keyword)
+                                .put("otype", keyword).put("version", integer)
+                                .put("islast", bool).put("key.whee", keyword)
+                                .put("pjson", ImmutableMap.of("type", "keyword",
+                                        "index", false, "doc_values", false))
+                                .build()))));
+        assertThat("incorrect layout", indexStorage.getIndexLayout(index), is(2));
+        
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                new SearchObjectType("Layout2", 1), new StorageObjectType("foo", "bar"))
+                .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("whee")).build())
+                .build();
+        final GUID pguid1 = new GUID("WS:4/1/1");
+        indexStorage.indexObjects(rule,
+                SourceData.getBuilder(new UObject(new HashMap<>()), "obj", "creator").build(),
+                Instant.ofEpochMilli(10000), "{\"v\": 1}", pguid1,
+                subObjects(pguid1, "a"), false);
+        assertThat("incorrect data doc", getDoc(index, "data", "WS:4/1/1:sub/a", "WS:4/1/1")
+                .get("pjson"), is("{\"v\": 1}"));
+        
+        // layout 2 indexes are upgraded in place
+        assertThat("incorrect migrated", indexStorage.migrateIndexes().contains(index),
+                is(true));
+        assertThat("incorrect layout", indexStorage.getIndexLayout(index),
+                is(ElasticIndexingStorage.CURRENT_INDEX_LAYOUT));
+        
+        final GUID pguid2 = new GUID("WS:4/1/2");
+        indexStorage.indexObjects(rule,
+                SourceData.getBuilder(new UObject(new HashMap<>()), "obj", "creator").build(),
+                Instant.ofEpochMilli(20000), "{\"v\": 2}", pguid2,
+                subObjects(pguid2, "a"), false);
+        assertThat("incorrect access doc", getDoc(index, "access", "WS:4/1/2", null)
+                .get("pjson"), is("{\"v\": 2}"));
+        
+        final PostProcessing pp = new PostProcessing();
+        pp.objectData = true;
+        final List<ObjectData> objs = indexStorage.getObjectsByIds(TestCommon.set(
+                new GUID(pguid1, "sub", "a"), new GUID(pguid2, "sub", "a")), pp);
+        final Map<GUID, Object> parentData = new HashMap<>();
+        for (final ObjectData od: objs) {
+            parentData.put(od.getGUID(), od.getParentData().get());
+        }
+        assertThat("incorrect parent data", parentData, is(ImmutableMap.of(
+                new GUID(pguid1, "sub", "a"), ImmutableMap.of("v", 1),
+                new GUID(pguid2, "sub", "a"), ImmutableMap.of("v", 2))));
+    }
+    
+    @Test
+    public void indexCatalogSeesExternalIndexes() throws Exception {
+        final List<String> type = ImmutableList.of("CatalogExt");
+        try {
+            indexStorage.searchIds(type, ft("abc"), null, AccessFilter.create().withAdmin(true));
+            fail("expected exception");
+        } catch (IOException e) {
+            assertThat("incorrect message", e.getMessage(),
+                    is("No indexes exist for search type CatalogExt"));
+        }
+        // simulate another process creating the index
+        final SearchObjectType objType = new SearchObjectType("CatalogExt", 1);
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                objType, new StorageObjectType("foo", "bar"))
+                .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("prop1"))
+                        .withFullText().build()).build();
+        final ElasticIndexingStorage other = new ElasticIndexingStorage(
+                indexStorage.getEsHost(), tempDir);
+        other.setIndexNamePrefix(indexStorage.getIndexNamePrefix());
+        other.indexObjects(rule, SourceData.getBuilder(new UObject("{}"), "obj", "creator")
+                .build(), Instant.now(), null, new GUID("WS:2/1/1"), Collections.emptyMap(),
+                false);
+        other.close();
+        
+        // misses reload the catalog at most once a second
+        Thread.sleep(1100);
+        assertThat("incorrect ids", indexStorage.searchIds(type, ft(null), null,
+                AccessFilter.create().withAdmin(true)), is(set(new GUID("WS:2/1/1"))));
+    }
+    
+    @Test
+    public void clientPools() throws Exception {
+        // uses a separate storage instance so the pool metrics start at zero
+        final ElasticIndexingStorage other = new ElasticIndexingStorage(
+                Arrays.asList(indexStorage.getEsHost()), tempDir);
+        other.setIndexNamePrefix(indexStorage.getIndexNamePrefix());
+        other.setReadPool(5, 5000, 10000);
+        other.setWritePool(2, 5000, 10000);
+        try {
+            assertThat("incorrect nodes", other.discoverNodes().size(), is(1));
+            final long reads = other.getReadPool().getRequestCount();
+            assertThat("incorrect read requests", reads, is(1L));
+            assertThat("incorrect write requests", other.getWritePool().getRequestCount(),
+                    is(0L));
+            
+            final SearchObjectType objType = new SearchObjectType("Pools", 1);
+            final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                    objType, new StorageObjectType("foo", "bar"))
+                    .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("prop1"))
+                            .withFullText().build()).build();
+            other.indexObjects(rule, SourceData.getBuilder(new UObject("{}"), "obj", "creator")
+                    .build(), Instant.now(), null, new GUID("WS:3/1/1"), Collections.emptyMap(),
+                    false);
+            final long writes = other.getWritePool().getRequestCount();
+            assertThat("no write requests", writes > 0, is(true));
+            
+            assertThat("incorrect ids", other.searchIds(ImmutableList.of("Pools"), ft(null),
+                    null, AccessFilter.create().withAdmin(true)), is(set(new GUID("WS:3/1/1"))));
+            assertThat("no read requests", other.getReadPool().getRequestCount() > reads,
+                    is(true));
+            assertThat("incorrect failures", other.getReadPool().getFailedRequestCount() +
+                    other.getWritePool().getFailedRequestCount(), is(0L));
+            assertThat("incorrect max conns", other.getWritePool().getMaxConnections(), is(2));
+        } finally {
+            other.close();
+        }
+    }
+    
+    @Test
+    public void setIndexCatalogTTLFail() throws Exception {
+        try {
+            indexStorage.setIndexCatalogTTLMS(-1);
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+            assertThat("incorrect message", e.getMessage(), is("ttlMS must be at least 0"));
+        }
+    }
+    
+    private Map<String, Object> getDoc(
+            final String index,
+            final String type,
+            final String id,
+            final String parent)
+            throws Exception {
+        final Map<String, String> params = parent == null ? Collections.emptyMap() :
+                ImmutableMap.of("parent", parent);
+        final Response resp = indexStorage.makeRequest("GET", "/" + index + "/" + type + "/" +
+                URLEncoder.encode(id, "UTF-8"), null, params);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> doc = UObject.getMapper().readValue(
+                resp.getEntity().getContent(), Map.class);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> source = (Map<String, Object>) doc.get("_source");
+        return source;
+    }
+
     private Set<GUID> lookupIdsByKey(List<String> objTypes, String keyName, Object value,
             AccessFilter af) throws IOException {
         Set<GUID> ret = indexStorage.searchIds(objTypes, MatchFilter.getBuilder().withLookupInKey(
@@ -524,6 +1387,41 @@ public class ElasticIndexingStorageTest {
         Assert.assertEquals(0, lookupIdsByKey(type, "prop2", 125, af1x).size());
     }
 
+    @Test
+    public void shareAndPublishManyObjects() throws Exception {
+        // more objects than a search returns by default
+        SearchObjectType objType = new SearchObjectType("ShareMany", 1);
+        List<String> type = ImmutableList.of(objType.getType());
+        IndexingRules ir = IndexingRules.fromPath(new ObjectJsonPath("prop1"))
+                .withFullText().build();
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                objType, new StorageObjectType("foo", "bar"))
+                .withIndexingRule(ir).build();
+        final Set<GUID> guids = new LinkedHashSet<>();
+        for (int i = 1; i <= 15; i++) {
+            final GUID guid = new GUID("WS:20/" + i + "/1");
+            indexObject(guid, rule, "{\"prop1\":\"abc\"}", "obj." + i, Instant.now(), null,
+                    false);
+            guids.add(guid);
+        }
+        final AccessFilter af21 = AccessFilter.create().withAccessGroups(21);
+        indexStorage.shareObjects(guids, 21, false);
+        assertThat("incorrect shared", indexStorage.searchIds(type, ft("abc"), null, af21),
+                is(guids));
+        
+        final AccessFilter pub = AccessFilter.create().withPublic(true);
+        indexStorage.publishObjects(guids);
+        assertThat("incorrect public", indexStorage.searchIds(type, ft("abc"), null, pub),
+                is(guids));
+        
+        indexStorage.unshareObjects(guids, 21);
+        indexStorage.unpublishObjects(guids);
+        assertThat("incorrect shared", indexStorage.searchIds(type, ft("abc"), null, af21),
+                is(set()));
+        assertThat("incorrect public", indexStorage.searchIds(type, ft("abc"), null, pub),
+                is(set()));
+    }
+
     @Test
     public void testPublic() throws Exception {
         SearchObjectType objType = new SearchObjectType("Publishable", 1);
@@ -709,6 +1607,47 @@ public class ElasticIndexingStorageTest {
                 filterPublic), is(set()));
     }
     
+    @Test
+    public void accessGroupOperations() throws Exception {
+        // tests the access group methods for setting objects public / non-public and deleting.
+        SearchObjectType objType = new SearchObjectType("AccessGroupOps", 1);
+        List<String> type = ImmutableList.of(objType.getType());
+        IndexingRules ir = IndexingRules.fromPath(new ObjectJsonPath("myprop"))
+                .withFullText().build();
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                objType, new StorageObjectType("foo", "bar"))
+                .withIndexingRule(ir).build();
+        GUID id1 = new GUID("WS:300/1/1");
+        GUID id2 = new GUID("WS:300/2/1");
+        GUID id3 = new GUID("WS:300/2/2");
+        GUID other = new GUID("WS:301/1/1");
+        for (final GUID id: Arrays.asList(id1, id2, id3, other)) {
+            indexObject(id, rule, "{\"myprop\": \"some stuff\"}", "myobj", Instant.now(),
+                    null, false);
+        }
+        
+        final AccessFilter filterPublic = AccessFilter.create()
+                .withAllHistory(true).withPublic(true);
+        final AccessFilter filter = AccessFilter.create().withAccessGroups(300, 301);
+
+        assertThat("incorrect ids returned", lookupIdsByKey(type, "myprop", "some",
+                filterPublic), is(set()));
+
+        indexStorage.publishAccessGroup("WS", 300);
+        assertThat("incorrect ids returned", lookupIdsByKey(type, "myprop", "some",
+                filterPublic), is(set(id1, id2, id3)));
+
+        indexStorage.unpublishAccessGroup("WS", 300);
+        assertThat("incorrect ids returned", lookupIdsByKey(type, "myprop", "some",
+                filterPublic), is(set()));
+
+        assertThat("incorrect ids returned", lookupIdsByKey(type, "myprop", "some",
+                filter), is(set(id1, id3, other)));
+        indexStorage.deleteAccessGroup("WS", 300);
+        assertThat("incorrect ids returned", lookupIdsByKey(type, "myprop", "some",
+                filter), is(set(other)));
+    }
+    
     @Test
     public void testTypeVersions() throws Exception {
         /* test that types with incompatible fields but different versions index successfully. */
@@ -1091,6 +2030,188 @@ public class ElasticIndexingStorageTest {
                 new GUID("WS:1/3/1"), new GUID("WS:1/2/1"), new GUID("WS:1/1/1"))));
     }
     
+    @Test
+    public void cursorPaginationAndExport() throws Exception {
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                new SearchObjectType("Cursor", 1), new StorageObjectType("foo", "bar"))
+                .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("whee")).build())
+                .build();
+        final List<GUID> expected = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            final GUID guid = new GUID("WS:1/" + i + "/1");
+            // objects 1 & 2 and 3 & 4 have the same timestamp, so the GUID breaks the tie
+            indexStorage.indexObjects(rule,
+                    SourceData.getBuilder(new UObject(new HashMap<>()), "obj" + i, "creator")
+                            .build(),
+                    Instant.ofEpochMilli(10000 * ((i + 1) / 2)),
+                    null,
+                    guid,
+                    ImmutableMap.of(guid, new ParsedObject("{\"whee\": \"pony\"}",
+                            ImmutableMap.of("whee", Arrays.asList("pony")))),
+                    false);
+            expected.add(guid);
+        }
+        final AccessFilter af = AccessFilter.create().withAccessGroups(1);
+        
+        final List<GUID> paged = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            final FoundHits hits = indexStorage.searchIds(Collections.emptyList(),
+                    MatchFilter.getBuilder().build(), null, af,
+                    new kbasesearchengine.search.Pagination(0, 2, cursor));
+            assertThat("incorrect total", hits.total, is(5));
+            paged.addAll(hits.guids);
+            cursor = hits.nextCursor;
+            pages++;
+        } while (cursor != null);
+        assertThat("incorrect paged guids", paged, is(expected));
+        assertThat("incorrect page count", pages, is(3));
+        
+        final PostProcessing pp = new PostProcessing();
+        pp.objectInfo = true;
+        final List<ObjectData> exported = new ArrayList<>();
+        final long count = indexStorage.exportObjects(Collections.emptyList(),
+                MatchFilter.getBuilder().build(), null, af, pp, obj -> exported.add(obj));
+        assertThat("incorrect export count", count, is(5L));
+        assertThat("incorrect exported guids", exported.stream().map(od -> od.getGUID())
+                .collect(Collectors.toList()), is(expected));
+        assertThat("incorrect exported name", exported.get(4).getObjectName(),
+                is(Optional.of("obj5")));
+        
+        failSearchIdsWithCursor(new kbasesearchengine.search.Pagination(1, 2, "WzFd"),
+                new IllegalArgumentException(
+                        "The pagination start must be 0 for snapshot searches or when a " +
+                        "cursor is provided"));
+        failSearchIdsWithCursor(new kbasesearchengine.search.Pagination(0, 2, "@@@"),
+                new IllegalArgumentException("Invalid pagination cursor: @@@"));
+        // the cursor [1] has one sort value, but the search sorts by timestamp and GUID
+        failSearchIdsWithCursor(new kbasesearchengine.search.Pagination(0, 2, "WzFd"),
+                new IllegalArgumentException(
+                        "The pagination cursor does not match the sorting rules"));
+    }
+    
+    private void failSearchIdsWithCursor(
+            final kbasesearchengine.search.Pagination pagination,
+            final Exception expected) {
+        try {
+            indexStorage.searchIds(Collections.emptyList(), MatchFilter.getBuilder().build(),
+                    null, AccessFilter.create().withAccessGroups(1), pagination);
+            fail("expected exception");
+        } catch (Exception got) {
+            TestCommon.assertExceptionCorrect(got, expected);
+        }
+    }
+    
+    private void indexSnapshotObject(final ObjectTypeParsingRules rule, final int id)
+            throws Exception {
+        final GUID guid = new GUID("WS:1/" + id + "/1");
+        indexStorage.indexObjects(rule,
+                SourceData.getBuilder(new UObject(new HashMap<>()), "obj" + id, "creator")
+                        .build(),
+                Instant.ofEpochMilli(10000 * id),
+                null,
+                guid,
+                ImmutableMap.of(guid, new ParsedObject("{\"whee\": \"pony\"}",
+                        ImmutableMap.of("whee", Arrays.asList("pony")))),
+                false);
+    }
+    
+    @Test
+    public void snapshotPagination() throws Exception {
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                new SearchObjectType("Snapshot", 1), new StorageObjectType("foo", "bar"))
+                .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("whee")).build())
+                .build();
+        for (int i = 1; i <= 5; i++) {
+            indexSnapshotObject(rule, i);
+        }
+        final AccessFilter af = AccessFilter.create().withAccessGroups(1);
+        
+        final kbasesearchengine.search.Pagination first =
+                new kbasesearchengine.search.Pagination(0, 2, null);
+        first.snapshot = true;
+        final FoundHits hits1 = indexStorage.searchIds(Collections.emptyList(),
+                MatchFilter.getBuilder().build(), null, af, first);
+        assertThat("incorrect total", hits1.total, is(5));
+        assertThat("incorrect guids", hits1.guids, is(set(
+                new GUID("WS:1/1/1"), new GUID("WS:1/2/1"))));
+        
+        // changes after the snapshot starts are not visible in the snapshot
+        indexSnapshotObject(rule, 6);
+        
+        final List<GUID> paged = new ArrayList<>();
+        String cursor = hits1.nextCursor;
+        int pages = 1;
+        while (cursor != null) {
+            final kbasesearchengine.search.Pagination pg =
+                    new kbasesearchengine.search.Pagination(0, 50, cursor);
+            pg.snapshot = true;
+            final FoundHits hits = indexStorage.searchIds(Collections.emptyList(),
+                    MatchFilter.getBuilder().build(), null, af, pg);
+            assertThat("incorrect total", hits.total, is(5));
+            // the page size is fixed by the first page
+            assertThat("incorrect page size", hits.guids.size() <= 2, is(true));
+            paged.addAll(hits.guids);
+            cursor = hits.nextCursor;
+            pages++;
+        }
+        assertThat("incorrect paged guids", new HashSet<>(paged), is(set(
+                new GUID("WS:1/3/1"), new GUID("WS:1/4/1"), new GUID("WS:1/5/1"))));
+        assertThat("incorrect page count", pages, is(3));
+        
+        // the new object is visible to new searches
+        assertThat("incorrect total", indexStorage.searchIds(Collections.emptyList(),
+                MatchFilter.getBuilder().build(), null, af, null).total, is(6));
+    }
+    
+    @Test
+    public void snapshotRelease() throws Exception {
+        final ObjectTypeParsingRules rule = ObjectTypeParsingRules.getBuilder(
+                new SearchObjectType("Snapshot", 1), new StorageObjectType("foo", "bar"))
+                .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("whee")).build())
+                .build();
+        for (int i = 1; i <= 3; i++) {
+            indexSnapshotObject(rule, i);
+        }
+        final kbasesearchengine.search.Pagination first =
+                new kbasesearchengine.search.Pagination(0, 1, null);
+        first.snapshot = true;
+        final String cursor = indexStorage.searchIds(Collections.emptyList(),
+                MatchFilter.getBuilder().build(), null,
+                AccessFilter.create().withAccessGroups(1), first).nextCursor;
+        
+        // snapshot cursors may only continue snapshot searches
+        failSearchIdsWithCursor(new kbasesearchengine.search.Pagination(0, 1, cursor),
+                new IllegalArgumentException("The snapshot cursor is not valid for this search"));
+        
+        indexStorage.releaseCursor(cursor);
+        // releasing twice is harmless
+        indexStorage.releaseCursor(cursor);
+        final kbasesearchengine.search.Pagination pg =
+                new kbasesearchengine.search.Pagination(0, 1, cursor);
+        pg.snapshot = true;
+        try {
+            indexStorage.searchIds(Collections.emptyList(), MatchFilter.getBuilder().build(),
+                    null, AccessFilter.create().withAccessGroups(1), pg);
+            fail("expected exception");
+        } catch (IOException e) {
+            // expected, the scroll context no longer exists
+        }
+        
+        final kbasesearchengine.search.Pagination bad =
+                new kbasesearchengine.search.Pagination(1, 1, null);
+        bad.snapshot = true;
+        failSearchIdsWithCursor(bad, new IllegalArgumentException(
+                "The pagination start must be 0 for snapshot searches or when a " +
+                "cursor is provided"));
+        final kbasesearchengine.search.Pagination notSnapshotCursor =
+                new kbasesearchengine.search.Pagination(0, 1, "WzFd");
+        notSnapshotCursor.snapshot = true;
+        failSearchIdsWithCursor(notSnapshotCursor, new IllegalArgumentException(
+                "Snapshot searches can only be continued with a snapshot cursor"));
+    }
+    
     @Test
     public void sortFail() {
         try {
@@ -1112,6 +2233,54 @@ public class ElasticIndexingStorageTest {
         }
     }
     
+    @Test
+    public void sourceFiltering() throws Exception {
+        indexStorage.indexObjects(
+                ObjectTypeParsingRules.getBuilder(
+                        new SearchObjectType("SourceFilter", 1),
+                        new StorageObjectType("foo", "bar"))
+                        .withIndexingRule(IndexingRules.fromPath(new ObjectJsonPath("whee"))
+                                .build())
+                        .build(),
+                SourceData.getBuilder(new UObject(new HashMap<>()), "my name", "creator")
+                        .build(),
+                Instant.ofEpochMilli(10000),
+                "{\"parent\": \"data\"}",
+                new GUID("WS:1/1/1"),
+                ImmutableMap.of(new GUID("WS:1/1/1"), new ParsedObject(
+                        "{\"whee\": \"imaprettypony\"}",
+                        ImmutableMap.of("whee", Arrays.asList("imaprettypony")))),
+                false);
+
+        final PostProcessing pp = new PostProcessing();
+        pp.objectInfo = true;
+        pp.objectKeys = true;
+        final ObjectData noData = indexStorage.getObjectsByIds(
+                TestCommon.set(new GUID("WS:1/1/1")), pp).get(0);
+        assertThat("incorrect name", noData.getObjectName(), is(Optional.of("my name")));
+        assertThat("incorrect keys", noData.getKeyProperties(),
+                is(ImmutableMap.of("whee", "imaprettypony")));
+        assertThat("incorrect data", noData.getData(), is(Optional.absent()));
+        assertThat("incorrect parent data", noData.getParentData(), is(Optional.absent()));
+
+        final PostProcessing ppData = new PostProcessing();
+        ppData.objectData = true;
+        final ObjectData dataOnly = indexStorage.searchObjects(
+                Collections.emptyList(),
+                MatchFilter.getBuilder().build(),
+                null,
+                AccessFilter.create().withAccessGroups(1),
+                null,
+                ppData)
+                .objects.get(0);
+        assertThat("incorrect name", dataOnly.getObjectName(), is(Optional.absent()));
+        assertThat("incorrect keys", dataOnly.getKeyProperties(), is(Collections.emptyMap()));
+        assertThat("incorrect data", dataOnly.getData(),
+                is(Optional.of(ImmutableMap.of("whee", "imaprettypony"))));
+        assertThat("incorrect parent data", dataOnly.getParentData(),
+                is(Optional.of(ImmutableMap.of("parent", "data"))));
+    }
+    
     private void prepareTestMultiwordSearch(GUID guid1, GUID guid2, GUID guid3) throws Exception {
         final SearchObjectType objectType = new SearchObjectType("Simple", 1);
         final IndexingRules ir = IndexingRules.fromPath(new ObjectJsonPath("prop1"))
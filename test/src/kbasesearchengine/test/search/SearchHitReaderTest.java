@@ -0,0 +1,140 @@
+package kbasesearchengine.test.search;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import kbasesearchengine.search.SearchHitReader;
+import kbasesearchengine.search.SearchHitReader.Hit;
+
+public class SearchHitReaderTest {
+
+    private static final String RESPONSE =
+            "{\"took\": 3, \"timed_out\": false, \"_shards\": {\"total\": 5, \"failed\": 0}," +
+            " \"hits\": {\"total\": 42, \"max_score\": null, \"hits\": [" +
+            "  {\"_index\": \"i1\", \"_type\": \"data\", \"_id\": \"WS:1/2/3\", \"_score\": 1.5," +
+            "   \"_source\": {\"guid\": \"WS:1/2/3\", \"ojson\": \"{\\\"big\\\": 1}\"," +
+            "                 \"key.k\": [\"a\", \"b\"], \"stags\": null}," +
+            "   \"highlight\": {\"key.k\": [\"<em>a</em>\"]}," +
+            "   \"sort\": [1, \"x\"]}," +
+            "  {\"_index\": \"i2\", \"_type\": \"data\", \"_id\": \"WS:1/2/4\"," +
+            "   \"_source\": {\"guid\": \"WS:1/2/4\", \"nested\": {\"a\": [1, {\"b\": 2}]}}," +
+            "   \"highlight\": null}" +
+            " ]}," +
+            " \"aggregations\": {\"types\": {\"buckets\": [{\"key\": \"Genome\", " +
+            "                                              \"doc_count\": 3}]}}," +
+            " \"_scroll_id\": \"scrollme\"}";
+
+    private static InputStream toStream(final String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readAllFields() throws Exception {
+        final List<Hit> hits = new LinkedList<>();
+        final SearchHitReader r = new SearchHitReader(f -> true, true);
+        r.read(toStream(RESPONSE), hit -> hits.add(hit));
+
+        assertThat("incorrect total", r.getTotal(), is(42L));
+        assertThat("incorrect scroll", r.getScrollId(), is("scrollme"));
+        assertThat("incorrect aggs", r.getAggregations(), is(ImmutableMap.of(
+                "types", ImmutableMap.of("buckets", Arrays.asList(
+                        ImmutableMap.of("key", "Genome", "doc_count", 3))))));
+        assertThat("incorrect hit count", hits.size(), is(2));
+
+        final Hit h1 = hits.get(0);
+        assertThat("incorrect index", h1.getIndex(), is("i1"));
+        assertThat("incorrect id", h1.getId(), is("WS:1/2/3"));
+        assertThat("incorrect source", h1.getSource().get("guid"), is("WS:1/2/3"));
+        assertThat("incorrect source", h1.getSource().get("ojson"), is("{\"big\": 1}"));
+        assertThat("incorrect source", h1.getSource().get("key.k"), is(Arrays.asList("a", "b")));
+        assertThat("incorrect source", h1.getSource().containsKey("stags"), is(true));
+        assertThat("incorrect source", h1.getSource().get("stags"), nullValue());
+        assertThat("incorrect source size", h1.getSource().size(), is(4));
+        assertThat("incorrect highlight", h1.getHighlight(),
+                is(ImmutableMap.of("key.k", Arrays.asList("<em>a</em>"))));
+        assertThat("incorrect sort", h1.getSort(), is(Arrays.asList(1, "x")));
+
+        final Hit h2 = hits.get(1);
+        assertThat("incorrect index", h2.getIndex(), is("i2"));
+        assertThat("incorrect id", h2.getId(), is("WS:1/2/4"));
+        assertThat("incorrect source", h2.getSource(), is(ImmutableMap.of(
+                "guid", "WS:1/2/4",
+                "nested", ImmutableMap.of("a", Arrays.asList(1, ImmutableMap.of("b", 2))))));
+        assertThat("incorrect highlight", h2.getHighlight(), nullValue());
+        assertThat("incorrect sort", h2.getSort(), nullValue());
+    }
+
+    @Test
+    public void readFilteredFields() throws Exception {
+        final List<Hit> hits = new LinkedList<>();
+        final SearchHitReader r = new SearchHitReader(f -> f.equals("guid"), false);
+        r.read(toStream(RESPONSE), hit -> hits.add(hit));
+
+        assertThat("incorrect total", r.getTotal(), is(42L));
+        assertThat("incorrect source", hits.get(0).getSource(),
+                is(ImmutableMap.of("guid", "WS:1/2/3")));
+        assertThat("incorrect highlight", hits.get(0).getHighlight(), nullValue());
+        assertThat("incorrect source", hits.get(1).getSource(),
+                is(ImmutableMap.of("guid", "WS:1/2/4")));
+    }
+
+    @Test
+    public void readNoHits() throws Exception {
+        final SearchHitReader r = new SearchHitReader(f -> true, true);
+        r.read(toStream("{\"hits\": {\"total\": 0, \"hits\": []}}"),
+                hit -> fail("unexpected hit"));
+        assertThat("incorrect total", r.getTotal(), is(0L));
+        assertThat("incorrect scroll", r.getScrollId(), nullValue());
+        assertThat("incorrect aggs", r.getAggregations(), is(Collections.emptyMap()));
+    }
+
+    @Test
+    public void consumerException() throws Exception {
+        final SearchHitReader r = new SearchHitReader(f -> true, true);
+        try {
+            r.read(toStream(RESPONSE), hit -> {
+                throw new IOException("whee");
+            });
+            fail("expected exception");
+        } catch (IOException e) {
+            assertThat("incorrect message", e.getMessage(), is("whee"));
+        }
+    }
+
+    @Test
+    public void readFail() throws Exception {
+        failRead(null, hit -> {}, new NullPointerException("in"));
+        failRead(toStream("{}"), null, new NullPointerException("consumer"));
+        failRead(toStream("[]"), hit -> {}, new IOException(
+                "Unexpected token in ElasticSearch search response at line 1, column 2: " +
+                "expected START_OBJECT, got START_ARRAY"));
+    }
+
+    private void failRead(
+            final InputStream in,
+            final SearchHitReader.HitConsumer consumer,
+            final Exception expected) {
+        try {
+            new SearchHitReader(f -> true, true).read(in, consumer);
+            fail("expected exception");
+        } catch (Exception got) {
+            assertThat("incorrect exception", got.getClass(), is((Object) expected.getClass()));
+            assertThat("incorrect message", got.getMessage(), is(expected.getMessage()));
+        }
+    }
+}